@@ -8,6 +8,19 @@ export const IS_RUNNING = gql`
     }
 `;
 
+export const PROGRESS_SUBSCRIPTION = gql`
+    subscription VersionsCleanerProgress($intervalInMs: Long) {
+        versionsCleanerProgress(intervalInMs: $intervalInMs) {
+            running
+            processedHistories
+            deletedVersions
+            deletedOrphanVersions
+            currentPosition
+            pauseInMs
+        }
+    }
+`;
+
 export const RUN_CLEANER = gql`
     mutation VersionsCleanerRun(
         $nbVersionsToKeep: Long
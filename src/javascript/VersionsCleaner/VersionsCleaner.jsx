@@ -1,11 +1,12 @@
 import React, {useRef, useState} from 'react';
-import {useMutation, useQuery} from '@apollo/client';
+import {useMutation, useQuery, useSubscription} from '@apollo/client';
 import {useTranslation} from 'react-i18next';
 import {Button, CheckboxItem, Input, Loader, NumberInput, Tooltip, Typography} from '@jahia/moonstone';
 import styles from './VersionsCleaner.scss';
-import {IS_RUNNING, RUN_CLEANER} from './VersionsCleaner.gql';
+import {IS_RUNNING, PROGRESS_SUBSCRIPTION, RUN_CLEANER} from './VersionsCleaner.gql';
 
 const POLL_INTERVAL_MS = 3000;
+const PROGRESS_INTERVAL_MS = 2000;
 
 const DEFAULT_FORM = {
     nbVersionsToKeep: 2,
@@ -23,6 +24,7 @@ export const VersionsCleanerAdmin = () => {
     const [form, setForm] = useState(DEFAULT_FORM);
     const [runStatus, setRunStatus] = useState(null);
     const [completionMsg, setCompletionMsg] = useState('');
+    const [subscriptionFailed, setSubscriptionFailed] = useState(false);
     const prevRunning = useRef(false);
 
     React.useEffect(() => {
@@ -33,17 +35,25 @@ export const VersionsCleanerAdmin = () => {
         fetchPolicy: 'network-only'
     });
 
-    const isRunning = data?.versionsCleaner?.isRunning === true;
+    // The progress is pushed by the server; polling is only the fallback when the subscription is not available
+    const {data: progressData} = useSubscription(PROGRESS_SUBSCRIPTION, {
+        variables: {intervalInMs: PROGRESS_INTERVAL_MS},
+        skip: subscriptionFailed,
+        onError: () => setSubscriptionFailed(true)
+    });
+
+    const progress = subscriptionFailed ? null : progressData?.versionsCleanerProgress;
+    const isRunning = progress ? progress.running === true : data?.versionsCleaner?.isRunning === true;
 
     React.useEffect(() => {
-        if (isRunning) {
+        if (isRunning && subscriptionFailed) {
             startPolling(POLL_INTERVAL_MS);
         } else {
             stopPolling();
         }
 
         return () => stopPolling();
-    }, [isRunning, startPolling, stopPolling]);
+    }, [isRunning, subscriptionFailed, startPolling, stopPolling]);
 
     // Announce completion when isRunning transitions from true → false (N-1)
     React.useEffect(() => {
@@ -77,7 +87,9 @@ export const VersionsCleanerAdmin = () => {
             });
             if (result.data?.versionsCleaner?.run === true) {
                 setRunStatus('started');
-                startPolling(POLL_INTERVAL_MS);
+                if (subscriptionFailed || !progress) {
+                    startPolling(POLL_INTERVAL_MS);
+                }
             } else {
                 setRunStatus('already_running');
             }
@@ -135,6 +147,15 @@ export const VersionsCleanerAdmin = () => {
                 <div aria-hidden="true" className={styles.vc_running}>
                     <Loader size="big"/>
                     <Typography className={styles.vc_running_text}>{t('label.running')}</Typography>
+                    {progress && (
+                        <Typography className={styles.vc_running_text}>
+                            {t('label.progress', {
+                                histories: progress.processedHistories,
+                                versions: progress.deletedVersions + progress.deletedOrphanVersions,
+                                pause: progress.pauseInMs
+                            })}
+                        </Typography>
+                    )}
                 </div>
             )}
 
@@ -0,0 +1,134 @@
+package org.jahia.community.versionscleaner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks blocked on the JCR and the DB most of the time, at most a given number at once: on a pool of platform
+ * threads of this size by default, or, when requested and supported by the runtime (Java 21 and above), on a virtual
+ * thread per task, the number of running tasks being capped by a semaphore. The virtual threads are created by
+ * reflection, so that the module still runs on the older runtimes. The synchronized sections of the repository pin the
+ * virtual threads to their carrier threads, so they only pay off when the tasks mostly wait outside of them.
+ */
+public class BoundedExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(BoundedExecutor.class);
+
+    private static final long TERMINATION_TIMEOUT_IN_MS = 60000L;
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final boolean virtual;
+
+    BoundedExecutor(ExecutorService executor, int maxConcurrency, boolean virtual) {
+        this.executor = executor;
+        this.permits = new Semaphore(maxConcurrency);
+        this.virtual = virtual;
+    }
+
+    /**
+     * @param maxConcurrency maximum number of tasks running at once
+     * @param threadName     prefix of the names of the threads
+     * @param virtualThreads whether to run the tasks on virtual threads, if the runtime supports them
+     */
+    public static BoundedExecutor create(int maxConcurrency, String threadName, boolean virtualThreads) {
+        return create(maxConcurrency, threadName, virtualThreads, null);
+    }
+
+    /**
+     * @param threadExitHook called by each thread of the executor before it stops, to release the resources bound to
+     *                       it, {@code null} if there are none
+     */
+    public static BoundedExecutor create(int maxConcurrency, String threadName, boolean virtualThreads, Runnable threadExitHook) {
+        final ThreadFactory virtualThreadFactory = virtualThreads ? getVirtualThreadFactory(threadName) : null;
+        if (virtualThreadFactory != null) {
+            logger.info("Running the tasks {} on virtual threads, at most {} at once", threadName, maxConcurrency);
+            return new BoundedExecutor(Executors.newCachedThreadPool(runnable -> virtualThreadFactory.newThread(
+                    withExitHook(runnable, threadExitHook))), maxConcurrency, true);
+        }
+        if (virtualThreads) logger.info("Virtual threads not supported by the runtime");
+        logger.info("Running the tasks {} on {} platform threads", threadName, maxConcurrency);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new BoundedExecutor(Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+            final Thread thread = new Thread(withExitHook(runnable, threadExitHook), threadName + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }), maxConcurrency, false);
+    }
+
+    private static Runnable withExitHook(Runnable runnable, Runnable threadExitHook) {
+        if (threadExitHook == null) return runnable;
+        return () -> {
+            try {
+                runnable.run();
+            } finally {
+                threadExitHook.run();
+            }
+        };
+    }
+
+    /**
+     * @return the factory of the virtual threads, {@code Thread.ofVirtual().name(threadName, 1).factory()}, or
+     * {@code null} if the runtime doesn't support them
+     */
+    static ThreadFactory getVirtualThreadFactory(String threadName) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadName + "-", 1L);
+            final Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Submits a task, waiting until fewer than the maximum number of tasks are running.
+     */
+    public <T> Future<T> submit(Callable<T> task) throws InterruptedException {
+        permits.acquire();
+        try {
+            return executor.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the running tasks to complete, and stops the threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(TERMINATION_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Some tasks are still running after {} ms", TERMINATION_TIMEOUT_IN_MS);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
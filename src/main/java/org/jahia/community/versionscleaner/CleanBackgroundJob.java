@@ -16,7 +16,26 @@ public class CleanBackgroundJob extends BackgroundJob {
                 .setCheckIntegrity(jobDataMap.getBoolean("checkIntegrity"))
                 .setNbVersionsToKeep(jobDataMap.getLong("nbVersionsToKeep"))
                 .setMaxExecutionTimeInMs(jobDataMap.getLong("maxExecutionTimeInMs"))
-                .setDeleteOrphanedVersions(jobDataMap.getBoolean("deleteOrphanedVersions"));
+                .setDeleteOrphanedVersions(jobDataMap.getBoolean("deleteOrphanedVersions"))
+                .setConcurrency(getInt(jobDataMap, "concurrency", CleanerContext.DEFAULT_CONCURRENCY))
+                .setIncremental(getBoolean(jobDataMap, "incremental"))
+                .setUseHistoryScanIndex(getBoolean(jobDataMap, "useHistoryScanIndex"))
+                .setVersionRemovalBatchSize(getInt(jobDataMap, "versionRemovalBatchSize", CleanerContext.DEFAULT_VERSION_REMOVAL_BATCH_SIZE))
+                .setReferencedVersionsSnapshotMaxMemoryMb(getLong(jobDataMap, "referencedVersionsSnapshotMaxMemoryMb", CleanerContext.DEFAULT_REFERENCED_VERSIONS_SNAPSHOT_MAX_MEMORY_MB))
+                .setTargetLatencyInMs(getLong(jobDataMap, "targetLatencyInMs", CleanerContext.DEFAULT_TARGET_LATENCY_IN_MS));
         CleanCommand.execute(configuration);
     }
+
+    // The job data of a job scheduled by a previous version of the module doesn't contain the keys added since then
+    private static int getInt(JobDataMap jobDataMap, String key, int defaultValue) {
+        return jobDataMap.containsKey(key) ? jobDataMap.getInt(key) : defaultValue;
+    }
+
+    private static long getLong(JobDataMap jobDataMap, String key, long defaultValue) {
+        return jobDataMap.containsKey(key) ? jobDataMap.getLong(key) : defaultValue;
+    }
+
+    private static boolean getBoolean(JobDataMap jobDataMap, String key) {
+        return jobDataMap.containsKey(key) && jobDataMap.getBoolean(key);
+    }
 }
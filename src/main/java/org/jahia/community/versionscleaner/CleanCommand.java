@@ -4,6 +4,7 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.XASession;
 import org.apache.jackrabbit.core.JahiaRepositoryImpl;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.id.NodeId;
@@ -21,17 +22,15 @@ import org.jahia.services.content.JCRNodeIteratorWrapper;
 import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.content.JCRSessionFactory;
 import org.jahia.services.content.impl.jackrabbit.SpringJackrabbitRepository;
-import org.jahia.services.scheduler.SchedulerService;
 import org.jahia.settings.SettingsBean;
 import org.jahia.utils.DatabaseUtils;
-import org.quartz.JobDetail;
 import org.quartz.SchedulerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.StopWatch;
 
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
@@ -41,8 +40,15 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.query.Query;
 import javax.jcr.version.Version;
 import javax.jcr.version.VersionHistory;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -50,8 +56,17 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Command(scope = "versions-cleaner", name = "run", description = "Run a scan the versions tree, and perform the configured actions")
 @Service
@@ -66,7 +81,7 @@ public class CleanCommand implements Action {
     }
     // S1075: this is the JCR-specification-mandated version storage path, not a configurable location.
     @SuppressWarnings("java:S1075")
-    private static final String VERSIONS_PATH = "/jcr:system/jcr:versionStorage";
+    static final String VERSIONS_PATH = "/jcr:system/jcr:versionStorage";
     private static final String[] INVALID_REFERENCE_NODE_TYPES_TO_REMOVE = new String[]{
             JcrConstants.NT_HIERARCHYNODE,
             Constants.JAHIANT_MEMBER,
@@ -78,13 +93,37 @@ public class CleanCommand implements Action {
     private static final String FAILED_TO_REMOVE = "Failed to remove ";
     // The version storage of a node always contains an implicit jcr:rootVersion that must never be deleted.
     // Retention math is expressed in terms of deletable (non-root) versions, so the desired count is offset by it.
-    private static final int ROOT_VERSION_COUNT = 1;
+    static final int ROOT_VERSION_COUNT = 1;
     // Default truncation length applied to version names before logging, to avoid flooding logs with huge names.
     private static final int MAX_PRINTABLE_NAME_LENGTH = 2000;
+    // Number of version names held in memory at once when deleting the versions of a history
+    private static final int DELETION_WINDOW_SIZE = 1000;
+    // Maximum number of versions skipped in their window (referenced ones) retried once the whole history has been
+    // iterated. The ones beyond are left to the next execution.
+    private static final int MAX_RETRIED_VERSIONS = 1000;
+    // Depth (under the scanned node) of the hashed folders used as partitions in parallel mode. The version
+    // storage is hashed on 3 levels of 256 folders, so 2 levels give up to 65536 independent partitions.
+    private static final int PARTITION_DEPTH = 2;
+    // Levels of the folders under which the version histories are hashed
+    private static final int HASHED_FOLDERS_DEPTH = 3;
+    // Distributed mode: pause of the processing server while the other members of the cluster scan their partitions
+    private static final long DISTRIBUTED_POLL_INTERVAL_IN_MS = 5000L;
+    // The end of the reindexing is notified by a listener of the jobs: the RAM jobs are only looked up as a safety net
+    private static final long REINDEX_CHECK_INTERVAL_IN_MS = 30000L;
+    private static final long REINDEX_INTERRUPTION_CHECK_INTERVAL_IN_MS = 5000L;
+    // Distributed mode: number of candidates read at once from their table
+    private static final int DISTRIBUTED_CANDIDATES_BLOCK_SIZE = 500;
+    // Overlap between two queries of the versions created since a given time, covering the versions whose creation
+    // date is set before they become visible to the queries
+    private static final long VERSIONS_QUERY_SAFETY_MARGIN_MS = 60000L;
+    private static final String VERSIONS_CREATED_SINCE_QUERY = "SELECT * FROM [" + JcrConstants.NT_VERSION + "] WHERE [" + JcrConstants.JCR_CREATED + "] >= $since";
 
     @Option(name = "-r", aliases = "--reindex-default-workspace", description = "Reindex default workspace before cleaning")
     private Boolean reindexDefaultWorkspace = Boolean.FALSE;
 
+    @Option(name = "-scan-during-reindex", description = "With -r, scan the versions tree while the default workspace is reindexed instead of waiting for the reindexing to complete. The incremental mode and the history scan index, which rely on queries, still wait for it")
+    private boolean scanDuringReindex = Boolean.FALSE;
+
     @Option(name = "-c", aliases = "--check-integrity", description = "Check integrity of the versions")
     private Boolean checkIntegrity = Boolean.FALSE;
 
@@ -115,10 +154,65 @@ public class CleanCommand implements Action {
     @Option(name = "-force-restart-from-the-beginning", description = "If specified, the process will restart from the beginning of the tree. Otherwise, it will try to restart from where the previous execution had stopped")
     private boolean forceRestartFromBeginning = false;
 
+    @Option(name = "-concurrency", aliases = "--concurrency", description = "Number of workers processing in parallel the partitions of the versions tree, each one with its own JCR sessions. 1 (sequential scan) by default")
+    private int concurrency = CleanerContext.DEFAULT_CONCURRENCY;
+
+    @Option(name = "-orphan-detection-batch-size", description = "Number of version histories whose orphan status is resolved with a single lookup per workspace in the DB, instead of one lookup per history through the JCR sessions. Disabled (0) by default, values from 500 to 5000 are recommended")
+    private int orphanDetectionBatchSize = CleanerContext.DEFAULT_ORPHAN_DETECTION_BATCH_SIZE;
+
+    @Option(name = "-external-mappings-max-memory", description = "Memory cap in MB of the index of the external mappings, loaded once at the beginning of the scan when the integrity is checked, so that checking whether the target of a dangling reference is an external node needs no query. Beyond the cap, the index is a Bloom filter whose positive answers are confirmed with the DB. 16 by default, 0 disables the index")
+    private long externalMappingsMaxMemoryMb = CleanerContext.DEFAULT_EXTERNAL_MAPPINGS_MAX_MEMORY_MB;
+
+    @Option(name = "-fix-batch-size", description = "Number of fixes of the integrity check saved at once, the jcr:lastModified of the nodes fixed being restored for the whole batch. 1 saves each fix on its own. 100 by default")
+    private int integrityFixBatchSize = CleanerContext.DEFAULT_INTEGRITY_FIX_BATCH_SIZE;
+
+    @Option(name = "-node-ids-snapshot-max-memory", description = "Memory cap in MB of the snapshot of the identifiers of all the nodes of the edit and live workspaces, loaded once at the beginning of the scan to detect without any lookup the histories which are not orphaned. Disabled (0) by default. If the snapshot would exceed the cap, the histories are checked without it")
+    private long nodeIdsSnapshotMaxMemoryMb = CleanerContext.DEFAULT_NODE_IDS_SNAPSHOT_MAX_MEMORY_MB;
+
+    @Option(name = "-incremental", aliases = "--incremental", description = "Once a full scan has completed, only process the version histories which have received new versions since the previous execution, and the ones of the nodes removed since then. Requires the incremental mode to be enabled in the configuration to track the removed nodes")
+    private boolean incremental = false;
+
+    @Option(name = "-history-scan-index", description = "Persist between the executions the list of the version histories within the retention, and skip the counting of their versions as long as they don't receive new versions. The list is discarded if the number of versions to keep decreases")
+    private boolean useHistoryScanIndex = false;
+
+    @Option(name = "-version-removal-batch-size", description = "Number of unreferenced versions of a history removed within a single transaction, instead of one transaction per version. If the transaction fails, the versions are removed one by one. 1 by default")
+    private int versionRemovalBatchSize = CleanerContext.DEFAULT_VERSION_REMOVAL_BATCH_SIZE;
+
+    @Option(name = "-referenced-versions-snapshot-max-memory", description = "Memory cap in MB of the snapshot of the identifiers of the referenced nodes of the version storage, reloaded when a partition starts, used to skip the reference lookup of the unreferenced versions before deleting them. Disabled (0) by default. If the snapshot would exceed the cap, the references are checked version by version")
+    private long referencedVersionsSnapshotMaxMemoryMb = CleanerContext.DEFAULT_REFERENCED_VERSIONS_SNAPSHOT_MAX_MEMORY_MB;
+
+    @Option(name = "-target-latency", description = "Latency in ms of the deletions to hold: the pause between the deletions is increased while the deletions or the wait for a DB connection take longer, and reduced down to the value of -pause otherwise. Disabled (0) by default, the pause is then fixed")
+    private long targetLatencyInMs = CleanerContext.DEFAULT_TARGET_LATENCY_IN_MS;
+
+    @Option(name = "-estimate", aliases = "--estimate", description = "Only estimate the number of orphaned histories, the number of versions over the retention and the storage their deletion would free, without deleting anything. The report is logged and returned by the lastEstimate GraphQL query")
+    private boolean estimate = false;
+
+    @Option(name = "-estimate-sample-ratio", description = "In estimation mode, fraction (between 0 and 1) of the hashed folders of the version storage to scan, the counters being extrapolated to the whole tree. 1 (every folder) by default")
+    private double estimateSampleRatio = CleanerContext.DEFAULT_ESTIMATE_SAMPLE_RATIO;
+
+    @Option(name = "-report-top-n", description = "Number of largest version histories to report at the end of the scan, with the UUID, primary type and path of their node. The scan runs even if nothing is deleted. Disabled (0) by default")
+    private int reportTopN = CleanerContext.DEFAULT_REPORT_TOP_N;
+
+    @Option(name = "-pipeline-queue-capacity", description = "Pipelined scan: capacity of the queues between the traversal of the versions tree, the classification of the histories and the deletion of their versions, each running in its own thread. Disabled (0) by default. Ignored in parallel mode")
+    private int pipelineQueueCapacity = CleanerContext.DEFAULT_PIPELINE_QUEUE_CAPACITY;
+
+    @Option(name = "-classification-concurrency", description = "Pipelined scan: number of version histories classified at once, on a pool of platform threads. 1 (classified one after the other) by default")
+    private int classificationConcurrency = CleanerContext.DEFAULT_CLASSIFICATION_CONCURRENCY;
+
+    @Option(name = "-classification-virtual-threads", description = "Pipelined scan: with -classification-concurrency, classify the version histories on virtual threads when the runtime supports them (Java 21 and above) instead of a pool of platform threads")
+    private boolean classificationVirtualThreads = Boolean.FALSE;
+
+    @Option(name = "-distributed", aliases = "--distributed", description = "Distributed mode: the partitions of the versions tree are scanned by every member of the cluster where the command is run with this option, and the versions are deleted by the processing server, where the command has to be run first")
+    private boolean distributed = Boolean.FALSE;
+
+    @Option(name = "-report-top-n-by-size", description = "Rank the largest version histories by the size of the binaries of their frozen nodes instead of by their number of versions. Reads every frozen node, slowing the scan")
+    private boolean reportTopNBySize = Boolean.FALSE;
+
     @Override
     public Object execute() throws RepositoryException {
         final CleanerContext context = new CleanerContext()
                 .setReindexDefaultWorkspace(reindexDefaultWorkspace)
+                .setScanDuringReindex(scanDuringReindex)
                 .setCheckIntegrity(checkIntegrity)
                 .setFixIntegrity(fixIntegrity)
                 .setNbVersionsToKeep(nbVersionsToKeep)
@@ -128,7 +222,25 @@ public class CleanCommand implements Action {
                 .setPauseDuration(pauseDuration)
                 .setSkippedPaths(skippedPaths)
                 .setThresholdLongHistoryPurgeStrategy(thresholdLongHistoryPurgeStrategy)
-                .setRestartFromLastPosition(!forceRestartFromBeginning);
+                .setRestartFromLastPosition(!forceRestartFromBeginning)
+                .setConcurrency(concurrency)
+                .setOrphanDetectionBatchSize(orphanDetectionBatchSize)
+                .setNodeIdsSnapshotMaxMemoryMb(nodeIdsSnapshotMaxMemoryMb)
+                .setExternalMappingsMaxMemoryMb(externalMappingsMaxMemoryMb)
+                .setIntegrityFixBatchSize(integrityFixBatchSize)
+                .setIncremental(incremental)
+                .setUseHistoryScanIndex(useHistoryScanIndex)
+                .setVersionRemovalBatchSize(versionRemovalBatchSize)
+                .setReferencedVersionsSnapshotMaxMemoryMb(referencedVersionsSnapshotMaxMemoryMb)
+                .setTargetLatencyInMs(targetLatencyInMs)
+                .setEstimate(estimate)
+                .setEstimateSampleRatio(estimateSampleRatio)
+                .setReportTopN(reportTopN)
+                .setReportTopNBySize(reportTopNBySize)
+                .setDistributed(distributed)
+                .setPipelineQueueCapacity(pipelineQueueCapacity)
+                .setClassificationConcurrency(classificationConcurrency)
+                .setClassificationVirtualThreads(classificationVirtualThreads);
 
         execute(context);
         return null;
@@ -147,12 +259,16 @@ public class CleanCommand implements Action {
                     if (Thread.currentThread().isInterrupted()) {
                         return;
                     }
+                    CleanerMetrics.getInstance().start();
+                    CleanerProgress.getInstance().start();
                     context.startProcess();
                     deleteVersions(context);
                 } catch (RepositoryException e) {
                     logger.error("", e);
                 } finally {
                     RUNNING.set(false);
+                    CleanerMetrics.getInstance().stop();
+                    CleanerProgress.getInstance().stop();
                     context.finalizeProcess();
                 }
             }, "versions-cleaner-worker");
@@ -160,18 +276,23 @@ public class CleanCommand implements Action {
             worker.start();
         } else {
             try {
+                CleanerMetrics.getInstance().start();
+                CleanerProgress.getInstance().start();
                 context.startProcess();
                 deleteVersions(context);
             } finally {
                 RUNNING.set(false);
+                CleanerMetrics.getInstance().stop();
+                CleanerProgress.getInstance().stop();
                 context.finalizeProcess();
             }
         }
     }
 
     private static void deleteVersions(CleanerContext context) throws RepositoryException {
-        if (!SettingsBean.getInstance().isProcessingServer()) {
-            logger.info("This command can only be executed on the processing server");
+        final boolean processingServer = SettingsBean.getInstance().isProcessingServer();
+        if (!processingServer && !context.isDistributed()) {
+            logger.info("This command can only be executed on the processing server, unless in distributed mode");
             return;
         }
 
@@ -183,57 +304,861 @@ public class CleanCommand implements Action {
         context.setEditSession(JCRSessionFactory.getInstance().getCurrentSystemSession(Constants.EDIT_WORKSPACE, null, null));
         context.setLiveSession(JCRSessionFactory.getInstance().getCurrentSystemSession(Constants.LIVE_WORKSPACE, null, null));
 
+        if (!processingServer) {
+            // Another member of the cluster only helps the processing server to find the histories to clean
+            if (context.scanVersionsTree()) detectCandidates(context);
+            return;
+        }
+
+        if (context.getReportTopN() > 0) {
+            context.setLargestHistories(new TopHistories(context.getReportTopN(), context.isReportTopNBySize()));
+        }
+        try {
+            if (context.isEstimate()) {
+                estimateVersions(context);
+            } else {
+                scanAndDeleteVersions(context);
+            }
+        } finally {
+            if (context.getLargestHistories() != null) reportLargestHistories(context);
+        }
+    }
+
+    private static void scanAndDeleteVersions(CleanerContext context) throws RepositoryException {
         if (context.isReindexDefaultWorkspace()) {
-            performReindex();
+            context.setReindexTracker(performReindex());
         }
+        try {
+            if (context.isScanDuringReindex() && context.getReindexTracker() != null) {
+                logger.info("Scanning the versions while reindexing, the queries waiting for the reindexing to complete");
+            } else if (!waitForReindex(context)) {
+                return;
+            }
 
-        if (needsToInterrupt(context)) {
-            return;
+            if (needsToInterrupt(context)) {
+                return;
+            }
+
+            scanAndDeleteVersionsOfTree(context);
+            // The execution ends with the reindexing it has started
+            waitForReindex(context);
+        } finally {
+            if (context.getReindexTracker() != null) {
+                context.getReindexTracker().cancel();
+                context.setReindexTracker(null);
+            }
         }
+    }
 
+    private static void scanAndDeleteVersionsOfTree(CleanerContext context) throws RepositoryException {
         if (context.scanVersionsTree()) {
+            if (context.isDeleteOrphanedVersions() && context.getNodeIdsSnapshotMaxMemoryMb() > 0) {
+                loadExistingNodeIds(context);
+            }
+            if (context.isCheckIntegrity() && context.getExternalMappingsMaxMemoryMb() > 0) {
+                loadExternalMappingIndex(context);
+            }
             context.setStartTime();
-            final JCRNodeWrapper node = getNode(context.getEditSession().getNode(VERSIONS_PATH), context.getSubtreePath());
-            logger.info("Starting to scan the versions under {}", node.getPath());
+            if (context.isUseHistoryScanIndex() && context.deleteNonOrphanVersions()) {
+                // The index is checked against the versions created since it has been saved with a query
+                if (!waitForReindex(context)) return;
+                loadHistoryScanIndex(context);
+            }
+            if (context.getTargetLatencyInMs() > 0) {
+                context.setThrottleController(new ThrottleController(context.getTargetLatencyInMs(), context.getPauseDuration()));
+                CleanerProgress.getInstance().setAdaptiveThrottling(true);
+            }
+            if (context.getReferencedVersionsSnapshotMaxMemoryMb() > 0) {
+                context.setReferencedVersions(new ReferencedVersions(context.getReferencedVersionsSnapshotMaxMemoryMb() * 1024L * 1024L));
+            }
+            try {
+                scanVersions(context);
+            } finally {
+                if (context.getHistoryScanIndex() != null) context.getHistoryScanIndex().save();
+            }
+        }
+    }
+
+    private static void reportLargestHistories(CleanerContext context) {
+        final TopHistories largestHistories = context.getLargestHistories();
+        largestHistories.complete(needsToInterrupt(context));
+        if (logger.isInfoEnabled()) logger.info("Largest version histories{}:{}",
+                largestHistories.isInterrupted() ? " (interrupted scan)" : "", largestHistories);
+    }
+
+    /**
+     * Estimation mode: scans the versions tree like an execution deleting the versions would, possibly only a sample
+     * of its hashed folders, but only counts what would be deleted. Nothing is written: no reindexing, no integrity
+     * fix, and neither the position nor the state of the incremental mode and of the history scan index are saved.
+     */
+    private static void estimateVersions(CleanerContext context) throws RepositoryException {
+        if (!context.scanVersionsTree()) {
+            logger.info("Nothing to estimate, neither the orphaned versions nor the versions over the retention are deleted with these settings");
+            return;
+        }
+        double sampleRatio = context.getEstimateSampleRatio();
+        if (sampleRatio <= 0d || sampleRatio > 1d) {
+            logger.warn("Invalid sample ratio {}, every folder will be scanned", sampleRatio);
+            sampleRatio = 1d;
+        }
+        context.ignoreLastScanPosition();
+        if (context.isDeleteOrphanedVersions() && context.getNodeIdsSnapshotMaxMemoryMb() > 0) {
+            loadExistingNodeIds(context);
+        }
+        context.setStartTime();
+        final EstimationReport report = new EstimationReport(sampleRatio);
+        context.setEstimationReport(report);
+        final JCRNodeWrapper node = getNode(context.getEditSession().getNode(VERSIONS_PATH), context.getSubtreePath());
+        logger.info("Starting to estimate the versions to delete under {}, scanning {}% of the folders", node.getPath(), Math.round(sampleRatio * 100d));
+        CleanerProgress.getInstance().scanStarted(node.getPath());
+        if (context.getConcurrency() > 1) {
+            processPartitions(node, context);
+        } else {
             try (final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
-                context.setDbConnection(conn);
+                setDbConnection(conn, context);
                 processNode(node, context);
-                if (logger.isInfoEnabled()) logger.info("Finished to scan the versions under {} in {}", node.getPath(), toReadableDuration(context.getStartTime()));
-                printDeletionSummary(context);
-                if (!needsToInterrupt(context)) context.endOfTreeReached();
+                processPendingVersionHistories(context);
             } catch (SQLException e) {
                 logger.error("Failed to retrieve the DB connection", e);
+                return;
+            }
+        }
+        try (final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+            report.measureSampledVersions(conn, context.getEditSession());
+        } catch (SQLException e) {
+            logger.error("Failed to retrieve the DB connection", e);
+        }
+        final boolean interrupted = needsToInterrupt(context);
+        report.complete(interrupted);
+        if (!interrupted) CleanerProgress.getInstance().scanCompleted();
+        if (logger.isInfoEnabled()) logger.info("Finished to estimate the versions to delete under {} in {}: {}", node.getPath(), toReadableDuration(context.getStartTime()), report);
+    }
+
+    private static void scanVersions(CleanerContext context) throws RepositoryException {
+        if (context.isIncremental() && scanIncrementally(context)) {
+            printDeletionSummary(context);
+            return;
+        }
+        final JCRNodeWrapper node = getNode(context.getEditSession().getNode(VERSIONS_PATH), context.getSubtreePath());
+        logger.info("Starting to scan the versions under {}", node.getPath());
+        CleanerProgress.getInstance().scanStarted(node.getPath());
+        // The distributed mode processes the candidates in the order they are recorded, its progress is held by the leases
+        if (!context.isDistributed()) context.treeTraversalStarted();
+        if (context.isDistributed()) {
+            if (!scanDistributed(node, context)) return;
+        } else if (context.getConcurrency() > 1) {
+            processPartitions(node, context);
+        } else {
+            try (final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+                setDbConnection(conn, context);
+                if (context.getPipelineQueueCapacity() > 0) {
+                    processPipelined(node, context);
+                } else {
+                    processNode(node, context);
+                    processPendingVersionHistories(context);
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to retrieve the DB connection", e);
+                return;
+            }
+        }
+        if (logger.isInfoEnabled()) logger.info("Finished to scan the versions under {} in {}", node.getPath(), toReadableDuration(context.getStartTime()));
+        printDeletionSummary(context);
+        if (!needsToInterrupt(context)) {
+            context.endOfTreeReached();
+            CleanerProgress.getInstance().scanCompleted();
+        }
+    }
+
+    /**
+     * Distributed mode, on the processing server: the partitions of the versions tree are leased to the members of
+     * the cluster, this server included, which scan them without writing anything and record the version histories
+     * which may have versions to delete as candidates. The processing server processes the candidates as they come,
+     * checking them again like during a regular scan, so that the deletions stay on the processing server. The round
+     * is started by the first execution, resumed by the next ones if interrupted, and ends once every partition has
+     * been scanned and every candidate processed.
+     *
+     * @return {@code false} if the round couldn't be started or resumed
+     */
+    private static boolean scanDistributed(JCRNodeWrapper root, CleanerContext context) throws RepositoryException {
+        // The progress is held by the leases, whatever the position of the previous executions
+        context.ignoreLastScanPosition();
+        try (final Connection leasesConnection = DatabaseUtils.getDatasource().getConnection();
+             final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+            leasesConnection.setAutoCommit(true);
+            setDbConnection(conn, context);
+            final PartitionLeases leases = PartitionLeases.create(leasesConnection, PartitionLeases.DEFAULT_LEASE_DURATION_IN_MS);
+            if (leases.isRoundInProgress()) {
+                logger.info("Resuming the round of the distributed mode, {} partitions remaining", leases.countRemainingPartitions());
+            } else {
+                leases.startRound(collectPartitions(root, context));
             }
+            while (!needsToInterrupt(context)) {
+                final String partition = leases.acquire();
+                if (partition != null) detectCandidates(partition, leases, context);
+                processCandidates(leases, context);
+                if (partition != null) continue;
+                if (leases.countRemainingPartitions() == 0L && leases.getCandidates(1).isEmpty()) {
+                    leases.endRound();
+                    break;
+                }
+                // The partitions leased by the other members are still being scanned
+                Thread.sleep(DISTRIBUTED_POLL_INTERVAL_IN_MS);
+            }
+            return true;
+        } catch (SQLException e) {
+            logger.error("Failed to use the tables of the distributed mode", e);
+            return false;
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for the other members of the cluster", e);
+            context.getInterruptionHandler().set(Boolean.TRUE);
+            Thread.currentThread().interrupt();
+            return true;
         }
     }
 
-    private static void performReindex() {
+    /**
+     * Distributed mode, on a member of the cluster other than the processing server: scans the partitions of the
+     * round started by the processing server, until none is left to lease.
+     */
+    private static void detectCandidates(CleanerContext context) {
+        context.setStartTime();
+        try (final Connection leasesConnection = DatabaseUtils.getDatasource().getConnection();
+             final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+            leasesConnection.setAutoCommit(true);
+            setDbConnection(conn, context);
+            final PartitionLeases leases = PartitionLeases.create(leasesConnection, PartitionLeases.DEFAULT_LEASE_DURATION_IN_MS);
+            if (!leases.isRoundInProgress()) {
+                logger.info("No round of the distributed mode in progress, it has to be started on the processing server");
+                return;
+            }
+            logger.info("Scanning the partitions of the round of the distributed mode as {}", leases.getOwner());
+            int nbPartitions = 0;
+            String partition;
+            while (!needsToInterrupt(context) && (partition = leases.acquire()) != null) {
+                detectCandidates(partition, leases, context);
+                nbPartitions++;
+            }
+            if (logger.isInfoEnabled()) logger.info("Scanned {} partitions in {}", nbPartitions, toReadableDuration(context.getStartTime()));
+        } catch (SQLException e) {
+            logger.error("Failed to use the tables of the distributed mode", e);
+        } catch (RepositoryException e) {
+            logger.error("Failed to scan the partitions of the distributed mode", e);
+        }
+    }
+
+    /**
+     * Scans a leased partition, and records the version histories which may have versions to delete.
+     */
+    private static void detectCandidates(String partition, PartitionLeases leases, CleanerContext context) throws SQLException, RepositoryException {
+        final List<String> candidates = new ArrayList<>();
+        final long[] lastRenewal = {System.currentTimeMillis()};
+        refreshReferencedVersions(context);
         try {
-            final long start = System.currentTimeMillis();
-            logger.info("Starting reindexing of default workspace");
-            ((JahiaRepositoryImpl) ((SpringJackrabbitRepository) JCRSessionFactory.getInstance().getDefaultProvider().getRepository()).getRepository()).scheduleReindexing(Constants.EDIT_WORKSPACE);
-            final SchedulerService schedulerService = ServicesRegistry.getInstance().getSchedulerService();
-            boolean continueChecking = true;
-            while (continueChecking) {
-                Thread.sleep(5000L);
-                boolean reindexInProgress = false;
-                final List<JobDetail> jobs = schedulerService.getAllRAMJobs();
-                for (JobDetail job : jobs) {
-                    if (job.getName().startsWith("JahiaSearchIndex") && !"successful".equals(job.getJobDataMap().getString("status"))) {
-                        reindexInProgress = true;
-                        logger.info("Reindexing is still in progress");
-                    }
+            if (!detectCandidates(context.getEditSession().getNode(partition), partition, candidates, lastRenewal, leases, context)) return;
+        } catch (PathNotFoundException e) {
+            logger.debug("{} has been removed in the meantime", partition);
+        } finally {
+            context.getEditSession().refresh(false);
+            context.getLiveSession().refresh(false);
+        }
+        if (!needsToInterrupt(context)) leases.complete(partition, candidates);
+    }
+
+    /**
+     * @return {@code false} if the scan has to stop, the lease having been lost or the execution interrupted
+     */
+    private static boolean detectCandidates(JCRNodeWrapper node, String partition, List<String> candidates, long[] lastRenewal,
+                                            PartitionLeases leases, CleanerContext context) throws SQLException, RepositoryException {
+        if (needsToInterrupt(context)) return false;
+        final String path = node.getPath();
+        if (CollectionUtils.isNotEmpty(context.getSkippedPaths()) && context.getSkippedPaths().contains(path)) {
+            logger.info("Skipping {}", path);
+            return true;
+        }
+        if (node.isNodeType(Constants.NT_VERSIONHISTORY)) {
+            if (isCandidate((VersionHistory) node, context)) candidates.add(path);
+            if (System.currentTimeMillis() - lastRenewal[0] > PartitionLeases.DEFAULT_LEASE_DURATION_IN_MS / 3) {
+                if (!leases.renew(partition)) {
+                    logger.warn("The lease of the partition {} has expired, leaving it to the member which has taken it over", partition);
+                    return false;
                 }
-                continueChecking = reindexInProgress;
+                lastRenewal[0] = System.currentTimeMillis();
             }
-            if (logger.isInfoEnabled()) logger.info("Finished reindexing default workspace in {}", toReadableDuration(start));
+            return true;
+        }
+        final JCRNodeIteratorWrapper childNodes = node.getNodes();
+        while (childNodes.hasNext()) {
+            if (!detectCandidates((JCRNodeWrapper) childNodes.nextNode(), partition, candidates, lastRenewal, leases, context)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether a version history may have versions to delete, without writing anything: orphaned and not referenced,
+     * or with more versions than the retention. The history is checked again before deleting its versions.
+     */
+    static boolean isCandidate(VersionHistory vh, CleanerContext context) throws RepositoryException {
+        if (isOrphanedHistory((JCRNodeWrapper) vh, context)) {
+            return context.isDeleteOrphanedVersions() && !hasReferencedVersion(vh, context);
+        }
+        return isOverRetention(vh, context);
+    }
+
+    /**
+     * Processes a block of the candidates recorded by the members of the cluster. They are removed from the table
+     * once processed, unless the execution is interrupted, in which case the next execution processes them again. A
+     * candidate which fails is removed with the rest of its block, so that it doesn't block them on every execution;
+     * the next round records it again if it still has versions to delete.
+     */
+    static void processCandidates(PartitionLeases leases, CleanerContext context) throws SQLException, RepositoryException {
+        List<String> historyPaths;
+        while (!needsToInterrupt(context) && !(historyPaths = leases.getCandidates(DISTRIBUTED_CANDIDATES_BLOCK_SIZE)).isEmpty()) {
+            for (String historyPath : historyPaths) {
+                if (needsToInterrupt(context)) break;
+                try {
+                    processNode(context.getEditSession().getNode(historyPath), context);
+                } catch (PathNotFoundException e) {
+                    logger.debug("{} has been removed in the meantime", historyPath);
+                } catch (RepositoryException e) {
+                    logger.error("Failed to process the candidate {}", historyPath, e);
+                }
+            }
+            processPendingVersionHistories(context);
+            if (needsToInterrupt(context)) return;
+            for (String historyPath : historyPaths) {
+                leases.removeCandidate(historyPath);
+            }
+        }
+    }
+
+    /**
+     * Incremental mode: once a full scan has completed, only the version histories which have received new versions
+     * since the previous execution, and the ones of the nodes removed since then (recorded by
+     * {@link RemovedNodesListener}), can have versions to delete. The other ones are skipped without being read.
+     *
+     * @return {@code false} if a full scan has to be done instead
+     */
+    private static boolean scanIncrementally(CleanerContext context) throws RepositoryException {
+        if (StringUtils.isNotBlank(context.getSubtreePath())) {
+            logger.info("The incremental mode is ignored when scanning a subtree");
+            return false;
+        }
+        final Long watermark = IncrementalJournal.loadWatermark();
+        if (watermark != null && context.isResumingScan()) {
+            logger.info("Completing the full scan started by a previous execution before switching to the incremental mode");
+            return false;
+        }
+        final boolean removedNodesOverflowed = context.isDeleteOrphanedVersions() && IncrementalJournal.isRemovedNodesOverflowed();
+        if (watermark == null || !context.isRestartFromLastPosition() || removedNodesOverflowed) {
+            // The incremental executions will process what changes from now on, what exists already is processed by
+            // this full scan, which has to start from the beginning of the tree
+            if (removedNodesOverflowed) logger.info("Too many nodes have been removed since the previous execution");
+            logger.info("Starting a full scan of the versions, the next executions will be incremental");
+            context.ignoreLastScanPosition();
+            IncrementalJournal.clearRemovedNodes();
+            IncrementalJournal.saveWatermark(System.currentTimeMillis() - VERSIONS_QUERY_SAFETY_MARGIN_MS);
+            return false;
+        }
+
+        if (!waitForReindex(context)) return true;
+        final long newWatermark = System.currentTimeMillis() - VERSIONS_QUERY_SAFETY_MARGIN_MS;
+        final Set<String> versionHistoryPaths = new LinkedHashSet<>();
+        try {
+            collectVersionHistoriesWithNewVersions(watermark, context.getEditSession(), versionHistoryPaths);
+        } catch (RepositoryException e) {
+            logger.error("Failed to query the versions created since the previous execution, falling back on a full scan", e);
+            context.ignoreLastScanPosition();
+            return false;
+        }
+        final int nbHistoriesWithNewVersions = versionHistoryPaths.size();
+        if (context.isDeleteOrphanedVersions()) {
+            collectVersionHistoriesOfRemovedNodes(context.getEditSession(), versionHistoryPaths);
+        }
+        logger.info("Incremental scan of {} version histories with new versions and {} version histories of removed nodes",
+                nbHistoriesWithNewVersions, versionHistoryPaths.size() - nbHistoriesWithNewVersions);
+
+        CleanerProgress.getInstance().unitsStarted(versionHistoryPaths.size());
+        try (final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+            setDbConnection(conn, context);
+            for (String path : versionHistoryPaths) {
+                if (needsToInterrupt(context)) break;
+                try {
+                    processNode(context.getEditSession().getNode(path), context);
+                } catch (PathNotFoundException e) {
+                    logger.debug("{} has been removed in the meantime", path);
+                }
+                CleanerProgress.getInstance().unitCompleted();
+            }
+            processPendingVersionHistories(context);
+        } catch (SQLException e) {
+            logger.error("Failed to retrieve the DB connection", e);
+            return true;
+        } finally {
+            // The position of the full scans is not affected by the incremental executions
+            context.endOfTreeReached();
+        }
+        if (logger.isInfoEnabled()) logger.info("Finished the incremental scan in {}", toReadableDuration(context.getStartTime()));
+        if (!needsToInterrupt(context)) {
+            // Otherwise, the next execution restarts from the same watermark and processes the removed nodes again
+            IncrementalJournal.saveWatermark(newWatermark);
+            IncrementalJournal.removedNodesProcessed();
+        }
+        return true;
+    }
+
+    private static void collectVersionHistoriesWithNewVersions(long since, Session session, Set<String> versionHistoryPaths) throws RepositoryException {
+        final NodeIterator versions = getVersionsCreatedSince(since, session);
+        while (versions.hasNext()) {
+            versionHistoryPaths.add(versions.nextNode().getParent().getPath());
+        }
+    }
+
+    private static NodeIterator getVersionsCreatedSince(long since, Session session) throws RepositoryException {
+        final Calendar sinceDate = Calendar.getInstance();
+        sinceDate.setTimeInMillis(since);
+        final Query query = session.getWorkspace().getQueryManager().createQuery(VERSIONS_CREATED_SINCE_QUERY, Query.JCR_SQL2);
+        query.bindValue("since", session.getValueFactory().createValue(sinceDate));
+        return query.execute().getNodes();
+    }
+
+    private static void collectVersionHistoriesOfRemovedNodes(Session session, Set<String> versionHistoryPaths) {
+        try (BufferedReader removedNodes = IncrementalJournal.openRemovedNodes()) {
+            String uuid;
+            while ((uuid = removedNodes.readLine()) != null) {
+                final String path = getVersionHistoryPath(uuid.trim());
+                if (path != null && session.nodeExists(path)) versionHistoryPaths.add(path);
+            }
+        } catch (IOException | RepositoryException e) {
+            logger.error("Failed to read the nodes removed since the previous execution", e);
+        }
+    }
+
+    /**
+     * Path of the version history of a versionable node in the version storage, hashed on the first 6 characters of
+     * the identifier of the node, or {@code null} if the identifier is not a valid UUID.
+     */
+    static String getVersionHistoryPath(String uuid) {
+        try {
+            NodeId.valueOf(uuid);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return VERSIONS_PATH + "/" + uuid.substring(0, 2) + "/" + uuid.substring(2, 4) + "/" + uuid.substring(4, 6) + "/" + uuid;
+    }
+
+    /**
+     * @return the name of the child of {@code path} on the way to {@code position}, or {@code null} if
+     * {@code position} is not below {@code path}
+     */
+    static String getNextSegment(String path, String position) {
+        if (position == null || !position.startsWith(path + "/")) return null;
+        final String relativePath = position.substring(path.length() + 1);
+        final int end = relativePath.indexOf('/');
+        return end < 0 ? relativePath : relativePath.substring(0, end);
+    }
+
+    /**
+     * Estimates the fraction of the tree under {@code rootPath} scanned once {@code position} is reached, from the
+     * hashed folders of the version storage: the version histories are spread uniformly over them, since they are
+     * named after the first characters of the identifiers of the versionable nodes.
+     *
+     * @return the fraction, between 0 and 1, or -1 if the paths are not within the hashed folders
+     */
+    static double getKeyspaceFraction(String rootPath, String position) {
+        if (!StringUtils.startsWith(rootPath, VERSIONS_PATH) || !StringUtils.startsWith(position, rootPath)) return -1d;
+        final String[] rootSegments = StringUtils.split(rootPath.substring(VERSIONS_PATH.length()), '/');
+        final String[] segments = StringUtils.split(position.substring(VERSIONS_PATH.length()), '/');
+        double fraction = 0d;
+        double folderSize = 1d;
+        for (int i = rootSegments.length; i < Math.min(segments.length, HASHED_FOLDERS_DEPTH); i++) {
+            final String segment = segments[i];
+            if (segment.length() != 2) return -1d;
+            final int index;
+            try {
+                index = Integer.parseInt(segment, 16);
+            } catch (NumberFormatException e) {
+                return -1d;
+            }
+            folderSize /= 256d;
+            fraction += index * folderSize;
+        }
+        return fraction;
+    }
+
+    /**
+     * Parallel mode: splits the tree under {@code root} into the hashed folders located {@link #PARTITION_DEPTH}
+     * levels below it, and processes them on a bounded number of workers. Each worker pulls the partitions from
+     * a shared queue, and owns its JCR sessions, its DB connection and its counters, which are merged into
+     * {@code context} when the worker stops.
+     */
+    private static void processPartitions(JCRNodeWrapper root, CleanerContext context) throws RepositoryException {
+        final List<String> partitions = collectPartitions(root, context);
+        if (context.isResumingScan()) {
+            final int nbPartitions = partitions.size();
+            partitions.removeIf(context::isPartitionCompleted);
+            logger.info("Skipping {} partitions completed by the previous executions", nbPartitions - partitions.size());
+        }
+        if (partitions.isEmpty()) return;
+
+        final Queue<String> pendingPartitions = new ConcurrentLinkedQueue<>(partitions);
+        CleanerProgress.getInstance().unitsStarted(partitions.size());
+        final int nbWorkers = Math.min(context.getConcurrency(), partitions.size());
+        logger.info("Processing {} partitions under {} with {} workers", partitions.size(), root.getPath(), nbWorkers);
+        final List<Thread> workers = new ArrayList<>(nbWorkers);
+        for (int i = 1; i <= nbWorkers; i++) {
+            final Thread worker = new Thread(() -> processPartitionsQueue(pendingPartitions, context), "versions-cleaner-worker-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                logger.error("Interrupted while waiting for the workers to complete", e);
+                context.getInterruptionHandler().set(Boolean.TRUE);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pipelined scan: this thread walks the tree and passes the version histories to a {@link CleanupPipeline},
+     * whose classification stage checks them without writing anything, and whose deletion stage processes the ones
+     * which have versions to delete. Each stage owns its JCR sessions, its DB connection and its counters, which are
+     * merged into {@code context} when the stage stops.
+     */
+    private static void processPipelined(JCRNodeWrapper root, CleanerContext context) throws RepositoryException {
+        final boolean concurrentClassification = context.getClassificationConcurrency() > 1;
+        final ClassificationStage classificationStage = new ClassificationStage(context, concurrentClassification);
+        final BoundedExecutor classificationExecutor = concurrentClassification
+                ? BoundedExecutor.create(context.getClassificationConcurrency(), "versions-cleaner-classification",
+                context.isClassificationVirtualThreads(), classificationStage::workerStopped) : null;
+        final CleanupPipeline pipeline = new CleanupPipeline(context.getPipelineQueueCapacity(),
+                classificationStage, classificationExecutor, new DeletionStage(context), () -> needsToInterrupt(context));
+        logger.info("Processing the versions under {} with a pipeline of queues of {} histories", root.getPath(), context.getPipelineQueueCapacity());
+        context.setPipeline(pipeline);
+        pipeline.start();
+        try {
+            processNode(root, context);
+            pipeline.finish();
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for the stages of the pipeline to complete", e);
+            context.getInterruptionHandler().set(Boolean.TRUE);
+            Thread.currentThread().interrupt();
+        } finally {
+            // The histories which have not been processed must be scanned again by the next execution
+            if (pipeline.getPosition() != null) context.rewindPosition(pipeline.getPosition());
+            context.setPipeline(null);
+        }
+    }
+
+    /**
+     * Stage of the pipeline owning a context derived from the one of the scan.
+     */
+    private abstract static class PipelineStage implements CleanupPipeline.Stage {
+
+        private final CleanerContext parentContext;
+        protected final CleanerContext context;
+        private Connection conn;
+
+        PipelineStage(CleanerContext parentContext) {
+            this.parentContext = parentContext;
+            this.context = parentContext.newPartitionContext();
+        }
+
+        @Override
+        public void open() throws Exception {
+            conn = DatabaseUtils.getDatasource().getConnection();
+            setDbConnection(conn, context);
+            // Resolved one by one, the block lookups being bound to the traversal
+            context.setOrphanDetector(null);
+            context.setEditSession(JCRSessionFactory.getInstance().getCurrentSystemSession(Constants.EDIT_WORKSPACE, null, null));
+            context.setLiveSession(JCRSessionFactory.getInstance().getCurrentSystemSession(Constants.LIVE_WORKSPACE, null, null));
+        }
+
+        protected static JCRNodeWrapper getVersionHistory(String historyPath, CleanerContext context) throws RepositoryException {
+            try {
+                return context.getEditSession().getNode(historyPath);
+            } catch (PathNotFoundException e) {
+                logger.debug("{} has been removed in the meantime", historyPath);
+                return null;
+            }
+        }
+
+        @Override
+        public void partitionCompleted(String partition) {
+            context.partitionWalked(partition);
+        }
+
+        @Override
+        public void close() {
+            parentContext.mergeCounters(context);
+            context.releaseResources();
+            if (conn == null) return;
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                logger.error("Failed to close the DB connection", e);
+            }
+        }
+    }
+
+    /**
+     * Checks the version histories without writing anything, and passes the ones which have versions to delete, or
+     * all of them when their integrity is checked, to the deletion stage. When the histories are classified by
+     * concurrent tasks, each thread of the executor opens its JCR sessions for its first task, reuses them for the
+     * next ones, and releases them when it stops.
+     */
+    private static final class ClassificationStage extends PipelineStage {
+
+        private final boolean concurrent;
+        private final ThreadLocal<CleanerContext> workerContext = new ThreadLocal<>();
+
+        ClassificationStage(CleanerContext parentContext, boolean concurrent) {
+            super(parentContext);
+            this.concurrent = concurrent;
+        }
+
+        @Override
+        public boolean process(String historyPath) throws RepositoryException {
+            if (!concurrent) {
+                final boolean toPass = classify(historyPath, context);
+                context.refreshSessions();
+                return toPass;
+            }
+            CleanerContext taskContext = workerContext.get();
+            if (taskContext == null) {
+                taskContext = context.newPartitionContext();
+                taskContext.setEditSession(JCRSessionFactory.getInstance().getCurrentSystemSession(Constants.EDIT_WORKSPACE, null, null));
+                taskContext.setLiveSession(JCRSessionFactory.getInstance().getCurrentSystemSession(Constants.LIVE_WORKSPACE, null, null));
+                workerContext.set(taskContext);
+            }
+            final boolean toPass = classify(historyPath, taskContext);
+            taskContext.refreshSessions();
+            return toPass;
+        }
+
+        /**
+         * Called by each thread of the executor before it stops.
+         */
+        void workerStopped() {
+            final CleanerContext taskContext = workerContext.get();
+            if (taskContext == null) return;
+            taskContext.releaseResources();
+            workerContext.remove();
+        }
+
+        private static boolean classify(String historyPath, CleanerContext context) throws RepositoryException {
+            final JCRNodeWrapper node = getVersionHistory(historyPath, context);
+            if (node == null) return false;
+            final long orphanCheckStart = System.nanoTime();
+            final boolean isOrphaned = isOrphanedHistory(node, context);
+            CleanerMetrics.getInstance().recordLatency(CleanerMetrics.Phase.ORPHAN_CHECK, orphanCheckStart);
+            if (context.getLargestHistories() != null) trackLargestHistory((VersionHistory) node, isOrphaned, context);
+            final boolean toClean = isOrphaned ? context.isDeleteOrphanedVersions() : isOverRetention((VersionHistory) node, context);
+            CleanerMetrics.getInstance().trackProcessedHistory();
+            return toClean || context.isCheckIntegrity();
+        }
+    }
+
+    /**
+     * Deletes the versions of the histories passed by the classification stage, checking their orphan status again
+     * since it may have changed while they were queued.
+     */
+    private static final class DeletionStage extends PipelineStage {
+
+        DeletionStage(CleanerContext parentContext) {
+            super(parentContext);
+        }
+
+        @Override
+        public boolean process(String historyPath) throws RepositoryException {
+            final JCRNodeWrapper node = getVersionHistory(historyPath, context);
+            if (node == null) return false;
+            logger.debug("Processing {}", historyPath);
+            if (context.isCheckIntegrity()) checkNodeIntegrity(context.getEditSession(), node, context.isFixIntegrity(), true, context);
+            cleanVersionHistory(node, isOrphanedHistory(node, context), context);
+            context.refreshSessions();
+            return false;
+        }
+    }
+
+    /**
+     * @return the paths of the hashed folders located {@link #PARTITION_DEPTH} levels below {@code root}
+     */
+    static List<String> collectPartitions(JCRNodeWrapper root, CleanerContext context) throws RepositoryException {
+        final List<String> partitions = new ArrayList<>();
+        collectPartitions(root, PARTITION_DEPTH, partitions, context);
+        return partitions;
+    }
+
+    private static void collectPartitions(JCRNodeWrapper node, int depth, List<String> partitions, CleanerContext context) throws RepositoryException {
+        final String path = node.getPath();
+        if (CollectionUtils.isNotEmpty(context.getSkippedPaths()) && context.getSkippedPaths().contains(path)) {
+            logger.info("Skipping {}", path);
+            return;
+        }
+        if (depth == 0 || node.isNodeType(Constants.NT_VERSIONHISTORY)) {
+            partitions.add(path);
+            return;
+        }
+        final JCRNodeIteratorWrapper childNodes = node.getNodes();
+        while (childNodes.hasNext()) {
+            collectPartitions((JCRNodeWrapper) childNodes.nextNode(), depth - 1, partitions, context);
+        }
+    }
+
+    private static void processPartitionsQueue(Queue<String> pendingPartitions, CleanerContext context) {
+        final CleanerContext partitionContext = context.newPartitionContext();
+        try (final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+            setDbConnection(conn, partitionContext);
+            partitionContext.setEditSession(JCRSessionFactory.getInstance().getCurrentSystemSession(Constants.EDIT_WORKSPACE, null, null));
+            partitionContext.setLiveSession(JCRSessionFactory.getInstance().getCurrentSystemSession(Constants.LIVE_WORKSPACE, null, null));
+            String partition;
+            while (!needsToInterrupt(partitionContext) && (partition = pendingPartitions.poll()) != null) {
+                try {
+                    logger.debug("Processing the partition {}", partition);
+                    refreshReferencedVersions(partitionContext);
+                    processNode(partitionContext.getEditSession().getNode(partition), partitionContext);
+                } catch (RepositoryException | RuntimeException e) {
+                    // Isolate the failure to this partition, the worker continues with the next ones.
+                    logger.error("Failed to process the partition {}", partition, e);
+                }
+                CleanerProgress.getInstance().unitCompleted();
+            }
+            processPendingVersionHistories(partitionContext);
+        } catch (SQLException e) {
+            logger.error("Failed to retrieve the DB connection", e);
+        } catch (RepositoryException e) {
+            logger.error("Failed to open the JCR sessions of the worker", e);
+        } finally {
+            context.mergeCounters(partitionContext);
+            partitionContext.releaseResources();
+        }
+    }
+
+    private static void loadExternalMappingIndex(CleanerContext context) {
+        try (final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+            context.setExternalMappingIndex(ExternalMappingIndex.load(conn, context.getExternalMappingsMaxMemoryMb() * 1024L * 1024L));
+        } catch (SQLException e) {
+            logger.error("Failed to retrieve the DB connection", e);
+        }
+    }
+
+    private static void loadExistingNodeIds(CleanerContext context) {
+        try (final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+            context.setExistingNodeIds(OrphanDetector.loadExistingNodeIds(conn, context.getNodeIdsSnapshotMaxMemoryMb() * 1024L * 1024L));
+        } catch (SQLException e) {
+            logger.error("Failed to retrieve the DB connection", e);
+        }
+    }
+
+    /**
+     * Loads the index of the histories within the retention, and invalidates the ones which have received new
+     * versions since it has been saved. If they can't be listed, the index is rebuilt from scratch.
+     */
+    private static void loadHistoryScanIndex(CleanerContext context) {
+        final long updatedAt = System.currentTimeMillis() - VERSIONS_QUERY_SAFETY_MARGIN_MS;
+        HistoryScanIndex index = HistoryScanIndex.load(context.getNbVersionsToKeep());
+        if (index.size() > 0) {
+            try {
+                final NodeIterator versions = getVersionsCreatedSince(index.getIndexedAt(), context.getEditSession());
+                while (versions.hasNext()) {
+                    index.invalidate(versions.nextNode().getParent().getIdentifier());
+                }
+                logger.info("Loaded the history scan index with {} histories within the retention", index.size());
+            } catch (RepositoryException e) {
+                logger.error("Failed to query the versions created since the history scan index has been saved, discarding it", e);
+                index = HistoryScanIndex.empty(context.getNbVersionsToKeep(), updatedAt);
+            }
+        }
+        index.setUpdatedAt(updatedAt);
+        context.setHistoryScanIndex(index);
+    }
+
+    private static void setDbConnection(Connection conn, CleanerContext context) {
+        context.setDbConnection(conn);
+        if (context.getOrphanDetectionBatchSize() > 0) {
+            context.setOrphanDetector(OrphanDetector.create(conn));
+        }
+        refreshReferencedVersions(context);
+    }
+
+    private static void refreshReferencedVersions(CleanerContext context) {
+        if (context.getReferencedVersions() != null) context.getReferencedVersions().refreshIfStale(context.getDbConnection());
+    }
+
+    /**
+     * Whether the node is one of the hashed folders used as partitions when the whole version storage is scanned.
+     */
+    static boolean isPartition(String path) {
+        if (!path.startsWith(VERSIONS_PATH + "/")) return false;
+        return StringUtils.countMatches(path.substring(VERSIONS_PATH.length()), "/") == PARTITION_DEPTH;
+    }
+
+    /**
+     * Schedules the reindexing of the default workspace, its completion being tracked by a listener of the jobs.
+     *
+     * @return the tracker of the reindexing, or {@code null} if it can't be tracked
+     */
+    private static ReindexTracker performReindex() {
+        logger.info("Starting reindexing of default workspace");
+        ReindexTracker tracker = null;
+        try {
+            // Started first, so that the end of the reindexing can't be missed
+            tracker = ReindexTracker.start(ServicesRegistry.getInstance().getSchedulerService());
         } catch (SchedulerException ex) {
             logger.error("Impossible to monitor reindexing job", ex);
-        } catch (InterruptedException ex) {
-            logger.error("Impossible to pause the thread", ex);
-            Thread.currentThread().interrupt();
+        }
+        try {
+            ((JahiaRepositoryImpl) ((SpringJackrabbitRepository) JCRSessionFactory.getInstance().getDefaultProvider().getRepository()).getRepository()).scheduleReindexing(Constants.EDIT_WORKSPACE);
         } catch (RepositoryException ex) {
             logger.error("Failed to schedule reindexing", ex);
+            if (tracker != null) tracker.cancel();
+            return null;
+        }
+        return tracker;
+    }
+
+    /**
+     * Waits for the reindexing started by the execution to complete, if any. The completion is notified by the
+     * listener of the jobs, the RAM jobs being only looked up every {@link #REINDEX_CHECK_INTERVAL_IN_MS} in case
+     * the end of a job has been missed.
+     *
+     * @return {@code false} if the execution has been interrupted in the meantime
+     */
+    private static boolean waitForReindex(CleanerContext context) {
+        final ReindexTracker tracker = context.getReindexTracker();
+        if (tracker == null) return true;
+        long lastCheck = System.currentTimeMillis();
+        try {
+            while (true) {
+                try {
+                    final boolean successful = tracker.getCompletion().get(REINDEX_INTERRUPTION_CHECK_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+                    if (logger.isInfoEnabled()) logger.info("Finished reindexing default workspace in {}{}",
+                            toReadableDuration(tracker.getStartTime()), successful ? "" : ", some jobs have failed");
+                    context.setReindexTracker(null);
+                    return true;
+                } catch (TimeoutException e) {
+                    if (needsToInterrupt(context)) return false;
+                    if (System.currentTimeMillis() - lastCheck >= REINDEX_CHECK_INTERVAL_IN_MS) {
+                        lastCheck = System.currentTimeMillis();
+                        if (!tracker.checkCompletion()) logger.info("Reindexing is still in progress");
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            logger.error("Interrupted while waiting for the reindexing to complete", ex);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            logger.error("Impossible to monitor reindexing job", ex.getCause());
+            context.setReindexTracker(null);
+            return true;
         }
     }
 
@@ -248,47 +1173,281 @@ public class CleanCommand implements Action {
 
         if (node.isNodeType(Constants.NT_VERSIONHISTORY)) {
             if (!context.canProcess(node)) return;
-            logger.debug("Processing {}", path);
-            // U6 fix: the integrity fix is now OPT-IN. A checkIntegrity run reports dangling references
-            // by default (fix=false) and only mutates/removes content when fixIntegrity is explicitly set.
-            // Previously `fix` was hardcoded to true, so a mere "check" silently nulled references and
-            // removed nodes (see fixInvalidPropertyReference / fixInvalidNodeReference).
-            checkNodeIntegrity(context.getEditSession(), node, context.isFixIntegrity(), true, context);
-            if (isOrphanedHistory(node, context)) {
-                deleteOrphanedHistory((VersionHistory) node, context);
-            } else {
-                keepLastNVersions((VersionHistory) node, context);
+            if (context.getPipeline() != null) {
+                // Stops the traversal if a stage has failed
+                if (!context.getPipeline().submitHistory(path)) context.getInterruptionHandler().set(Boolean.TRUE);
+                return;
+            }
+            if (context.getOrphanDetector() == null) {
+                processVersionHistory(node, context);
+                return;
+            }
+            final List<JCRNodeWrapper> pendingVersionHistories = context.getPendingVersionHistories();
+            pendingVersionHistories.add(node);
+            if (pendingVersionHistories.size() >= context.getOrphanDetectionBatchSize()) {
+                processPendingVersionHistories(context);
             }
-            context.refreshSessions();
         } else {
+            final boolean isPartition = isPartition(path);
+            if (isPartition) {
+                if (context.skipCompletedPartition(path)) {
+                    logger.debug("Skipping {}, completed by a previous execution", path);
+                    return;
+                }
+                if (context.getEstimationReport() != null && !context.getEstimationReport().samplePartition()) return;
+                refreshReferencedVersions(context);
+            }
+            // When resuming, the children iterated before the one leading to the last position are skipped
+            // without loading their subtrees
+            String seekedChild = getNextSegment(path, context.getSeekedPosition());
+            if (seekedChild != null && !node.hasNode(seekedChild)) {
+                context.seekedPositionRemoved(path);
+                seekedChild = null;
+            }
             final JCRNodeIteratorWrapper childNodes = node.getNodes();
             while (childNodes.hasNext()) {
-                processNode((JCRNodeWrapper) childNodes.nextNode(), context);
+                final JCRNodeWrapper child = (JCRNodeWrapper) childNodes.nextNode();
+                boolean leadsToSeekedPosition = false;
+                if (seekedChild != null) {
+                    if (!seekedChild.equals(child.getName())) continue;
+                    seekedChild = null;
+                    leadsToSeekedPosition = true;
+                }
+                processNode(child, context);
                 if (needsToInterrupt(context)) return;
+                // The histories of the folder of the position can have been deleted, or the folder skipped
+                if (leadsToSeekedPosition && context.getSeekedPosition() != null) context.seekedPositionNotFound(child.getPath());
+            }
+            if (isPartition) context.partitionWalked(path);
+        }
+    }
+
+    private static void processVersionHistory(JCRNodeWrapper node, CleanerContext context) throws RepositoryException {
+        logger.debug("Processing {}", node.getPath());
+        // U6 fix: the integrity fix is now OPT-IN. A checkIntegrity run reports dangling references
+        // by default (fix=false) and only mutates/removes content when fixIntegrity is explicitly set.
+        // Previously `fix` was hardcoded to true, so a mere "check" silently nulled references and
+        // removed nodes (see IntegrityFixBatch).
+        if (!context.isEstimate()) checkNodeIntegrity(context.getEditSession(), node, context.isFixIntegrity(), true, context);
+        final long orphanCheckStart = System.nanoTime();
+        final boolean isOrphaned = isOrphanedHistory(node, context);
+        CleanerMetrics.getInstance().recordLatency(CleanerMetrics.Phase.ORPHAN_CHECK, orphanCheckStart);
+        if (context.getLargestHistories() != null) trackLargestHistory((VersionHistory) node, isOrphaned, context);
+        if (context.getEstimationReport() != null) {
+            estimateVersionHistory((VersionHistory) node, isOrphaned, context);
+        } else {
+            cleanVersionHistory(node, isOrphaned, context);
+        }
+        CleanerMetrics.getInstance().trackProcessedHistory();
+        context.refreshSessions();
+    }
+
+    private static void cleanVersionHistory(JCRNodeWrapper node, boolean isOrphaned, CleanerContext context) throws RepositoryException {
+        if (isOrphaned) {
+            deleteOrphanedHistory((VersionHistory) node, context);
+        } else {
+            final HistoryScanIndex index = context.getHistoryScanIndex();
+            if (index != null && index.isWithinRetention(node.getIdentifier())) {
+                logger.debug("Skipping {} as it is already within the retention", node.getPath());
+            } else if (keepLastNVersions((VersionHistory) node, context) && index != null) {
+                index.add(node.getIdentifier());
+            }
+        }
+    }
+
+    /**
+     * Whether a non orphaned history has more versions than the retention, without writing anything. A history
+     * within the retention is recorded as such in the history scan index, if any.
+     */
+    static boolean isOverRetention(VersionHistory vh, CleanerContext context) throws RepositoryException {
+        if (!context.deleteNonOrphanVersions()) return false;
+        final HistoryScanIndex index = context.getHistoryScanIndex();
+        if (index != null && index.isWithinRetention(vh.getIdentifier())) return false;
+        if (getVersionsCount(vh, getVersionsIterator(vh, context), context) > context.getNbVersionsToKeep() + ROOT_VERSION_COUNT) return true;
+        if (index != null) index.add(vh.getIdentifier());
+        return false;
+    }
+
+    /**
+     * Counts what would be deleted from the history, and offers the versions to delete to the sample measured at the
+     * end of the estimation. The references of the versions are not checked.
+     */
+    private static void estimateVersionHistory(VersionHistory vh, boolean isOrphaned, CleanerContext context) throws RepositoryException {
+        final EstimationReport report = context.getEstimationReport();
+        report.trackScannedHistory();
+        final long nbVersionsToDelete;
+        if (isOrphaned) {
+            if (!context.isDeleteOrphanedVersions()) return;
+            nbVersionsToDelete = Long.MAX_VALUE;
+        } else {
+            if (!context.deleteNonOrphanVersions()) return;
+            final long nbVersions = getVersionsCount(vh, getVersionsIterator(vh, context), context);
+            if (nbVersions <= context.getNbVersionsToKeep() + ROOT_VERSION_COUNT) return;
+            nbVersionsToDelete = getNbVersionsToDelete(nbVersions - ROOT_VERSION_COUNT, context.getNbVersionsToKeep());
+        }
+        final RangeIterator versionIterator = getVersionsIterator(vh, context);
+        long nbSelectedVersions = 0L;
+        while (nbSelectedVersions < nbVersionsToDelete && versionIterator.hasNext()) {
+            final Node version = (Node) versionIterator.next();
+            if (!version.isNodeType(JcrConstants.NT_VERSION) || JcrConstants.JCR_ROOTVERSION.equals(version.getName())) continue;
+            report.offerVersion(version.getIdentifier());
+            nbSelectedVersions++;
+        }
+        if (isOrphaned) report.trackOrphanedHistory(nbSelectedVersions);
+        else report.trackHistoryOverRetention(nbSelectedVersions);
+    }
+
+    /**
+     * Processes the block of version histories buffered by {@link #processNode}, once their orphan status has been
+     * resolved with a single lookup per workspace. If the lookup fails, the histories are checked one by one.
+     */
+    private static void processPendingVersionHistories(CleanerContext context) throws RepositoryException {
+        final List<JCRNodeWrapper> pendingVersionHistories = context.getPendingVersionHistories();
+        if (pendingVersionHistories.isEmpty()) return;
+        int index = 0;
+        try {
+            if (!needsToInterrupt(context)) {
+                final Set<String> frozenUuids = new HashSet<>(pendingVersionHistories.size());
+                for (JCRNodeWrapper vh : pendingVersionHistories) {
+                    final String uuid = getFrozenUuid(vh);
+                    // No need to look up the nodes which are already known to exist
+                    if (uuid != null && (context.getExistingNodeIds() == null || !context.getExistingNodeIds().contains(uuid))) {
+                        frozenUuids.add(uuid);
+                    }
+                }
+                final Map<String, Boolean> orphans = context.getOrphanDetector().resolveOrphans(frozenUuids);
+                if (orphans != null) context.getResolvedOrphans().putAll(orphans);
+            }
+            for (; index < pendingVersionHistories.size(); index++) {
+                if (needsToInterrupt(context)) break;
+                processVersionHistory(pendingVersionHistories.get(index), context);
             }
+        } finally {
+            // The histories which have not been processed must be scanned again by the next execution
+            final boolean allProcessed = index == pendingVersionHistories.size();
+            if (!allProcessed) context.rewindPosition(pendingVersionHistories.get(index));
+            pendingVersionHistories.clear();
+            if (allProcessed) context.pendingVersionHistoriesProcessed();
+            context.getResolvedOrphans().clear();
         }
     }
 
     // Package-private (not private) so the orphan-detection logic can be unit-tested in isolation.
     // Behaviour is unchanged; only the visibility is widened. See CleanCommandOrphanTest.
     static boolean isOrphanedHistory(JCRNodeWrapper versionHistory, CleanerContext context) throws RepositoryException {
+        final String uuid = getFrozenUuid(versionHistory);
+        return uuid != null && isUuidOrphaned(uuid, context);
+    }
+
+    /**
+     * Returns the UUID of the versioned node, read from the first frozen node of the history, or {@code null} if
+     * the history has no frozen node.
+     */
+    static String getFrozenUuid(JCRNodeWrapper versionHistory) throws RepositoryException {
+        final JCRNodeWrapper frozen = getFrozenNode(versionHistory);
+        return frozen == null ? null : frozen.getPropertyAsString(JcrConstants.JCR_FROZENUUID);
+    }
+
+    /**
+     * Returns the first frozen node of the history holding the UUID of the versioned node, or {@code null} if there
+     * is none.
+     */
+    private static JCRNodeWrapper getFrozenNode(JCRNodeWrapper versionHistory) throws RepositoryException {
         final JCRNodeIteratorWrapper it = versionHistory.getNodes();
         while (it.hasNext()) {
             final JCRNodeWrapper node = (JCRNodeWrapper) it.next();
             if (node.isNodeType(JcrConstants.NT_VERSION) && node.hasNode(JcrConstants.JCR_FROZENNODE)) {
                 final JCRNodeWrapper frozen = node.getNode(JcrConstants.JCR_FROZENNODE);
                 if (frozen.hasProperty(JcrConstants.JCR_FROZENUUID)) {
-                    final String uuid = frozen.getPropertyAsString(JcrConstants.JCR_FROZENUUID);
-                    return isUuidOrphaned(uuid, context);
+                    return frozen;
                 }
             }
         }
-        return false;
+        return null;
+    }
+
+    /**
+     * Offers the history to the report of the largest histories. The versions are counted before the history is
+     * processed, and the history is only described, or measured when the histories are ranked by size, if it can
+     * make it into the report.
+     */
+    private static void trackLargestHistory(VersionHistory vh, boolean isOrphaned, CleanerContext context) throws RepositoryException {
+        final TopHistories largestHistories = context.getLargestHistories();
+        final long nbVersions = Math.max(getVersionsCount(vh, getVersionsIterator(vh, context), context) - ROOT_VERSION_COUNT, 0L);
+        long sizeInBytes = -1L;
+        if (largestHistories.isBySize()) {
+            sizeInBytes = measureFrozenNodes(vh, context);
+            if (!largestHistories.accepts(sizeInBytes)) return;
+        } else if (!largestHistories.accepts(nbVersions)) {
+            return;
+        }
+        largestHistories.offer(describeHistory((JCRNodeWrapper) vh, nbVersions, isOrphaned, sizeInBytes, context));
+    }
+
+    /**
+     * Describes a history for a report of the largest histories: the UUID and primary type of the versioned node,
+     * read from a frozen node, and the path of the node when it still exists.
+     */
+    static TopHistories.Entry describeHistory(JCRNodeWrapper vh, long nbVersions, boolean isOrphaned, long sizeInBytes, CleanerContext context) throws RepositoryException {
+        final JCRNodeWrapper frozen = getFrozenNode(vh);
+        String uuid = null;
+        String primaryType = null;
+        String nodePath = null;
+        if (frozen != null) {
+            uuid = frozen.getPropertyAsString(JcrConstants.JCR_FROZENUUID);
+            if (frozen.hasProperty(JcrConstants.JCR_FROZENPRIMARYTYPE)) {
+                primaryType = frozen.getPropertyAsString(JcrConstants.JCR_FROZENPRIMARYTYPE);
+            }
+            if (!isOrphaned) nodePath = findNodePath(uuid, context);
+        }
+        return new TopHistories.Entry(vh.getPath(), nbVersions, isOrphaned, uuid, primaryType, nodePath, sizeInBytes);
+    }
+
+    private static String findNodePath(String uuid, CleanerContext context) throws RepositoryException {
+        try {
+            return context.getEditSession().getNodeByIdentifier(uuid).getPath();
+        } catch (ItemNotFoundException ex) {
+            try {
+                return context.getLiveSession().getNodeByIdentifier(uuid).getPath();
+            } catch (ItemNotFoundException ex2) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the size of the binaries of the frozen nodes of the versions of the history, the large frozen subtrees
+     * being only partially measured
+     */
+    private static long measureFrozenNodes(VersionHistory vh, CleanerContext context) throws RepositoryException {
+        long sizeInBytes = 0L;
+        final RangeIterator versionIterator = getVersionsIterator(vh, context);
+        while (versionIterator.hasNext()) {
+            final Node version = (Node) versionIterator.next();
+            if (!version.isNodeType(JcrConstants.NT_VERSION) || !version.hasNode(JcrConstants.JCR_FROZENNODE)) continue;
+            sizeInBytes += EstimationReport.measureBinaries(version.getNode(JcrConstants.JCR_FROZENNODE));
+        }
+        return sizeInBytes;
     }
 
     // Package-private (not private) so the both-workspace orphan criterion and the
     // fail-safe RepositoryException-propagation guard can be unit-tested. Behaviour unchanged.
     static boolean isUuidOrphaned(String uuid, CleanerContext context) throws RepositoryException {
+        // The snapshot only tells which nodes existed when the scan started: a node created since then is missing
+        // from it, so only a positive answer is reliable, and a negative one is confirmed by the checks below.
+        final NodeIdSet existingNodeIds = context.getExistingNodeIds();
+        if (existingNodeIds != null && existingNodeIds.contains(uuid)) return false;
+        // Resolved by block against the DB when the orphans are detected by block (see processPendingVersionHistories)
+        final Boolean resolved = context.getResolvedOrphans().get(uuid);
+        if (resolved != null) return resolved;
+        return isVersionedNodeMissing(uuid, context);
+    }
+
+    /**
+     * Whether the node can't be found in the edit and live workspaces, looked up with the sessions whatever the
+     * status resolved by block or the snapshot of the identifiers of the nodes.
+     */
+    static boolean isVersionedNodeMissing(String uuid, CleanerContext context) throws RepositoryException {
         try {
             context.getEditSession().getNodeByIdentifier(uuid);
             return false;
@@ -302,6 +1461,18 @@ public class CleanCommand implements Action {
         }
     }
 
+    /**
+     * Checks again that the versioned node of an orphaned history can't be found, right before its versions are
+     * deleted: its status can have been resolved a block earlier, and a node with this UUID can have been imported or
+     * restored in the meantime.
+     */
+    private static boolean isStillOrphaned(VersionHistory vh, CleanerContext context) throws RepositoryException {
+        final String uuid = getFrozenUuid((JCRNodeWrapper) vh);
+        if (uuid != null && isVersionedNodeMissing(uuid, context)) return true;
+        logger.info("Not deleting the versions of {}, its versioned node {} exists again", vh.getPath(), uuid);
+        return false;
+    }
+
     private static void deleteOrphanedHistory(VersionHistory vh, CleanerContext context) throws RepositoryException {
         if (!context.isDeleteOrphanedVersions()) return;
 
@@ -309,11 +1480,10 @@ public class CleanCommand implements Action {
         final RangeIterator versionIterator = getVersionsIterator(vh, context);
         long nbVersions = getVersionsCount(vh, versionIterator, context);
         if (nbVersions > context.getThresholdLongHistoryPurgeStrategy()) {
+            if (!isStillOrphaned(vh, context)) return;
             final String vhPath = vh.getPath();
             logger.warn("{} has {} versions", vhPath, nbVersions);
-            final List<String> versionNames = getNonRootVersionNames(versionIterator, context);
-            if (needsToInterrupt(context)) return;
-            final long deletedVersions = deleteVersionNodes(vh, versionNames, context);
+            final long deletedVersions = deleteOldestVersions(vh, versionIterator, Long.MAX_VALUE, context);
             context.trackDeletedVersions(deletedVersions, true);
             if (needsToInterrupt(context)) return;
 
@@ -338,16 +1508,28 @@ public class CleanCommand implements Action {
             logger.warn("Skipping force-purge of orphaned version history {} because at least one of its versions is still referenced elsewhere in version storage", vh.getPath());
             return;
         }
+        if (!isStillOrphaned(vh, context)) return;
 
         final NodeId id = NodeId.valueOf(vh.getIdentifier());
         final SessionImpl providerSession = (SessionImpl) context.getEditSession().getProviderSession(context.getEditSession().getNode("/").getProvider());
         final InternalVersionManager vm = providerSession.getInternalVersionManager();
         final List<InternalVersionHistory> unusedVersions = Collections.singletonList(vm.getVersionHistory(id));
         int[] results = {0, 0};
-        if (vm instanceof InternalVersionManagerImpl) {
-            results = ((InternalVersionManagerImpl) vm).purgeVersions(providerSession, unusedVersions);
-        } else if (vm instanceof InternalXAVersionManager) {
-            results = ((InternalXAVersionManager) vm).purgeVersions(providerSession, unusedVersions);
+        final long start = System.nanoTime();
+        try {
+            if (vm instanceof InternalVersionManagerImpl) {
+                results = ((InternalVersionManagerImpl) vm).purgeVersions(providerSession, unusedVersions);
+            } else if (vm instanceof InternalXAVersionManager) {
+                results = ((InternalXAVersionManager) vm).purgeVersions(providerSession, unusedVersions);
+            }
+        } finally {
+            // Recorded as well when the purge fails
+            recordDeletionLatency(context, start);
+        }
+        CleanerMetrics.getInstance().recordLatency(CleanerMetrics.Phase.PURGE, start);
+        if (context.getThrottleController() != null) {
+            // Without adaptive throttling, the purges are not followed by a pause, as before
+            pauseBetweenDeletions(context);
         }
         if (results[0] + results[1] > 0) {
             // Assumption: purgeVersions either deletes the whole history or nothing (results[0]+results[1] > 0 means success)
@@ -356,27 +1538,7 @@ public class CleanCommand implements Action {
         }
     }
 
-    private static List<String> getNonRootVersionNames(RangeIterator versionIterator, CleanerContext context) throws RepositoryException {
-        if (versionIterator.getPosition() != 0) {
-            throw new IllegalArgumentException("The provided iterator has already been iterated");
-        }
-
-        final List<String> versionNames = new ArrayList<>();
-        while (!needsToInterrupt(context) && versionIterator.hasNext()) {
-            final Node version = (Node) versionIterator.next();
-            if (version.isNodeType(JcrConstants.NT_VERSION)) {
-                final String versionName = version.getName();
-                if (JcrConstants.JCR_ROOTVERSION.equals(versionName)) {
-                    if (logger.isDebugEnabled()) logger.debug("Skipping {} as it is the root version", toPrintableName(versionName));
-                } else {
-                    versionNames.add(versionName);
-                }
-            }
-        }
-        return versionNames;
-    }
-
-    private static RangeIterator getVersionsIterator(VersionHistory vh, CleanerContext context) throws RepositoryException {
+    static RangeIterator getVersionsIterator(VersionHistory vh, CleanerContext context) throws RepositoryException {
         if (context.isUseVersioningApi()) {
             if (vh instanceof JCRNodeWrapper) {
                 final VersionHistory realNode = (VersionHistory) ((JCRNodeWrapper) vh).getRealNode();
@@ -389,7 +1551,7 @@ public class CleanCommand implements Action {
         }
     }
 
-    private static long getVersionsCount(VersionHistory vh, RangeIterator versionIterator, CleanerContext context) throws RepositoryException {
+    static long getVersionsCount(VersionHistory vh, RangeIterator versionIterator, CleanerContext context) throws RepositoryException {
         return context.isUseVersioningApi() || !vh.hasNode("jcr:versionLabels") ? versionIterator.getSize() : versionIterator.getSize() - 1;
     }
 
@@ -406,6 +1568,10 @@ public class CleanCommand implements Action {
             final Node version = (Node) item;
             if (!version.isNodeType(JcrConstants.NT_VERSION)) continue;
             if (JcrConstants.JCR_ROOTVERSION.equals(version.getName())) continue;
+            // Only a positive answer of the snapshot is used here: the purge doesn't check the references itself
+            if (context.getReferencedVersions() != null && context.getReferencedVersions().isReferenced(version.getIdentifier())) {
+                return true;
+            }
             if (version.getReferences().getSize() > 0) {
                 return true;
             }
@@ -413,9 +1579,12 @@ public class CleanCommand implements Action {
         return false;
     }
 
-    private static void keepLastNVersions(VersionHistory vh, CleanerContext context) {
+    /**
+     * @return whether the history is within the retention once processed
+     */
+    private static boolean keepLastNVersions(VersionHistory vh, CleanerContext context) {
         final long nbVersionsToKeep = context.getNbVersionsToKeep();
-        if (nbVersionsToKeep < 0) return;
+        if (nbVersionsToKeep < 0) return false;
 
         String path;
         try {
@@ -431,125 +1600,324 @@ public class CleanCommand implements Action {
             logger.debug("{} has {} versions", path, nbVersions);
             // Do clean only if we have more versions than the desired number + the implicit root version.
             if (nbVersions > nbVersionsToKeep + ROOT_VERSION_COUNT) {
-                final List<String> versionNames = getNonRootVersionNames(versionIterator, context);
-                retainNewestVersions(versionNames, nbVersionsToKeep);
-                final long deletedVersions = deleteVersionNodes(vh, versionNames, context);
+                final long nbVersionsToDelete = getNbVersionsToDelete(nbVersions - ROOT_VERSION_COUNT, nbVersionsToKeep);
+                final long deletedVersions = deleteOldestVersions(vh, versionIterator, nbVersionsToDelete, context);
                 context.trackDeletedVersions(deletedVersions, false);
+                return deletedVersions == nbVersionsToDelete && !needsToInterrupt(context);
             }
+            return true;
         } catch (Exception ex) {
             // Isolate the failure to this version history: log with context (this is a destructive
             // operation) and let the scan continue with the remaining histories rather than aborting.
             logger.error("Failed to reduce version history {}", path, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Number of the oldest non-root versions to delete so that only the {@code nbVersionsToKeep} newest ones remain.
+     * Clamped defensively: counting differences between the version-storage iterator and the versions it actually
+     * returns must never produce a negative count or attempt to keep more versions than exist.
+     */
+    static long getNbVersionsToDelete(long nbNonRootVersions, long nbVersionsToKeep) {
+        if (nbNonRootVersions <= 0L) return 0L;
+        return nbNonRootVersions - Math.min(Math.max(nbVersionsToKeep, 0L), nbNonRootVersions);
+    }
+
+    /**
+     * Deletes the first {@code nbVersionsToDelete} non-root versions returned by the iterator, which returns them
+     * oldest first. The names are consumed by windows of {@link #DELETION_WINDOW_SIZE}, each one deleted before the
+     * next one is read, so that the memory needed doesn't depend on the length of the history. The versions skipped
+     * in their window are retried once the iteration is complete, up to {@link #MAX_RETRIED_VERSIONS} of them.
+     *
+     * @return the number of deleted versions
+     */
+    static long deleteOldestVersions(VersionHistory vh, RangeIterator versionIterator, long nbVersionsToDelete, CleanerContext context) throws RepositoryException {
+        if (versionIterator.getPosition() != 0) {
+            throw new IllegalArgumentException("The provided iterator has already been iterated");
+        }
+
+        final List<String> window = new ArrayList<>(DELETION_WINDOW_SIZE);
+        final List<String> skippedVersionNames = new ArrayList<>();
+        final List<String> retriedVersionNames = new ArrayList<>();
+        long nbSelectedVersions = 0L;
+        long nbAbandonedVersions = 0L;
+        long deletedVersions = 0L;
+        while (nbSelectedVersions < nbVersionsToDelete && !needsToInterrupt(context) && versionIterator.hasNext()) {
+            final Node version = (Node) versionIterator.next();
+            if (!version.isNodeType(JcrConstants.NT_VERSION)) continue;
+            final String versionName = version.getName();
+            if (JcrConstants.JCR_ROOTVERSION.equals(versionName)) {
+                if (logger.isDebugEnabled()) logger.debug("Skipping {} as it is the root version", toPrintableName(versionName));
+                continue;
+            }
+            window.add(versionName);
+            nbSelectedVersions++;
+            if (window.size() == DELETION_WINDOW_SIZE || nbSelectedVersions == nbVersionsToDelete) {
+                deletedVersions += deleteVersionNodes(vh, window, context, skippedVersionNames);
+                nbAbandonedVersions += keepForRetry(skippedVersionNames, retriedVersionNames);
+                window.clear();
+            }
+        }
+        // The last children returned can be the root version, the version labels or nodes which are not versions
+        if (!window.isEmpty() && !needsToInterrupt(context)) {
+            deletedVersions += deleteVersionNodes(vh, window, context, skippedVersionNames);
+            nbAbandonedVersions += keepForRetry(skippedVersionNames, retriedVersionNames);
+            window.clear();
+        }
+        if (!retriedVersionNames.isEmpty() && !needsToInterrupt(context)) {
+            deletedVersions += deleteVersionNodes(vh, retriedVersionNames, context, skippedVersionNames);
+            nbAbandonedVersions += skippedVersionNames.size();
+        }
+
+        if (nbAbandonedVersions > 0) {
+            logger.warn("Skipped {} versions on {}", nbAbandonedVersions, vh.getPath());
         }
+        return deletedVersions;
     }
 
     /**
-     * Trims {@code versionNames} (ordered oldest-first, root already excluded) so that only the
-     * {@code nbVersionsToKeep} newest entries are removed from the deletion candidate list, leaving the
-     * oldest ones to be deleted. The cut point is clamped defensively: counting differences between
-     * the version-storage iterator and the materialised candidate list must never produce a negative
-     * index or attempt to keep more versions than exist.
+     * Moves the versions skipped in their window to the ones retried once the iteration is complete, up to
+     * {@link #MAX_RETRIED_VERSIONS} of them.
+     *
+     * @return the number of versions which won't be retried
      */
-    static void retainNewestVersions(List<String> versionNames, long nbVersionsToKeep) {
-        final int size = versionNames.size();
-        // The retain count never exceeds the number of versions for a node and so fits within an int range.
-        // Clamp it anyway to stay safe against pathological or overflowing configuration values.
-        final int nbToKeep = (int) Math.min(nbVersionsToKeep, size);
-        final int fromIndex = Math.max(0, size - nbToKeep);
-        if (fromIndex >= size) return;
-        versionNames.subList(fromIndex, size).clear();
+    private static long keepForRetry(List<String> skippedVersionNames, List<String> retriedVersionNames) {
+        long nbAbandonedVersions = 0L;
+        for (String skippedVersionName : skippedVersionNames) {
+            if (retriedVersionNames.size() < MAX_RETRIED_VERSIONS) retriedVersionNames.add(skippedVersionName);
+            else nbAbandonedVersions++;
+        }
+        skippedVersionNames.clear();
+        return nbAbandonedVersions;
     }
 
-    private static long deleteVersionNodes(VersionHistory vh, List<String> names, CleanerContext context) {
+    /**
+     * Deletes the provided versions, looping over the ones which can't be deleted as long as some others are.
+     *
+     * @param remainingVersionNames receives the names of the versions which have not been deleted
+     * @return the number of deleted versions
+     */
+    static long deleteVersionNodes(VersionHistory vh, List<String> names, CleanerContext context, List<String> remainingVersionNames) {
         long deletedVersions = 0L;
         final List<String> versionNames = new ArrayList<>(names);
         int nbVersionPurgedInCurrentLoop;
         int nbLoops = 0;
         final List<String> skippedVersionNames = new ArrayList<>();
+        final int batchSize = context.getVersionRemovalBatchSize();
+        final List<String> batch = new ArrayList<>(Math.max(batchSize, 1));
         do {
             nbLoops++;
             nbVersionPurgedInCurrentLoop = 0;
             for (String versionName : versionNames) {
-                if (removeOneVersion(vh, versionName, skippedVersionNames, context, nbLoops, deletedVersions)) {
+                if (batchSize > 1) {
+                    if (isRemovable(vh, versionName, skippedVersionNames, context)) batch.add(versionName);
+                    if (batch.size() >= batchSize) {
+                        final int deletedInBatch = removeVersionsBatch(vh, batch, skippedVersionNames, context, nbLoops, deletedVersions);
+                        nbVersionPurgedInCurrentLoop += deletedInBatch;
+                        deletedVersions += deletedInBatch;
+                    }
+                } else if (removeOneVersion(vh, versionName, skippedVersionNames, context, nbLoops, deletedVersions)) {
                     nbVersionPurgedInCurrentLoop++;
                     deletedVersions++;
                 }
                 if (needsToInterrupt(context)) break;
             }
+            if (!batch.isEmpty() && !needsToInterrupt(context)) {
+                final int deletedInBatch = removeVersionsBatch(vh, batch, skippedVersionNames, context, nbLoops, deletedVersions);
+                nbVersionPurgedInCurrentLoop += deletedInBatch;
+                deletedVersions += deletedInBatch;
+            }
+            batch.clear();
             versionNames.clear();
             versionNames.addAll(skippedVersionNames);
             skippedVersionNames.clear();
         } while (!needsToInterrupt(context) && nbVersionPurgedInCurrentLoop > 0 && !versionNames.isEmpty());
 
-        if (deletedVersions < names.size()) {
-            try {
-                logger.warn("Skipped {} versions on {}", names.size() - deletedVersions, vh.getPath());
-            } catch (RepositoryException e) {
-                logger.warn("Skipped some versions (path unavailable)", e);
+        remainingVersionNames.addAll(versionNames);
+        return deletedVersions;
+    }
+
+    /**
+     * Removes a batch of unreferenced versions of a history within a single transaction of the provider session, so
+     * that the version storage is updated once for the whole batch. If the transaction fails, it is rolled back and
+     * the versions are removed one by one.
+     *
+     * @return the number of removed versions
+     */
+    private static int removeVersionsBatch(VersionHistory vh, List<String> batch, List<String> skippedVersionNames,
+            CleanerContext context, int nbLoops, long totalDeleted) {
+        final long start = System.nanoTime();
+        final boolean removed = removeVersionsInTransaction(vh, batch, context);
+        recordDeletionLatency(context, start);
+        int deletedVersions = 0;
+        if (removed) {
+            CleanerMetrics.getInstance().recordLatency(CleanerMetrics.Phase.BATCH_VERSION_REMOVAL, start);
+            deletedVersions = batch.size();
+            if (logger.isDebugEnabled()) logger.debug("Removed a batch of versions (deleted {} versions, deleted={} / skipped={} in loop {})",
+                    totalDeleted + deletedVersions, deletedVersions, skippedVersionNames.size(), nbLoops);
+            pauseBetweenDeletions(context);
+        } else {
+            for (String versionName : batch) {
+                if (removeOneVersion(vh, versionName, skippedVersionNames, context, nbLoops, totalDeleted + deletedVersions)) {
+                    deletedVersions++;
+                }
+                if (needsToInterrupt(context)) break;
             }
         }
+        batch.clear();
         return deletedVersions;
     }
 
-    private static boolean removeOneVersion(VersionHistory vh, String versionName,
-            List<String> skippedVersionNames, CleanerContext context, int nbLoops, long totalDeleted) {
-        long nbReferences = -1;
-        boolean canProcess = false;
-        final StopWatch stopWatch = new StopWatch();
-        stopWatch.start("Load and count references");
+    private static boolean removeVersionsInTransaction(VersionHistory vh, List<String> versionNames, CleanerContext context) {
+        final Session providerSession;
+        try {
+            providerSession = context.getEditSession().getProviderSession(context.getEditSession().getNode("/").getProvider());
+        } catch (RepositoryException e) {
+            logger.error("Failed to get the provider session", e);
+            return false;
+        }
+        if (!(providerSession instanceof XASession)) {
+            logger.debug("The provider session doesn't support the transactions, removing the versions one by one");
+            return false;
+        }
+        final XAResource xaResource = ((XASession) providerSession).getXAResource();
+        final Xid xid = new VersionRemovalXid();
+        try {
+            xaResource.start(xid, XAResource.TMNOFLAGS);
+        } catch (XAException e) {
+            logger.warn("Failed to start a transaction, removing the versions one by one", e);
+            return false;
+        }
+        boolean removed = false;
+        try {
+            for (String versionName : versionNames) {
+                vh.removeVersion(versionName);
+            }
+            removed = true;
+        } catch (RepositoryException | RuntimeException e) {
+            logger.warn("Failed to remove a batch of {} versions, removing them one by one", versionNames.size(), e);
+        }
+        try {
+            xaResource.end(xid, removed ? XAResource.TMSUCCESS : XAResource.TMFAIL);
+            if (removed) {
+                // Single resource, no need for a separate prepare phase
+                xaResource.commit(xid, true);
+                return true;
+            }
+            xaResource.rollback(xid);
+        } catch (XAException e) {
+            logger.warn("Failed to complete the transaction removing a batch of {} versions, removing them one by one", versionNames.size(), e);
+        }
+        return false;
+    }
+
+    private static boolean isRemovable(VersionHistory vh, String versionName, List<String> skippedVersionNames, CleanerContext context) {
         try {
             final Version version = vh.getVersion(versionName);
-            nbReferences = version.getReferences().getSize();
-            canProcess = true;
+            // A reference added since the snapshot has been loaded makes removeVersion() fail, the version is then skipped
+            if (context.getReferencedVersions() != null && context.getReferencedVersions().isUnreferenced(version.getIdentifier())) {
+                return true;
+            }
+            if (version.getReferences().getSize() > 0) {
+                if (logger.isDebugEnabled()) logger.debug("Skipping {} as it is referenced", toPrintableName(versionName));
+                skippedVersionNames.add(versionName);
+                return false;
+            }
+            return true;
         } catch (RepositoryException e) {
             logger.error(FAILED_TO_REMOVE, versionName, e);
             skippedVersionNames.add(versionName);
-        }
-        stopWatch.stop();
-        if (!canProcess) {
             return false;
         }
-        if (nbReferences > 0) {
-            if (logger.isDebugEnabled()) logger.debug("Skipping {} as it is referenced", toPrintableName(versionName));
-            skippedVersionNames.add(versionName);
+    }
+
+    private static boolean removeOneVersion(VersionHistory vh, String versionName,
+            List<String> skippedVersionNames, CleanerContext context, int nbLoops, long totalDeleted) {
+        final long referenceLookupStart = System.nanoTime();
+        final boolean removable = isRemovable(vh, versionName, skippedVersionNames, context);
+        CleanerMetrics.getInstance().recordLatency(CleanerMetrics.Phase.REFERENCE_LOOKUP, referenceLookupStart);
+        if (!removable) {
             return false;
         }
-        stopWatch.start("Version remove");
         boolean deleted = false;
+        final long start = System.nanoTime();
         try {
             vh.removeVersion(versionName);
+            recordDeletionLatency(context, start);
+            CleanerMetrics.getInstance().recordLatency(CleanerMetrics.Phase.VERSION_REMOVAL, start);
             deleted = true;
             if (logger.isDebugEnabled()) logger.debug("Removed a version (deleted {} versions, deleted={} / skipped={} in loop {}): {}",
                     totalDeleted + 1, 1, skippedVersionNames.size(), nbLoops, toPrintableName(versionName));
         } catch (RepositoryException | RuntimeException e) {
+            // A failed attempt, timing out on a lock for instance, tells as much about the load of the repository as
+            // a slow removal
+            recordDeletionLatency(context, start);
             logger.error(FAILED_TO_REMOVE, versionName, e);
             skippedVersionNames.add(versionName);
         }
-        stopWatch.stop();
-        pauseBetweenDeletions(context, stopWatch);
-        if (logger.isDebugEnabled()) logger.debug(stopWatch.prettyPrint());
+        pauseBetweenDeletions(context);
         return deleted;
     }
 
-    private static void pauseBetweenDeletions(CleanerContext context, StopWatch stopWatch) {
+    /**
+     * Identifier of the local transactions removing the versions by batch.
+     */
+    private static final class VersionRemovalXid implements Xid {
+
+        private static final int FORMAT_ID = 0x5643;
+        private static final byte[] BRANCH_QUALIFIER = new byte[0];
+
+        private final byte[] globalTransactionId;
+
+        private VersionRemovalXid() {
+            final UUID uuid = UUID.randomUUID();
+            globalTransactionId = ByteBuffer.allocate(2 * Long.BYTES)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .array();
+        }
+
+        @Override
+        public int getFormatId() {
+            return FORMAT_ID;
+        }
+
+        @Override
+        public byte[] getGlobalTransactionId() {
+            return globalTransactionId.clone();
+        }
+
+        @Override
+        public byte[] getBranchQualifier() {
+            return BRANCH_QUALIFIER.clone();
+        }
+    }
+
+    private static void pauseBetweenDeletions(CleanerContext context) {
         final long sleepDuration = getSleepDuration(context);
+        CleanerProgress.getInstance().trackPause(sleepDuration);
         if (sleepDuration > 0) {
-            stopWatch.start("Pause");
             try {
                 Thread.sleep(sleepDuration);
             } catch (InterruptedException e) {
                 logger.error("Thread interrupted during pause between version deletions", e);
                 Thread.currentThread().interrupt();
             }
-            stopWatch.stop();
         }
     }
 
+    private static void recordDeletionLatency(CleanerContext context, long startInNanos) {
+        if (context.getThrottleController() != null) context.getThrottleController().recordLatency(System.nanoTime() - startInNanos);
+    }
+
+    // The pause set on the fly with the system property has the priority over the adaptive throttling
     private static long getSleepDuration(CleanerContext context) {
         try {
             return Long.parseLong(System.getProperty(PAUSE_DURATION_MARKER));
         } catch (NumberFormatException ignored) {
-            return context.getPauseDuration();
+            final ThrottleController throttleController = context.getThrottleController();
+            return throttleController != null ? throttleController.getPauseInMs() : context.getPauseDuration();
         }
     }
 
@@ -582,11 +1950,19 @@ public class CleanCommand implements Action {
 
         try {
             if (fix || referencesCheck) {
-                PropertyIterator propertyIterator = node.getProperties();
+                // The references of the node are gathered first, so that their targets are looked up by block
+                final List<Reference> references = new ArrayList<>();
+                final PropertyIterator propertyIterator = node.getProperties();
                 while (propertyIterator.hasNext()) {
-                    if (!processProperty(session, node, propertyIterator.nextProperty(), fix, referencesCheck, context)) {
-                        return;
-                    }
+                    collectReferences(node, propertyIterator.nextProperty(), referencesCheck, references);
+                }
+                if (references.isEmpty()) return;
+                final Set<String> missingTargets = findMissingTargets(session, references, context);
+                if (missingTargets.isEmpty()) return;
+                final Set<String> externalTargets = findExternalMappings(missingTargets, fix, context);
+                for (Reference reference : references) {
+                    if (!missingTargets.contains(reference.uuid)) continue;
+                    if (!processMissingTarget(node, reference, externalTargets.contains(reference.uuid), fix, context)) return;
                 }
             }
         } catch (RepositoryException ex) {
@@ -594,146 +1970,145 @@ public class CleanCommand implements Action {
         }
     }
 
-    private static boolean processProperty(Session session, Node node, Property property,
-                                            boolean fix, boolean referencesCheck, CleanerContext context) throws RepositoryException {
-        if (property.isMultiple()) {
-            return processMultipleValueProperty(session, node, property, fix, referencesCheck, context);
+    static void collectReferences(Node node, Property property, boolean referencesCheck, List<Reference> references) throws RepositoryException {
+        if (!referencesCheck) return;
+        if (!property.isMultiple()) {
+            collectReference(property, property.getValue(), references);
+            return;
         }
-        return processPropertyValue(session, node, property, property.getValue(), fix, referencesCheck, context);
-    }
-
-    private static boolean processMultipleValueProperty(Session session, Node node, Property property,
-                                                         boolean fix, boolean referencesCheck, CleanerContext context) throws RepositoryException {
         try {
-            Value[] values = property.getValues();
-            for (Value value : values) {
-                if (!processPropertyValue(session, node, property, value, fix, referencesCheck, context)) {
-                    return false;
-                }
+            for (Value value : property.getValues()) {
+                collectReference(property, value, references);
             }
         } catch (ConstraintViolationException ex) {
             logger.warn("Property definition for node {} is missing", node.getPath(), ex);
         }
-        return true;
     }
 
-    private static boolean processPropertyValue(Session session, Node node, Property property, Value propertyValue,
-                                                boolean fix, boolean referencesCheck, CleanerContext context) throws RepositoryException {
-        int propertyType = propertyValue.getType();
-        if ((propertyType == PropertyType.REFERENCE || propertyType == PropertyType.WEAKREFERENCE) && referencesCheck) {
-            return processReferenceProperty(session, node, property, propertyValue.getString(), fix, context);
+    private static void collectReference(Property property, Value propertyValue, List<Reference> references) throws RepositoryException {
+        final int propertyType = propertyValue.getType();
+        if (propertyType == PropertyType.REFERENCE || propertyType == PropertyType.WEAKREFERENCE) {
+            references.add(new Reference(property, propertyValue.getString()));
         }
-        return true;
     }
 
-    private static boolean processReferenceProperty(Session session, Node node, Property property,
-                                                     String uuid, boolean fix, CleanerContext context) throws RepositoryException {
-        try {
-            session.getNodeByIdentifier(uuid);
-        } catch (ItemNotFoundException infe) {
-            if (isExternalMapping(uuid, context)) {
-                logger.info("Mapping found towards an external provider for UUID {} (referenced from property {}), please check mount points", uuid, property.getPath());
-                if (fix) {
-                    logger.info("It will not be fixed automatically");
-                }
-                return true;
+    /**
+     * Returns the targets of the references which can't be found with the session of the edit workspace. The targets
+     * already known to exist from the cache are not looked up, and the other ones are looked up in the bundle tables of
+     * the edit workspace and of the version storage by block when the orphans are detected by block, the remaining ones
+     * being looked up with the session. The snapshot of the identifiers of the nodes is not used, since it holds the
+     * nodes of the live workspace as well, as they were when the execution has started.
+     */
+    private static Set<String> findMissingTargets(Session session, List<Reference> references, CleanerContext context) throws RepositoryException {
+        return findMissingTargets(session, references, context.getReferenceTargetCache(), context.getOrphanDetector(),
+                Constants.EDIT_WORKSPACE);
+    }
+
+    /**
+     * @param orphanDetector detector looking up the targets by block in the bundle tables of {@code workspace} and of
+     *                       the version storage, {@code null} to look them up one by one with the session
+     */
+    static Set<String> findMissingTargets(Session session, List<Reference> references, ReferenceTargetCache cache,
+                                          OrphanDetector orphanDetector, String workspace) throws RepositoryException {
+        final Set<String> targetsToLookUp = new LinkedHashSet<>();
+        for (Reference reference : references) {
+            if (cache != null && cache.isKnownToExist(reference.uuid)) continue;
+            targetsToLookUp.add(reference.uuid);
+        }
+        if (targetsToLookUp.size() > 1 && orphanDetector != null) {
+            try {
+                // Only the targets found are reliable, the other ones can be in the version storage
+                final Set<String> existing = orphanDetector.findExistingIn(workspace, targetsToLookUp);
+                targetsToLookUp.removeAll(existing);
+                if (cache != null) existing.forEach(cache::existing);
+                // Such as the targets of jcr:baseVersion, jcr:versionHistory and jcr:predecessors of the versionable
+                // nodes, which are not cached since each of them is referenced by a single node
+                if (!targetsToLookUp.isEmpty()) targetsToLookUp.removeAll(orphanDetector.findExistingInVersionStorage(targetsToLookUp));
+            } catch (SQLException | IllegalArgumentException e) {
+                logger.debug("Failed to look up the targets of the references by block, looking them up one by one", e);
             }
-            logger.info("Couldn't find referenced node with UUID {} referenced from property {}", uuid, property.getPath());
-            if (fix) {
-                if (mustRemoveParentNode(node)) {
-                    fixInvalidNodeReference(node);
-                    return false;
-                } else {
-                    fixInvalidPropertyReference(node, property, uuid);
-                }
+        }
+        final Set<String> missingTargets = new HashSet<>();
+        for (String uuid : targetsToLookUp) {
+            try {
+                session.getNodeByIdentifier(uuid);
+                if (cache != null) cache.existing(uuid);
+            } catch (ItemNotFoundException infe) {
+                missingTargets.add(uuid);
             }
         }
-        return true;
+        return missingTargets;
     }
 
-    private static boolean isExternalMapping(String uuid, CleanerContext context) {
-        PreparedStatement statement = null;
-        ResultSet resultSet = null;
-        try {
-            statement = context.getDbConnection().prepareStatement(
-                    "select externalId from jahia_external_mapping where internalUuid=?");
-            statement.setString(1, uuid);
-            resultSet = statement.executeQuery();
-            return resultSet.next();
-        } catch (SQLException ex) {
-            return false;
-        } finally {
-            DatabaseUtils.closeQuietly(resultSet);
-            DatabaseUtils.closeQuietly(statement);
-        }
+    /**
+     * Returns the subset of the UUIDs which are mapped to a node of an external provider. The index of the external
+     * mappings answers without any query, unless its answer is positive and it is a Bloom filter, or its answer is
+     * negative and the reference is about to be fixed, the mapping having possibly been created since it has been
+     * loaded. The other UUIDs are looked up by block in the DB.
+     */
+    private static Set<String> findExternalMappings(Set<String> uuids, boolean fix, CleanerContext context) {
+        return findExternalMappings(uuids, fix, context.getExternalMappingIndex(), context.getDbConnection());
     }
 
-    private static void fixInvalidPropertyReference(Node node, Property property, String uuid) throws RepositoryException {
-        logger.info("Fixing invalid reference by setting reference property {} to null...", property.getPath());
-        Calendar originalLastModificationDate;
-        try {
-            originalLastModificationDate = node.getProperty(Constants.JCR_LASTMODIFIED).getDate();
-        } catch (PathNotFoundException pnfe) {
-            originalLastModificationDate = null;
-        }
-        if (property.isMultiple()) {
-            Value[] oldValues = property.getValues();
-            List<Value> newValues = new LinkedList<>();
-            for (Value oldValue : oldValues) {
-                if (!oldValue.getString().equals(uuid)) {
-                    newValues.add(oldValue);
-                }
+    /**
+     * @param index index of the external mappings, {@code null} to look up every UUID in the DB
+     */
+    static Set<String> findExternalMappings(Set<String> uuids, boolean fix, ExternalMappingIndex index, Connection connection) {
+        final Set<String> mapped = new HashSet<>();
+        final Set<String> toLookUp = new HashSet<>();
+        for (String uuid : uuids) {
+            if (index == null) {
+                toLookUp.add(uuid);
+            } else if (index.mightBeMapped(uuid)) {
+                if (index.isExact()) mapped.add(uuid);
+                else toLookUp.add(uuid);
+            } else if (fix) {
+                toLookUp.add(uuid);
             }
-            property.setValue(newValues.toArray(new Value[]{}));
-        } else {
-            property.setValue((Value) null);
         }
-        Session nodeSession = node.getSession();
-        nodeSession.save();
-        // let's reload the node to make sure we don't have any cache issues.
-        node = nodeSession.getNodeByIdentifier(node.getIdentifier());
-        Calendar newLastModificationDate;
+        if (toLookUp.isEmpty()) return mapped;
         try {
-            newLastModificationDate = node.getProperty(Constants.JCR_LASTMODIFIED).getDate();
-        } catch (PathNotFoundException pnfe) {
-            newLastModificationDate = null;
-        }
-        if (!java.util.Objects.equals(newLastModificationDate, originalLastModificationDate)) {
-            node.setProperty(Constants.JCR_LASTMODIFIED, originalLastModificationDate);
-            nodeSession.save();
+            mapped.addAll(ReferenceTargetCache.findExternalMappings(connection, toLookUp));
+        } catch (SQLException | RuntimeException ex) {
+            logger.debug("Failed to look up the external mappings", ex);
         }
+        return mapped;
     }
 
-    private static void fixInvalidNodeReference(Node node) throws RepositoryException {
-        logger.info("Fixing invalid reference by removing node {} from repository...", node.getPath());
-        Node parentNode = node.getParent();
-        Calendar originalLastModificationDate;
-        try {
-            originalLastModificationDate = parentNode.getProperty(Constants.JCR_LASTMODIFIED).getDate();
-        } catch (PathNotFoundException pnfe) {
-            originalLastModificationDate = null;
-        }
-        Session nodeSession = node.getSession();
-        if (!parentNode.isCheckedOut()) {
-            nodeSession.getWorkspace().getVersionManager().checkout(parentNode.getPath());
-        }
-        node.remove();
-        nodeSession.save();
-        // let's reload the node to make sure we don't have any cache issues.
-        parentNode = nodeSession.getNodeByIdentifier(parentNode.getIdentifier());
-        Calendar newLastModificationDate;
-        try {
-            newLastModificationDate = parentNode.getProperty(Constants.JCR_LASTMODIFIED).getDate();
-        } catch (PathNotFoundException pnfe) {
-            newLastModificationDate = null;
+    /**
+     * @return {@code false} if the node has been removed
+     */
+    private static boolean processMissingTarget(Node node, Reference reference, boolean externalMapping, boolean fix,
+                                                CleanerContext context) throws RepositoryException {
+        final String uuid = reference.uuid;
+        final Property property = reference.property;
+        if (externalMapping) {
+            logger.info("Mapping found towards an external provider for UUID {} (referenced from property {}), please check mount points", uuid, property.getPath());
+            if (fix) {
+                logger.info("It will not be fixed automatically");
+            }
+            return true;
         }
-        if (!java.util.Objects.equals(newLastModificationDate, originalLastModificationDate)) {
-            parentNode.setProperty(Constants.JCR_LASTMODIFIED, originalLastModificationDate);
-            nodeSession.save();
+        logger.info("Couldn't find referenced node with UUID {} referenced from property {}", uuid, property.getPath());
+        // Saved with the next fixes, up to the size of the batch
+        return !fix || context.getIntegrityFixBatch().fix(node, property, uuid);
+    }
+
+    /**
+     * Value of a REFERENCE or WEAKREFERENCE property.
+     */
+    static final class Reference {
+
+        final Property property;
+        final String uuid;
+
+        Reference(Property property, String uuid) {
+            this.property = property;
+            this.uuid = uuid;
         }
     }
 
-    private static boolean mustRemoveParentNode(Node node) throws RepositoryException {
+    static boolean mustRemoveParentNode(Node node) throws RepositoryException {
         for (String nodeTypeToTest : INVALID_REFERENCE_NODE_TYPES_TO_REMOVE) {
             if (node.isNodeType(nodeTypeToTest)) {
                 return true;
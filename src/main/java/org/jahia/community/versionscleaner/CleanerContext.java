@@ -1,7 +1,5 @@
 package org.jahia.community.versionscleaner;
 
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jahia.bin.filters.jcr.JcrSessionFilter;
 import org.jahia.services.content.JCRNodeWrapper;
@@ -11,11 +9,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.jcr.RepositoryException;
 import java.io.File;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CleanerContext {
@@ -28,9 +26,41 @@ public class CleanerContext {
     // Default threshold (in versions) above which an orphaned history is purged version-by-version to
     // keep the memory footprint bounded instead of materialising the whole history at once.
     static final long DEFAULT_LONG_HISTORY_PURGE_THRESHOLD = 1000L;
+    // Default number of workers scanning the versions tree. 1 keeps the historical sequential scan.
+    public static final int DEFAULT_CONCURRENCY = 1;
+    // Default number of version histories whose orphan status is resolved with a single bulk lookup per
+    // workspace. 0 disables the bulk lookups, every history is then checked with the JCR sessions.
+    public static final int DEFAULT_ORPHAN_DETECTION_BATCH_SIZE = 0;
+    // Default memory cap (in MB) of the snapshot of the identifiers of the nodes of the edit and live workspaces.
+    // 0 disables the snapshot.
+    public static final long DEFAULT_NODE_IDS_SNAPSHOT_MAX_MEMORY_MB = 0L;
+    // Default memory cap (in MB) of the index of the external mappings, loaded when the integrity is checked. 0
+    // disables the index, the external mappings are then looked up in the DB.
+    public static final long DEFAULT_EXTERNAL_MAPPINGS_MAX_MEMORY_MB = 16L;
+    // Default number of fixes of the integrity check saved at once, the same as the integrity scan
+    public static final int DEFAULT_INTEGRITY_FIX_BATCH_SIZE = IntegrityFixBatch.DEFAULT_BATCH_SIZE;
+    // Default memory cap (in MB) of the snapshot of the identifiers of the referenced nodes of the version storage.
+    // 0 disables the snapshot.
+    public static final long DEFAULT_REFERENCED_VERSIONS_SNAPSHOT_MAX_MEMORY_MB = 0L;
+    // Default latency (in ms) of the deletions the pause between them is adapted to. 0 disables the adaptive
+    // throttling, the pause is then fixed.
+    public static final long DEFAULT_TARGET_LATENCY_IN_MS = 0L;
+    // Default number of versions of a history removed within a single transaction. 1 removes them one by one.
+    public static final int DEFAULT_VERSION_REMOVAL_BATCH_SIZE = 1;
+    // Default fraction of the hashed folders of the version storage scanned in estimation mode. 1 scans them all.
+    public static final double DEFAULT_ESTIMATE_SAMPLE_RATIO = 1d;
+    // Default number of largest version histories reported at the end of the scan. 0 disables the report.
+    public static final int DEFAULT_REPORT_TOP_N = 0;
+    // Default capacity of the queues between the stages of the pipelined scan. 0 disables the pipeline, the histories
+    // are then processed by the thread walking the tree.
+    public static final int DEFAULT_PIPELINE_QUEUE_CAPACITY = 0;
+    // Default number of version histories classified at once by the pipelined scan. 1 classifies them one after the
+    // other, in the thread of the classification stage.
+    public static final int DEFAULT_CLASSIFICATION_CONCURRENCY = 1;
 
     private final AtomicBoolean interruptionHandler;
     private boolean reindexDefaultWorkspace = Boolean.FALSE;
+    private boolean scanDuringReindex = Boolean.FALSE;
     private boolean checkIntegrity = Boolean.FALSE;
     // U6: whether an integrity check is allowed to MUTATE/REMOVE content. Opt-in (report-only by default).
     private boolean fixIntegrity = Boolean.FALSE;
@@ -41,15 +71,54 @@ public class CleanerContext {
     private long pauseDuration = -1L;
     private List<String> skippedPaths = null;
     private boolean restartFromLastPosition = Boolean.FALSE;
+    private boolean incremental = Boolean.FALSE;
     private boolean runAsynchronously = Boolean.TRUE;
     private long thresholdLongHistoryPurgeStrategy = DEFAULT_LONG_HISTORY_PURGE_THRESHOLD;
     private boolean useVersioningApi = Boolean.FALSE;
     private long sessionRefreshInterval = DEFAULT_SESSION_REFRESH_INTERVAL;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int orphanDetectionBatchSize = DEFAULT_ORPHAN_DETECTION_BATCH_SIZE;
+    private long nodeIdsSnapshotMaxMemoryMb = DEFAULT_NODE_IDS_SNAPSHOT_MAX_MEMORY_MB;
+    private long externalMappingsMaxMemoryMb = DEFAULT_EXTERNAL_MAPPINGS_MAX_MEMORY_MB;
+    private int integrityFixBatchSize = DEFAULT_INTEGRITY_FIX_BATCH_SIZE;
+    private boolean useHistoryScanIndex = Boolean.FALSE;
+    private int versionRemovalBatchSize = DEFAULT_VERSION_REMOVAL_BATCH_SIZE;
+    private long referencedVersionsSnapshotMaxMemoryMb = DEFAULT_REFERENCED_VERSIONS_SNAPSHOT_MAX_MEMORY_MB;
+    private long targetLatencyInMs = DEFAULT_TARGET_LATENCY_IN_MS;
+    private boolean estimate = Boolean.FALSE;
+    private double estimateSampleRatio = DEFAULT_ESTIMATE_SAMPLE_RATIO;
+    private int reportTopN = DEFAULT_REPORT_TOP_N;
+    private boolean reportTopNBySize = Boolean.FALSE;
+    private boolean distributed = Boolean.FALSE;
+    private int pipelineQueueCapacity = DEFAULT_PIPELINE_QUEUE_CAPACITY;
+    private int classificationConcurrency = DEFAULT_CLASSIFICATION_CONCURRENCY;
+    private boolean classificationVirtualThreads = Boolean.FALSE;
 
     private Connection dbConnection;
     private JCRSessionWrapper editSession;
     private JCRSessionWrapper liveSession;
+    private OrphanDetector orphanDetector;
+    private NodeIdSet existingNodeIds;
+    private HistoryScanIndex historyScanIndex;
+    private ReferencedVersions referencedVersions;
+    private ThrottleController throttleController;
+    private EstimationReport estimationReport;
+    private TopHistories largestHistories;
+    private final List<JCRNodeWrapper> pendingVersionHistories = new ArrayList<>();
+    private final Map<String, Boolean> resolvedOrphans = new HashMap<>();
+    private final List<String> walkedPartitions = new ArrayList<>();
+    private ScanCheckpoint checkpoint;
+    private boolean partitionContext;
+    // The position is only saved in the checkpoint while the versions tree is traversed
+    private boolean treeTraversal;
     private String currentPosition;
+    private CleanupPipeline pipeline;
+    private ReferenceTargetCache referenceTargetCache;
+    private ExternalMappingIndex externalMappingIndex;
+    // Bound to the edit session of this context, created on the first fix
+    private IntegrityFixBatch integrityFixBatch;
+    // Set while the reindexing started by the execution is in progress
+    private ReindexTracker reindexTracker;
     private boolean searchPosition;
     private boolean searchPositionFound = false;
     private String lastScanPosition;
@@ -59,9 +128,77 @@ public class CleanerContext {
     private long deletedOrphanVersionsCount;
     private long deletedOrphanVersionHistoriesCount;
     private long processedVersionHistoriesCount;
+    private long sessionRefreshCounter;
 
     public CleanerContext() {
-        interruptionHandler = new AtomicBoolean();
+        this(new AtomicBoolean());
+    }
+
+    private CleanerContext(AtomicBoolean interruptionHandler) {
+        this.interruptionHandler = interruptionHandler;
+    }
+
+    /**
+     * Creates the context of a worker processing a partition of the versions tree in parallel mode. The
+     * configuration, the start time and the interruption handler are shared with this context, while the
+     * sessions, the DB connection and the counters are owned by the worker, and merged back with
+     * {@link #mergeCounters(CleanerContext)} once the worker is done.
+     */
+    public CleanerContext newPartitionContext() {
+        final CleanerContext partitionContext = new CleanerContext(interruptionHandler)
+                .setReindexDefaultWorkspace(Boolean.FALSE)
+                .setScanDuringReindex(scanDuringReindex)
+                .setCheckIntegrity(checkIntegrity)
+                .setFixIntegrity(fixIntegrity)
+                .setNbVersionsToKeep(nbVersionsToKeep)
+                .setMaxExecutionTimeInMs(maxExecutionTimeInMs)
+                .setDeleteOrphanedVersions(deleteOrphanedVersions)
+                .setSubtreePath(subtreePath)
+                .setPauseDuration(pauseDuration)
+                .setSkippedPaths(skippedPaths)
+                .setRestartFromLastPosition(Boolean.FALSE)
+                .setRunAsynchronously(Boolean.FALSE)
+                .setThresholdLongHistoryPurgeStrategy(thresholdLongHistoryPurgeStrategy)
+                .setUseVersioningApi(useVersioningApi)
+                .setSessionRefreshInterval(sessionRefreshInterval)
+                .setConcurrency(DEFAULT_CONCURRENCY)
+                .setOrphanDetectionBatchSize(orphanDetectionBatchSize)
+                .setNodeIdsSnapshotMaxMemoryMb(nodeIdsSnapshotMaxMemoryMb)
+                .setExternalMappingsMaxMemoryMb(externalMappingsMaxMemoryMb)
+                .setIntegrityFixBatchSize(integrityFixBatchSize)
+                .setExistingNodeIds(existingNodeIds)
+                .setUseHistoryScanIndex(useHistoryScanIndex)
+                .setVersionRemovalBatchSize(versionRemovalBatchSize)
+                .setHistoryScanIndex(historyScanIndex)
+                .setReferencedVersionsSnapshotMaxMemoryMb(referencedVersionsSnapshotMaxMemoryMb)
+                .setReferencedVersions(referencedVersions)
+                .setTargetLatencyInMs(targetLatencyInMs)
+                .setThrottleController(throttleController)
+                .setEstimate(estimate)
+                .setEstimateSampleRatio(estimateSampleRatio)
+                .setEstimationReport(estimationReport)
+                .setReportTopN(reportTopN)
+                .setReportTopNBySize(reportTopNBySize)
+                .setDistributed(distributed)
+                .setPipelineQueueCapacity(pipelineQueueCapacity)
+                .setClassificationConcurrency(classificationConcurrency)
+                .setClassificationVirtualThreads(classificationVirtualThreads)
+                .setLargestHistories(largestHistories)
+                .setReferenceTargetCache(referenceTargetCache)
+                .setExternalMappingIndex(externalMappingIndex);
+        partitionContext.startTime = startTime;
+        partitionContext.checkpoint = checkpoint;
+        partitionContext.treeTraversal = treeTraversal;
+        partitionContext.partitionContext = true;
+        return partitionContext;
+    }
+
+    public synchronized void mergeCounters(CleanerContext partitionContext) {
+        deletedVersionsCount += partitionContext.deletedVersionsCount;
+        deletedVersionHistoriesCount += partitionContext.deletedVersionHistoriesCount;
+        deletedOrphanVersionsCount += partitionContext.deletedOrphanVersionsCount;
+        deletedOrphanVersionHistoriesCount += partitionContext.deletedOrphanVersionHistoriesCount;
+        processedVersionHistoriesCount += partitionContext.processedVersionHistoriesCount;
     }
 
     public void startProcess() {
@@ -72,26 +209,58 @@ public class CleanerContext {
         deletedOrphanVersionsCount = 0L;
         deletedOrphanVersionHistoriesCount = 0L;
         currentPosition = null;
-        lastScanPosition = loadLastScanPosition();
+        treeTraversal = false;
+        walkedPartitions.clear();
+        checkpoint = ScanCheckpoint.load(getWorkingDirectory());
+        referenceTargetCache = checkIntegrity ? new ReferenceTargetCache() : null;
+        if (!restartFromLastPosition) checkpoint.reset();
+        lastScanPosition = checkpoint.getPosition();
+        searchPositionFound = false;
         searchPosition = restartFromLastPosition && lastScanPosition != null;
-        if (searchPosition) logger.debug("Will restart from {}", lastScanPosition);
+        if (searchPosition || checkpoint.getNbCompletedPartitions() > 0) logger.debug("Will restart from {}, skipping {} completed partitions", lastScanPosition, checkpoint.getNbCompletedPartitions());
         else logger.debug("Restarting from the beginning");
         processedVersionHistoriesCount = 0L;
+        sessionRefreshCounter = 0L;
+        pendingVersionHistories.clear();
+        resolvedOrphans.clear();
 
         if (logger.isDebugEnabled()) logger.debug("Configurations: {}", printConfigurations());
     }
 
     public void finalizeProcess() {
+        releaseResources();
+        // The position of the executions deleting the versions is not affected by the estimations
+        if (!estimate) saveCheckpoint();
+    }
+
+    /**
+     * Detaches the sessions and the DB connection from this context, and releases the JCR sessions bound to
+     * the current thread.
+     */
+    public void releaseResources() {
+        flushIntegrityFixes();
+        integrityFixBatch = null;
         dbConnection = null;
+        orphanDetector = null;
+        existingNodeIds = null;
+        historyScanIndex = null;
+        referencedVersions = null;
+        throttleController = null;
+        estimationReport = null;
+        largestHistories = null;
+        referenceTargetCache = null;
+        externalMappingIndex = null;
         editSession = null;
         liveSession = null;
+        pendingVersionHistories.clear();
+        resolvedOrphans.clear();
         JcrSessionFilter.endRequest();
-        saveLastPosition();
     }
 
     public String printConfigurations() {
         final StringBuilder sb = new StringBuilder();
         sb.append("reindexDefaultWorkspace: ").append(reindexDefaultWorkspace).append(", ");
+        sb.append("scanDuringReindex: ").append(scanDuringReindex).append(", ");
         sb.append("checkIntegrity: ").append(checkIntegrity).append(", ");
         sb.append("fixIntegrity: ").append(fixIntegrity).append(", ");
         sb.append("nbVersionsToKeep: ").append(nbVersionsToKeep).append(", ");
@@ -101,59 +270,200 @@ public class CleanerContext {
         sb.append("pauseDuration: ").append(pauseDuration).append(", ");
         sb.append("skippedPaths: ").append(skippedPaths).append(", ");
         sb.append("restartFromLastPosition: ").append(restartFromLastPosition).append(", ");
+        sb.append("incremental: ").append(incremental).append(", ");
         sb.append("runAsynchronously: ").append(runAsynchronously).append(", ");
         sb.append("thresholdLongHistoryPurgeStrategy: ").append(thresholdLongHistoryPurgeStrategy).append(", ");
         sb.append("useVersioningApi: ").append(useVersioningApi).append(", ");
-        sb.append("sessionRefreshInterval: ").append(sessionRefreshInterval);
+        sb.append("sessionRefreshInterval: ").append(sessionRefreshInterval).append(", ");
+        sb.append("concurrency: ").append(concurrency).append(", ");
+        sb.append("orphanDetectionBatchSize: ").append(orphanDetectionBatchSize).append(", ");
+        sb.append("nodeIdsSnapshotMaxMemoryMb: ").append(nodeIdsSnapshotMaxMemoryMb).append(", ");
+        sb.append("externalMappingsMaxMemoryMb: ").append(externalMappingsMaxMemoryMb).append(", ");
+        sb.append("integrityFixBatchSize: ").append(integrityFixBatchSize).append(", ");
+        sb.append("useHistoryScanIndex: ").append(useHistoryScanIndex).append(", ");
+        sb.append("versionRemovalBatchSize: ").append(versionRemovalBatchSize).append(", ");
+        sb.append("referencedVersionsSnapshotMaxMemoryMb: ").append(referencedVersionsSnapshotMaxMemoryMb).append(", ");
+        sb.append("targetLatencyInMs: ").append(targetLatencyInMs).append(", ");
+        sb.append("estimate: ").append(estimate).append(", ");
+        sb.append("estimateSampleRatio: ").append(estimateSampleRatio).append(", ");
+        sb.append("reportTopN: ").append(reportTopN).append(", ");
+        sb.append("reportTopNBySize: ").append(reportTopNBySize).append(", ");
+        sb.append("distributed: ").append(distributed).append(", ");
+        sb.append("pipelineQueueCapacity: ").append(pipelineQueueCapacity).append(", ");
+        sb.append("classificationConcurrency: ").append(classificationConcurrency).append(", ");
+        sb.append("classificationVirtualThreads: ").append(classificationVirtualThreads);
         return sb.toString();
     }
 
+    /**
+     * Processes every version history from now on, whatever the position where the last execution stopped.
+     */
+    public void ignoreLastScanPosition() {
+        searchPosition = false;
+        if (checkpoint != null) checkpoint.reset();
+    }
+
+    /**
+     * To be called before the versions tree is traversed: the position of the scan is saved in the checkpoint from
+     * now on. The version histories processed out of a traversal, by the incremental mode or from the candidates of
+     * the distributed mode, are not in the order of the tree, and must not be resumed from by the next execution.
+     */
+    public void treeTraversalStarted() {
+        treeTraversal = true;
+    }
+
+    /**
+     * @return whether the scan restarts from the position where the last execution has stopped
+     */
+    public boolean isResumingScan() {
+        return searchPosition || (checkpoint != null && checkpoint.getNbCompletedPartitions() > 0);
+    }
+
+    /**
+     * @return the position where the last execution has stopped, as long as the scan hasn't reached it, {@code null}
+     * otherwise
+     */
+    public String getSeekedPosition() {
+        return searchPosition && !searchPositionFound ? lastScanPosition : null;
+    }
+
+    /**
+     * To be called when the folder leading to the position where the last execution has stopped has been removed in
+     * the meantime: the scan resumes from its parent, which may process again some version histories.
+     */
+    public void seekedPositionRemoved(String parentPath) {
+        searchPositionFound = true;
+        logger.info("{} no longer exists, restarting from {}", lastScanPosition, parentPath);
+    }
+
+    /**
+     * To be called when no version history has been found at the position where the last execution has stopped,
+     * once the folder leading to it has been scanned: the scan resumes right after this folder.
+     */
+    public void seekedPositionNotFound(String path) {
+        searchPositionFound = true;
+        logger.info("No version history found at {}, restarting after {}", lastScanPosition, path);
+    }
+
+    /**
+     * @return whether the partition has been completed by a previous execution, or by another worker of this one
+     */
+    public boolean isPartitionCompleted(String partition) {
+        return checkpoint != null && checkpoint.isPartitionCompleted(partition);
+    }
+
+    /**
+     * Whether a partition can be skipped, since a previous execution has completed it. If the position where the
+     * last execution has stopped is in this partition, the scan resumes right after it.
+     */
+    public boolean skipCompletedPartition(String partition) {
+        if (!isPartitionCompleted(partition)) return false;
+        if (searchPosition && !searchPositionFound
+                && (lastScanPosition.equals(partition) || lastScanPosition.startsWith(partition + "/"))) {
+            searchPositionFound = true;
+            logger.info("Restarting after {}", partition);
+        }
+        return true;
+    }
+
+    /**
+     * To be called once every version history of a partition has been accepted by {@link #canProcess(JCRNodeWrapper)}
+     * or skipped. The partition is recorded as completed in the checkpoint once its histories waiting for a block
+     * lookup of their orphan status are processed as well.
+     */
+    public void partitionWalked(String partition) {
+        if (pipeline != null) {
+            pipeline.submitPartition(partition);
+        } else if (pendingVersionHistories.isEmpty()) {
+            completePartition(partition);
+        } else {
+            walkedPartitions.add(partition);
+        }
+    }
+
+    /**
+     * To be called once every version history buffered in {@link #getPendingVersionHistories()} has been processed.
+     */
+    public void pendingVersionHistoriesProcessed() {
+        for (String partition : walkedPartitions) {
+            completePartition(partition);
+        }
+        walkedPartitions.clear();
+    }
+
+    private void completePartition(String partition) {
+        if (checkpoint == null) return;
+        checkpoint.partitionCompleted(partition);
+        saveCheckpointIfDue();
+    }
+
     public boolean canProcess(JCRNodeWrapper vh) throws RepositoryException {
         processedVersionHistoriesCount++;
         currentPosition = vh.getParent().getPath();
         if (searchPosition && !searchPositionFound) {
             searchPositionFound = StringUtils.startsWith(currentPosition, lastScanPosition);
-            if (searchPositionFound) logger.info("Restarting from {}", currentPosition);
-            return searchPositionFound;
+            if (!searchPositionFound) return Boolean.FALSE;
+            logger.info("Restarting from {}", currentPosition);
         }
+        CleanerProgress.getInstance().trackProcessedHistory(currentPosition);
+        saveCheckpointIfDue();
         return Boolean.TRUE;
     }
 
-    private String loadLastScanPosition() {
-        final File outputDir = new File(System.getProperty("java.io.tmpdir"), "versions-cleaner");
-        try {
-            final File file = new File(outputDir, "lastPosition.txt");
-            if (!file.exists()) return null;
-            final List<String> lines = FileUtils.readLines(file, StandardCharsets.UTF_8);
-            if (CollectionUtils.isNotEmpty(lines)) return lines.get(0);
-        } catch (IOException e) {
-            logger.error("", e);
-        }
-        return null;
-    }
-
-    private void saveLastPosition() {
-        logger.debug("Saving the last position");
-        final File outputDir = new File(System.getProperty("java.io.tmpdir"), "versions-cleaner");
-        final boolean folderCreated = outputDir.exists() || outputDir.mkdirs();
-        if (folderCreated && outputDir.canWrite()) {
-            try {
-                final File file = new File(outputDir, "lastPosition.txt");
-                if (currentPosition == null) {
-                    FileUtils.deleteQuietly(file);
-                    logger.debug("Saving the last position: no position to save");
-                } else {
-                    FileUtils.writeLines(file, StandardCharsets.UTF_8.name(), Collections.singleton(currentPosition));
-                    logger.debug("Saving the last position: {}", currentPosition);
+    /**
+     * Directory where the state kept between two executions is stored.
+     */
+    static File getWorkingDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "versions-cleaner");
+    }
+
+    private void saveCheckpointIfDue() {
+        if (treeTraversal && checkpoint != null && checkpoint.isSaveDue()) saveCheckpoint();
+    }
+
+    /**
+     * Saves the checkpoint. The position is the one of the first version history waiting for a block lookup of its
+     * orphan status, or for the stages of the pipeline, if any, so that a crash doesn't skip it. It is only owned by
+     * the main context, the workers of the parallel mode only record the partitions they complete. No position is saved
+     * out of a traversal of the versions tree.
+     */
+    private void saveCheckpoint() {
+        if (checkpoint == null || estimate) return;
+        if (!partitionContext) {
+            String position = currentPosition;
+            if (!treeTraversal) {
+                position = null;
+            } else if (pipeline != null && pipeline.getPosition() != null) {
+                position = pipeline.getPosition();
+            } else if (!pendingVersionHistories.isEmpty()) {
+                try {
+                    position = pendingVersionHistories.get(0).getParent().getPath();
+                } catch (RepositoryException e) {
+                    logger.debug("Not saving the checkpoint, failed to resolve the position of the pending histories", e);
+                    return;
                 }
-            } catch (IOException e) {
-                logger.error("", e);
             }
+            checkpoint.setPosition(position);
         }
+        checkpoint.save();
+    }
+
+    /**
+     * Moves the saved position back to the folder of a version history which has been accepted by
+     * {@link #canProcess(JCRNodeWrapper)} but not processed yet, so that the next execution doesn't skip it.
+     */
+    public void rewindPosition(JCRNodeWrapper vh) throws RepositoryException {
+        rewindPosition(vh.getParent().getPath());
+    }
+
+    public void rewindPosition(String position) {
+        currentPosition = position;
     }
 
     public void endOfTreeReached() {
         currentPosition = null;
+        walkedPartitions.clear();
+        if (checkpoint != null) checkpoint.reset();
     }
 
     public boolean deleteNonOrphanVersions() {
@@ -161,17 +471,20 @@ public class CleanerContext {
     }
 
     public boolean scanVersionsTree() {
-        return deleteOrphanedVersions || deleteNonOrphanVersions();
+        return deleteOrphanedVersions || deleteNonOrphanVersions() || reportTopN > 0;
     }
 
     public void trackDeletedVersions(long count, boolean areOrphan) {
         if (areOrphan) deletedOrphanVersionsCount += count;
         else deletedVersionsCount += count;
+        CleanerMetrics.getInstance().trackDeletedVersions(count);
+        CleanerProgress.getInstance().trackDeletedVersions(count, areOrphan);
     }
 
     public void trackDeletedVersionHistory(boolean isOrphan) {
         if (isOrphan) deletedOrphanVersionHistoriesCount += 1L;
         else deletedVersionHistoriesCount += 1L;
+        CleanerProgress.getInstance().trackDeletedVersionHistory(isOrphan);
     }
 
     public long getDeletedVersionsCount() {
@@ -190,13 +503,38 @@ public class CleanerContext {
         return deletedOrphanVersionHistoriesCount;
     }
 
+    public long getProcessedVersionHistoriesCount() {
+        return processedVersionHistoriesCount;
+    }
+
     public void refreshSessions() throws RepositoryException {
         // Guard against a misconfigured interval: a non-positive value would otherwise raise
         // ArithmeticException (modulo by zero) and abort the scan mid-batch.
         if (sessionRefreshInterval <= 0) return;
-        if (processedVersionHistoriesCount % sessionRefreshInterval != 0) return;
+        // Counted apart from processedVersionHistoriesCount, since the histories can be accepted by canProcess()
+        // a whole block ahead of their processing when the orphans are detected by block.
+        if (sessionRefreshCounter++ % sessionRefreshInterval != 0) return;
+        final long start = System.nanoTime();
+        // The pending fixes would be discarded by the refresh
+        flushIntegrityFixes();
         if (editSession != null) editSession.refresh(false);
         if (liveSession != null) liveSession.refresh(false);
+        CleanerMetrics.getInstance().recordLatency(CleanerMetrics.Phase.SESSION_REFRESH, start);
+    }
+
+    /**
+     * @return the batch of the fixes of the integrity check, applied to the edit session of this context
+     */
+    public IntegrityFixBatch getIntegrityFixBatch() {
+        if (integrityFixBatch == null) integrityFixBatch = new IntegrityFixBatch(editSession, integrityFixBatchSize);
+        return integrityFixBatch;
+    }
+
+    /**
+     * Saves the pending fixes of the integrity check.
+     */
+    public void flushIntegrityFixes() {
+        if (integrityFixBatch != null) integrityFixBatch.flush();
     }
 
     /*
@@ -212,6 +550,28 @@ public class CleanerContext {
         return this;
     }
 
+    /**
+     * Whether the versions tree is scanned while the default workspace is reindexed, the features relying on
+     * queries waiting for the reindexing to complete.
+     */
+    public boolean isScanDuringReindex() {
+        return scanDuringReindex;
+    }
+
+    public CleanerContext setScanDuringReindex(boolean scanDuringReindex) {
+        this.scanDuringReindex = scanDuringReindex;
+        return this;
+    }
+
+    public ReindexTracker getReindexTracker() {
+        return reindexTracker;
+    }
+
+    public CleanerContext setReindexTracker(ReindexTracker reindexTracker) {
+        this.reindexTracker = reindexTracker;
+        return this;
+    }
+
     public boolean isCheckIntegrity() {
         return checkIntegrity;
     }
@@ -293,6 +653,15 @@ public class CleanerContext {
         return this;
     }
 
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public CleanerContext setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
     public boolean isRunAsynchronously() {
         return runAsynchronously;
     }
@@ -325,6 +694,316 @@ public class CleanerContext {
         return this;
     }
 
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public CleanerContext setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public int getOrphanDetectionBatchSize() {
+        return orphanDetectionBatchSize;
+    }
+
+    public CleanerContext setOrphanDetectionBatchSize(int orphanDetectionBatchSize) {
+        this.orphanDetectionBatchSize = orphanDetectionBatchSize;
+        return this;
+    }
+
+    public OrphanDetector getOrphanDetector() {
+        return orphanDetector;
+    }
+
+    public CleanerContext setOrphanDetector(OrphanDetector orphanDetector) {
+        this.orphanDetector = orphanDetector;
+        return this;
+    }
+
+    public long getNodeIdsSnapshotMaxMemoryMb() {
+        return nodeIdsSnapshotMaxMemoryMb;
+    }
+
+    public CleanerContext setNodeIdsSnapshotMaxMemoryMb(long nodeIdsSnapshotMaxMemoryMb) {
+        this.nodeIdsSnapshotMaxMemoryMb = nodeIdsSnapshotMaxMemoryMb;
+        return this;
+    }
+
+    public long getExternalMappingsMaxMemoryMb() {
+        return externalMappingsMaxMemoryMb;
+    }
+
+    public CleanerContext setExternalMappingsMaxMemoryMb(long externalMappingsMaxMemoryMb) {
+        this.externalMappingsMaxMemoryMb = externalMappingsMaxMemoryMb;
+        return this;
+    }
+
+    public int getIntegrityFixBatchSize() {
+        return integrityFixBatchSize;
+    }
+
+    public CleanerContext setIntegrityFixBatchSize(int integrityFixBatchSize) {
+        this.integrityFixBatchSize = integrityFixBatchSize;
+        return this;
+    }
+
+    /**
+     * Index of the external mappings loaded at the beginning of the scan, or {@code null} if disabled or if it
+     * couldn't be loaded.
+     */
+    public ExternalMappingIndex getExternalMappingIndex() {
+        return externalMappingIndex;
+    }
+
+    public CleanerContext setExternalMappingIndex(ExternalMappingIndex externalMappingIndex) {
+        this.externalMappingIndex = externalMappingIndex;
+        return this;
+    }
+
+    /**
+     * Snapshot of the identifiers of the nodes of the edit and live workspaces taken at the beginning of the scan,
+     * or {@code null} if disabled or over the memory cap.
+     */
+    public NodeIdSet getExistingNodeIds() {
+        return existingNodeIds;
+    }
+
+    public CleanerContext setExistingNodeIds(NodeIdSet existingNodeIds) {
+        this.existingNodeIds = existingNodeIds;
+        return this;
+    }
+
+    public boolean isUseHistoryScanIndex() {
+        return useHistoryScanIndex;
+    }
+
+    public CleanerContext setUseHistoryScanIndex(boolean useHistoryScanIndex) {
+        this.useHistoryScanIndex = useHistoryScanIndex;
+        return this;
+    }
+
+    public int getVersionRemovalBatchSize() {
+        return versionRemovalBatchSize;
+    }
+
+    public CleanerContext setVersionRemovalBatchSize(int versionRemovalBatchSize) {
+        this.versionRemovalBatchSize = versionRemovalBatchSize;
+        return this;
+    }
+
+    public long getReferencedVersionsSnapshotMaxMemoryMb() {
+        return referencedVersionsSnapshotMaxMemoryMb;
+    }
+
+    public CleanerContext setReferencedVersionsSnapshotMaxMemoryMb(long referencedVersionsSnapshotMaxMemoryMb) {
+        this.referencedVersionsSnapshotMaxMemoryMb = referencedVersionsSnapshotMaxMemoryMb;
+        return this;
+    }
+
+    public long getTargetLatencyInMs() {
+        return targetLatencyInMs;
+    }
+
+    public CleanerContext setTargetLatencyInMs(long targetLatencyInMs) {
+        this.targetLatencyInMs = targetLatencyInMs;
+        return this;
+    }
+
+    /**
+     * Whether the execution only estimates what would be deleted, without deleting anything.
+     */
+    public boolean isEstimate() {
+        return estimate;
+    }
+
+    public CleanerContext setEstimate(boolean estimate) {
+        this.estimate = estimate;
+        return this;
+    }
+
+    public double getEstimateSampleRatio() {
+        return estimateSampleRatio;
+    }
+
+    public CleanerContext setEstimateSampleRatio(double estimateSampleRatio) {
+        this.estimateSampleRatio = estimateSampleRatio;
+        return this;
+    }
+
+    /**
+     * Report of the execution in estimation mode, or {@code null} if the versions are deleted.
+     */
+    public EstimationReport getEstimationReport() {
+        return estimationReport;
+    }
+
+    public CleanerContext setEstimationReport(EstimationReport estimationReport) {
+        this.estimationReport = estimationReport;
+        return this;
+    }
+
+    /**
+     * Number of largest version histories reported at the end of the scan, 0 if they are not reported.
+     */
+    public int getReportTopN() {
+        return reportTopN;
+    }
+
+    public CleanerContext setReportTopN(int reportTopN) {
+        this.reportTopN = reportTopN;
+        return this;
+    }
+
+    /**
+     * Whether the largest version histories are ranked by the size of the binaries of their frozen nodes, instead
+     * of by their number of versions.
+     */
+    public boolean isReportTopNBySize() {
+        return reportTopNBySize;
+    }
+
+    public CleanerContext setReportTopNBySize(boolean reportTopNBySize) {
+        this.reportTopNBySize = reportTopNBySize;
+        return this;
+    }
+
+    /**
+     * Whether the partitions of the versions tree are leased to the members of the cluster, which scan them, the
+     * versions being deleted by the processing server.
+     */
+    public boolean isDistributed() {
+        return distributed;
+    }
+
+    public CleanerContext setDistributed(boolean distributed) {
+        this.distributed = distributed;
+        return this;
+    }
+
+    /**
+     * Capacity of the queues between the stages of the pipelined scan, 0 if the scan is not pipelined.
+     */
+    public int getPipelineQueueCapacity() {
+        return pipelineQueueCapacity;
+    }
+
+    public CleanerContext setPipelineQueueCapacity(int pipelineQueueCapacity) {
+        this.pipelineQueueCapacity = pipelineQueueCapacity;
+        return this;
+    }
+
+    /**
+     * Number of version histories classified at once by the pipelined scan.
+     */
+    public int getClassificationConcurrency() {
+        return classificationConcurrency;
+    }
+
+    public CleanerContext setClassificationConcurrency(int classificationConcurrency) {
+        this.classificationConcurrency = classificationConcurrency;
+        return this;
+    }
+
+    /**
+     * Whether the histories classified at once by the pipelined scan are classified on virtual threads, when the
+     * runtime supports them, instead of a pool of platform threads.
+     */
+    public boolean isClassificationVirtualThreads() {
+        return classificationVirtualThreads;
+    }
+
+    public CleanerContext setClassificationVirtualThreads(boolean classificationVirtualThreads) {
+        this.classificationVirtualThreads = classificationVirtualThreads;
+        return this;
+    }
+
+    /**
+     * Targets of the references checked by the integrity check known to exist, or {@code null} if they are not
+     * cached.
+     */
+    public ReferenceTargetCache getReferenceTargetCache() {
+        return referenceTargetCache;
+    }
+
+    public CleanerContext setReferenceTargetCache(ReferenceTargetCache referenceTargetCache) {
+        this.referenceTargetCache = referenceTargetCache;
+        return this;
+    }
+
+    /**
+     * Pipeline the version histories found by the traversal are passed to, or {@code null} if the scan is not
+     * pipelined. Only set on the context of the traversal.
+     */
+    public CleanupPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public CleanerContext setPipeline(CleanupPipeline pipeline) {
+        this.pipeline = pipeline;
+        return this;
+    }
+
+    /**
+     * Largest version histories found so far, or {@code null} if they are not reported.
+     */
+    public TopHistories getLargestHistories() {
+        return largestHistories;
+    }
+
+    public CleanerContext setLargestHistories(TopHistories largestHistories) {
+        this.largestHistories = largestHistories;
+        return this;
+    }
+
+    /**
+     * Controller of the pause between the deletions, or {@code null} if the pause is fixed.
+     */
+    public ThrottleController getThrottleController() {
+        return throttleController;
+    }
+
+    public CleanerContext setThrottleController(ThrottleController throttleController) {
+        this.throttleController = throttleController;
+        return this;
+    }
+
+    /**
+     * Snapshot of the referenced nodes of the version storage, or {@code null} if disabled.
+     */
+    public ReferencedVersions getReferencedVersions() {
+        return referencedVersions;
+    }
+
+    public CleanerContext setReferencedVersions(ReferencedVersions referencedVersions) {
+        this.referencedVersions = referencedVersions;
+        return this;
+    }
+
+    /**
+     * Index of the version histories within the retention, or {@code null} if disabled.
+     */
+    public HistoryScanIndex getHistoryScanIndex() {
+        return historyScanIndex;
+    }
+
+    public CleanerContext setHistoryScanIndex(HistoryScanIndex historyScanIndex) {
+        this.historyScanIndex = historyScanIndex;
+        return this;
+    }
+
+    public List<JCRNodeWrapper> getPendingVersionHistories() {
+        return pendingVersionHistories;
+    }
+
+    /**
+     * Orphan status of the frozen UUIDs of the current block of version histories, resolved by the
+     * {@link OrphanDetector}. Empty when the orphans are detected one by one.
+     */
+    public Map<String, Boolean> getResolvedOrphans() {
+        return resolvedOrphans;
+    }
+
     public AtomicBoolean getInterruptionHandler() {
         return interruptionHandler;
     }
@@ -352,6 +1031,10 @@ public class CleanerContext {
     }
 
     public CleanerContext setEditSession(JCRSessionWrapper editSession) {
+        if (integrityFixBatch != null && editSession != this.editSession) {
+            flushIntegrityFixes();
+            integrityFixBatch = null;
+        }
         this.editSession = editSession;
         return this;
     }
@@ -0,0 +1,189 @@
+package org.jahia.community.versionscleaner;
+
+import java.beans.ConstructorProperties;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of the phases of the cleanup and throughput of the last execution, exposed over JMX by
+ * {@link CleanerMetricsRegistration} and over GraphQL by the {@code metrics} field of the versions cleaner queries.
+ *
+ * <p>The metrics are reset when an execution starts, and kept after its end until the next one. Recording is lock-free
+ * so that the workers of the parallel mode don't contend on it.
+ */
+public final class CleanerMetrics implements CleanerMetricsMXBean {
+
+    public static final String OBJECT_NAME = "org.jahia.community.versionscleaner:type=Metrics";
+
+    private static final CleanerMetrics INSTANCE = new CleanerMetrics();
+
+    public enum Phase {
+        REFERENCE_LOOKUP,
+        VERSION_REMOVAL,
+        BATCH_VERSION_REMOVAL,
+        ORPHAN_CHECK,
+        PURGE,
+        SESSION_REFRESH
+    }
+
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+    private final LongAdder processedHistories = new LongAdder();
+    private final LongAdder deletedVersions = new LongAdder();
+    private volatile long startedAt;
+    private volatile long stoppedAt;
+
+    CleanerMetrics() {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    public static CleanerMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public void recordLatency(Phase phase, long startInNanos) {
+        histograms.get(phase).record(System.nanoTime() - startInNanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms.get(phase);
+    }
+
+    public void trackProcessedHistory() {
+        processedHistories.increment();
+    }
+
+    public void trackDeletedVersions(long count) {
+        deletedVersions.add(count);
+    }
+
+    /**
+     * Resets the metrics, to be called when an execution starts.
+     */
+    public void start() {
+        reset();
+        startedAt = System.currentTimeMillis();
+        stoppedAt = 0L;
+    }
+
+    /**
+     * Freezes the throughput, to be called when an execution ends.
+     */
+    public void stop() {
+        if (startedAt > 0L) stoppedAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        processedHistories.reset();
+        deletedVersions.reset();
+        startedAt = 0L;
+        stoppedAt = 0L;
+    }
+
+    @Override
+    public List<PhaseTimings> getPhaseTimings() {
+        final List<PhaseTimings> timings = new ArrayList<>(histograms.size());
+        for (Map.Entry<Phase, LatencyHistogram> entry : histograms.entrySet()) {
+            final LatencyHistogram histogram = entry.getValue();
+            timings.add(new PhaseTimings(entry.getKey().name(), histogram.getCount(), histogram.getMeanInMs(),
+                    histogram.getPercentileInMs(50d), histogram.getPercentileInMs(95d),
+                    histogram.getPercentileInMs(99d), histogram.getMaxInMs()));
+        }
+        return Collections.unmodifiableList(timings);
+    }
+
+    @Override
+    public long getProcessedHistories() {
+        return processedHistories.sum();
+    }
+
+    @Override
+    public long getDeletedVersions() {
+        return deletedVersions.sum();
+    }
+
+    @Override
+    public long getElapsedTimeInMs() {
+        final long start = startedAt;
+        if (start == 0L) return 0L;
+        final long end = stoppedAt;
+        return (end == 0L ? System.currentTimeMillis() : end) - start;
+    }
+
+    @Override
+    public double getHistoriesPerSecond() {
+        return getRate(getProcessedHistories());
+    }
+
+    @Override
+    public double getVersionsPerSecond() {
+        return getRate(getDeletedVersions());
+    }
+
+    private double getRate(long count) {
+        final long elapsedTimeInMs = getElapsedTimeInMs();
+        return elapsedTimeInMs == 0L ? 0d : count * 1000d / elapsedTimeInMs;
+    }
+
+    /**
+     * Latency of a phase, in ms. The percentiles are approximated, see {@link LatencyHistogram}.
+     */
+    public static final class PhaseTimings {
+
+        private final String phase;
+        private final long count;
+        private final double meanInMs;
+        private final double p50InMs;
+        private final double p95InMs;
+        private final double p99InMs;
+        private final double maxInMs;
+
+        @ConstructorProperties({"phase", "count", "meanInMs", "p50InMs", "p95InMs", "p99InMs", "maxInMs"})
+        public PhaseTimings(String phase, long count, double meanInMs, double p50InMs, double p95InMs, double p99InMs, double maxInMs) {
+            this.phase = phase;
+            this.count = count;
+            this.meanInMs = meanInMs;
+            this.p50InMs = p50InMs;
+            this.p95InMs = p95InMs;
+            this.p99InMs = p99InMs;
+            this.maxInMs = maxInMs;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanInMs() {
+            return meanInMs;
+        }
+
+        public double getP50InMs() {
+            return p50InMs;
+        }
+
+        public double getP95InMs() {
+            return p95InMs;
+        }
+
+        public double getP99InMs() {
+            return p99InMs;
+        }
+
+        public double getMaxInMs() {
+            return maxInMs;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.jahia.community.versionscleaner;
+
+import java.util.List;
+
+/**
+ * Management interface of {@link CleanerMetrics}, registered as {@value CleanerMetrics#OBJECT_NAME}.
+ */
+public interface CleanerMetricsMXBean {
+
+    /**
+     * @return the latency of each phase since the start of the last execution
+     */
+    List<CleanerMetrics.PhaseTimings> getPhaseTimings();
+
+    long getProcessedHistories();
+
+    long getDeletedVersions();
+
+    /**
+     * @return the duration of the last execution so far, in ms
+     */
+    long getElapsedTimeInMs();
+
+    double getHistoriesPerSecond();
+
+    double getVersionsPerSecond();
+
+    void reset();
+}
@@ -0,0 +1,48 @@
+package org.jahia.community.versionscleaner;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers {@link CleanerMetrics} on the platform MBean server while the module is started.
+ */
+@Component(immediate = true)
+public class CleanerMetricsRegistration {
+
+    private static final Logger logger = LoggerFactory.getLogger(CleanerMetricsRegistration.class);
+
+    private ObjectName objectName;
+
+    @Activate
+    public void start() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(CleanerMetrics.OBJECT_NAME);
+            // Left behind by a previous version of the module which failed to stop
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(CleanerMetrics.getInstance(), name);
+            objectName = name;
+        } catch (JMException e) {
+            logger.error("Failed to register the metrics of the versions cleaner over JMX", e);
+        }
+    }
+
+    @Deactivate
+    public void stop() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("Failed to unregister the metrics of the versions cleaner", e);
+        }
+        objectName = null;
+    }
+}
@@ -0,0 +1,270 @@
+package org.jahia.community.versionscleaner;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live progress of the current execution, exposed by the {@code progress} field of the versions cleaner queries.
+ *
+ * <p>The counters are updated by the workers as they go, unlike the ones of {@link CleanerContext} which are merged
+ * at the end of the parallel mode, and the state is only made of adders and volatile fields, so that taking a
+ * {@link Snapshot} never blocks the workers.
+ *
+ * <p>The completed fraction of the scan is estimated from the position within the hashed folders of the version
+ * storage, or from the number of completed work units when the histories are not processed in the order of the
+ * tree: the partitions in parallel mode, the histories in incremental mode.
+ */
+public final class CleanerProgress {
+
+    private static final CleanerProgress INSTANCE = new CleanerProgress();
+
+    private final LongAdder processedHistories = new LongAdder();
+    private final LongAdder deletedVersions = new LongAdder();
+    private final LongAdder deletedHistories = new LongAdder();
+    private final LongAdder deletedOrphanVersions = new LongAdder();
+    private final LongAdder deletedOrphanHistories = new LongAdder();
+    private final LongAdder completedUnits = new LongAdder();
+    private volatile long startedAt;
+    private volatile long stoppedAt;
+    private volatile String scanRoot;
+    private volatile String currentPosition;
+    private volatile double initialFraction = -1d;
+    private volatile long totalUnits;
+    private volatile boolean scanCompleted;
+    private volatile boolean adaptiveThrottling;
+    private volatile long pauseInMs;
+
+    CleanerProgress() {
+    }
+
+    public static CleanerProgress getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Resets the progress, to be called when an execution starts.
+     */
+    public void start() {
+        processedHistories.reset();
+        deletedVersions.reset();
+        deletedHistories.reset();
+        deletedOrphanVersions.reset();
+        deletedOrphanHistories.reset();
+        completedUnits.reset();
+        scanRoot = null;
+        currentPosition = null;
+        initialFraction = -1d;
+        totalUnits = 0L;
+        scanCompleted = false;
+        adaptiveThrottling = false;
+        pauseInMs = 0L;
+        stoppedAt = 0L;
+        startedAt = System.currentTimeMillis();
+    }
+
+    public void stop() {
+        if (startedAt > 0L) stoppedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * The versions tree is scanned in order from {@code rootPath}, the completed fraction follows the position.
+     */
+    public void scanStarted(String rootPath) {
+        scanRoot = rootPath;
+    }
+
+    /**
+     * The scan is split into {@code nbUnits} work units, the completed fraction follows the completed ones.
+     */
+    public void unitsStarted(long nbUnits) {
+        completedUnits.reset();
+        totalUnits = nbUnits;
+    }
+
+    public void unitCompleted() {
+        completedUnits.increment();
+    }
+
+    /**
+     * The end of the scan has been reached without interruption.
+     */
+    public void scanCompleted() {
+        scanCompleted = true;
+    }
+
+    public void setAdaptiveThrottling(boolean adaptiveThrottling) {
+        this.adaptiveThrottling = adaptiveThrottling;
+    }
+
+    /**
+     * Records the pause applied after the last deletion.
+     */
+    public void trackPause(long pauseInMs) {
+        this.pauseInMs = pauseInMs;
+    }
+
+    public void trackProcessedHistory(String position) {
+        processedHistories.increment();
+        if (position == null || position.equals(currentPosition)) return;
+        currentPosition = position;
+        // The scan can resume from the position where the last execution has stopped
+        if (initialFraction < 0d && scanRoot != null) initialFraction = CleanCommand.getKeyspaceFraction(scanRoot, position);
+    }
+
+    public void trackDeletedVersions(long count, boolean areOrphan) {
+        if (areOrphan) deletedOrphanVersions.add(count);
+        else deletedVersions.add(count);
+    }
+
+    public void trackDeletedVersionHistory(boolean isOrphan) {
+        if (isOrphan) deletedOrphanHistories.increment();
+        else deletedHistories.increment();
+    }
+
+    public Snapshot snapshot() {
+        final long start = startedAt;
+        final long end = stoppedAt;
+        final long elapsedTimeInMs = start == 0L ? 0L : (end == 0L ? System.currentTimeMillis() : end) - start;
+        final String position = currentPosition;
+        final String root = scanRoot;
+        final long units = totalUnits;
+        double fraction = -1d;
+        double fractionAtStart = 0d;
+        if (units > 0L) {
+            fraction = Math.min(1d, completedUnits.sum() / (double) units);
+        } else if (root != null && position != null) {
+            fraction = CleanCommand.getKeyspaceFraction(root, position);
+            fractionAtStart = Math.max(initialFraction, 0d);
+        }
+        if (scanCompleted) fraction = 1d;
+        return new Snapshot(CleanCommand.isRunning(), processedHistories.sum(), deletedVersions.sum(), deletedHistories.sum(),
+                deletedOrphanVersions.sum(), deletedOrphanHistories.sum(), position, elapsedTimeInMs, fraction,
+                estimateRemainingTimeInMs(fractionAtStart, fraction, elapsedTimeInMs), adaptiveThrottling, pauseInMs);
+    }
+
+    /**
+     * Extrapolates the time taken so far to cover the fraction of the scan completed since the start of the execution.
+     *
+     * @return the remaining time in ms, or -1 if it can't be estimated yet
+     */
+    static long estimateRemainingTimeInMs(double fractionAtStart, double fraction, long elapsedTimeInMs) {
+        final double completedSinceStart = fraction - fractionAtStart;
+        if (fraction < 0d || completedSinceStart <= 0d || elapsedTimeInMs <= 0L) return -1L;
+        return Math.round(elapsedTimeInMs * Math.max(0d, 1d - fraction) / completedSinceStart);
+    }
+
+    /**
+     * Immutable view of the progress.
+     */
+    public static final class Snapshot {
+
+        private final boolean running;
+        private final long processedHistories;
+        private final long deletedVersions;
+        private final long deletedHistories;
+        private final long deletedOrphanVersions;
+        private final long deletedOrphanHistories;
+        private final String currentPosition;
+        private final long elapsedTimeInMs;
+        private final double completedFraction;
+        private final long remainingTimeInMs;
+        private final boolean adaptiveThrottling;
+        private final long pauseInMs;
+
+        Snapshot(boolean running, long processedHistories, long deletedVersions, long deletedHistories,
+                long deletedOrphanVersions, long deletedOrphanHistories, String currentPosition, long elapsedTimeInMs,
+                double completedFraction, long remainingTimeInMs, boolean adaptiveThrottling, long pauseInMs) {
+            this.running = running;
+            this.processedHistories = processedHistories;
+            this.deletedVersions = deletedVersions;
+            this.deletedHistories = deletedHistories;
+            this.deletedOrphanVersions = deletedOrphanVersions;
+            this.deletedOrphanHistories = deletedOrphanHistories;
+            this.currentPosition = currentPosition;
+            this.elapsedTimeInMs = elapsedTimeInMs;
+            this.completedFraction = completedFraction;
+            this.remainingTimeInMs = remainingTimeInMs;
+            this.adaptiveThrottling = adaptiveThrottling;
+            this.pauseInMs = pauseInMs;
+        }
+
+        /**
+         * @return whether nothing has changed between the two snapshots, besides the time
+         */
+        public boolean hasSameState(Snapshot other) {
+            return running == other.running
+                    && processedHistories == other.processedHistories
+                    && deletedVersions == other.deletedVersions
+                    && deletedHistories == other.deletedHistories
+                    && deletedOrphanVersions == other.deletedOrphanVersions
+                    && deletedOrphanHistories == other.deletedOrphanHistories
+                    && Objects.equals(currentPosition, other.currentPosition)
+                    && pauseInMs == other.pauseInMs;
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+
+        public long getProcessedHistories() {
+            return processedHistories;
+        }
+
+        public long getDeletedVersions() {
+            return deletedVersions;
+        }
+
+        public long getDeletedHistories() {
+            return deletedHistories;
+        }
+
+        public long getDeletedOrphanVersions() {
+            return deletedOrphanVersions;
+        }
+
+        public long getDeletedOrphanHistories() {
+            return deletedOrphanHistories;
+        }
+
+        public String getCurrentPosition() {
+            return currentPosition;
+        }
+
+        public long getElapsedTimeInMs() {
+            return elapsedTimeInMs;
+        }
+
+        public double getHistoriesPerSecond() {
+            return elapsedTimeInMs == 0L ? 0d : processedHistories * 1000d / elapsedTimeInMs;
+        }
+
+        public double getVersionsPerSecond() {
+            return elapsedTimeInMs == 0L ? 0d : (deletedVersions + deletedOrphanVersions) * 1000d / elapsedTimeInMs;
+        }
+
+        /**
+         * @return the completed fraction of the scan, between 0 and 1, or -1 if unknown
+         */
+        public double getCompletedFraction() {
+            return completedFraction;
+        }
+
+        /**
+         * @return the estimated remaining time in ms, or -1 if unknown
+         */
+        public long getRemainingTimeInMs() {
+            return remainingTimeInMs;
+        }
+
+        public boolean isAdaptiveThrottling() {
+            return adaptiveThrottling;
+        }
+
+        /**
+         * @return the pause applied after the last deletion, in ms
+         */
+        public long getPauseInMs() {
+            return pauseInMs;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Staged scan of the versions tree: the traversal of the tree, run by the thread creating the pipeline, feeds a
+ * bounded queue of version histories to a classification stage, which checks them without writing anything, and
+ * passes the ones which have versions to delete to a deletion stage through a second bounded queue. Each stage runs
+ * in its own thread with its own JCR sessions, so that the reads of the traversal and of the classification overlap
+ * with the deletions, and a full queue blocks the stage feeding it.
+ *
+ * <p>The end of a partition is passed through the queues behind its histories, so that the partition is only
+ * recorded as completed once all of them have been processed. The histories in flight, from the oldest one, are
+ * kept so that an interrupted scan resumes from the first one not processed.
+ *
+ * <p>The histories can be classified by concurrent tasks, run by a {@link BoundedExecutor}: the classification stage
+ * then submits them as they come, and passes them to the deletion stage in the order of the traversal.
+ */
+public class CleanupPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(CleanupPipeline.class);
+
+    // Marks the end of the stream of histories, passed from a stage to the next one
+    private static final Item END = new Item(null, false);
+    private static final long POLL_TIMEOUT_IN_MS = 500L;
+
+    /**
+     * Stage of the pipeline, whose methods are called in its own thread.
+     */
+    interface Stage {
+
+        /**
+         * Opens the resources of the stage, before the first history.
+         */
+        void open() throws Exception;
+
+        /**
+         * @return whether the history has to be passed to the next stage. Called concurrently, from the threads of the
+         * executor, if the stage has one.
+         */
+        boolean process(String historyPath) throws RepositoryException;
+
+        /**
+         * Called once the histories of a partition have been processed by every stage, only on the last stage.
+         */
+        void partitionCompleted(String partition);
+
+        /**
+         * Releases the resources of the stage, after the last history or once the scan is interrupted.
+         */
+        void close();
+    }
+
+    private final BlockingQueue<Item> classificationQueue;
+    private final BlockingQueue<Item> deletionQueue;
+    private final Set<String> historiesInFlight = new LinkedHashSet<>();
+    private final BooleanSupplier interrupted;
+    private final Thread classificationThread;
+    private final Thread deletionThread;
+    // Set once a stage has stopped before the end of the stream, the other ones stopping as well
+    private volatile boolean stopped;
+
+    CleanupPipeline(int queueCapacity, Stage classificationStage, Stage deletionStage, BooleanSupplier interrupted) {
+        this(queueCapacity, classificationStage, null, deletionStage, interrupted);
+    }
+
+    /**
+     * @param classificationExecutor executor of the concurrent tasks classifying the histories, {@code null} to
+     *                               classify them one after the other in the thread of the stage. Shut down once the
+     *                               stage stops.
+     */
+    CleanupPipeline(int queueCapacity, Stage classificationStage, BoundedExecutor classificationExecutor, Stage deletionStage,
+                    BooleanSupplier interrupted) {
+        this.classificationQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.deletionQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.interrupted = interrupted;
+        classificationThread = newThread(classificationExecutor == null
+                ? () -> runStage(classificationStage, classificationQueue, deletionQueue)
+                : () -> runConcurrentStage(classificationStage, classificationExecutor, queueCapacity, classificationQueue, deletionQueue),
+                "versions-cleaner-classification");
+        deletionThread = newThread(() -> runStage(deletionStage, deletionQueue, null), "versions-cleaner-deletion");
+    }
+
+    private static Thread newThread(Runnable runnable, String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    }
+
+    public void start() {
+        classificationThread.start();
+        deletionThread.start();
+    }
+
+    /**
+     * Passes a history found by the traversal to the classification stage, waiting for some room in the queue.
+     *
+     * @return {@code false} if the scan has been interrupted in the meantime, or if a stage has failed
+     */
+    public boolean submitHistory(String historyPath) {
+        synchronized (historiesInFlight) {
+            historiesInFlight.add(historyPath);
+        }
+        return put(classificationQueue, new Item(historyPath, false));
+    }
+
+    /**
+     * To be called by the traversal once every history of a partition has been submitted.
+     */
+    public boolean submitPartition(String partition) {
+        return put(classificationQueue, new Item(partition, true));
+    }
+
+    /**
+     * Waits for the stages to process the histories submitted so far, or to stop if the scan is interrupted.
+     */
+    public void finish() throws InterruptedException {
+        put(classificationQueue, END);
+        classificationThread.join();
+        deletionThread.join();
+    }
+
+    /**
+     * @return the path of the oldest history submitted and not processed yet, or {@code null} if there is none
+     */
+    public String getOldestHistoryInFlight() {
+        synchronized (historiesInFlight) {
+            final Iterator<String> iterator = historiesInFlight.iterator();
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+    }
+
+    /**
+     * @return the folder of the oldest history submitted and not processed yet, to resume the scan from, or
+     * {@code null} if there is none
+     */
+    public String getPosition() {
+        final String historyPath = getOldestHistoryInFlight();
+        return historyPath == null ? null : StringUtils.substringBeforeLast(historyPath, "/");
+    }
+
+    private void historyProcessed(String historyPath) {
+        synchronized (historiesInFlight) {
+            historiesInFlight.remove(historyPath);
+        }
+    }
+
+    private boolean isStopped() {
+        return stopped || interrupted.getAsBoolean();
+    }
+
+    private boolean put(BlockingQueue<Item> queue, Item item) {
+        try {
+            while (!queue.offer(item, POLL_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)) {
+                if (isStopped()) return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void runStage(Stage stage, BlockingQueue<Item> input, BlockingQueue<Item> output) {
+        boolean completed = false;
+        try {
+            stage.open();
+            while (!isStopped()) {
+                final Item item = input.poll(POLL_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+                if (item == null) continue;
+                if (item == END) {
+                    completed = output == null || put(output, END);
+                    break;
+                }
+                if (item.partition) {
+                    if (output == null) stage.partitionCompleted(item.path);
+                    else if (!put(output, item)) return;
+                    continue;
+                }
+                boolean passed = false;
+                try {
+                    passed = stage.process(item.path) && output != null;
+                } catch (RepositoryException | RuntimeException e) {
+                    // Isolate the failure to this history, the stage continues with the next ones
+                    logger.error("Failed to process {}", item.path, e);
+                }
+                if (!forward(item, passed, output)) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Failed to start the stage {}", Thread.currentThread().getName(), e);
+        } finally {
+            if (!completed) stopped = true;
+            stage.close();
+            // Unblocks the previous stage if this one has stopped before the end of the stream
+            input.clear();
+        }
+    }
+
+    /**
+     * Runs a stage whose histories are processed by concurrent tasks, at most {@code window} of them being processed
+     * or waiting for the ones before them to complete.
+     */
+    private void runConcurrentStage(Stage stage, BoundedExecutor executor, int window, BlockingQueue<Item> input, BlockingQueue<Item> output) {
+        final Deque<PendingItem> pendingItems = new ArrayDeque<>(window);
+        boolean completed = false;
+        try {
+            stage.open();
+            while (!isStopped()) {
+                if (!forwardCompleted(pendingItems, output, pendingItems.size() >= window)) return;
+                final Item item = input.poll(POLL_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+                if (item == null) continue;
+                if (item == END) {
+                    while (!pendingItems.isEmpty()) {
+                        if (!forwardCompleted(pendingItems, output, true)) return;
+                    }
+                    completed = put(output, END);
+                    break;
+                }
+                pendingItems.add(new PendingItem(item, item.partition ? null : executor.submit(() -> stage.process(item.path))));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Failed to start the stage {}", Thread.currentThread().getName(), e);
+        } finally {
+            if (!completed) stopped = true;
+            executor.shutdown();
+            stage.close();
+            input.clear();
+        }
+    }
+
+    /**
+     * Forwards the items at the head of {@code pendingItems} whose processing has completed, in their order.
+     *
+     * @param wait whether to wait for the processing of the first item to complete
+     * @return {@code false} if the stage has to stop
+     */
+    private boolean forwardCompleted(Deque<PendingItem> pendingItems, BlockingQueue<Item> output, boolean wait) throws InterruptedException {
+        while (!pendingItems.isEmpty()) {
+            final PendingItem head = pendingItems.peek();
+            boolean passed = false;
+            if (head.result != null) {
+                if (!wait && !head.result.isDone()) return true;
+                try {
+                    passed = head.result.get(POLL_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (isStopped()) return false;
+                    continue;
+                } catch (ExecutionException e) {
+                    logger.error("Failed to process {}", head.item.path, e.getCause());
+                }
+            }
+            pendingItems.poll();
+            wait = false;
+            if (!forward(head.item, passed, output)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Passes a processed item to the next stage, if it has to.
+     *
+     * @return {@code false} if the stage has to stop
+     */
+    private boolean forward(Item item, boolean passed, BlockingQueue<Item> output) {
+        if (item.partition || passed) return put(output, item);
+        historyProcessed(item.path);
+        return true;
+    }
+
+    private static final class PendingItem {
+
+        private final Item item;
+        // null for the end of a partition
+        private final Future<Boolean> result;
+
+        private PendingItem(Item item, Future<Boolean> result) {
+            this.item = item;
+            this.result = result;
+        }
+    }
+
+    private static final class Item {
+
+        private final String path;
+        private final boolean partition;
+
+        private Item(String path, boolean partition) {
+            this.path = path;
+            this.partition = partition;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.jahia.utils.DatabaseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Result of an execution in estimation mode: what an execution with the same settings would delete, and roughly how
+ * much storage it would free, without deleting anything.
+ *
+ * <p>When only a fraction of the hashed folders of the version storage is scanned, the counters are extrapolated
+ * with the fraction actually scanned. The storage is estimated from a uniform sample of the reclaimable versions
+ * (reservoir sampling), whose bundles are read from the persistence manager of the version storage, and whose
+ * binary properties are measured through the JCR API. Since the binaries can be shared with other nodes by the
+ * data store, and the referenced versions are not excluded, the estimation is an upper bound.
+ *
+ * <p>Shared by the workers of the parallel mode.
+ */
+public class EstimationReport {
+
+    private static final Logger logger = LoggerFactory.getLogger(EstimationReport.class);
+
+    static final int MAX_MEASURED_VERSIONS = 1000;
+    // Bounds the nodes measured under a frozen node, the large subtrees are only partially measured
+    private static final int MAX_MEASURED_NODES_PER_VERSION = 100;
+    private static final String VERSIONING_TABLE_PREFIX = "jr_v_";
+    private static final String BUNDLE_TABLE_SUFFIX = "BUNDLE";
+
+    private static volatile EstimationReport last;
+
+    private final double sampleRatio;
+    private final long startedAt = System.currentTimeMillis();
+    private final LongAdder scannedHistories = new LongAdder();
+    private final LongAdder orphanedHistories = new LongAdder();
+    private final LongAdder orphanedVersions = new LongAdder();
+    private final LongAdder historiesOverRetention = new LongAdder();
+    private final LongAdder versionsOverRetention = new LongAdder();
+    private final LongAdder visitedPartitions = new LongAdder();
+    private final LongAdder scannedPartitions = new LongAdder();
+    private final List<String> sampledVersionIds = new ArrayList<>(MAX_MEASURED_VERSIONS);
+    private final Random random;
+    private long offeredVersions;
+    private volatile long measuredVersions;
+    private volatile double bundleBytesPerVersion;
+    private volatile double binaryBytesPerVersion;
+    private volatile long completedAt;
+    private volatile boolean interrupted;
+
+    public EstimationReport(double sampleRatio) {
+        this(sampleRatio, new Random());
+    }
+
+    EstimationReport(double sampleRatio, Random random) {
+        this.sampleRatio = sampleRatio;
+        this.random = random;
+    }
+
+    /**
+     * @return the report of the last execution in estimation mode, or {@code null} if there is none
+     */
+    public static EstimationReport getLast() {
+        return last;
+    }
+
+    /**
+     * Decides whether a hashed folder is scanned, according to the sample ratio.
+     */
+    public boolean samplePartition() {
+        visitedPartitions.increment();
+        if (sampleRatio < 1d && random.nextDouble() >= sampleRatio) return false;
+        scannedPartitions.increment();
+        return true;
+    }
+
+    public void trackScannedHistory() {
+        scannedHistories.increment();
+    }
+
+    public void trackOrphanedHistory(long nbVersions) {
+        orphanedHistories.increment();
+        orphanedVersions.add(nbVersions);
+    }
+
+    public void trackHistoryOverRetention(long nbVersionsToDelete) {
+        historiesOverRetention.increment();
+        versionsOverRetention.add(nbVersionsToDelete);
+    }
+
+    /**
+     * Offers a reclaimable version to the sample of the versions whose size is measured.
+     */
+    public synchronized void offerVersion(String versionId) {
+        offeredVersions++;
+        if (sampledVersionIds.size() < MAX_MEASURED_VERSIONS) {
+            sampledVersionIds.add(versionId);
+        } else {
+            final long index = (long) (random.nextDouble() * offeredVersions);
+            if (index < MAX_MEASURED_VERSIONS) sampledVersionIds.set((int) index, versionId);
+        }
+    }
+
+    synchronized int getNbSampledVersions() {
+        return sampledVersionIds.size();
+    }
+
+    /**
+     * Measures the size of the sampled versions. If the bundles can't be read, only the binaries are estimated.
+     */
+    public void measureSampledVersions(Connection connection, Session session) {
+        final List<String> versionIds;
+        synchronized (this) {
+            versionIds = new ArrayList<>(sampledVersionIds);
+        }
+        if (versionIds.isEmpty()) return;
+        final List<String> nodeIds = new ArrayList<>();
+        long binaryBytes = 0L;
+        int nbMeasured = 0;
+        for (String versionId : versionIds) {
+            try {
+                final Node version = session.getNodeByIdentifier(versionId);
+                nodeIds.add(versionId);
+                if (version.hasNode(JcrConstants.JCR_FROZENNODE)) {
+                    binaryBytes += measureSubtree(version.getNode(JcrConstants.JCR_FROZENNODE), nodeIds, new int[]{MAX_MEASURED_NODES_PER_VERSION});
+                }
+                nbMeasured++;
+            } catch (RepositoryException e) {
+                logger.debug("Failed to measure the version {}", versionId, e);
+            }
+        }
+        if (nbMeasured == 0) return;
+        binaryBytesPerVersion = binaryBytes / (double) nbMeasured;
+        final long bundleBytes = sumBundleSizes(connection, nodeIds);
+        if (bundleBytes >= 0L) bundleBytesPerVersion = bundleBytes / (double) nbMeasured;
+        measuredVersions = nbMeasured;
+    }
+
+    /**
+     * @return the size of the binary properties of a frozen node and of its subtree, of which at most
+     * {@value #MAX_MEASURED_NODES_PER_VERSION} nodes are measured
+     */
+    static long measureBinaries(Node frozenNode) throws RepositoryException {
+        return measureSubtree(frozenNode, null, new int[]{MAX_MEASURED_NODES_PER_VERSION});
+    }
+
+    private static long measureSubtree(Node node, List<String> nodeIds, int[] remainingNodes) throws RepositoryException {
+        if (remainingNodes[0]-- <= 0) return 0L;
+        if (nodeIds != null) nodeIds.add(node.getIdentifier());
+        long binaryBytes = 0L;
+        final PropertyIterator properties = node.getProperties();
+        while (properties.hasNext()) {
+            final Property property = properties.nextProperty();
+            if (property.getType() != PropertyType.BINARY) continue;
+            if (property.isMultiple()) {
+                for (long length : property.getLengths()) binaryBytes += Math.max(length, 0L);
+            } else {
+                binaryBytes += Math.max(property.getLength(), 0L);
+            }
+        }
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext() && remainingNodes[0] > 0) {
+            binaryBytes += measureSubtree(children.nextNode(), nodeIds, remainingNodes);
+        }
+        return binaryBytes;
+    }
+
+    /**
+     * @return the total size of the bundles of the nodes in the version storage, or -1 if they can't be read
+     */
+    private static long sumBundleSizes(Connection connection, List<String> nodeIds) {
+        if (connection == null) return -1L;
+        try {
+            final String bundleTable = OrphanDetector.resolveTableName(connection, VERSIONING_TABLE_PREFIX + BUNDLE_TABLE_SUFFIX);
+            if (bundleTable == null) {
+                logger.warn("Impossible to find the bundle table of the version storage, the size of the bundles is not estimated");
+                return -1L;
+            }
+            long total = 0L;
+            for (int from = 0; from < nodeIds.size(); from += OrphanDetector.MAX_IN_LIST_SIZE) {
+                final List<String> chunk = nodeIds.subList(from, Math.min(from + OrphanDetector.MAX_IN_LIST_SIZE, nodeIds.size()));
+                PreparedStatement statement = null;
+                ResultSet resultSet = null;
+                try {
+                    statement = connection.prepareStatement(OrphanDetector.buildInListQuery("BUNDLE_DATA", bundleTable, "NODE_ID", chunk.size()));
+                    int index = 1;
+                    for (String nodeId : chunk) {
+                        statement.setBytes(index++, NodeId.valueOf(nodeId).getRawBytes());
+                    }
+                    resultSet = statement.executeQuery();
+                    while (resultSet.next()) {
+                        final byte[] bundle = resultSet.getBytes(1);
+                        if (bundle != null) total += bundle.length;
+                    }
+                } finally {
+                    DatabaseUtils.closeQuietly(resultSet);
+                    DatabaseUtils.closeQuietly(statement);
+                }
+            }
+            return total;
+        } catch (SQLException | IllegalArgumentException e) {
+            logger.warn("Failed to read the bundles of the sampled versions, the size of the bundles is not estimated", e);
+            return -1L;
+        }
+    }
+
+    public void complete(boolean interrupted) {
+        this.interrupted = interrupted;
+        completedAt = System.currentTimeMillis();
+        last = this;
+    }
+
+    /**
+     * @return the factor applied to the counters to extrapolate them to the whole scanned tree
+     */
+    public double getExtrapolationFactor() {
+        final long scanned = scannedPartitions.sum();
+        return scanned == 0L ? 1d : visitedPartitions.sum() / (double) scanned;
+    }
+
+    private long extrapolate(long count) {
+        return Math.round(count * getExtrapolationFactor());
+    }
+
+    public double getSampleRatio() {
+        return sampleRatio;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public boolean isInterrupted() {
+        return interrupted;
+    }
+
+    public long getScannedHistories() {
+        return scannedHistories.sum();
+    }
+
+    public long getScannedPartitions() {
+        return scannedPartitions.sum();
+    }
+
+    public long getVisitedPartitions() {
+        return visitedPartitions.sum();
+    }
+
+    public long getEstimatedOrphanedHistories() {
+        return extrapolate(orphanedHistories.sum());
+    }
+
+    public long getEstimatedOrphanedVersions() {
+        return extrapolate(orphanedVersions.sum());
+    }
+
+    public long getEstimatedHistoriesOverRetention() {
+        return extrapolate(historiesOverRetention.sum());
+    }
+
+    public long getEstimatedVersionsOverRetention() {
+        return extrapolate(versionsOverRetention.sum());
+    }
+
+    public long getMeasuredVersions() {
+        return measuredVersions;
+    }
+
+    /**
+     * @return the estimated size of the bundles of the reclaimable versions and of their frozen nodes, in bytes
+     */
+    public long getEstimatedBundleBytes() {
+        return Math.round((getEstimatedOrphanedVersions() + getEstimatedVersionsOverRetention()) * bundleBytesPerVersion);
+    }
+
+    /**
+     * @return the estimated size of the binary properties of the frozen nodes of the reclaimable versions, in bytes
+     */
+    public long getEstimatedBinaryBytes() {
+        return Math.round((getEstimatedOrphanedVersions() + getEstimatedVersionsOverRetention()) * binaryBytesPerVersion);
+    }
+
+    @Override
+    public String toString() {
+        return "scanned " + getScannedHistories() + " histories in " + getScannedPartitions() + " / " + getVisitedPartitions() + " partitions"
+                + (interrupted ? " (interrupted)" : "")
+                + ", estimated orphaned histories: " + getEstimatedOrphanedHistories()
+                + " (" + getEstimatedOrphanedVersions() + " versions)"
+                + ", estimated histories over the retention: " + getEstimatedHistoriesOverRetention()
+                + " (" + getEstimatedVersionsOverRetention() + " versions to delete)"
+                + ", estimated bundle bytes: " + getEstimatedBundleBytes()
+                + ", estimated binary bytes: " + getEstimatedBinaryBytes()
+                + " (measured on " + getMeasuredVersions() + " versions)";
+    }
+}
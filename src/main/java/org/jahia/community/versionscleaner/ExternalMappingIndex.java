@@ -0,0 +1,181 @@
+package org.jahia.community.versionscleaner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * The internal UUIDs of the nodes of the external providers, read from {@code jahia_external_mapping} once per
+ * execution, so that checking whether the target of a dangling reference is an external node doesn't need any
+ * query in the common case, where it isn't:
+ * <ul>
+ *     <li>in a {@link NodeIdSet} if it fits in the memory cap, the answers being exact;</li>
+ *     <li>in a Bloom filter of the size of the memory cap otherwise, whose positive answers have to be confirmed
+ *     with the DB.</li>
+ * </ul>
+ * The mappings created after the index has been loaded are missing from it, so a negative answer is confirmed with
+ * the DB before anything is fixed.
+ *
+ * <p>Can be shared between threads once loaded.
+ */
+public final class ExternalMappingIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExternalMappingIndex.class);
+
+    // Below this number of bits per mapping, the Bloom filter answers positively too often to be worth it
+    private static final long MIN_BITS_PER_MAPPING = 4L;
+    private static final int MAX_HASH_FUNCTIONS = 16;
+
+    private final NodeIdSet mappings;
+    private final long[] bloomFilter;
+    private final long nbBits;
+    private final int nbHashFunctions;
+
+    private ExternalMappingIndex(NodeIdSet mappings, long[] bloomFilter, long nbBits, int nbHashFunctions) {
+        this.mappings = mappings;
+        this.bloomFilter = bloomFilter;
+        this.nbBits = nbBits;
+        this.nbHashFunctions = nbHashFunctions;
+    }
+
+    /**
+     * Loads the internal UUIDs of the external mappings, in a set if they fit in {@code maxMemoryInBytes}, in a
+     * Bloom filter of this size otherwise.
+     *
+     * @return the index, or {@code null} if it can't be loaded, or if the mappings are too many for a useful Bloom
+     * filter of this size
+     */
+    public static ExternalMappingIndex load(Connection connection, long maxMemoryInBytes) {
+        try {
+            final String table = OrphanDetector.resolveTableName(connection, ReferenceTargetCache.EXTERNAL_MAPPING_TABLE);
+            if (table == null) {
+                logger.info("No table of the external mappings, the references to external nodes are not checked");
+                return exact(new NodeIdSet.Builder(0).build());
+            }
+            final long nbMappings = OrphanDetector.countRows(connection, table);
+            // Some headroom for the mappings created while loading them
+            final long capacity = nbMappings + Math.max(1024L, nbMappings / 100L);
+            if (capacity * NodeIdSet.BYTES_PER_ID <= maxMemoryInBytes && capacity <= Integer.MAX_VALUE - 8) {
+                final NodeIdSet.Builder builder = new NodeIdSet.Builder((int) capacity);
+                if (load(connection, table, builder, null)) {
+                    final ExternalMappingIndex index = exact(builder.build());
+                    logger.info("Loaded the {} external mappings", index.mappings.size());
+                    return index;
+                }
+            }
+            final long nbBits = Math.min(maxMemoryInBytes * Byte.SIZE, (Integer.MAX_VALUE - 8) * (long) Long.SIZE);
+            if (nbBits < MIN_BITS_PER_MAPPING * Math.max(nbMappings, 1L)) {
+                logger.warn("Not loading the {} external mappings, as they would exceed the memory cap of {} bytes", nbMappings, maxMemoryInBytes);
+                return null;
+            }
+            final ExternalMappingIndex index = bloomFilter(nbBits, getNbHashFunctions(nbBits, nbMappings));
+            load(connection, table, null, index);
+            logger.info("Loaded the {} external mappings in a Bloom filter of {} bits", nbMappings, nbBits);
+            return index;
+        } catch (SQLException e) {
+            logger.warn("Failed to load the external mappings", e);
+            return null;
+        }
+    }
+
+    static ExternalMappingIndex exact(NodeIdSet mappings) {
+        return new ExternalMappingIndex(mappings, null, 0L, 0);
+    }
+
+    static ExternalMappingIndex bloomFilter(long nbBits, int nbHashFunctions) {
+        return new ExternalMappingIndex(null, new long[(int) ((nbBits + Long.SIZE - 1) / Long.SIZE)], nbBits, nbHashFunctions);
+    }
+
+    /**
+     * Optimal number of hash functions of a Bloom filter, {@code ln(2) * bits / entries}.
+     */
+    static int getNbHashFunctions(long nbBits, long nbEntries) {
+        final long k = Math.round(Math.log(2) * nbBits / Math.max(nbEntries, 1L));
+        return (int) Math.max(1L, Math.min(k, MAX_HASH_FUNCTIONS));
+    }
+
+    /**
+     * @return {@code false} if the capacity of the builder has been reached before the end of the table
+     */
+    private static boolean load(Connection connection, String table, NodeIdSet.Builder builder, ExternalMappingIndex index) throws SQLException {
+        final boolean autoCommit = connection.getAutoCommit();
+        // Streamed like the bundle tables, see OrphanDetector#loadNodeIds
+        if (autoCommit) connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement("select internalUuid from " + table)) {
+            statement.setFetchSize(OrphanDetector.getStreamingFetchSize(connection));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    final UUID uuid = parse(resultSet.getString(1));
+                    if (uuid == null) continue;
+                    if (builder != null) {
+                        if (!builder.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits())) return false;
+                    } else {
+                        index.addToBloomFilter(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+                    }
+                }
+            }
+        } finally {
+            if (autoCommit) connection.setAutoCommit(true);
+        }
+        return true;
+    }
+
+    private static UUID parse(String uuid) {
+        if (uuid == null) return null;
+        try {
+            return UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            // Can't be the target of a reference
+            return null;
+        }
+    }
+
+    void addToBloomFilter(long msb, long lsb) {
+        final long h1 = mix(msb ^ lsb);
+        final long h2 = mix(lsb + 0x9E3779B97F4A7C15L) | 1L;
+        for (int i = 0; i < nbHashFunctions; i++) {
+            final long bit = Long.remainderUnsigned(h1 + i * h2, nbBits);
+            bloomFilter[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean bloomFilterContains(long msb, long lsb) {
+        final long h1 = mix(msb ^ lsb);
+        final long h2 = mix(lsb + 0x9E3779B97F4A7C15L) | 1L;
+        for (int i = 0; i < nbHashFunctions; i++) {
+            final long bit = Long.remainderUnsigned(h1 + i * h2, nbBits);
+            if ((bloomFilter[(int) (bit >>> 6)] & (1L << bit)) == 0L) return false;
+        }
+        return true;
+    }
+
+    // Finalizer of SplitMix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Whether the answers of {@link #mightBeMapped(String)} are exact, the index not being a Bloom filter.
+     */
+    public boolean isExact() {
+        return mappings != null;
+    }
+
+    /**
+     * @return {@code false} if the UUID was not mapped to an external node when the index has been loaded, and
+     * {@code true} if it was, or may have been if the index is a Bloom filter
+     */
+    public boolean mightBeMapped(String uuid) {
+        final UUID parsed = parse(uuid);
+        if (parsed == null) return false;
+        if (mappings != null) return mappings.contains(parsed.getMostSignificantBits(), parsed.getLeastSignificantBits());
+        return bloomFilterContains(parsed.getMostSignificantBits(), parsed.getLeastSignificantBits());
+    }
+}
@@ -0,0 +1,201 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Index of the version histories known to be within the retention, persisted between two executions so that
+ * their versions are not loaded and counted again as long as they don't change.
+ *
+ * <p>The index records the number of versions to keep it has been built with, and the time from which the changes
+ * are not reflected in it. It is discarded if the number of versions to keep has decreased since then, and the
+ * histories which have received new versions since then have to be {@link #invalidate(String) invalidated} before
+ * the index is used. A history can only leave the retention by receiving new versions, since the deletions only
+ * reduce the number of versions.
+ *
+ * <p>The lookups can be done concurrently, as well as the additions, which are merged with the loaded histories when
+ * the index is {@link #save() saved}.
+ */
+public class HistoryScanIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryScanIndex.class);
+
+    private static final String INDEX_FILE = "historyScanIndex.bin";
+    private static final int MAGIC_NUMBER = 0x56434849;
+    private static final int FORMAT_VERSION = 1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final long nbVersionsToKeep;
+    private final long indexedAt;
+    private final NodeIdSet compliantHistories;
+    private final Set<String> invalidatedHistories = new HashSet<>();
+    private long[] addedMsbs = new long[INITIAL_CAPACITY];
+    private long[] addedLsbs = new long[INITIAL_CAPACITY];
+    private int addedSize;
+    private long updatedAt;
+
+    HistoryScanIndex(long nbVersionsToKeep, long indexedAt, NodeIdSet compliantHistories) {
+        this.nbVersionsToKeep = nbVersionsToKeep;
+        this.indexedAt = indexedAt;
+        this.compliantHistories = compliantHistories;
+        this.updatedAt = indexedAt;
+    }
+
+    /**
+     * Returns an index which doesn't contain any history yet.
+     */
+    public static HistoryScanIndex empty(long nbVersionsToKeep, long indexedAt) {
+        return new HistoryScanIndex(nbVersionsToKeep, indexedAt, new NodeIdSet.Builder(0).build());
+    }
+
+    static File getIndexFile() {
+        return new File(CleanerContext.getWorkingDirectory(), INDEX_FILE);
+    }
+
+    /**
+     * Loads the index saved by the previous execution, or returns an empty one if there is none, or if it has been
+     * built with a greater number of versions to keep. The histories changed since {@link #getIndexedAt()} have to
+     * be invalidated before using it.
+     */
+    public static HistoryScanIndex load(long nbVersionsToKeep) {
+        return load(getIndexFile(), nbVersionsToKeep, System.currentTimeMillis());
+    }
+
+    static HistoryScanIndex load(File file, long nbVersionsToKeep, long now) {
+        final HistoryScanIndex emptyIndex = empty(nbVersionsToKeep, now);
+        if (!file.exists()) return emptyIndex;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC_NUMBER || in.readInt() != FORMAT_VERSION) {
+                logger.warn("Ignoring the history scan index {} as its format is not supported", file);
+                return emptyIndex;
+            }
+            final long indexedNbVersionsToKeep = in.readLong();
+            final long indexedAt = in.readLong();
+            if (nbVersionsToKeep < indexedNbVersionsToKeep) {
+                logger.info("Ignoring the history scan index, built with {} versions to keep", indexedNbVersionsToKeep);
+                return emptyIndex;
+            }
+            final int size = in.readInt();
+            final NodeIdSet.Builder builder = new NodeIdSet.Builder(size);
+            for (int i = 0; i < size; i++) {
+                builder.add(in.readLong(), in.readLong());
+            }
+            // The histories within the retention with fewer versions to keep are within it with more
+            return new HistoryScanIndex(nbVersionsToKeep, indexedAt, builder.build());
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            logger.warn("Failed to load the history scan index {}, all the histories will be checked", file, e);
+            return emptyIndex;
+        }
+    }
+
+    /**
+     * Time from which the changes are not reflected in the index.
+     */
+    public long getIndexedAt() {
+        return indexedAt;
+    }
+
+    public int size() {
+        return compliantHistories.size();
+    }
+
+    /**
+     * Marks a history as not known to be within the retention anymore. To be called for the histories which have
+     * received new versions since {@link #getIndexedAt()}, before the index is used.
+     */
+    public void invalidate(String historyId) {
+        invalidatedHistories.add(historyId);
+    }
+
+    /**
+     * Sets the time from which the changes won't be reflected in the saved index, namely when the histories changed
+     * since {@link #getIndexedAt()} have been listed.
+     */
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public boolean isWithinRetention(String historyId) {
+        return compliantHistories.contains(historyId) && !invalidatedHistories.contains(historyId);
+    }
+
+    /**
+     * Records a history which has been checked to be within the retention.
+     */
+    public synchronized void add(String historyId) {
+        final NodeId id;
+        try {
+            id = NodeId.valueOf(historyId);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (addedSize == addedMsbs.length) {
+            addedMsbs = Arrays.copyOf(addedMsbs, addedSize * 2);
+            addedLsbs = Arrays.copyOf(addedLsbs, addedSize * 2);
+        }
+        addedMsbs[addedSize] = id.getMostSignificantBits();
+        addedLsbs[addedSize] = id.getLeastSignificantBits();
+        addedSize++;
+    }
+
+    public void save() {
+        final File outputDir = CleanerContext.getWorkingDirectory();
+        if (!outputDir.exists() && !outputDir.mkdirs()) return;
+        save(getIndexFile());
+    }
+
+    /**
+     * Writes the loaded histories which have not been invalidated and the added ones, to a temporary file moved
+     * over the previous index once complete.
+     */
+    synchronized void save(File file) {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        int size = addedSize;
+        for (int i = 0; i < compliantHistories.size(); i++) {
+            if (!isInvalidated(i)) size++;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath())))) {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(nbVersionsToKeep);
+            out.writeLong(updatedAt);
+            out.writeInt(size);
+            for (int i = 0; i < compliantHistories.size(); i++) {
+                if (isInvalidated(i)) continue;
+                out.writeLong(compliantHistories.getMostSignificantBits(i));
+                out.writeLong(compliantHistories.getLeastSignificantBits(i));
+            }
+            for (int i = 0; i < addedSize; i++) {
+                out.writeLong(addedMsbs[i]);
+                out.writeLong(addedLsbs[i]);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to save the history scan index", e);
+            return;
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Saved the history scan index with {} histories within the retention", size);
+        } catch (IOException e) {
+            logger.error("Failed to save the history scan index", e);
+        }
+    }
+
+    private boolean isInvalidated(int index) {
+        return !invalidatedHistories.isEmpty() && invalidatedHistories.contains(
+                new NodeId(compliantHistories.getMostSignificantBits(index), compliantHistories.getLeastSignificantBits(index)).toString());
+    }
+}
@@ -0,0 +1,170 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Files backing the incremental mode, stored next to the last scan position:
+ * <ul>
+ *     <li>the watermark: the time from which the next incremental execution has to look for new versions;</li>
+ *     <li>the identifiers of the nodes removed from the edit and live workspaces since the last incremental
+ *     execution, appended by {@link RemovedNodesListener}. When an execution starts, they are moved to a
+ *     "processing" file, which is deleted only once the execution has completed, so that an interrupted execution
+ *     leaves them to the next one. Only the nodes which have a version history are recorded, and the file is
+ *     bounded: once it exceeds {@link #MAX_REMOVED_NODES_FILE_SIZE}, it is dropped and the next execution does a full
+ *     scan instead.</li>
+ * </ul>
+ */
+public final class IncrementalJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalJournal.class);
+
+    private static final String WATERMARK_FILE = "incrementalWatermark.txt";
+    private static final String REMOVED_NODES_FILE = "removedNodes.txt";
+    private static final String REMOVED_NODES_PROCESSING_FILE = "removedNodes.processing.txt";
+    private static final String REMOVED_NODES_OVERFLOW_FILE = "removedNodes.overflow";
+    /**
+     * About 100k identifiers
+     */
+    static final long MAX_REMOVED_NODES_FILE_SIZE = 4L * 1024L * 1024L;
+    private static final Object LOCK = new Object();
+
+    private IncrementalJournal() {
+    }
+
+    /**
+     * @return the watermark saved by the last completed incremental execution, or {@code null} if there is none
+     */
+    public static Long loadWatermark() {
+        final File file = new File(CleanerContext.getWorkingDirectory(), WATERMARK_FILE);
+        if (!file.exists()) return null;
+        try {
+            final List<String> lines = FileUtils.readLines(file, StandardCharsets.UTF_8);
+            if (CollectionUtils.isNotEmpty(lines)) return Long.parseLong(lines.get(0).trim());
+        } catch (IOException | NumberFormatException e) {
+            logger.error("Failed to read the watermark of the incremental mode", e);
+        }
+        return null;
+    }
+
+    public static void saveWatermark(long watermark) {
+        final File outputDir = CleanerContext.getWorkingDirectory();
+        if (!outputDir.exists() && !outputDir.mkdirs()) return;
+        try {
+            FileUtils.writeLines(new File(outputDir, WATERMARK_FILE), StandardCharsets.UTF_8.name(), Collections.singleton(watermark));
+            logger.debug("Saved the watermark of the incremental mode: {}", watermark);
+        } catch (IOException e) {
+            logger.error("Failed to save the watermark of the incremental mode", e);
+        }
+    }
+
+    public static void appendRemovedNodes(Collection<String> identifiers) {
+        appendRemovedNodes(CleanerContext.getWorkingDirectory(), identifiers, MAX_REMOVED_NODES_FILE_SIZE);
+    }
+
+    static void appendRemovedNodes(File outputDir, Collection<String> identifiers, long maxFileSize) {
+        if (identifiers.isEmpty()) return;
+        synchronized (LOCK) {
+            if (!outputDir.exists() && !outputDir.mkdirs()) return;
+            if (new File(outputDir, REMOVED_NODES_OVERFLOW_FILE).exists()) return;
+            final File removedNodes = new File(outputDir, REMOVED_NODES_FILE);
+            try {
+                if (removedNodes.length() >= maxFileSize) {
+                    // The next execution does a full scan, which visits all the version histories anyway
+                    logger.warn("Too many removed nodes recorded for the incremental mode, the next execution will do a full scan");
+                    Files.write(new File(outputDir, REMOVED_NODES_OVERFLOW_FILE).toPath(), new byte[0]);
+                    FileUtils.deleteQuietly(removedNodes);
+                    return;
+                }
+                Files.write(removedNodes.toPath(), identifiers, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                logger.error("Failed to record {} removed nodes for the incremental mode", identifiers.size(), e);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if too many removed nodes have been recorded since the last full scan, in which case the
+     * next execution has to do a full scan
+     */
+    public static boolean isRemovedNodesOverflowed() {
+        return isRemovedNodesOverflowed(CleanerContext.getWorkingDirectory());
+    }
+
+    static boolean isRemovedNodesOverflowed(File outputDir) {
+        synchronized (LOCK) {
+            return new File(outputDir, REMOVED_NODES_OVERFLOW_FILE).exists();
+        }
+    }
+
+    /**
+     * Moves the identifiers of the removed nodes recorded so far to the "processing" file, next to the ones left by
+     * an interrupted execution, and opens it. The identifiers recorded from now on go to a new file.
+     */
+    public static BufferedReader openRemovedNodes() throws IOException {
+        return openRemovedNodes(CleanerContext.getWorkingDirectory());
+    }
+
+    static BufferedReader openRemovedNodes(File outputDir) throws IOException {
+        synchronized (LOCK) {
+            final File removedNodes = new File(outputDir, REMOVED_NODES_FILE);
+            final File processing = new File(outputDir, REMOVED_NODES_PROCESSING_FILE);
+            if (removedNodes.exists()) {
+                if (processing.exists()) {
+                    Files.write(processing.toPath(), Files.readAllBytes(removedNodes.toPath()), StandardOpenOption.APPEND);
+                    FileUtils.deleteQuietly(removedNodes);
+                } else if (!removedNodes.renameTo(processing)) {
+                    throw new IOException("Failed to rename " + removedNodes + " to " + processing);
+                }
+            }
+            final Reader reader = processing.exists()
+                    ? Files.newBufferedReader(processing.toPath(), StandardCharsets.UTF_8)
+                    : new StringReader("");
+            return new BufferedReader(reader);
+        }
+    }
+
+    /**
+     * To be called once the nodes returned by {@link #openRemovedNodes()} have all been processed.
+     */
+    public static void removedNodesProcessed() {
+        removedNodesProcessed(CleanerContext.getWorkingDirectory());
+    }
+
+    static void removedNodesProcessed(File outputDir) {
+        synchronized (LOCK) {
+            FileUtils.deleteQuietly(new File(outputDir, REMOVED_NODES_PROCESSING_FILE));
+        }
+    }
+
+    /**
+     * Forgets the removed nodes recorded so far, to be called when a full scan starts, since it will visit all the
+     * version histories anyway.
+     */
+    public static void clearRemovedNodes() {
+        clearRemovedNodes(CleanerContext.getWorkingDirectory());
+    }
+
+    static void clearRemovedNodes(File outputDir) {
+        synchronized (LOCK) {
+            FileUtils.deleteQuietly(new File(outputDir, REMOVED_NODES_FILE));
+            FileUtils.deleteQuietly(new File(outputDir, REMOVED_NODES_PROCESSING_FILE));
+            FileUtils.deleteQuietly(new File(outputDir, REMOVED_NODES_OVERFLOW_FILE));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.jahia.community.versionscleaner;
+
+import org.jahia.api.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Fixes of the dangling references of a session, saved by batch instead of one by one: a dangling reference is
+ * removed from its property, or the node holding it is removed if it is only meant to hold the reference, and the
+ * changes are saved once the batch is full.
+ *
+ * <p>The {@code jcr:lastModified} of the nodes changed by the fixes, or of the parents of the removed nodes, is
+ * recorded before their first change in the batch, and set back in memory before the save, so that the batch costs a
+ * single save. If the save updates it nonetheless, it is restored with a single additional save for the whole batch.
+ *
+ * <p>Not thread-safe, to be used by the thread owning the session.
+ */
+public class IntegrityFixBatch {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntegrityFixBatch.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final Session session;
+    private final int batchSize;
+    // Nodes changed since the last save, by identifier
+    private final Map<String, ChangedNode> changedNodes = new LinkedHashMap<>();
+    private int nbPendingFixes;
+    private long nbSavedFixes;
+    private long nbFailedFixes;
+
+    /**
+     * @param batchSize number of fixes saved at once, 1 to save each fix on its own
+     */
+    public IntegrityFixBatch(Session session, int batchSize) {
+        this.session = session;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Fixes a dangling reference, removing the node if it is only meant to hold the reference, and saves the batch
+     * if it is full.
+     *
+     * @return {@code false} if the node has been removed
+     */
+    public boolean fix(Node node, Property property, String uuid) throws RepositoryException {
+        final boolean removeNode = CleanCommand.mustRemoveParentNode(node);
+        if (removeNode) removeNode(node);
+        else clearReference(node, property, uuid);
+        if (++nbPendingFixes >= batchSize) flush();
+        return !removeNode;
+    }
+
+    private void clearReference(Node node, Property property, String uuid) throws RepositoryException {
+        logger.info("Fixing invalid reference by setting reference property {} to null...", property.getPath());
+        recordLastModificationDate(node);
+        if (property.isMultiple()) {
+            final List<Value> newValues = new ArrayList<>();
+            for (Value oldValue : property.getValues()) {
+                if (!oldValue.getString().equals(uuid)) {
+                    newValues.add(oldValue);
+                }
+            }
+            property.setValue(newValues.toArray(new Value[]{}));
+        } else {
+            property.setValue((Value) null);
+        }
+    }
+
+    private void removeNode(Node node) throws RepositoryException {
+        logger.info("Fixing invalid reference by removing node {} from repository...", node.getPath());
+        final Node parentNode = node.getParent();
+        recordLastModificationDate(parentNode);
+        if (!parentNode.isCheckedOut()) {
+            session.getWorkspace().getVersionManager().checkout(parentNode.getPath());
+        }
+        node.remove();
+    }
+
+    private void recordLastModificationDate(Node node) throws RepositoryException {
+        final String identifier = node.getIdentifier();
+        if (!changedNodes.containsKey(identifier)) {
+            changedNodes.put(identifier, new ChangedNode(node, getLastModificationDate(node)));
+        }
+    }
+
+    private static Calendar getLastModificationDate(Node node) throws RepositoryException {
+        try {
+            return node.getProperty(Constants.JCR_LASTMODIFIED).getDate();
+        } catch (PathNotFoundException pnfe) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the pending fixes with the last modification dates set back, then restores the ones updated by the save
+     * anyway. If the save fails, the pending fixes are discarded.
+     */
+    public void flush() {
+        if (nbPendingFixes == 0) return;
+        try {
+            setBackLastModificationDates();
+            session.save();
+            nbSavedFixes += nbPendingFixes;
+            nbPendingFixes = 0;
+            if (restoreLastModificationDates()) session.save();
+        } catch (RepositoryException e) {
+            if (nbPendingFixes > 0) {
+                logger.error("Failed to save a batch of {} integrity fixes, discarding them", nbPendingFixes, e);
+            } else {
+                logger.error("Failed to restore the last modification dates of the nodes fixed", e);
+            }
+            nbFailedFixes += nbPendingFixes;
+            try {
+                session.refresh(false);
+            } catch (RepositoryException re) {
+                logger.debug("Failed to discard the pending changes", re);
+            }
+        } finally {
+            nbPendingFixes = 0;
+            changedNodes.clear();
+        }
+    }
+
+    private void setBackLastModificationDates() {
+        for (ChangedNode changedNode : changedNodes.values()) {
+            if (changedNode.originalLastModificationDate == null) continue;
+            try {
+                changedNode.node.setProperty(Constants.JCR_LASTMODIFIED, changedNode.originalLastModificationDate);
+            } catch (RepositoryException e) {
+                // Removed by a later fix of the batch, or protected: checked again after the save
+                logger.debug("Failed to set back the last modification date of {}", changedNode.node, e);
+            }
+        }
+    }
+
+    /**
+     * @return whether a last modification date has been restored, and has to be saved
+     */
+    private boolean restoreLastModificationDates() throws RepositoryException {
+        boolean restored = false;
+        for (Map.Entry<String, ChangedNode> entry : changedNodes.entrySet()) {
+            final Node node;
+            try {
+                // Reloaded to make sure we don't have any cache issues
+                node = session.getNodeByIdentifier(entry.getKey());
+            } catch (ItemNotFoundException infe) {
+                // Removed by the batch
+                continue;
+            }
+            final Calendar originalLastModificationDate = entry.getValue().originalLastModificationDate;
+            if (!Objects.equals(getLastModificationDate(node), originalLastModificationDate)) {
+                node.setProperty(Constants.JCR_LASTMODIFIED, originalLastModificationDate);
+                restored = true;
+            }
+        }
+        return restored;
+    }
+
+    public int getNbPendingFixes() {
+        return nbPendingFixes;
+    }
+
+    public long getNbSavedFixes() {
+        return nbSavedFixes;
+    }
+
+    public long getNbFailedFixes() {
+        return nbFailedFixes;
+    }
+
+    private static final class ChangedNode {
+
+        private final Node node;
+        // null if the node has none
+        private final Calendar originalLastModificationDate;
+
+        private ChangedNode(Node node, Calendar originalLastModificationDate) {
+            this.node = node;
+            this.originalLastModificationDate = originalLastModificationDate;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.jahia.community.versionscleaner;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Report of the dangling references found by the {@link IntegrityScanner}, written as they are found, one JSON
+ * object per line, the scope being the workspace, {@code default} or {@code live}, or {@code versions} for the
+ * version storage:
+ * <pre>
+ * {"scope":"default","node":"/sites/a/home/b","property":"j:node","uuid":"...","external":false,"action":"cleared"}
+ * </pre>
+ * The action is {@code none} if the reference is only reported, {@code cleared} if it is removed from its property,
+ * and {@code removed} if the node holding it is removed. The fixes being saved by batch, a fix whose batch fails to
+ * be saved is reported but not applied, as logged.
+ *
+ * <p>Shared by the workers of the scanner.
+ */
+public class IntegrityReport implements Closeable {
+
+    static final String ACTION_NONE = "none";
+    static final String ACTION_CLEARED = "cleared";
+    static final String ACTION_REMOVED = "removed";
+
+    private final File file;
+    private final Writer writer;
+
+    public IntegrityReport(File file) throws IOException {
+        this(file, Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    IntegrityReport(File file, Writer writer) {
+        this.file = file;
+        this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void danglingReference(String scope, String nodePath, String property, String uuid,
+                                               boolean external, String action) throws IOException {
+        writer.write(toJson(scope, nodePath, property, uuid, external, action));
+        writer.write('\n');
+    }
+
+    static String toJson(String scope, String nodePath, String property, String uuid, boolean external, String action) {
+        final StringBuilder json = new StringBuilder(128).append('{');
+        appendField(json, "scope", scope).append(',');
+        appendField(json, "node", nodePath).append(',');
+        appendField(json, "property", property).append(',');
+        appendField(json, "uuid", uuid).append(',');
+        json.append("\"external\":").append(external).append(',');
+        appendField(json, "action", action);
+        return json.append('}').toString();
+    }
+
+    private static StringBuilder appendField(StringBuilder json, String name, String value) {
+        json.append('"').append(name).append("\":");
+        if (value == null) return json.append("null");
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+                    else json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
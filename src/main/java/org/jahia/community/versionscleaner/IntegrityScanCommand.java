@@ -0,0 +1,92 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.jahia.bin.filters.jcr.JcrSessionFilter;
+import org.jahia.utils.DatabaseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+@Command(scope = "versions-cleaner", name = "check-integrity", description = "Check the references of every node of the workspaces and of the version storage, and write the dangling ones to a report")
+@Service
+public class IntegrityScanCommand implements Action {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntegrityScanCommand.class);
+
+    @Option(name = "-s", aliases = "--scopes", description = "Comma separated list of the parts of the repository to check, among default, live and versions (the version storage). All of them by default")
+    private String scopes;
+
+    @Option(name = "-concurrency", aliases = "--concurrency", description = "Number of workers checking in parallel the partitions of the repository, each one with its own JCR sessions. 4 by default")
+    private int concurrency = IntegrityScanner.DEFAULT_CONCURRENCY;
+
+    @Option(name = "-fix", aliases = "--fix-integrity", description = "Actually FIX the dangling references of the workspaces (null dangling references / remove offending nodes) instead of only reporting them. The version storage is only reported. Opt-in: report-only by default")
+    private Boolean fixIntegrity = Boolean.FALSE;
+
+    @Option(name = "-fix-batch-size", description = "Number of fixes saved at once. 100 by default")
+    private int fixBatchSize = IntegrityFixBatch.DEFAULT_BATCH_SIZE;
+
+    @Option(name = "-t", aliases = "--max-execution-time-in-ms", description = "Max execution time in ms")
+    private Long maxExecutionTimeInMs = 0L;
+
+    @Option(name = "-report", description = "Path of the report, one JSON object per dangling reference. integrity-<date>.jsonl in the working directory of the module by default")
+    private String reportPath;
+
+    @Option(name = "-external-mappings-max-memory", description = "Memory cap in MB of the index of the external mappings, so that checking whether the target of a dangling reference is an external node needs no query. Beyond the cap, the index is a Bloom filter whose positive answers are confirmed with the DB. 16 by default, 0 disables the index")
+    private long externalMappingsMaxMemoryMb = CleanerContext.DEFAULT_EXTERNAL_MAPPINGS_MAX_MEMORY_MB;
+
+    @Override
+    public Object execute() throws Exception {
+        final Set<IntegrityScanner.Scope> parsedScopes = parseScopes(scopes);
+        try (final IntegrityReport report = new IntegrityReport(getReportFile())) {
+            final IntegrityScanner scanner = new IntegrityScanner(report)
+                    .setScopes(parsedScopes)
+                    .setConcurrency(concurrency)
+                    .setFix(fixIntegrity)
+                    .setFixBatchSize(fixBatchSize)
+                    .setMaxExecutionTimeInMs(maxExecutionTimeInMs)
+                    .setExternalMappingIndex(loadExternalMappingIndex());
+            scanner.scan();
+            logger.info("Integrity of the repository:{}{}", System.lineSeparator(), scanner);
+            return scanner.toString();
+        } finally {
+            JcrSessionFilter.endRequest();
+        }
+    }
+
+    static Set<IntegrityScanner.Scope> parseScopes(String scopes) {
+        final Set<IntegrityScanner.Scope> parsed = EnumSet.noneOf(IntegrityScanner.Scope.class);
+        if (StringUtils.isBlank(scopes)) return EnumSet.allOf(IntegrityScanner.Scope.class);
+        for (String scope : StringUtils.split(scopes, ',')) {
+            if (StringUtils.isNotBlank(scope)) parsed.add(IntegrityScanner.Scope.parse(scope));
+        }
+        return parsed;
+    }
+
+    private File getReportFile() {
+        if (StringUtils.isNotBlank(reportPath)) return new File(reportPath);
+        final File directory = CleanerContext.getWorkingDirectory();
+        if (!directory.exists() && !directory.mkdirs()) logger.warn("Impossible to create the directory {}", directory);
+        return new File(directory, "integrity-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jsonl");
+    }
+
+    private ExternalMappingIndex loadExternalMappingIndex() {
+        if (externalMappingsMaxMemoryMb <= 0) return null;
+        try (final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+            return ExternalMappingIndex.load(conn, externalMappingsMaxMemoryMb * 1024L * 1024L);
+        } catch (SQLException e) {
+            logger.error("Failed to retrieve the DB connection", e);
+            return null;
+        }
+    }
+}
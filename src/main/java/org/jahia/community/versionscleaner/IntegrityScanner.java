@@ -0,0 +1,453 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.jahia.api.Constants;
+import org.jahia.bin.filters.jcr.JcrSessionFilter;
+import org.jahia.services.content.JCRSessionFactory;
+import org.jahia.utils.DatabaseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Checks the REFERENCE and WEAKREFERENCE properties of every node of the default and live workspaces and of the
+ * version storage, independently of the cleanup of the versions, whose integrity check only covers the version
+ * histories.
+ *
+ * <p>Each scope is split in partitions, the subtrees of the nodes {@link #PARTITION_DEPTH} levels below its root,
+ * processed by a pool of workers with their own JCR sessions and DB connection, as the parallel mode of the cleanup.
+ * The targets of the references are looked up as by the integrity check of the cleanup: by block in the bundle
+ * tables, with a cache of the targets known to exist per workspace, and the missing ones are checked against the
+ * external mappings. The dangling references are written to an {@link IntegrityReport} as they are found, and
+ * optionally fixed in the workspaces with an {@link IntegrityFixBatch} per worker and per workspace. The version
+ * storage, whose nodes are protected, is only reported.
+ */
+public class IntegrityScanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntegrityScanner.class);
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    // The nodes of the first levels, such as /sites or /users, are too few to balance the load between the workers
+    static final int PARTITION_DEPTH = 2;
+    private static final int SESSION_REFRESH_INTERVAL = 1000;
+    private static final String JCR_SYSTEM_PATH = "/jcr:system";
+    private static final String HUMAN_READABLE_FORMAT = "d' days 'H' hours 'm' minutes 's' seconds'";
+
+    /**
+     * Part of the repository scanned.
+     */
+    public enum Scope {
+        DEFAULT(Constants.EDIT_WORKSPACE, "/"),
+        LIVE(Constants.LIVE_WORKSPACE, "/"),
+        VERSIONS(Constants.EDIT_WORKSPACE, JCR_SYSTEM_PATH + "/jcr:versionStorage");
+
+        private final String workspace;
+        private final String rootPath;
+
+        Scope(String workspace, String rootPath) {
+            this.workspace = workspace;
+            this.rootPath = rootPath;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the name is not the one of a scope
+         */
+        public static Scope parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown scope " + name + ", expected default, live or versions", e);
+            }
+        }
+
+        public String getName() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        /**
+         * Whether the nodes of the scope can be fixed, the ones of the version storage being protected.
+         */
+        boolean isFixable() {
+            return this != VERSIONS;
+        }
+
+        /**
+         * The version storage, and the other system nodes, are not part of the workspaces.
+         */
+        boolean isSkipped(String path) {
+            return this != VERSIONS && JCR_SYSTEM_PATH.equals(path);
+        }
+    }
+
+    /**
+     * Node to check, with its subtree if {@code recursive}.
+     */
+    static final class Partition {
+
+        private final Scope scope;
+        private final String path;
+        private final boolean recursive;
+
+        Partition(Scope scope, String path, boolean recursive) {
+            this.scope = scope;
+            this.path = path;
+            this.recursive = recursive;
+        }
+
+        Scope getScope() {
+            return scope;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        boolean isRecursive() {
+            return recursive;
+        }
+    }
+
+    private final IntegrityReport report;
+    private Set<Scope> scopes = EnumSet.allOf(Scope.class);
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private boolean fix;
+    private int fixBatchSize = IntegrityFixBatch.DEFAULT_BATCH_SIZE;
+    private long maxExecutionTimeInMs;
+    private ExternalMappingIndex externalMappingIndex;
+    // Targets known to exist, per workspace, the version storage being looked up with the edit session
+    private final Map<String, ReferenceTargetCache> targetCaches = new HashMap<>();
+    private final AtomicBoolean interrupted = new AtomicBoolean();
+    private long startTime = -1L;
+    private long endTime = -1L;
+    private final LongAdder nbNodes = new LongAdder();
+    private final LongAdder nbReferences = new LongAdder();
+    private final LongAdder nbDanglingReferences = new LongAdder();
+    private final LongAdder nbExternalReferences = new LongAdder();
+    private final LongAdder nbSavedFixes = new LongAdder();
+    private final LongAdder nbFailedFixes = new LongAdder();
+
+    public IntegrityScanner(IntegrityReport report) {
+        this.report = report;
+        targetCaches.put(Constants.EDIT_WORKSPACE, new ReferenceTargetCache());
+        targetCaches.put(Constants.LIVE_WORKSPACE, new ReferenceTargetCache());
+    }
+
+    /**
+     * Scans the partitions of the scopes with the workers, and waits for them to complete.
+     */
+    public void scan() throws RepositoryException {
+        startTime = System.currentTimeMillis();
+        try {
+            final List<Partition> partitions = new ArrayList<>();
+            for (Scope scope : scopes) {
+                final Session session = JCRSessionFactory.getInstance().getCurrentSystemSession(scope.workspace, null, null);
+                if (!session.nodeExists(scope.rootPath)) continue;
+                collectPartitions(scope, session.getNode(scope.rootPath), 0, partitions);
+            }
+            processPartitions(partitions);
+        } finally {
+            endTime = System.currentTimeMillis();
+            try {
+                report.flush();
+            } catch (IOException e) {
+                logger.error("Failed to write the report {}", report.getFile(), e);
+            }
+        }
+    }
+
+    /**
+     * Lists the partitions of a scope: the nodes above {@link #PARTITION_DEPTH} are checked on their own, and the
+     * ones at this depth with their subtree.
+     */
+    static void collectPartitions(Scope scope, Node node, int depth, List<Partition> partitions) throws RepositoryException {
+        final String path = node.getPath();
+        if (scope.isSkipped(path)) return;
+        if (depth >= PARTITION_DEPTH) {
+            partitions.add(new Partition(scope, path, true));
+            return;
+        }
+        partitions.add(new Partition(scope, path, false));
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            collectPartitions(scope, children.nextNode(), depth + 1, partitions);
+        }
+    }
+
+    private void processPartitions(List<Partition> partitions) {
+        if (partitions.isEmpty()) return;
+        final Queue<Partition> pendingPartitions = new ConcurrentLinkedQueue<>(partitions);
+        final int nbWorkers = Math.max(1, Math.min(concurrency, partitions.size()));
+        logger.info("Checking the references of {} partitions with {} workers", partitions.size(), nbWorkers);
+        final List<Thread> workers = new ArrayList<>(nbWorkers);
+        for (int i = 1; i <= nbWorkers; i++) {
+            final Thread worker = new Thread(() -> processPartitionsQueue(pendingPartitions), "versions-cleaner-integrity-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                logger.error("Interrupted while waiting for the workers to complete", e);
+                interrupted.set(true);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void processPartitionsQueue(Queue<Partition> pendingPartitions) {
+        try (final Connection conn = DatabaseUtils.getDatasource().getConnection()) {
+            final Worker worker = new Worker(conn);
+            try {
+                Partition partition;
+                while (!needsToInterrupt() && (partition = pendingPartitions.poll()) != null) {
+                    try {
+                        logger.debug("Checking the references of the partition {} of {}", partition.path, partition.scope.getName());
+                        worker.process(partition);
+                        report.flush();
+                    } catch (RepositoryException | RuntimeException e) {
+                        // Isolate the failure to this partition, the worker continues with the next ones.
+                        logger.error("Failed to check the partition {} of {}", partition.path, partition.scope.getName(), e);
+                    }
+                }
+            } finally {
+                worker.close();
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to retrieve the DB connection", e);
+        } catch (IOException e) {
+            logger.error("Failed to write the report {}, stopping the scan", report.getFile(), e);
+            interrupted.set(true);
+        } finally {
+            JcrSessionFilter.endRequest();
+        }
+    }
+
+    private boolean needsToInterrupt() {
+        if (interrupted.get()) return true;
+        if (maxExecutionTimeInMs <= 0 || System.currentTimeMillis() < startTime + maxExecutionTimeInMs) return false;
+        if (interrupted.compareAndSet(false, true)) logger.info("Max execution time reached, interrupting the scan");
+        return true;
+    }
+
+    /**
+     * Resources of a worker thread: its sessions, opened on first use, and its batches of fixes.
+     */
+    private final class Worker {
+
+        private final Connection connection;
+        private final OrphanDetector orphanDetector;
+        private final Map<String, Session> sessions = new HashMap<>();
+        private final Map<String, IntegrityFixBatch> fixBatches = new HashMap<>();
+        private int nbNodesSinceRefresh;
+
+        private Worker(Connection connection) {
+            this.connection = connection;
+            this.orphanDetector = OrphanDetector.create(connection);
+        }
+
+        private Session getSession(String workspace) throws RepositoryException {
+            Session session = sessions.get(workspace);
+            if (session == null) {
+                session = JCRSessionFactory.getInstance().getCurrentSystemSession(workspace, null, null);
+                sessions.put(workspace, session);
+            }
+            return session;
+        }
+
+        private IntegrityFixBatch getFixBatch(String workspace) throws RepositoryException {
+            IntegrityFixBatch fixBatch = fixBatches.get(workspace);
+            if (fixBatch == null) {
+                fixBatch = new IntegrityFixBatch(getSession(workspace), fixBatchSize);
+                fixBatches.put(workspace, fixBatch);
+            }
+            return fixBatch;
+        }
+
+        private void process(Partition partition) throws RepositoryException, IOException {
+            final Session session = getSession(partition.scope.workspace);
+            // Can have been removed since the partitions have been listed
+            if (!session.nodeExists(partition.path)) return;
+            walk(partition.scope, session.getNode(partition.path), partition.recursive);
+        }
+
+        private void walk(Scope scope, Node node, boolean recursive) throws RepositoryException, IOException {
+            if (needsToInterrupt() || scope.isSkipped(node.getPath())) return;
+            boolean kept = true;
+            try {
+                kept = checkNode(scope, node);
+            } catch (RepositoryException e) {
+                logger.warn("Failed to check the references of {}", node.getPath(), e);
+            }
+            if (++nbNodesSinceRefresh >= SESSION_REFRESH_INTERVAL) refreshSessions();
+            if (!kept || !recursive) return;
+            final NodeIterator children = node.getNodes();
+            while (children.hasNext()) {
+                walk(scope, children.nextNode(), true);
+            }
+        }
+
+        /**
+         * @return {@code false} if the node has been removed by a fix
+         */
+        private boolean checkNode(Scope scope, Node node) throws RepositoryException, IOException {
+            nbNodes.increment();
+            final List<CleanCommand.Reference> references = new ArrayList<>();
+            final PropertyIterator properties = node.getProperties();
+            while (properties.hasNext()) {
+                CleanCommand.collectReferences(node, properties.nextProperty(), true, references);
+            }
+            if (references.isEmpty()) return true;
+            nbReferences.add(references.size());
+            final Set<String> missingTargets = CleanCommand.findMissingTargets(getSession(scope.workspace), references,
+                    targetCaches.get(scope.workspace), orphanDetector, scope.workspace);
+            if (missingTargets.isEmpty()) return true;
+            final boolean fixable = fix && scope.isFixable();
+            final Set<String> externalTargets = CleanCommand.findExternalMappings(missingTargets, fixable, externalMappingIndex, connection);
+            final String nodePath = node.getPath();
+            for (CleanCommand.Reference reference : references) {
+                if (!missingTargets.contains(reference.uuid)) continue;
+                final boolean external = externalTargets.contains(reference.uuid);
+                final String propertyName = reference.property.getName();
+                String action = IntegrityReport.ACTION_NONE;
+                if (external) {
+                    nbExternalReferences.increment();
+                } else {
+                    nbDanglingReferences.increment();
+                    if (fixable) {
+                        action = getFixBatch(scope.workspace).fix(node, reference.property, reference.uuid)
+                                ? IntegrityReport.ACTION_CLEARED : IntegrityReport.ACTION_REMOVED;
+                    }
+                }
+                report.danglingReference(scope.getName(), nodePath, propertyName, reference.uuid, external, action);
+                if (IntegrityReport.ACTION_REMOVED.equals(action)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Saves the pending fixes, which would be discarded otherwise, and refreshes the sessions to release the
+         * nodes loaded so far.
+         */
+        private void refreshSessions() throws RepositoryException {
+            flushFixes();
+            for (Session session : sessions.values()) {
+                session.refresh(false);
+            }
+            nbNodesSinceRefresh = 0;
+        }
+
+        private void flushFixes() {
+            for (IntegrityFixBatch fixBatch : fixBatches.values()) {
+                fixBatch.flush();
+            }
+        }
+
+        private void close() {
+            flushFixes();
+            for (IntegrityFixBatch fixBatch : fixBatches.values()) {
+                nbSavedFixes.add(fixBatch.getNbSavedFixes());
+                nbFailedFixes.add(fixBatch.getNbFailedFixes());
+            }
+            fixBatches.clear();
+            sessions.clear();
+        }
+    }
+
+    public IntegrityScanner setScopes(Set<Scope> scopes) {
+        this.scopes = scopes.isEmpty() ? EnumSet.allOf(Scope.class) : EnumSet.copyOf(scopes);
+        return this;
+    }
+
+    public IntegrityScanner setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public IntegrityScanner setFix(boolean fix) {
+        this.fix = fix;
+        return this;
+    }
+
+    public IntegrityScanner setFixBatchSize(int fixBatchSize) {
+        this.fixBatchSize = fixBatchSize;
+        return this;
+    }
+
+    public IntegrityScanner setMaxExecutionTimeInMs(long maxExecutionTimeInMs) {
+        this.maxExecutionTimeInMs = maxExecutionTimeInMs;
+        return this;
+    }
+
+    public IntegrityScanner setExternalMappingIndex(ExternalMappingIndex externalMappingIndex) {
+        this.externalMappingIndex = externalMappingIndex;
+        return this;
+    }
+
+    public boolean isInterrupted() {
+        return interrupted.get();
+    }
+
+    public long getNbNodes() {
+        return nbNodes.sum();
+    }
+
+    public long getNbReferences() {
+        return nbReferences.sum();
+    }
+
+    public long getNbDanglingReferences() {
+        return nbDanglingReferences.sum();
+    }
+
+    public long getNbExternalReferences() {
+        return nbExternalReferences.sum();
+    }
+
+    public long getNbSavedFixes() {
+        return nbSavedFixes.sum();
+    }
+
+    public long getNbFailedFixes() {
+        return nbFailedFixes.sum();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Checked %d references of %d nodes (%s)%s%n", getNbReferences(), getNbNodes(),
+                scopes.stream().map(Scope::getName).collect(Collectors.joining(", ")),
+                isInterrupted() ? ", interrupted" : ""));
+        sb.append(String.format("Dangling references: %d%n", getNbDanglingReferences()));
+        sb.append(String.format("References towards external nodes: %d%n", getNbExternalReferences()));
+        if (fix) sb.append(String.format("Fixes saved: %d, failed: %d%n", getNbSavedFixes(), getNbFailedFixes()));
+        if (startTime >= 0L && endTime >= startTime) {
+            sb.append(String.format("Duration: %s%n", DurationFormatUtils.formatDuration(endTime - startTime, HUMAN_READABLE_FORMAT, true)));
+        }
+        sb.append(String.format("Report: %s", report.getFile()));
+        return sb.toString();
+    }
+}
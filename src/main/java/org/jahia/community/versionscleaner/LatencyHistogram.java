@@ -0,0 +1,83 @@
+package org.jahia.community.versionscleaner;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations, with one bucket per power of 2 of microseconds: the percentiles are approximated
+ * by the upper bound of their bucket, so within a factor of 2, which is enough to size a maintenance window or to
+ * spot a regression of the persistence layer, and recording a duration costs a couple of atomic additions.
+ */
+public final class LatencyHistogram {
+
+    // Bucket i holds the durations from 2^(i-1) (inclusive) to 2^i (exclusive) microseconds, the last one the longer
+    // ones (2^38 microseconds are more than 3 days)
+    static final int NB_BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[NB_BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalInNanos = new LongAdder();
+    private final LongAccumulator maxInNanos = new LongAccumulator(Math::max, 0L);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    static int getBucket(long durationInNanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(durationInNanos, 0L));
+        return Math.min(Long.SIZE - Long.numberOfLeadingZeros(micros), NB_BUCKETS - 1);
+    }
+
+    public void record(long durationInNanos) {
+        buckets[getBucket(durationInNanos)].increment();
+        count.increment();
+        totalInNanos.add(durationInNanos);
+        maxInNanos.accumulate(durationInNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanInMs() {
+        final long n = count.sum();
+        return n == 0L ? 0d : totalInNanos.sum() / (n * 1_000_000d);
+    }
+
+    public double getMaxInMs() {
+        return maxInNanos.get() / 1_000_000d;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, in ms
+     */
+    public double getPercentileInMs(double percentile) {
+        final long[] counts = new long[NB_BUCKETS];
+        long n = 0L;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            n += counts[i];
+        }
+        if (n == 0L) return 0d;
+        final long rank = (long) Math.ceil(percentile / 100d * n);
+        long cumulatedCount = 0L;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            cumulatedCount += counts[i];
+            if (cumulatedCount >= rank) return (1L << i) / 1000d;
+        }
+        return (1L << (NB_BUCKETS - 1)) / 1000d;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        totalInNanos.reset();
+        maxInNanos.reset();
+    }
+}
@@ -0,0 +1,155 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+/**
+ * Compact, immutable set of node identifiers. Each identifier is stored as its two 64-bit halves in two sorted
+ * {@code long[]} arrays, so that a set of 20M identifiers takes 320MB where a set of {@code String} would take
+ * several GB, and membership checks are binary searches which don't allocate anything.
+ *
+ * <p>Instances are built with a {@link Builder}, and can be shared between threads once built.
+ */
+public final class NodeIdSet {
+
+    public static final int BYTES_PER_ID = 2 * Long.BYTES;
+    // Ranges smaller than this are sorted with an insertion sort
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final long[] msbs;
+    private final long[] lsbs;
+    private final int size;
+
+    private NodeIdSet(long[] msbs, long[] lsbs, int size) {
+        this.msbs = msbs;
+        this.lsbs = lsbs;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Accessors to the identifiers in their sorted order, to iterate over the set
+    long getMostSignificantBits(int index) {
+        return msbs[index];
+    }
+
+    long getLeastSignificantBits(int index) {
+        return lsbs[index];
+    }
+
+    public boolean contains(long msb, long lsb) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(msbs[mid], lsbs[mid], msb, lsb);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code false} if the identifier is not a valid UUID.
+     */
+    public boolean contains(String uuid) {
+        final NodeId id;
+        try {
+            id = NodeId.valueOf(uuid);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return contains(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    private static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        final int cmp = Long.compare(msb1, msb2);
+        return cmp != 0 ? cmp : Long.compare(lsb1, lsb2);
+    }
+
+    public static final class Builder {
+
+        private final long[] msbs;
+        private final long[] lsbs;
+        private int size;
+
+        public Builder(int capacity) {
+            msbs = new long[capacity];
+            lsbs = new long[capacity];
+        }
+
+        /**
+         * @return {@code false} if the identifier couldn't be added because the capacity is reached
+         */
+        public boolean add(long msb, long lsb) {
+            if (size == msbs.length) return false;
+            msbs[size] = msb;
+            lsbs[size] = lsb;
+            size++;
+            return true;
+        }
+
+        public boolean add(byte[] rawId) {
+            final NodeId id = new NodeId(rawId);
+            return add(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        }
+
+        /**
+         * Sorts the identifiers added so far and returns the set. The builder must not be used afterward.
+         */
+        public NodeIdSet build() {
+            sort(0, size - 1);
+            return new NodeIdSet(msbs, lsbs, size);
+        }
+
+        private void sort(int from, int to) {
+            // Recurse on the smaller side and loop on the larger one, to bound the depth of the stack
+            while (to - from >= INSERTION_SORT_THRESHOLD) {
+                final int mid = (from + to) >>> 1;
+                final long pivotMsb = msbs[mid];
+                final long pivotLsb = lsbs[mid];
+                int i = from;
+                int j = to;
+                while (i <= j) {
+                    while (compare(msbs[i], lsbs[i], pivotMsb, pivotLsb) < 0) i++;
+                    while (compare(msbs[j], lsbs[j], pivotMsb, pivotLsb) > 0) j--;
+                    if (i <= j) swap(i++, j--);
+                }
+                if (j - from < to - i) {
+                    sort(from, j);
+                    from = i;
+                } else {
+                    sort(i, to);
+                    to = j;
+                }
+            }
+            insertionSort(from, to);
+        }
+
+        private void insertionSort(int from, int to) {
+            for (int i = from + 1; i <= to; i++) {
+                final long msb = msbs[i];
+                final long lsb = lsbs[i];
+                int j = i - 1;
+                while (j >= from && compare(msbs[j], lsbs[j], msb, lsb) > 0) {
+                    msbs[j + 1] = msbs[j];
+                    lsbs[j + 1] = lsbs[j];
+                    j--;
+                }
+                msbs[j + 1] = msb;
+                lsbs[j + 1] = lsb;
+            }
+        }
+
+        private void swap(int i, int j) {
+            final long msb = msbs[i];
+            msbs[i] = msbs[j];
+            msbs[j] = msb;
+            final long lsb = lsbs[i];
+            lsbs[i] = lsbs[j];
+            lsbs[j] = lsb;
+        }
+    }
+}
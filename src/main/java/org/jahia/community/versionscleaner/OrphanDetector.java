@@ -0,0 +1,264 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.jahia.api.Constants;
+import org.jahia.utils.DatabaseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the orphan status of a block of frozen UUIDs with bulk lookups in the Jackrabbit bundle tables of the
+ * edit and live workspaces, instead of one {@code getNodeByIdentifier} call per workspace and per UUID.
+ *
+ * <p>Only the binary storage model of the bundle persistence manager ({@code NODE_ID} column) is supported. If the
+ * tables can't be resolved, {@link #create(Connection)} returns {@code null}, and if a lookup fails, the caller
+ * gets no answer for the block and has to fall back on the session-based check.
+ */
+public class OrphanDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrphanDetector.class);
+
+    // Size of the IN lists, kept under the limit of 1000 expressions of Oracle.
+    static final int MAX_IN_LIST_SIZE = 500;
+    private static final String BUNDLE_TABLE_SUFFIX = "BUNDLE";
+    // Schema object prefix of the persistence manager of the version storage in the repository.xml file shipped with Jahia
+    static final String VERSIONING_TABLE_PREFIX = "jr_v_";
+    private static final int FETCH_SIZE = 10000;
+
+    private final Connection connection;
+    private final String editBundleTable;
+    private final String liveBundleTable;
+    // null if it can't be found
+    private final String versionBundleTable;
+
+    OrphanDetector(Connection connection, String editBundleTable, String liveBundleTable) {
+        this(connection, editBundleTable, liveBundleTable, null);
+    }
+
+    OrphanDetector(Connection connection, String editBundleTable, String liveBundleTable, String versionBundleTable) {
+        this.connection = connection;
+        this.editBundleTable = editBundleTable;
+        this.liveBundleTable = liveBundleTable;
+        this.versionBundleTable = versionBundleTable;
+    }
+
+    /**
+     * Returns a detector using the provided connection, or {@code null} if the bundle tables of the edit and live
+     * workspaces can't be found.
+     */
+    public static OrphanDetector create(Connection connection) {
+        if (connection == null) return null;
+        try {
+            final String editBundleTable = resolveTableName(connection, getTablePrefix(Constants.EDIT_WORKSPACE) + BUNDLE_TABLE_SUFFIX);
+            final String liveBundleTable = resolveTableName(connection, getTablePrefix(Constants.LIVE_WORKSPACE) + BUNDLE_TABLE_SUFFIX);
+            if (editBundleTable == null || liveBundleTable == null) {
+                logger.warn("Impossible to find the bundle tables of the workspaces, the orphaned histories will be detected one by one");
+                return null;
+            }
+            final String versionBundleTable = resolveTableName(connection, VERSIONING_TABLE_PREFIX + BUNDLE_TABLE_SUFFIX);
+            return new OrphanDetector(connection, editBundleTable, liveBundleTable, versionBundleTable);
+        } catch (SQLException e) {
+            logger.warn("Impossible to read the DB metadata, the orphaned histories will be detected one by one", e);
+            return null;
+        }
+    }
+
+    /**
+     * Loads the identifiers of all the nodes of the edit and live workspaces into a {@link NodeIdSet}, unless they
+     * would take more than {@code maxMemoryInBytes}.
+     *
+     * @return the identifiers, or {@code null} if the memory cap is exceeded or the identifiers can't be loaded
+     */
+    public static NodeIdSet loadExistingNodeIds(Connection connection, long maxMemoryInBytes) {
+        final OrphanDetector detector = create(connection);
+        if (detector == null) return null;
+        try {
+            final long nbNodes = countRows(connection, detector.editBundleTable) + countRows(connection, detector.liveBundleTable);
+            // Some headroom for the nodes created while loading the identifiers
+            final long capacity = nbNodes + Math.max(1024L, nbNodes / 100L);
+            if (capacity * NodeIdSet.BYTES_PER_ID > maxMemoryInBytes || capacity > Integer.MAX_VALUE - 8) {
+                logger.warn("Not loading the identifiers of the {} nodes of the workspaces, as they would exceed the memory cap of {} bytes", nbNodes, maxMemoryInBytes);
+                return null;
+            }
+            final NodeIdSet.Builder builder = new NodeIdSet.Builder((int) capacity);
+            if (!loadNodeIds(connection, detector.editBundleTable, builder) || !loadNodeIds(connection, detector.liveBundleTable, builder)) {
+                logger.warn("Not loading the identifiers of the nodes of the workspaces, as their number has grown beyond {} while loading them", capacity);
+                return null;
+            }
+            final NodeIdSet nodeIds = builder.build();
+            logger.info("Loaded the identifiers of {} nodes of the edit and live workspaces", nodeIds.size());
+            return nodeIds;
+        } catch (SQLException e) {
+            logger.warn("Failed to load the identifiers of the nodes of the workspaces", e);
+            return null;
+        }
+    }
+
+    static long countRows(Connection connection, String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("select count(*) from " + table);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0L;
+        }
+    }
+
+    /**
+     * Adds the content of the {@code NODE_ID} column of a table to the builder. The rows are streamed, so that the
+     * table is never loaded at once by the driver.
+     *
+     * @return {@code false} if the capacity of the builder has been reached before the end of the table
+     */
+    static boolean loadNodeIds(Connection connection, String table, NodeIdSet.Builder builder) throws SQLException {
+        final boolean autoCommit = connection.getAutoCommit();
+        // PostgreSQL only honors the fetch size within a transaction, otherwise it loads the whole result set
+        if (autoCommit) connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement("select NODE_ID from " + table)) {
+            statement.setFetchSize(getStreamingFetchSize(connection));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    if (!builder.add(resultSet.getBytes(1))) return false;
+                }
+            }
+        } finally {
+            // Nothing has been written
+            if (autoCommit) connection.setAutoCommit(true);
+        }
+        return true;
+    }
+
+    /**
+     * Fetch size making the driver stream the rows of a query: MySQL and MariaDB ignore a positive fetch size unless
+     * {@code useCursorFetch} is set on the connection, and only stream the rows with {@link Integer#MIN_VALUE}.
+     */
+    static int getStreamingFetchSize(Connection connection) throws SQLException {
+        final DatabaseMetaData metaData = connection.getMetaData();
+        final String productName = metaData != null ? metaData.getDatabaseProductName() : null;
+        if (productName != null) {
+            final String name = productName.toLowerCase();
+            if (name.contains("mysql") || name.contains("mariadb")) return Integer.MIN_VALUE;
+        }
+        return FETCH_SIZE;
+    }
+
+    /**
+     * Schema object prefix of the persistence manager of a workspace, as configured in the repository.xml file
+     * shipped with Jahia ({@code jr_${wsp.name}_}).
+     */
+    static String getTablePrefix(String workspace) {
+        return "jr_" + workspace + "_";
+    }
+
+    /**
+     * Depending on the database, the identifiers are stored as created, upper-cased or lower-cased.
+     */
+    static String resolveTableName(Connection connection, String tableName) throws SQLException {
+        final DatabaseMetaData metaData = connection.getMetaData();
+        if (metaData == null) return null;
+        for (String candidate : new String[]{tableName, tableName.toUpperCase(), tableName.toLowerCase()}) {
+            try (ResultSet tables = metaData.getTables(null, null, candidate, null)) {
+                if (tables.next()) return tables.getString("TABLE_NAME");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves whether each of the provided UUIDs is orphaned, meaning absent from both the edit and the live
+     * workspaces.
+     *
+     * @return the orphan status of every UUID, or {@code null} if the lookup failed
+     */
+    public Map<String, Boolean> resolveOrphans(Collection<String> uuids) {
+        try {
+            final Set<String> existingInEdit = findExisting(uuids, editBundleTable);
+            final List<String> missingInEdit = new ArrayList<>();
+            for (String uuid : uuids) {
+                if (!existingInEdit.contains(uuid)) missingInEdit.add(uuid);
+            }
+            final Set<String> existingInLive = findExisting(missingInEdit, liveBundleTable);
+            final Map<String, Boolean> orphans = new HashMap<>(uuids.size());
+            for (String uuid : uuids) {
+                orphans.put(uuid, !existingInEdit.contains(uuid) && !existingInLive.contains(uuid));
+            }
+            return orphans;
+        } catch (SQLException | IllegalArgumentException e) {
+            logger.warn("Failed to resolve the orphaned histories by block", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the subset of the provided UUIDs for which a bundle exists in the given workspace, edit or live.
+     */
+    public Set<String> findExistingIn(String workspace, Collection<String> uuids) throws SQLException {
+        return findExisting(uuids, Constants.LIVE_WORKSPACE.equals(workspace) ? liveBundleTable : editBundleTable);
+    }
+
+    /**
+     * Returns the subset of the provided UUIDs for which a bundle exists in the version storage, empty if its bundle
+     * table can't be found.
+     */
+    public Set<String> findExistingInVersionStorage(Collection<String> uuids) throws SQLException {
+        if (versionBundleTable == null) return new HashSet<>();
+        return findExisting(uuids, versionBundleTable);
+    }
+
+    /**
+     * Returns the subset of the provided UUIDs for which a bundle exists in the given table.
+     */
+    Set<String> findExisting(Collection<String> uuids, String bundleTable) throws SQLException {
+        final Set<String> existing = new HashSet<>();
+        final List<String> chunk = new ArrayList<>(MAX_IN_LIST_SIZE);
+        for (String uuid : uuids) {
+            chunk.add(uuid);
+            if (chunk.size() == MAX_IN_LIST_SIZE) {
+                findExistingInChunk(chunk, bundleTable, existing);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) findExistingInChunk(chunk, bundleTable, existing);
+        return existing;
+    }
+
+    private void findExistingInChunk(List<String> uuids, String bundleTable, Set<String> existing) throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(buildInListQuery("NODE_ID", bundleTable, "NODE_ID", uuids.size()));
+            int index = 1;
+            for (String uuid : uuids) {
+                statement.setBytes(index++, NodeId.valueOf(uuid).getRawBytes());
+            }
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                existing.add(new NodeId(resultSet.getBytes(1)).toString());
+            }
+        } finally {
+            DatabaseUtils.closeQuietly(resultSet);
+            DatabaseUtils.closeQuietly(statement);
+        }
+    }
+
+    static String buildInListQuery(String selectedColumn, String table, String filteredColumn, int nbParameters) {
+        final StringBuilder query = new StringBuilder("select ").append(selectedColumn)
+                .append(" from ").append(table)
+                .append(" where ").append(filteredColumn).append(" in (");
+        for (int i = 0; i < nbParameters; i++) {
+            if (i > 0) query.append(',');
+            query.append('?');
+        }
+        return query.append(')').toString();
+    }
+}
@@ -0,0 +1,289 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.commons.lang.StringUtils;
+import org.jahia.settings.SettingsBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tables of the distributed mode, in the database of Jahia:
+ * <ul>
+ *     <li>the leases of the partitions of the version storage: a round of the distributed mode inserts one row per
+ *     partition, which the members of the cluster lease one after the other to scan it. A lease which hasn't been
+ *     renewed before its expiry, because its owner has died or has been stopped, can be taken over by another
+ *     member. The round ends once every partition has been scanned;</li>
+ *     <li>the candidates: the version histories found by the scans which may have versions to delete, which the
+ *     processing server checks again before deleting them.</li>
+ * </ul>
+ *
+ * <p>The leases are acquired with a conditional update of their row, so that a single member wins a partition
+ * without any lock.
+ */
+public class PartitionLeases {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionLeases.class);
+
+    static final String LEASES_TABLE = "jahia_vc_leases";
+    static final String CANDIDATES_TABLE = "jahia_vc_candidates";
+    static final String STATUS_PENDING = "PENDING";
+    static final String STATUS_LEASED = "LEASED";
+    static final String STATUS_DONE = "DONE";
+    public static final long DEFAULT_LEASE_DURATION_IN_MS = 300000L;
+    // Number of partitions among which a member picks the one to lease, at random, to limit the contention
+    private static final int LEASE_CANDIDATES = 20;
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private final Connection connection;
+    private final String owner;
+    private final long leaseDurationInMs;
+
+    PartitionLeases(Connection connection, String owner, long leaseDurationInMs) {
+        this.connection = connection;
+        this.owner = owner;
+        this.leaseDurationInMs = leaseDurationInMs;
+    }
+
+    /**
+     * Returns the leases of this member of the cluster, creating the tables if needed.
+     *
+     * @param connection connection in auto-commit mode, used by this member only
+     */
+    public static PartitionLeases create(Connection connection, long leaseDurationInMs) throws SQLException {
+        createTablesIfNeeded(connection);
+        return new PartitionLeases(connection, getClusterMemberId(), leaseDurationInMs);
+    }
+
+    /**
+     * Identifier of this member of the cluster: the server id of the Jahia cluster node ({@code cluster.node.serverId}
+     * in jahia.properties), or the name of the JVM if there is none.
+     */
+    static String getClusterMemberId() {
+        final SettingsBean settingsBean = SettingsBean.getInstance();
+        final String serverId = settingsBean != null ? settingsBean.getServerId() : null;
+        return StringUtils.isNotBlank(serverId) ? serverId : ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    private static void createTablesIfNeeded(Connection connection) throws SQLException {
+        final String productName = connection.getMetaData().getDatabaseProductName();
+        final String longType = productName != null && productName.toLowerCase().contains("oracle") ? "number(19)" : "bigint";
+        if (OrphanDetector.resolveTableName(connection, LEASES_TABLE) == null) {
+            executeUpdate(connection, "create table " + LEASES_TABLE + " (PARTITION_PATH varchar(255) not null primary key, STATUS varchar(16) not null, OWNER varchar(255), EXPIRES_AT " + longType + ")");
+            logger.info("Created the table {}", LEASES_TABLE);
+        }
+        if (OrphanDetector.resolveTableName(connection, CANDIDATES_TABLE) == null) {
+            // Every processed candidate is deleted by its path, and the candidates of a partition are replaced by
+            // its path when it is scanned again
+            executeUpdate(connection, "create table " + CANDIDATES_TABLE + " (HISTORY_PATH varchar(255) not null primary key, PARTITION_PATH varchar(255) not null, DETECTED_BY varchar(255))");
+            executeUpdate(connection, "create index " + CANDIDATES_TABLE + "_partition on " + CANDIDATES_TABLE + " (PARTITION_PATH)");
+            logger.info("Created the table {}", CANDIDATES_TABLE);
+        }
+    }
+
+    private static void executeUpdate(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return whether a round is in progress, meaning that some partitions are still to be scanned or their
+     * candidates still to be processed
+     */
+    public boolean isRoundInProgress() throws SQLException {
+        return OrphanDetector.countRows(connection, LEASES_TABLE) > 0L;
+    }
+
+    /**
+     * Starts a round, inserting a row per partition. To be called by the processing server only, when no round is
+     * in progress.
+     */
+    public void startRound(List<String> partitions) throws SQLException {
+        final boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement("insert into " + LEASES_TABLE + " (PARTITION_PATH, STATUS) values (?, ?)")) {
+            int batchSize = 0;
+            for (String partition : partitions) {
+                statement.setString(1, partition);
+                statement.setString(2, STATUS_PENDING);
+                statement.addBatch();
+                if (++batchSize == INSERT_BATCH_SIZE) {
+                    statement.executeBatch();
+                    batchSize = 0;
+                }
+            }
+            if (batchSize > 0) statement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        logger.info("Started a round of the distributed mode over {} partitions", partitions.size());
+    }
+
+    /**
+     * Leases a partition which is pending, or whose lease has expired.
+     *
+     * @return the partition, or {@code null} if there is none left to lease
+     */
+    public String acquire() throws SQLException {
+        while (true) {
+            final long now = System.currentTimeMillis();
+            final List<String> candidates = new ArrayList<>(LEASE_CANDIDATES);
+            try (PreparedStatement statement = connection.prepareStatement("select PARTITION_PATH from " + LEASES_TABLE
+                    + " where STATUS = ? or (STATUS = ? and EXPIRES_AT < ?)")) {
+                statement.setMaxRows(LEASE_CANDIDATES);
+                statement.setString(1, STATUS_PENDING);
+                statement.setString(2, STATUS_LEASED);
+                statement.setLong(3, now);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) candidates.add(resultSet.getString(1));
+                }
+            }
+            if (candidates.isEmpty()) return null;
+            Collections.shuffle(candidates);
+            for (String partition : candidates) {
+                if (tryAcquire(partition, now)) return partition;
+            }
+            // Every candidate has been leased by another member in the meantime
+        }
+    }
+
+    boolean tryAcquire(String partition, long now) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("update " + LEASES_TABLE
+                + " set STATUS = ?, OWNER = ?, EXPIRES_AT = ? where PARTITION_PATH = ? and (STATUS = ? or (STATUS = ? and EXPIRES_AT < ?))")) {
+            statement.setString(1, STATUS_LEASED);
+            statement.setString(2, owner);
+            statement.setLong(3, now + leaseDurationInMs);
+            statement.setString(4, partition);
+            statement.setString(5, STATUS_PENDING);
+            statement.setString(6, STATUS_LEASED);
+            statement.setLong(7, now);
+            final boolean acquired = statement.executeUpdate() == 1;
+            if (acquired) logger.debug("Leased the partition {}", partition);
+            return acquired;
+        }
+    }
+
+    /**
+     * Extends the lease of a partition being scanned.
+     *
+     * @return {@code false} if the lease has expired and has been taken over by another member
+     */
+    public boolean renew(String partition) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("update " + LEASES_TABLE
+                + " set EXPIRES_AT = ? where PARTITION_PATH = ? and OWNER = ? and STATUS = ?")) {
+            statement.setLong(1, System.currentTimeMillis() + leaseDurationInMs);
+            statement.setString(2, partition);
+            statement.setString(3, owner);
+            statement.setString(4, STATUS_LEASED);
+            return statement.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Records the candidates found in a leased partition, replacing the ones of a previous scan of the partition by
+     * a member which has lost its lease, and marks the partition as scanned, in a single transaction.
+     *
+     * @return {@code false} if the lease has been lost in the meantime, nothing being recorded then
+     */
+    public boolean complete(String partition, List<String> historyPaths) throws SQLException {
+        final boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            try (PreparedStatement statement = connection.prepareStatement("update " + LEASES_TABLE
+                    + " set STATUS = ? where PARTITION_PATH = ? and OWNER = ? and STATUS = ?")) {
+                statement.setString(1, STATUS_DONE);
+                statement.setString(2, partition);
+                statement.setString(3, owner);
+                statement.setString(4, STATUS_LEASED);
+                if (statement.executeUpdate() != 1) {
+                    connection.rollback();
+                    logger.warn("The lease of the partition {} has been lost, its candidates are discarded", partition);
+                    return false;
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement("delete from " + CANDIDATES_TABLE + " where PARTITION_PATH = ?")) {
+                statement.setString(1, partition);
+                statement.executeUpdate();
+            }
+            if (!historyPaths.isEmpty()) {
+                try (PreparedStatement statement = connection.prepareStatement("insert into " + CANDIDATES_TABLE
+                        + " (HISTORY_PATH, PARTITION_PATH, DETECTED_BY) values (?, ?, ?)")) {
+                    for (String historyPath : historyPaths) {
+                        statement.setString(1, historyPath);
+                        statement.setString(2, partition);
+                        statement.setString(3, owner);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * @return up to {@code max} candidates found by the members of the cluster
+     */
+    public List<String> getCandidates(int max) throws SQLException {
+        final List<String> historyPaths = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement("select HISTORY_PATH from " + CANDIDATES_TABLE)) {
+            statement.setMaxRows(max);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) historyPaths.add(resultSet.getString(1));
+            }
+        }
+        return historyPaths;
+    }
+
+    public void removeCandidate(String historyPath) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("delete from " + CANDIDATES_TABLE + " where HISTORY_PATH = ?")) {
+            statement.setString(1, historyPath);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * @return the number of partitions which haven't been scanned yet
+     */
+    public long countRemainingPartitions() throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("select count(*) from " + LEASES_TABLE + " where STATUS <> ?")) {
+            statement.setString(1, STATUS_DONE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0L;
+            }
+        }
+    }
+
+    /**
+     * Ends the round once every partition has been scanned and every candidate processed. To be called by the
+     * processing server only.
+     */
+    public void endRound() throws SQLException {
+        executeUpdate(connection, "delete from " + LEASES_TABLE);
+        executeUpdate(connection, "delete from " + CANDIDATES_TABLE);
+        logger.info("Completed the round of the distributed mode");
+    }
+}
@@ -0,0 +1,94 @@
+package org.jahia.community.versionscleaner;
+
+import org.jahia.utils.DatabaseUtils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Targets of the references checked by the integrity check which are known to exist, so that the targets shared by
+ * many nodes, such as the categories or the tags, are looked up once. The least recently used targets are evicted
+ * beyond the capacity, so that the memory stays bounded whatever the size of the version storage. Only the existence
+ * is cached: a target found missing is looked up again, since it can be created in the meantime.
+ *
+ * <p>Shared by the workers of the parallel mode.
+ */
+public class ReferenceTargetCache {
+
+    // Around 5 MB of identifiers
+    static final int DEFAULT_CAPACITY = 50000;
+    static final String EXTERNAL_MAPPING_TABLE = "jahia_external_mapping";
+
+    private final Map<String, Boolean> existingTargets;
+
+    public ReferenceTargetCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    ReferenceTargetCache(int capacity) {
+        existingTargets = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized boolean isKnownToExist(String uuid) {
+        return existingTargets.get(uuid) != null;
+    }
+
+    public synchronized void existing(String uuid) {
+        existingTargets.put(uuid, Boolean.TRUE);
+    }
+
+    public synchronized int size() {
+        return existingTargets.size();
+    }
+
+    /**
+     * Returns the subset of the provided UUIDs which are mapped to a node of an external provider, with a query per
+     * block of {@link OrphanDetector#MAX_IN_LIST_SIZE} UUIDs.
+     */
+    static Set<String> findExternalMappings(Connection connection, Collection<String> uuids) throws SQLException {
+        final Set<String> mapped = new HashSet<>();
+        final List<String> chunk = new ArrayList<>(Math.min(uuids.size(), OrphanDetector.MAX_IN_LIST_SIZE));
+        for (String uuid : uuids) {
+            chunk.add(uuid);
+            if (chunk.size() == OrphanDetector.MAX_IN_LIST_SIZE) {
+                findExternalMappingsInChunk(connection, chunk, mapped);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) findExternalMappingsInChunk(connection, chunk, mapped);
+        return mapped;
+    }
+
+    private static void findExternalMappingsInChunk(Connection connection, List<String> uuids, Set<String> mapped) throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(OrphanDetector.buildInListQuery("internalUuid", EXTERNAL_MAPPING_TABLE, "internalUuid", uuids.size()));
+            int index = 1;
+            for (String uuid : uuids) {
+                statement.setString(index++, uuid);
+            }
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                mapped.add(resultSet.getString(1));
+            }
+        } finally {
+            DatabaseUtils.closeQuietly(resultSet);
+            DatabaseUtils.closeQuietly(statement);
+        }
+    }
+}
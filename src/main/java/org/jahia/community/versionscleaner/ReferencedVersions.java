@@ -0,0 +1,115 @@
+package org.jahia.community.versionscleaner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Snapshot of the identifiers of the referenced nodes of the version storage, loaded from the {@code REFS} table of
+ * its persistence manager, so that the unreferenced versions are identified without one reference lookup per version.
+ *
+ * <p>The persistence manager only keeps a row for the nodes which are referenced, so a version missing from the
+ * snapshot was unreferenced when it was loaded. Since a reference can have been added since then, the snapshot is
+ * reloaded when a partition starts if it is older than {@link #MAX_AGE_IN_MS}, and Jackrabbit still refuses to remove
+ * a version which has become referenced in the meantime. A version present in the snapshot has to be checked with
+ * the JCR API.
+ *
+ * <p>Shared by the workers of the parallel mode. A single worker reloads the snapshot at once, the other ones going on
+ * with the previous one until the new one replaces it.
+ */
+public class ReferencedVersions {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReferencedVersions.class);
+
+    // Schema object prefix of the persistence manager of the version storage in the repository.xml file shipped with Jahia
+    private static final String VERSIONING_TABLE_PREFIX = "jr_v_";
+    private static final String REFS_TABLE_SUFFIX = "REFS";
+    static final long MAX_AGE_IN_MS = 30000L;
+
+    private final long maxMemoryInBytes;
+    private final long maxAgeInMs;
+    private final AtomicBoolean loading = new AtomicBoolean();
+    private volatile NodeIdSet referencedIds;
+    private volatile long loadedAt;
+    private volatile boolean disabled;
+
+    public ReferencedVersions(long maxMemoryInBytes) {
+        this(maxMemoryInBytes, MAX_AGE_IN_MS);
+    }
+
+    ReferencedVersions(long maxMemoryInBytes, long maxAgeInMs) {
+        this.maxMemoryInBytes = maxMemoryInBytes;
+        this.maxAgeInMs = maxAgeInMs;
+    }
+
+    /**
+     * Reloads the snapshot if it is older than {@link #MAX_AGE_IN_MS}, unless another worker is already reloading it.
+     * If it can't be loaded, the snapshot is disabled until the end of the execution.
+     */
+    public void refreshIfStale(Connection connection) {
+        if (disabled || connection == null || !isStale()) return;
+        if (!loading.compareAndSet(false, true)) return;
+        try {
+            // Reloaded by another worker in the meantime
+            if (disabled || !isStale()) return;
+            final NodeIdSet ids = load(connection);
+            loadedAt = System.currentTimeMillis();
+            disabled = ids == null;
+            referencedIds = ids;
+        } finally {
+            loading.set(false);
+        }
+    }
+
+    private boolean isStale() {
+        return referencedIds == null || System.currentTimeMillis() - loadedAt >= maxAgeInMs;
+    }
+
+    private NodeIdSet load(Connection connection) {
+        try {
+            final String refsTable = OrphanDetector.resolveTableName(connection, VERSIONING_TABLE_PREFIX + REFS_TABLE_SUFFIX);
+            if (refsTable == null) {
+                logger.warn("Impossible to find the references table of the version storage, the references will be checked version by version");
+                return null;
+            }
+            final long nbReferencedNodes = OrphanDetector.countRows(connection, refsTable);
+            // Some headroom for the references created while loading them
+            final long capacity = nbReferencedNodes + Math.max(1024L, nbReferencedNodes / 100L);
+            if (capacity * NodeIdSet.BYTES_PER_ID > maxMemoryInBytes || capacity > Integer.MAX_VALUE - 8) {
+                logger.warn("Not loading the identifiers of the {} referenced nodes of the version storage, as they would exceed the memory cap of {} bytes", nbReferencedNodes, maxMemoryInBytes);
+                return null;
+            }
+            final NodeIdSet.Builder builder = new NodeIdSet.Builder((int) capacity);
+            if (!OrphanDetector.loadNodeIds(connection, refsTable, builder)) {
+                logger.warn("Not loading the identifiers of the referenced nodes of the version storage, as their number has grown beyond {} while loading them", capacity);
+                return null;
+            }
+            final NodeIdSet ids = builder.build();
+            logger.debug("Loaded the identifiers of {} referenced nodes of the version storage", ids.size());
+            return ids;
+        } catch (SQLException e) {
+            logger.warn("Failed to load the identifiers of the referenced nodes of the version storage", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return {@code true} if the version was unreferenced when the snapshot has been loaded, {@code false} if it was
+     * referenced or if there is no snapshot
+     */
+    public boolean isUnreferenced(String versionId) {
+        final NodeIdSet ids = referencedIds;
+        return ids != null && !ids.contains(versionId);
+    }
+
+    /**
+     * @return {@code true} if the version was referenced when the snapshot has been loaded
+     */
+    public boolean isReferenced(String versionId) {
+        final NodeIdSet ids = referencedIds;
+        return ids != null && ids.contains(versionId);
+    }
+}
@@ -0,0 +1,144 @@
+package org.jahia.community.versionscleaner;
+
+import org.jahia.services.scheduler.BackgroundJob;
+import org.jahia.services.scheduler.SchedulerService;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobListener;
+import org.quartz.SchedulerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tracks the completion of the reindexing of a workspace with a global listener of the jobs of the RAM scheduler,
+ * instead of polling the RAM jobs: the jobs of the search index are only looked up once the listener is notified of
+ * the end of one of them, and {@link #getCompletion()} is completed once none of them is in progress anymore.
+ *
+ * <p>To be started before the reindexing is scheduled, so that the end of its jobs can't be missed. The listener
+ * unregisters itself once the reindexing is completed.
+ */
+public class ReindexTracker implements JobListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReindexTracker.class);
+
+    static final String REINDEX_JOB_PREFIX = "JahiaSearchIndex";
+    private static final String LISTENER_NAME = "versions-cleaner-reindex-tracker";
+
+    private final SchedulerService schedulerService;
+    private final CompletableFuture<Boolean> completion = new CompletableFuture<>();
+    private final long startTime = System.currentTimeMillis();
+
+    ReindexTracker(SchedulerService schedulerService) {
+        this.schedulerService = schedulerService;
+    }
+
+    /**
+     * Registers a tracker on the RAM scheduler.
+     */
+    public static ReindexTracker start(SchedulerService schedulerService) throws SchedulerException {
+        final ReindexTracker tracker = new ReindexTracker(schedulerService);
+        schedulerService.getRAMScheduler().addGlobalJobListener(tracker);
+        return tracker;
+    }
+
+    /**
+     * @return completed with {@code true} once the reindexing is over, or with {@code false} if one of its jobs has
+     * failed or if its jobs can't be monitored
+     */
+    public CompletableFuture<Boolean> getCompletion() {
+        return completion;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Completes the tracking if no job of the search index is in progress, with a single lookup of the RAM jobs.
+     * Called by the waiting thread as a safety net.
+     *
+     * @return whether the reindexing is over
+     */
+    public boolean checkCompletion() {
+        return checkCompletion(null);
+    }
+
+    /**
+     * @param endedJob job which has just ended, whose final status is not yet written back to the job store when the
+     *                 listeners are notified: its status is read from the job itself, and it is skipped in the store.
+     *                 Null if none
+     */
+    private boolean checkCompletion(JobDetail endedJob) {
+        if (completion.isDone()) return true;
+        try {
+            boolean failed = false;
+            if (endedJob != null) {
+                if (isInProgress(endedJob)) return false;
+                failed = isFailed(endedJob);
+            }
+            for (JobDetail job : schedulerService.getAllRAMJobs()) {
+                if (!isReindexJob(job) || (endedJob != null && endedJob.getName().equals(job.getName()))) continue;
+                if (isInProgress(job)) return false;
+                failed |= isFailed(job);
+            }
+            complete(!failed);
+        } catch (SchedulerException ex) {
+            logger.error("Impossible to monitor reindexing job", ex);
+            complete(false);
+        }
+        return true;
+    }
+
+    static boolean isReindexJob(JobDetail job) {
+        return job.getName() != null && job.getName().startsWith(REINDEX_JOB_PREFIX);
+    }
+
+    static boolean isInProgress(JobDetail job) {
+        final String status = job.getJobDataMap().getString(BackgroundJob.JOB_STATUS);
+        return !BackgroundJob.STATUS_SUCCESSFUL.equals(status) && !BackgroundJob.STATUS_FAILED.equals(status);
+    }
+
+    private static boolean isFailed(JobDetail job) {
+        return BackgroundJob.STATUS_FAILED.equals(job.getJobDataMap().getString(BackgroundJob.JOB_STATUS));
+    }
+
+    private void complete(boolean successful) {
+        if (completion.complete(successful)) cancel();
+    }
+
+    /**
+     * Unregisters the listener, the tracking being over or abandoned.
+     */
+    public void cancel() {
+        try {
+            schedulerService.getRAMScheduler().removeGlobalJobListener(LISTENER_NAME);
+        } catch (SchedulerException ex) {
+            logger.warn("Failed to unregister the listener of the reindexing jobs", ex);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return LISTENER_NAME;
+    }
+
+    @Override
+    public void jobToBeExecuted(JobExecutionContext context) {
+        // Only the end of the jobs matters
+    }
+
+    @Override
+    public void jobExecutionVetoed(JobExecutionContext context) {
+        if (isReindexJob(context.getJobDetail())) checkCompletion();
+    }
+
+    @Override
+    public void jobWasExecuted(JobExecutionContext context, JobExecutionException jobException) {
+        // Notified before the job data is written back to the store, which still holds the status of the job as it
+        // was scheduled
+        if (isReindexJob(context.getJobDetail())) checkCompletion(context.getJobDetail());
+    }
+}
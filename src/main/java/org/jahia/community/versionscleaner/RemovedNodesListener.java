@@ -0,0 +1,72 @@
+package org.jahia.community.versionscleaner;
+
+import org.jahia.api.Constants;
+import org.jahia.services.content.DefaultEventListener;
+import org.jahia.services.content.JCRSessionFactory;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the identifiers of the nodes removed from the edit and live workspaces, so that the next incremental
+ * execution checks whether their version histories have become orphaned. Only the nodes which have a version history
+ * are recorded, the removal of the other ones can't leave anything to delete. Inactive unless the incremental mode is
+ * enabled in the configuration.
+ */
+@Component(service = DefaultEventListener.class, immediate = true)
+public class RemovedNodesListener extends DefaultEventListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(RemovedNodesListener.class);
+
+    private VersionsCleanerConfig config;
+
+    public RemovedNodesListener() {
+        // No workspace: listens to the events of all the workspaces, including the removals done by a publication
+        setWorkspace(null);
+        setAvailableDuringPublish(true);
+    }
+
+    @Reference
+    public void setConfig(VersionsCleanerConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public int getEventTypes() {
+        return Event.NODE_REMOVED;
+    }
+
+    @Override
+    public void onEvent(EventIterator events) {
+        if (config == null || !config.isIncremental()) return;
+        final List<String> identifiers = new ArrayList<>();
+        try {
+            // The version storage is shared by the workspaces
+            final Session session = JCRSessionFactory.getInstance().getCurrentSystemSession(Constants.EDIT_WORKSPACE, null, null);
+            while (events.hasNext()) {
+                final Event event = events.nextEvent();
+                try {
+                    if (hasVersionHistory(event.getIdentifier(), session)) identifiers.add(event.getIdentifier());
+                } catch (RepositoryException e) {
+                    logger.error("Failed to read the identifier of a removed node", e);
+                }
+            }
+        } catch (RepositoryException e) {
+            logger.error("Failed to open a session to look up the version histories of the removed nodes", e);
+        }
+        IncrementalJournal.appendRemovedNodes(identifiers);
+    }
+
+    static boolean hasVersionHistory(String identifier, Session session) throws RepositoryException {
+        final String path = CleanCommand.getVersionHistoryPath(identifier);
+        return path != null && session.nodeExists(path);
+    }
+}
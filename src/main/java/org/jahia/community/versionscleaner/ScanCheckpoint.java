@@ -0,0 +1,146 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Position where a scan of the versions tree has stopped, and the partitions (hashed folders two levels below the
+ * version storage) it has completed, saved periodically during the scan so that a crashed execution doesn't lose its
+ * progress. The file is written next to itself, then renamed, so that a crash while saving leaves the previous
+ * checkpoint intact.
+ *
+ * <p>The first line of the file holds the position, empty if there is none, and the following ones the completed
+ * partitions. The position saved by the previous versions of the module, in {@code lastPosition.txt}, is read if
+ * there is no checkpoint.
+ *
+ * <p>Shared by the workers of the parallel mode.
+ */
+public class ScanCheckpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScanCheckpoint.class);
+
+    static final String CHECKPOINT_FILE = "checkpoint.txt";
+    static final String LEGACY_POSITION_FILE = "lastPosition.txt";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    static final long SAVE_INTERVAL_IN_MS = 30000L;
+
+    private final File directory;
+    private final Set<String> completedPartitions = new HashSet<>();
+    private String position;
+    private long lastSave = System.currentTimeMillis();
+
+    ScanCheckpoint(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads the checkpoint saved in the directory. The checkpoint is empty if there is none, or if it can't be read.
+     */
+    public static ScanCheckpoint load(File directory) {
+        final ScanCheckpoint checkpoint = new ScanCheckpoint(directory);
+        try {
+            final File file = new File(directory, CHECKPOINT_FILE);
+            if (file.exists()) {
+                final List<String> lines = FileUtils.readLines(file, StandardCharsets.UTF_8);
+                if (CollectionUtils.isNotEmpty(lines)) {
+                    checkpoint.position = lines.get(0).isEmpty() ? null : lines.get(0);
+                    for (String line : lines.subList(1, lines.size())) {
+                        if (!line.isEmpty()) checkpoint.completedPartitions.add(line);
+                    }
+                }
+            } else {
+                final File legacyFile = new File(directory, LEGACY_POSITION_FILE);
+                if (legacyFile.exists()) {
+                    final List<String> lines = FileUtils.readLines(legacyFile, StandardCharsets.UTF_8);
+                    if (CollectionUtils.isNotEmpty(lines)) checkpoint.position = lines.get(0);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read the checkpoint of the last scan", e);
+        }
+        return checkpoint;
+    }
+
+    public synchronized String getPosition() {
+        return position;
+    }
+
+    public synchronized void setPosition(String position) {
+        this.position = position;
+    }
+
+    public synchronized boolean isPartitionCompleted(String partition) {
+        return completedPartitions.contains(partition);
+    }
+
+    public synchronized int getNbCompletedPartitions() {
+        return completedPartitions.size();
+    }
+
+    public synchronized void partitionCompleted(String partition) {
+        completedPartitions.add(partition);
+    }
+
+    /**
+     * Forgets the position and the completed partitions, the next save deletes the checkpoint.
+     */
+    public synchronized void reset() {
+        position = null;
+        completedPartitions.clear();
+    }
+
+    /**
+     * @return whether the checkpoint hasn't been saved for {@link #SAVE_INTERVAL_IN_MS}
+     */
+    public synchronized boolean isSaveDue() {
+        return System.currentTimeMillis() - lastSave >= SAVE_INTERVAL_IN_MS;
+    }
+
+    /**
+     * Saves the checkpoint, or deletes it if it is empty.
+     */
+    public synchronized void save() {
+        lastSave = System.currentTimeMillis();
+        if (!directory.exists() && !directory.mkdirs()) return;
+        final File file = new File(directory, CHECKPOINT_FILE);
+        try {
+            if (position == null && completedPartitions.isEmpty()) {
+                Files.deleteIfExists(file.toPath());
+                logger.debug("Saving the checkpoint: no position to save");
+            } else {
+                final List<String> lines = new ArrayList<>(completedPartitions.size() + 1);
+                lines.add(position == null ? "" : position);
+                lines.addAll(completedPartitions);
+                final File tempFile = new File(directory, CHECKPOINT_FILE + TEMP_FILE_SUFFIX);
+                Files.write(tempFile.toPath(), lines, StandardCharsets.UTF_8);
+                move(tempFile, file);
+                logger.debug("Saving the checkpoint: {}, {} completed partitions", position, completedPartitions.size());
+            }
+            // Superseded by the checkpoint
+            Files.deleteIfExists(new File(directory, LEGACY_POSITION_FILE).toPath());
+        } catch (IOException e) {
+            logger.error("Failed to save the checkpoint of the scan", e);
+        }
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.jahia.api.Constants;
+import org.jahia.bin.filters.jcr.JcrSessionFilter;
+import org.jahia.services.content.JCRSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+@Command(scope = "versions-cleaner", name = "stats", description = "Estimate the distribution of the versions in the version storage from a random sample of its hashed folders, without modifying anything")
+@Service
+public class StatsCommand implements Action {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatsCommand.class);
+
+    @Option(name = "-n", aliases = "--nb-folders", description = "Number of hashed folders (two levels below the version storage) to sample. 100 by default")
+    private int nbSampledPartitions = VersionStorageStatistics.DEFAULT_NB_SAMPLED_PARTITIONS;
+
+    @Option(name = "-top", aliases = "--nb-largest-histories", description = "Number of largest version histories to list. 10 by default")
+    private int nbLargestHistories = VersionStorageStatistics.DEFAULT_NB_LARGEST_HISTORIES;
+
+    @Override
+    public Object execute() throws Exception {
+        try {
+            final JCRSessionFactory sessionFactory = JCRSessionFactory.getInstance();
+            final VersionStorageStatistics statistics = VersionStorageStatistics.compute(
+                    sessionFactory.getCurrentSystemSession(Constants.EDIT_WORKSPACE, null, null),
+                    sessionFactory.getCurrentSystemSession(Constants.LIVE_WORKSPACE, null, null),
+                    nbSampledPartitions, nbLargestHistories, new Random());
+            logger.info("Statistics of the version storage:{}{}", System.lineSeparator(), statistics);
+            return statistics.toString();
+        } finally {
+            JcrSessionFilter.endRequest();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.jahia.community.versionscleaner;
+
+import org.jahia.utils.DatabaseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the pause between two deletions to hold a target latency: the latency of the deletions (smoothed with an
+ * exponentially weighted moving average) and the time waited for a connection of the DB pool, probed periodically,
+ * are compared to the target. The pause is doubled as long as one of them exceeds the target, and reduced step by
+ * step down to the configured pause once both are back under it, so the cleaner runs at full speed when the
+ * repository is idle and yields to the editors when it is busy.
+ *
+ * <p>Shared by the workers of the parallel mode.
+ */
+public class ThrottleController {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThrottleController.class);
+
+    static final long MAX_PAUSE_IN_MS = 5000L;
+    // First pause applied when the target is exceeded while there is no pause
+    static final long INITIAL_BACKOFF_IN_MS = 10L;
+    static final long DECREASE_STEP_IN_MS = 10L;
+    private static final double LATENCY_WEIGHT = 0.2d;
+    private static final long POOL_PROBE_INTERVAL_IN_MS = 5000L;
+
+    interface PoolWaitProbe {
+        /**
+         * @return the time waited for a connection in ms, or a negative value if it couldn't be measured
+         */
+        long measure();
+    }
+
+    private final long targetLatencyInMs;
+    private final long minPauseInMs;
+    private final long probeIntervalInMs;
+    private final PoolWaitProbe poolWaitProbe;
+    private double averageLatencyInMs = -1d;
+    private long poolWaitInMs;
+    private long pauseInMs;
+    private long lastProbe;
+
+    public ThrottleController(long targetLatencyInMs, long minPauseInMs) {
+        this(targetLatencyInMs, minPauseInMs, POOL_PROBE_INTERVAL_IN_MS, ThrottleController::measurePoolWait);
+    }
+
+    ThrottleController(long targetLatencyInMs, long minPauseInMs, long probeIntervalInMs, PoolWaitProbe poolWaitProbe) {
+        this.targetLatencyInMs = targetLatencyInMs;
+        this.minPauseInMs = Math.max(minPauseInMs, 0L);
+        this.probeIntervalInMs = probeIntervalInMs;
+        this.poolWaitProbe = poolWaitProbe;
+        this.pauseInMs = this.minPauseInMs;
+    }
+
+    private static long measurePoolWait() {
+        final long start = System.nanoTime();
+        try (Connection ignored = DatabaseUtils.getDatasource().getConnection()) {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } catch (SQLException e) {
+            logger.debug("Failed to probe the wait time of the DB pool", e);
+            return -1L;
+        }
+    }
+
+    /**
+     * Records the duration of a deletion, and adapts the pause accordingly.
+     */
+    public synchronized void recordLatency(long latencyInNanos) {
+        final double latencyInMs = latencyInNanos / 1_000_000d;
+        averageLatencyInMs = averageLatencyInMs < 0d ? latencyInMs : LATENCY_WEIGHT * latencyInMs + (1d - LATENCY_WEIGHT) * averageLatencyInMs;
+        adjustPause();
+    }
+
+    /**
+     * @return the pause to apply after a deletion, in ms
+     */
+    public long getPauseInMs() {
+        probePoolWaitIfDue();
+        synchronized (this) {
+            return pauseInMs;
+        }
+    }
+
+    private void probePoolWaitIfDue() {
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (now - lastProbe < probeIntervalInMs) return;
+            lastProbe = now;
+        }
+        // Measured out of the lock, so that the other workers are not blocked while waiting for a connection
+        final long wait = poolWaitProbe.measure();
+        if (wait < 0L) return;
+        synchronized (this) {
+            poolWaitInMs = wait;
+            adjustPause();
+        }
+    }
+
+    private void adjustPause() {
+        final long previousPause = pauseInMs;
+        if (Math.max(averageLatencyInMs, poolWaitInMs) > targetLatencyInMs) {
+            pauseInMs = Math.min(MAX_PAUSE_IN_MS, Math.max(pauseInMs * 2L, minPauseInMs + INITIAL_BACKOFF_IN_MS));
+        } else {
+            pauseInMs = Math.max(minPauseInMs, pauseInMs - DECREASE_STEP_IN_MS);
+        }
+        if (pauseInMs != previousPause && logger.isDebugEnabled()) {
+            logger.debug("Pause between deletions set to {} ms (average latency: {} ms, DB pool wait: {} ms, target: {} ms)",
+                    pauseInMs, Math.round(averageLatencyInMs), poolWaitInMs, targetLatencyInMs);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.jahia.community.versionscleaner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The N largest version histories found by a scan, by number of versions or by size of the binaries of their frozen
+ * nodes, kept in a min-heap of N entries so that the memory stays constant whatever the size of the version storage.
+ *
+ * <p>Shared by the workers of the parallel mode.
+ */
+public class TopHistories {
+
+    private static final Comparator<Entry> BY_NB_VERSIONS = Comparator.comparingLong(Entry::getNbVersions);
+    private static final Comparator<Entry> BY_SIZE = Comparator.comparingLong(Entry::getSizeInBytes).thenComparing(BY_NB_VERSIONS);
+
+    private static volatile TopHistories last;
+
+    private final int capacity;
+    private final boolean bySize;
+    private final Comparator<Entry> comparator;
+    private final PriorityQueue<Entry> heap;
+    private volatile long completedAt;
+    private volatile boolean interrupted;
+
+    public TopHistories(int capacity) {
+        this(capacity, false);
+    }
+
+    public TopHistories(int capacity, boolean bySize) {
+        this.capacity = capacity;
+        this.bySize = bySize;
+        this.comparator = bySize ? BY_SIZE : BY_NB_VERSIONS;
+        this.heap = new PriorityQueue<>(Math.max(capacity, 1), comparator);
+    }
+
+    /**
+     * @return the largest histories found by the last execution reporting them, or {@code null} if there is none
+     */
+    public static TopHistories getLast() {
+        return last;
+    }
+
+    public synchronized void offer(Entry entry) {
+        if (capacity <= 0) return;
+        if (heap.size() < capacity) {
+            heap.add(entry);
+        } else if (comparator.compare(entry, heap.peek()) > 0) {
+            heap.poll();
+            heap.add(entry);
+        }
+    }
+
+    /**
+     * Whether a history of this number of versions, or of this size when the histories are ranked by size, would be
+     * kept, to skip the lookups needed to build its entry.
+     */
+    public synchronized boolean accepts(long nbVersionsOrSize) {
+        if (capacity <= 0) return false;
+        if (heap.size() < capacity) return true;
+        final Entry smallest = heap.peek();
+        return nbVersionsOrSize > (bySize ? smallest.getSizeInBytes() : smallest.getNbVersions());
+    }
+
+    /**
+     * @return the largest histories, from the largest to the smallest
+     */
+    public synchronized List<Entry> getHistories() {
+        final List<Entry> histories = new ArrayList<>(heap);
+        histories.sort(Collections.reverseOrder(comparator));
+        return histories;
+    }
+
+    public boolean isBySize() {
+        return bySize;
+    }
+
+    /**
+     * Publishes the report, returned by {@link #getLast()} until the next execution reporting the largest histories
+     * completes.
+     */
+    public void complete(boolean interrupted) {
+        this.interrupted = interrupted;
+        completedAt = System.currentTimeMillis();
+        last = this;
+    }
+
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public boolean isInterrupted() {
+        return interrupted;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Entry entry : getHistories()) {
+            sb.append(String.format("%n  ")).append(entry);
+        }
+        return sb.toString();
+    }
+
+    public static final class Entry {
+
+        private final String path;
+        private final long nbVersions;
+        private final boolean orphaned;
+        private final String frozenUuid;
+        private final String primaryType;
+        private final String nodePath;
+        private final long sizeInBytes;
+
+        public Entry(String path, long nbVersions, boolean orphaned) {
+            this(path, nbVersions, orphaned, null, null, null, -1L);
+        }
+
+        /**
+         * @param nodePath    path of the versioned node in the edit workspace, or in the live one if it only exists
+         *                    there, {@code null} if it is orphaned
+         * @param sizeInBytes size of the binaries of the frozen nodes, -1 if not measured
+         */
+        public Entry(String path, long nbVersions, boolean orphaned, String frozenUuid, String primaryType, String nodePath, long sizeInBytes) {
+            this.path = path;
+            this.nbVersions = nbVersions;
+            this.orphaned = orphaned;
+            this.frozenUuid = frozenUuid;
+            this.primaryType = primaryType;
+            this.nodePath = nodePath;
+            this.sizeInBytes = sizeInBytes;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getNbVersions() {
+            return nbVersions;
+        }
+
+        public boolean isOrphaned() {
+            return orphaned;
+        }
+
+        public String getFrozenUuid() {
+            return frozenUuid;
+        }
+
+        public String getPrimaryType() {
+            return primaryType;
+        }
+
+        public String getNodePath() {
+            return nodePath;
+        }
+
+        public long getSizeInBytes() {
+            return sizeInBytes;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(path).append(" (").append(nbVersions).append(" versions");
+            if (sizeInBytes >= 0L) sb.append(", ").append(sizeInBytes).append(" bytes");
+            if (orphaned) sb.append(", orphaned");
+            if (frozenUuid != null) sb.append(", uuid: ").append(frozenUuid);
+            if (primaryType != null) sb.append(", type: ").append(primaryType);
+            if (nodePath != null) sb.append(", node: ").append(nodePath);
+            return sb.append(')').toString();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.jahia.community.versionscleaner;
+
+import org.jahia.api.Constants;
+import org.jahia.services.content.JCRNodeIteratorWrapper;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.version.VersionHistory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Statistics of the version storage computed from a simple random sample of its hashed folders, the ones two levels
+ * below {@code /jcr:system/jcr:versionStorage}, used as clusters of version histories: the distribution of the
+ * number of versions per history, the number of histories and versions, the ratio of orphaned histories, and the
+ * largest histories found. The confidence intervals are computed at 95% for a cluster sample drawn without
+ * replacement.
+ */
+public class VersionStorageStatistics {
+
+    private static final Logger logger = LoggerFactory.getLogger(VersionStorageStatistics.class);
+
+    public static final int DEFAULT_NB_SAMPLED_PARTITIONS = 100;
+    public static final int DEFAULT_NB_LARGEST_HISTORIES = 10;
+    // Upper bounds of the buckets of the histogram of the number of versions per history, the last bucket holding
+    // the larger histories
+    static final long[] HISTOGRAM_BOUNDS = {1L, 2L, 5L, 10L, 20L, 50L, 100L, 200L, 500L, 1000L, 5000L, 10000L};
+    private static final double Z_95 = 1.96d;
+
+    private final long nbPartitions;
+    private final long[] histogram = new long[HISTOGRAM_BOUNDS.length + 1];
+    private final List<long[]> sampledPartitions = new ArrayList<>();
+    private final TopHistories largestHistories;
+    private long partitionHistories;
+    private long partitionOrphans;
+    private long partitionVersions;
+
+    VersionStorageStatistics(long nbPartitions, int nbLargestHistories) {
+        this.nbPartitions = nbPartitions;
+        this.largestHistories = new TopHistories(nbLargestHistories);
+    }
+
+    /**
+     * Samples {@code nbSampledPartitions} hashed folders of the version storage, or all of them if there are fewer.
+     */
+    public static VersionStorageStatistics compute(JCRSessionWrapper editSession, JCRSessionWrapper liveSession,
+            int nbSampledPartitions, int nbLargestHistories, Random random) throws RepositoryException {
+        final CleanerContext context = new CleanerContext()
+                .setEditSession(editSession)
+                .setLiveSession(liveSession);
+        final List<String> partitions = CleanCommand.collectPartitions(editSession.getNode(CleanCommand.VERSIONS_PATH), context);
+        final int nbSamples = Math.min(Math.max(nbSampledPartitions, 0), partitions.size());
+        // Partial Fisher-Yates shuffle: the first nbSamples partitions are a simple random sample
+        for (int i = 0; i < nbSamples; i++) {
+            Collections.swap(partitions, i, i + random.nextInt(partitions.size() - i));
+        }
+        logger.info("Sampling {} of the {} hashed folders of the version storage", nbSamples, partitions.size());
+        final VersionStorageStatistics statistics = new VersionStorageStatistics(partitions.size(), nbLargestHistories);
+        for (String partition : partitions.subList(0, nbSamples)) {
+            statistics.scanPartition(editSession.getNode(partition), context);
+            statistics.partitionScanned();
+            editSession.refresh(false);
+            liveSession.refresh(false);
+        }
+        return statistics;
+    }
+
+    private void scanPartition(JCRNodeWrapper node, CleanerContext context) throws RepositoryException {
+        if (node.isNodeType(Constants.NT_VERSIONHISTORY)) {
+            final VersionHistory vh = (VersionHistory) node;
+            final long nbVersions = CleanCommand.getVersionsCount(vh, CleanCommand.getVersionsIterator(vh, context), context) - CleanCommand.ROOT_VERSION_COUNT;
+            final String uuid = CleanCommand.getFrozenUuid(node);
+            final boolean orphaned = uuid != null && CleanCommand.isUuidOrphaned(uuid, context);
+            // Only the histories making it into the largest ones are described, as it takes more lookups
+            trackHistory(largestHistories.accepts(nbVersions)
+                    ? CleanCommand.describeHistory(node, Math.max(nbVersions, 0L), orphaned, -1L, context)
+                    : new TopHistories.Entry(node.getPath(), Math.max(nbVersions, 0L), orphaned));
+            return;
+        }
+        final JCRNodeIteratorWrapper childNodes = node.getNodes();
+        while (childNodes.hasNext()) {
+            scanPartition((JCRNodeWrapper) childNodes.nextNode(), context);
+        }
+    }
+
+    void trackHistory(String path, long nbVersions, boolean orphaned) {
+        trackHistory(new TopHistories.Entry(path, nbVersions, orphaned));
+    }
+
+    private void trackHistory(TopHistories.Entry history) {
+        histogram[getBucket(history.getNbVersions())]++;
+        partitionHistories++;
+        partitionVersions += history.getNbVersions();
+        if (history.isOrphaned()) partitionOrphans++;
+        largestHistories.offer(history);
+    }
+
+    void partitionScanned() {
+        sampledPartitions.add(new long[]{partitionHistories, partitionOrphans, partitionVersions});
+        partitionHistories = 0L;
+        partitionOrphans = 0L;
+        partitionVersions = 0L;
+    }
+
+    static int getBucket(long nbVersions) {
+        for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++) {
+            if (nbVersions <= HISTOGRAM_BOUNDS[i]) return i;
+        }
+        return HISTOGRAM_BOUNDS.length;
+    }
+
+    /**
+     * @return the label of a bucket of the histogram, such as {@code "3-5"}
+     */
+    public static String getBucketLabel(int bucket) {
+        if (bucket == 0) return "0-" + HISTOGRAM_BOUNDS[0];
+        if (bucket == HISTOGRAM_BOUNDS.length) return ">" + HISTOGRAM_BOUNDS[HISTOGRAM_BOUNDS.length - 1];
+        final long lowerBound = HISTOGRAM_BOUNDS[bucket - 1] + 1L;
+        return lowerBound == HISTOGRAM_BOUNDS[bucket] ? String.valueOf(lowerBound) : lowerBound + "-" + HISTOGRAM_BOUNDS[bucket];
+    }
+
+    public long getNbPartitions() {
+        return nbPartitions;
+    }
+
+    public int getNbSampledPartitions() {
+        return sampledPartitions.size();
+    }
+
+    public long getNbSampledHistories() {
+        return sum(0);
+    }
+
+    /**
+     * @return the number of sampled histories per bucket, see {@link #getBucketLabel(int)}
+     */
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    public List<TopHistories.Entry> getLargestHistories() {
+        return largestHistories.getHistories();
+    }
+
+    public double getMeanVersionsPerHistory() {
+        final long nbHistories = sum(0);
+        return nbHistories == 0L ? 0d : sum(2) / (double) nbHistories;
+    }
+
+    public double getEstimatedHistories() {
+        return estimateTotal(0);
+    }
+
+    /**
+     * @return the margin of error of {@link #getEstimatedHistories()}, or -1 if fewer than 2 folders have been sampled
+     */
+    public double getEstimatedHistoriesMargin() {
+        return estimateTotalMargin(0);
+    }
+
+    public double getEstimatedVersions() {
+        return estimateTotal(2);
+    }
+
+    public double getEstimatedVersionsMargin() {
+        return estimateTotalMargin(2);
+    }
+
+    public double getOrphanRatio() {
+        final long nbHistories = sum(0);
+        return nbHistories == 0L ? 0d : sum(1) / (double) nbHistories;
+    }
+
+    /**
+     * Margin of error of the ratio estimator of the orphaned histories.
+     *
+     * @return the margin, or -1 if fewer than 2 folders have been sampled
+     */
+    public double getOrphanRatioMargin() {
+        final int n = sampledPartitions.size();
+        final long nbHistories = sum(0);
+        if (n < 2 || nbHistories == 0L) return -1d;
+        final double ratio = getOrphanRatio();
+        final double meanHistories = nbHistories / (double) n;
+        double sumOfSquares = 0d;
+        for (long[] partition : sampledPartitions) {
+            final double residual = partition[1] - ratio * partition[0];
+            sumOfSquares += residual * residual;
+        }
+        final double variance = getFinitePopulationCorrection() / (n * meanHistories * meanHistories) * sumOfSquares / (n - 1);
+        return Z_95 * Math.sqrt(variance);
+    }
+
+    private double estimateTotal(int column) {
+        final int n = sampledPartitions.size();
+        return n == 0 ? 0d : nbPartitions * sum(column) / (double) n;
+    }
+
+    private double estimateTotalMargin(int column) {
+        final int n = sampledPartitions.size();
+        if (n < 2) return -1d;
+        final double mean = sum(column) / (double) n;
+        double sumOfSquares = 0d;
+        for (long[] partition : sampledPartitions) {
+            final double deviation = partition[column] - mean;
+            sumOfSquares += deviation * deviation;
+        }
+        final double variance = nbPartitions * (double) nbPartitions * getFinitePopulationCorrection() * sumOfSquares / (n - 1) / n;
+        return Z_95 * Math.sqrt(variance);
+    }
+
+    private double getFinitePopulationCorrection() {
+        return nbPartitions == 0L ? 0d : 1d - sampledPartitions.size() / (double) nbPartitions;
+    }
+
+    private long sum(int column) {
+        long sum = 0L;
+        for (long[] partition : sampledPartitions) {
+            sum += partition[column];
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Sampled %d of the %d hashed folders of the version storage, %d version histories%n",
+                getNbSampledPartitions(), nbPartitions, getNbSampledHistories()));
+        sb.append(String.format("Estimated version histories: %s%n", formatEstimate(getEstimatedHistories(), getEstimatedHistoriesMargin())));
+        sb.append(String.format("Estimated versions: %s%n", formatEstimate(getEstimatedVersions(), getEstimatedVersionsMargin())));
+        sb.append(String.format("Mean versions per history: %.1f%n", getMeanVersionsPerHistory()));
+        sb.append(String.format("Orphaned histories: %.1f%%", 100d * getOrphanRatio()));
+        if (getOrphanRatioMargin() >= 0d) sb.append(String.format(" +/- %.1f%%", 100d * getOrphanRatioMargin()));
+        sb.append(String.format("%nVersions per history:%n"));
+        for (int i = 0; i < histogram.length; i++) {
+            sb.append(String.format("  %-12s %d%n", getBucketLabel(i), histogram[i]));
+        }
+        sb.append(String.format("Largest histories:%n"));
+        for (TopHistories.Entry entry : getLargestHistories()) {
+            sb.append("  ").append(entry).append(String.format("%n"));
+        }
+        return sb.toString();
+    }
+
+    private static String formatEstimate(double estimate, double margin) {
+        return margin < 0d ? String.format("%.0f", estimate) : String.format("%.0f +/- %.0f", estimate, margin);
+    }
+}
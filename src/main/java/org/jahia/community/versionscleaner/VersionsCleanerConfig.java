@@ -18,6 +18,12 @@ public class VersionsCleanerConfig implements ManagedService {
     public static final boolean DEFAULT_CHECK_INTEGRITY = false;
     public static final boolean DEFAULT_REINDEX_DEFAULT_WORKSPACE = false;
     public static final long DEFAULT_MAX_EXECUTION_TIME_IN_MS = 60000L;
+    public static final int DEFAULT_CONCURRENCY = CleanerContext.DEFAULT_CONCURRENCY;
+    public static final boolean DEFAULT_INCREMENTAL = false;
+    public static final boolean DEFAULT_USE_HISTORY_SCAN_INDEX = false;
+    public static final int DEFAULT_VERSION_REMOVAL_BATCH_SIZE = CleanerContext.DEFAULT_VERSION_REMOVAL_BATCH_SIZE;
+    public static final long DEFAULT_REFERENCED_VERSIONS_SNAPSHOT_MAX_MEMORY_MB = CleanerContext.DEFAULT_REFERENCED_VERSIONS_SNAPSHOT_MAX_MEMORY_MB;
+    public static final long DEFAULT_TARGET_LATENCY_IN_MS = CleanerContext.DEFAULT_TARGET_LATENCY_IN_MS;
 
     private boolean disabled = DEFAULT_DISABLED;
     private String cronExpression = DEFAULT_CRON_EXPRESSION;
@@ -26,6 +32,12 @@ public class VersionsCleanerConfig implements ManagedService {
     private long nbVersionsToKeep = DEFAULT_NB_VERSIONS_TO_KEEP;
     private long maxExecutionTimeInMs = DEFAULT_MAX_EXECUTION_TIME_IN_MS;
     private boolean deleteOrphanedVersions = DEFAULT_DELETE_ORPHANED_VERSIONS;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private boolean incremental = DEFAULT_INCREMENTAL;
+    private boolean useHistoryScanIndex = DEFAULT_USE_HISTORY_SCAN_INDEX;
+    private int versionRemovalBatchSize = DEFAULT_VERSION_REMOVAL_BATCH_SIZE;
+    private long referencedVersionsSnapshotMaxMemoryMb = DEFAULT_REFERENCED_VERSIONS_SNAPSHOT_MAX_MEMORY_MB;
+    private long targetLatencyInMs = DEFAULT_TARGET_LATENCY_IN_MS;
 
     @Override
     public void updated(Dictionary<String, ?> props) throws ConfigurationException {
@@ -53,6 +65,24 @@ public class VersionsCleanerConfig implements ManagedService {
         if (props.get("deleteOrphanedVersions") != null) {
             deleteOrphanedVersions = Boolean.parseBoolean(String.valueOf(props.get("deleteOrphanedVersions")));
         }
+        if (props.get("concurrency") != null) {
+            concurrency = Integer.parseInt(String.valueOf(props.get("concurrency")));
+        }
+        if (props.get("incremental") != null) {
+            incremental = Boolean.parseBoolean(String.valueOf(props.get("incremental")));
+        }
+        if (props.get("useHistoryScanIndex") != null) {
+            useHistoryScanIndex = Boolean.parseBoolean(String.valueOf(props.get("useHistoryScanIndex")));
+        }
+        if (props.get("versionRemovalBatchSize") != null) {
+            versionRemovalBatchSize = Integer.parseInt(String.valueOf(props.get("versionRemovalBatchSize")));
+        }
+        if (props.get("referencedVersionsSnapshotMaxMemoryMb") != null) {
+            referencedVersionsSnapshotMaxMemoryMb = Long.parseLong(String.valueOf(props.get("referencedVersionsSnapshotMaxMemoryMb")));
+        }
+        if (props.get("targetLatencyInMs") != null) {
+            targetLatencyInMs = Long.parseLong(String.valueOf(props.get("targetLatencyInMs")));
+        }
     }
 
     public boolean isDisabled() {
@@ -82,4 +112,28 @@ public class VersionsCleanerConfig implements ManagedService {
     public boolean isDeleteOrphanedVersions() {
         return deleteOrphanedVersions;
     }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isUseHistoryScanIndex() {
+        return useHistoryScanIndex;
+    }
+
+    public int getVersionRemovalBatchSize() {
+        return versionRemovalBatchSize;
+    }
+
+    public long getReferencedVersionsSnapshotMaxMemoryMb() {
+        return referencedVersionsSnapshotMaxMemoryMb;
+    }
+
+    public long getTargetLatencyInMs() {
+        return targetLatencyInMs;
+    }
 }
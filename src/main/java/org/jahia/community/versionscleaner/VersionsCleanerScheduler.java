@@ -51,6 +51,12 @@ public class VersionsCleanerScheduler {
             map.put("nbVersionsToKeep", config.getNbVersionsToKeep());
             map.put("maxExecutionTimeInMs", config.getMaxExecutionTimeInMs());
             map.put("deleteOrphanedVersions", config.isDeleteOrphanedVersions());
+            map.put("concurrency", config.getConcurrency());
+            map.put("incremental", config.isIncremental());
+            map.put("useHistoryScanIndex", config.isUseHistoryScanIndex());
+            map.put("versionRemovalBatchSize", config.getVersionRemovalBatchSize());
+            map.put("referencedVersionsSnapshotMaxMemoryMb", config.getReferencedVersionsSnapshotMaxMemoryMb());
+            map.put("targetLatencyInMs", config.getTargetLatencyInMs());
 
             final CronTrigger trigger = new CronTrigger(
                     "VersionsCleanerJobTrigger", jobDetail.getGroup(), config.getCronExpression());
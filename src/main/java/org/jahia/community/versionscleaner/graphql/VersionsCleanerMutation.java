@@ -70,7 +70,71 @@ public class VersionsCleanerMutation {
 
             @GraphQLName("forceRestartFromBeginning")
             @GraphQLDescription("Ignore the saved position and restart from the beginning of the tree")
-            Boolean forceRestartFromBeginning) {
+            Boolean forceRestartFromBeginning,
+
+            @GraphQLName("concurrency")
+            @GraphQLDescription("Number of workers processing in parallel the partitions of the versions tree (1 = sequential scan)")
+            Integer concurrency,
+
+            @GraphQLName("incremental")
+            @GraphQLDescription("Once a full scan has completed, only process the version histories with new versions and the ones of the nodes removed since the previous execution")
+            Boolean incremental,
+
+            @GraphQLName("useHistoryScanIndex")
+            @GraphQLDescription("Skip the counting of the versions of the histories known to be within the retention since the previous executions")
+            Boolean useHistoryScanIndex,
+
+            @GraphQLName("versionRemovalBatchSize")
+            @GraphQLDescription("Number of versions of a history removed within a single transaction (1 = one transaction per version)")
+            Integer versionRemovalBatchSize,
+
+            @GraphQLName("referencedVersionsSnapshotMaxMemoryMb")
+            @GraphQLDescription("Memory cap in MB of the snapshot of the referenced nodes of the version storage, used to skip the reference lookups of the unreferenced versions (0 = disabled)")
+            Long referencedVersionsSnapshotMaxMemoryMb,
+
+            @GraphQLName("targetLatencyInMs")
+            @GraphQLDescription("Latency in ms of the deletions to hold by adapting the pause between them, pauseDuration being the minimum pause (0 = fixed pause)")
+            Long targetLatencyInMs,
+
+            @GraphQLName("estimate")
+            @GraphQLDescription("Only estimate what would be deleted and the storage it would free, without deleting anything. The report is returned by the lastEstimate query")
+            Boolean estimate,
+
+            @GraphQLName("estimateSampleRatio")
+            @GraphQLDescription("In estimation mode, fraction (between 0 and 1) of the hashed folders of the version storage to scan, the counters being extrapolated (1 = every folder)")
+            Double estimateSampleRatio,
+
+            @GraphQLName("reportTopN")
+            @GraphQLDescription("Number of largest version histories to report at the end of the scan, returned by the largestHistories query. The scan runs even if nothing is deleted (0 = no report)")
+            Integer reportTopN,
+
+            @GraphQLName("reportTopNBySize")
+            @GraphQLDescription("Rank the largest version histories by the size of the binaries of their frozen nodes instead of by their number of versions")
+            Boolean reportTopNBySize,
+
+            @GraphQLName("distributed")
+            @GraphQLDescription("Distributed mode: the partitions of the versions tree are scanned by every member of the cluster where the cleaner is run with this argument, and the versions are deleted by the processing server, where it has to be run first")
+            Boolean distributed,
+
+            @GraphQLName("pipelineQueueCapacity")
+            @GraphQLDescription("Pipelined scan: capacity of the queues between the traversal of the versions tree, the classification of the histories and the deletion of their versions, each running in its own thread (0 = disabled)")
+            Integer pipelineQueueCapacity,
+
+            @GraphQLName("classificationConcurrency")
+            @GraphQLDescription("Pipelined scan: number of version histories classified at once, on a pool of platform threads (1 = one after the other)")
+            Integer classificationConcurrency,
+
+            @GraphQLName("classificationVirtualThreads")
+            @GraphQLDescription("Pipelined scan: with classificationConcurrency, classify the version histories on virtual threads when the runtime supports them instead of a pool of platform threads")
+            Boolean classificationVirtualThreads,
+
+            @GraphQLName("integrityFixBatchSize")
+            @GraphQLDescription("Number of fixes of the integrity check saved at once, the jcr:lastModified of the nodes fixed being restored for the whole batch (1 = each fix saved on its own, 100 by default)")
+            Integer integrityFixBatchSize,
+
+            @GraphQLName("scanDuringReindex")
+            @GraphQLDescription("With reindexDefaultWorkspace, scan the versions tree while the default workspace is reindexed instead of waiting for the reindexing to complete. The incremental mode and the history scan index, which rely on queries, still wait for it")
+            Boolean scanDuringReindex) {
 
         if (CleanCommand.isRunning()) {
             LOGGER.info("Versions cleaner run requested but already running");
@@ -87,7 +151,23 @@ public class VersionsCleanerMutation {
                 .setMaxExecutionTimeInMs(maxExecutionTimeInMs != null ? maxExecutionTimeInMs : 0L)
                 .setPauseDuration(pauseDuration != null ? pauseDuration : 0L)
                 .setSubtreePath(subtreePath)
-                .setRestartFromLastPosition(forceRestartFromBeginning == null || !forceRestartFromBeginning);
+                .setRestartFromLastPosition(forceRestartFromBeginning == null || !forceRestartFromBeginning)
+                .setConcurrency(concurrency != null ? concurrency : CleanerContext.DEFAULT_CONCURRENCY)
+                .setIncremental(incremental != null ? incremental : Boolean.FALSE)
+                .setUseHistoryScanIndex(useHistoryScanIndex != null ? useHistoryScanIndex : Boolean.FALSE)
+                .setVersionRemovalBatchSize(versionRemovalBatchSize != null ? versionRemovalBatchSize : CleanerContext.DEFAULT_VERSION_REMOVAL_BATCH_SIZE)
+                .setReferencedVersionsSnapshotMaxMemoryMb(referencedVersionsSnapshotMaxMemoryMb != null ? referencedVersionsSnapshotMaxMemoryMb : CleanerContext.DEFAULT_REFERENCED_VERSIONS_SNAPSHOT_MAX_MEMORY_MB)
+                .setTargetLatencyInMs(targetLatencyInMs != null ? targetLatencyInMs : CleanerContext.DEFAULT_TARGET_LATENCY_IN_MS)
+                .setEstimate(estimate != null ? estimate : Boolean.FALSE)
+                .setEstimateSampleRatio(estimateSampleRatio != null ? estimateSampleRatio : CleanerContext.DEFAULT_ESTIMATE_SAMPLE_RATIO)
+                .setReportTopN(reportTopN != null ? reportTopN : CleanerContext.DEFAULT_REPORT_TOP_N)
+                .setReportTopNBySize(reportTopNBySize != null ? reportTopNBySize : Boolean.FALSE)
+                .setDistributed(distributed != null ? distributed : Boolean.FALSE)
+                .setPipelineQueueCapacity(pipelineQueueCapacity != null ? pipelineQueueCapacity : CleanerContext.DEFAULT_PIPELINE_QUEUE_CAPACITY)
+                .setClassificationConcurrency(classificationConcurrency != null ? classificationConcurrency : CleanerContext.DEFAULT_CLASSIFICATION_CONCURRENCY)
+                .setClassificationVirtualThreads(classificationVirtualThreads != null ? classificationVirtualThreads : Boolean.FALSE)
+                .setIntegrityFixBatchSize(integrityFixBatchSize != null ? integrityFixBatchSize : CleanerContext.DEFAULT_INTEGRITY_FIX_BATCH_SIZE)
+                .setScanDuringReindex(scanDuringReindex != null ? scanDuringReindex : Boolean.FALSE);
 
         try {
             CleanCommand.execute(context);
@@ -5,6 +5,11 @@ import graphql.annotations.annotationTypes.GraphQLField;
 import graphql.annotations.annotationTypes.GraphQLName;
 import org.jahia.api.Constants;
 import org.jahia.community.versionscleaner.CleanCommand;
+import org.jahia.community.versionscleaner.CleanerMetrics;
+import org.jahia.community.versionscleaner.CleanerProgress;
+import org.jahia.community.versionscleaner.EstimationReport;
+import org.jahia.community.versionscleaner.TopHistories;
+import org.jahia.community.versionscleaner.VersionStorageStatistics;
 import org.jahia.community.versionscleaner.VersionsCleanerConfig;
 import org.jahia.modules.graphql.provider.dxm.security.GraphQLRequiresPermission;
 import org.jahia.osgi.BundleUtils;
@@ -12,6 +17,10 @@ import org.jahia.services.content.JCRSessionFactory;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.version.VersionHistory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
 
 @GraphQLName("VersionsCleanerQuery")
 @GraphQLDescription("Versions Cleaner queries")
@@ -75,6 +84,68 @@ public class VersionsCleanerQuery {
         );
     }
 
+    @GraphQLField
+    @GraphQLName("metrics")
+    @GraphQLDescription("Returns the latency of the phases and the throughput of the current or last execution")
+    @GraphQLRequiresPermission("versionsCleanerAdmin")
+    public GqlVersionsCleanerMetrics metrics() {
+        final CleanerMetrics metrics = CleanerMetrics.getInstance();
+        return new GqlVersionsCleanerMetrics(
+                metrics.getPhaseTimings().stream().map(GqlPhaseTimings::new).collect(Collectors.toList()),
+                metrics.getProcessedHistories(),
+                metrics.getDeletedVersions(),
+                metrics.getElapsedTimeInMs(),
+                metrics.getHistoriesPerSecond(),
+                metrics.getVersionsPerSecond()
+        );
+    }
+
+    @GraphQLField
+    @GraphQLName("progress")
+    @GraphQLDescription("Returns the progress of the current or last execution")
+    @GraphQLRequiresPermission("versionsCleanerAdmin")
+    public GqlVersionsCleanerProgress progress() {
+        return new GqlVersionsCleanerProgress(CleanerProgress.getInstance().snapshot());
+    }
+
+    @GraphQLField
+    @GraphQLName("lastEstimate")
+    @GraphQLDescription("Returns the report of the last execution in estimation mode, null if there is none")
+    @GraphQLRequiresPermission("versionsCleanerAdmin")
+    public GqlVersionsCleanerEstimate lastEstimate() {
+        final EstimationReport report = EstimationReport.getLast();
+        return report == null ? null : new GqlVersionsCleanerEstimate(report);
+    }
+
+    @GraphQLField
+    @GraphQLName("largestHistories")
+    @GraphQLDescription("Returns the largest version histories found by the last execution reporting them, null if there is none")
+    @GraphQLRequiresPermission("versionsCleanerAdmin")
+    public GqlLargestHistories largestHistories() {
+        final TopHistories largestHistories = TopHistories.getLast();
+        return largestHistories == null ? null : new GqlLargestHistories(largestHistories);
+    }
+
+    @GraphQLField
+    @GraphQLName("statistics")
+    @GraphQLDescription("Estimates the distribution of the versions in the version storage from a random sample of its hashed folders. Returns null on error.")
+    @GraphQLRequiresPermission("versionsCleanerAdmin")
+    public GqlVersionStorageStatistics statistics(
+            @GraphQLName("nbFolders") @GraphQLDescription("Number of hashed folders (two levels below the version storage) to sample, 100 by default") Integer nbFolders,
+            @GraphQLName("nbLargestHistories") @GraphQLDescription("Number of largest version histories to list, 10 by default") Integer nbLargestHistories) {
+        try {
+            final JCRSessionFactory sf = JCRSessionFactory.getInstance();
+            return new GqlVersionStorageStatistics(VersionStorageStatistics.compute(
+                    sf.getCurrentSystemSession(Constants.EDIT_WORKSPACE, null, null),
+                    sf.getCurrentSystemSession(Constants.LIVE_WORKSPACE, null, null),
+                    nbFolders != null ? nbFolders : VersionStorageStatistics.DEFAULT_NB_SAMPLED_PARTITIONS,
+                    nbLargestHistories != null ? nbLargestHistories : VersionStorageStatistics.DEFAULT_NB_LARGEST_HISTORIES,
+                    new Random()));
+        } catch (RepositoryException e) {
+            return null;
+        }
+    }
+
     @GraphQLName("VersionsCleanerConfig")
     @GraphQLDescription("Versions cleaner scheduled job configuration")
     public static class GqlVersionsCleanerConfig {
@@ -160,4 +231,569 @@ public class VersionsCleanerQuery {
             return maxExecutionTimeInMs;
         }
     }
+
+    @GraphQLName("VersionsCleanerMetrics")
+    @GraphQLDescription("Latency of the phases and throughput of the current or last execution of the versions cleaner")
+    public static class GqlVersionsCleanerMetrics {
+
+        private final List<GqlPhaseTimings> phaseTimings;
+        private final long processedHistories;
+        private final long deletedVersions;
+        private final long elapsedTimeInMs;
+        private final double historiesPerSecond;
+        private final double versionsPerSecond;
+
+        public GqlVersionsCleanerMetrics(List<GqlPhaseTimings> phaseTimings, long processedHistories, long deletedVersions,
+                long elapsedTimeInMs, double historiesPerSecond, double versionsPerSecond) {
+            this.phaseTimings = phaseTimings;
+            this.processedHistories = processedHistories;
+            this.deletedVersions = deletedVersions;
+            this.elapsedTimeInMs = elapsedTimeInMs;
+            this.historiesPerSecond = historiesPerSecond;
+            this.versionsPerSecond = versionsPerSecond;
+        }
+
+        @GraphQLField
+        @GraphQLName("phaseTimings")
+        @GraphQLDescription("Latency of each phase of the cleanup")
+        public List<GqlPhaseTimings> getPhaseTimings() {
+            return phaseTimings;
+        }
+
+        @GraphQLField
+        @GraphQLName("processedHistories")
+        @GraphQLDescription("Number of version histories processed")
+        public long getProcessedHistories() {
+            return processedHistories;
+        }
+
+        @GraphQLField
+        @GraphQLName("deletedVersions")
+        @GraphQLDescription("Number of versions deleted, orphaned or not")
+        public long getDeletedVersions() {
+            return deletedVersions;
+        }
+
+        @GraphQLField
+        @GraphQLName("elapsedTimeInMs")
+        @GraphQLDescription("Duration of the execution so far, in milliseconds")
+        public long getElapsedTimeInMs() {
+            return elapsedTimeInMs;
+        }
+
+        @GraphQLField
+        @GraphQLName("historiesPerSecond")
+        @GraphQLDescription("Number of version histories processed per second")
+        public double getHistoriesPerSecond() {
+            return historiesPerSecond;
+        }
+
+        @GraphQLField
+        @GraphQLName("versionsPerSecond")
+        @GraphQLDescription("Number of versions deleted per second")
+        public double getVersionsPerSecond() {
+            return versionsPerSecond;
+        }
+    }
+
+    @GraphQLName("VersionsCleanerPhaseTimings")
+    @GraphQLDescription("Latency of a phase of the cleanup, in milliseconds. The percentiles are approximated within a factor of 2")
+    public static class GqlPhaseTimings {
+
+        private final CleanerMetrics.PhaseTimings timings;
+
+        public GqlPhaseTimings(CleanerMetrics.PhaseTimings timings) {
+            this.timings = timings;
+        }
+
+        @GraphQLField
+        @GraphQLName("phase")
+        @GraphQLDescription("Phase: REFERENCE_LOOKUP, VERSION_REMOVAL, BATCH_VERSION_REMOVAL, ORPHAN_CHECK, PURGE or SESSION_REFRESH")
+        public String getPhase() {
+            return timings.getPhase();
+        }
+
+        @GraphQLField
+        @GraphQLName("count")
+        @GraphQLDescription("Number of measures")
+        public long getCount() {
+            return timings.getCount();
+        }
+
+        @GraphQLField
+        @GraphQLName("meanInMs")
+        @GraphQLDescription("Mean latency")
+        public double getMeanInMs() {
+            return timings.getMeanInMs();
+        }
+
+        @GraphQLField
+        @GraphQLName("p50InMs")
+        @GraphQLDescription("Median latency")
+        public double getP50InMs() {
+            return timings.getP50InMs();
+        }
+
+        @GraphQLField
+        @GraphQLName("p95InMs")
+        @GraphQLDescription("95th percentile of the latency")
+        public double getP95InMs() {
+            return timings.getP95InMs();
+        }
+
+        @GraphQLField
+        @GraphQLName("p99InMs")
+        @GraphQLDescription("99th percentile of the latency")
+        public double getP99InMs() {
+            return timings.getP99InMs();
+        }
+
+        @GraphQLField
+        @GraphQLName("maxInMs")
+        @GraphQLDescription("Maximum latency")
+        public double getMaxInMs() {
+            return timings.getMaxInMs();
+        }
+    }
+
+    @GraphQLName("VersionsCleanerProgress")
+    @GraphQLDescription("Progress of the current or last execution of the versions cleaner")
+    public static class GqlVersionsCleanerProgress {
+
+        private final CleanerProgress.Snapshot snapshot;
+
+        public GqlVersionsCleanerProgress(CleanerProgress.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @GraphQLField
+        @GraphQLName("running")
+        @GraphQLDescription("Whether an execution is in progress")
+        public boolean isRunning() {
+            return snapshot.isRunning();
+        }
+
+        @GraphQLField
+        @GraphQLName("processedHistories")
+        @GraphQLDescription("Number of version histories processed")
+        public long getProcessedHistories() {
+            return snapshot.getProcessedHistories();
+        }
+
+        @GraphQLField
+        @GraphQLName("deletedVersions")
+        @GraphQLDescription("Number of versions deleted from the non-orphaned histories")
+        public long getDeletedVersions() {
+            return snapshot.getDeletedVersions();
+        }
+
+        @GraphQLField
+        @GraphQLName("deletedHistories")
+        @GraphQLDescription("Number of non-orphaned histories deleted")
+        public long getDeletedHistories() {
+            return snapshot.getDeletedHistories();
+        }
+
+        @GraphQLField
+        @GraphQLName("deletedOrphanVersions")
+        @GraphQLDescription("Number of versions deleted from the orphaned histories")
+        public long getDeletedOrphanVersions() {
+            return snapshot.getDeletedOrphanVersions();
+        }
+
+        @GraphQLField
+        @GraphQLName("deletedOrphanHistories")
+        @GraphQLDescription("Number of orphaned histories deleted")
+        public long getDeletedOrphanHistories() {
+            return snapshot.getDeletedOrphanHistories();
+        }
+
+        @GraphQLField
+        @GraphQLName("currentPosition")
+        @GraphQLDescription("Folder of the version storage being scanned")
+        public String getCurrentPosition() {
+            return snapshot.getCurrentPosition();
+        }
+
+        @GraphQLField
+        @GraphQLName("elapsedTimeInMs")
+        @GraphQLDescription("Duration of the execution so far, in milliseconds")
+        public long getElapsedTimeInMs() {
+            return snapshot.getElapsedTimeInMs();
+        }
+
+        @GraphQLField
+        @GraphQLName("historiesPerSecond")
+        @GraphQLDescription("Number of version histories processed per second")
+        public double getHistoriesPerSecond() {
+            return snapshot.getHistoriesPerSecond();
+        }
+
+        @GraphQLField
+        @GraphQLName("versionsPerSecond")
+        @GraphQLDescription("Number of versions deleted per second")
+        public double getVersionsPerSecond() {
+            return snapshot.getVersionsPerSecond();
+        }
+
+        @GraphQLField
+        @GraphQLName("completedFraction")
+        @GraphQLDescription("Estimated fraction of the scan completed, between 0 and 1, null if unknown")
+        public Double getCompletedFraction() {
+            return snapshot.getCompletedFraction() < 0d ? null : snapshot.getCompletedFraction();
+        }
+
+        @GraphQLField
+        @GraphQLName("remainingTimeInMs")
+        @GraphQLDescription("Estimated remaining time of the scan in milliseconds, null if unknown")
+        public Long getRemainingTimeInMs() {
+            return snapshot.getRemainingTimeInMs() < 0L ? null : snapshot.getRemainingTimeInMs();
+        }
+
+        @GraphQLField
+        @GraphQLName("adaptiveThrottling")
+        @GraphQLDescription("Whether the pause between the deletions is adapted to a target latency")
+        public boolean isAdaptiveThrottling() {
+            return snapshot.isAdaptiveThrottling();
+        }
+
+        @GraphQLField
+        @GraphQLName("pauseInMs")
+        @GraphQLDescription("Pause applied after the last deletion, in milliseconds")
+        public long getPauseInMs() {
+            return snapshot.getPauseInMs();
+        }
+    }
+
+    @GraphQLName("VersionsCleanerEstimate")
+    @GraphQLDescription("What an execution would delete and the storage it would free, extrapolated when only a sample of the version storage has been scanned")
+    public static class GqlVersionsCleanerEstimate {
+
+        private final EstimationReport report;
+
+        public GqlVersionsCleanerEstimate(EstimationReport report) {
+            this.report = report;
+        }
+
+        @GraphQLField
+        @GraphQLName("completedAt")
+        @GraphQLDescription("Time at which the estimation has completed, in milliseconds since the epoch")
+        public long getCompletedAt() {
+            return report.getCompletedAt();
+        }
+
+        @GraphQLField
+        @GraphQLName("interrupted")
+        @GraphQLDescription("Whether the estimation has been interrupted before the end of the scan")
+        public boolean isInterrupted() {
+            return report.isInterrupted();
+        }
+
+        @GraphQLField
+        @GraphQLName("sampleRatio")
+        @GraphQLDescription("Requested fraction of the hashed folders to scan")
+        public double getSampleRatio() {
+            return report.getSampleRatio();
+        }
+
+        @GraphQLField
+        @GraphQLName("scannedPartitions")
+        @GraphQLDescription("Number of hashed folders scanned")
+        public long getScannedPartitions() {
+            return report.getScannedPartitions();
+        }
+
+        @GraphQLField
+        @GraphQLName("visitedPartitions")
+        @GraphQLDescription("Number of hashed folders found, scanned or not")
+        public long getVisitedPartitions() {
+            return report.getVisitedPartitions();
+        }
+
+        @GraphQLField
+        @GraphQLName("scannedHistories")
+        @GraphQLDescription("Number of version histories scanned")
+        public long getScannedHistories() {
+            return report.getScannedHistories();
+        }
+
+        @GraphQLField
+        @GraphQLName("orphanedHistories")
+        @GraphQLDescription("Estimated number of orphaned histories to delete")
+        public long getOrphanedHistories() {
+            return report.getEstimatedOrphanedHistories();
+        }
+
+        @GraphQLField
+        @GraphQLName("orphanedVersions")
+        @GraphQLDescription("Estimated number of versions of the orphaned histories")
+        public long getOrphanedVersions() {
+            return report.getEstimatedOrphanedVersions();
+        }
+
+        @GraphQLField
+        @GraphQLName("historiesOverRetention")
+        @GraphQLDescription("Estimated number of non-orphaned histories with more versions than the ones to keep")
+        public long getHistoriesOverRetention() {
+            return report.getEstimatedHistoriesOverRetention();
+        }
+
+        @GraphQLField
+        @GraphQLName("versionsOverRetention")
+        @GraphQLDescription("Estimated number of versions to delete from the non-orphaned histories")
+        public long getVersionsOverRetention() {
+            return report.getEstimatedVersionsOverRetention();
+        }
+
+        @GraphQLField
+        @GraphQLName("measuredVersions")
+        @GraphQLDescription("Number of versions whose size has been measured")
+        public long getMeasuredVersions() {
+            return report.getMeasuredVersions();
+        }
+
+        @GraphQLField
+        @GraphQLName("bundleBytes")
+        @GraphQLDescription("Estimated size in bytes of the bundles of the versions to delete, in the persistence manager of the version storage")
+        public long getBundleBytes() {
+            return report.getEstimatedBundleBytes();
+        }
+
+        @GraphQLField
+        @GraphQLName("binaryBytes")
+        @GraphQLDescription("Estimated size in bytes of the binaries of the versions to delete, an upper bound since they can be shared in the data store")
+        public long getBinaryBytes() {
+            return report.getEstimatedBinaryBytes();
+        }
+    }
+
+    @GraphQLName("VersionStorageStatistics")
+    @GraphQLDescription("Statistics of the version storage estimated from a random sample of its hashed folders, with margins of error at 95%")
+    public static class GqlVersionStorageStatistics {
+
+        private final VersionStorageStatistics statistics;
+
+        public GqlVersionStorageStatistics(VersionStorageStatistics statistics) {
+            this.statistics = statistics;
+        }
+
+        private static Double toMargin(double margin) {
+            return margin < 0d ? null : margin;
+        }
+
+        @GraphQLField
+        @GraphQLName("nbFolders")
+        @GraphQLDescription("Number of hashed folders in the version storage")
+        public long getNbFolders() {
+            return statistics.getNbPartitions();
+        }
+
+        @GraphQLField
+        @GraphQLName("nbSampledFolders")
+        @GraphQLDescription("Number of hashed folders sampled")
+        public int getNbSampledFolders() {
+            return statistics.getNbSampledPartitions();
+        }
+
+        @GraphQLField
+        @GraphQLName("nbSampledHistories")
+        @GraphQLDescription("Number of version histories found in the sampled folders")
+        public long getNbSampledHistories() {
+            return statistics.getNbSampledHistories();
+        }
+
+        @GraphQLField
+        @GraphQLName("estimatedHistories")
+        @GraphQLDescription("Estimated number of version histories")
+        public double getEstimatedHistories() {
+            return statistics.getEstimatedHistories();
+        }
+
+        @GraphQLField
+        @GraphQLName("estimatedHistoriesMargin")
+        @GraphQLDescription("Margin of error of the number of version histories, null if fewer than 2 folders have been sampled")
+        public Double getEstimatedHistoriesMargin() {
+            return toMargin(statistics.getEstimatedHistoriesMargin());
+        }
+
+        @GraphQLField
+        @GraphQLName("estimatedVersions")
+        @GraphQLDescription("Estimated number of versions, besides the root versions")
+        public double getEstimatedVersions() {
+            return statistics.getEstimatedVersions();
+        }
+
+        @GraphQLField
+        @GraphQLName("estimatedVersionsMargin")
+        @GraphQLDescription("Margin of error of the number of versions, null if fewer than 2 folders have been sampled")
+        public Double getEstimatedVersionsMargin() {
+            return toMargin(statistics.getEstimatedVersionsMargin());
+        }
+
+        @GraphQLField
+        @GraphQLName("meanVersionsPerHistory")
+        @GraphQLDescription("Mean number of versions per history, besides the root version")
+        public double getMeanVersionsPerHistory() {
+            return statistics.getMeanVersionsPerHistory();
+        }
+
+        @GraphQLField
+        @GraphQLName("orphanRatio")
+        @GraphQLDescription("Estimated fraction of the version histories which are orphaned")
+        public double getOrphanRatio() {
+            return statistics.getOrphanRatio();
+        }
+
+        @GraphQLField
+        @GraphQLName("orphanRatioMargin")
+        @GraphQLDescription("Margin of error of the fraction of orphaned histories, null if fewer than 2 folders have been sampled")
+        public Double getOrphanRatioMargin() {
+            return toMargin(statistics.getOrphanRatioMargin());
+        }
+
+        @GraphQLField
+        @GraphQLName("histogram")
+        @GraphQLDescription("Number of sampled histories per range of number of versions")
+        public List<GqlHistogramBucket> getHistogram() {
+            final long[] histogram = statistics.getHistogram();
+            final List<GqlHistogramBucket> buckets = new ArrayList<>(histogram.length);
+            for (int i = 0; i < histogram.length; i++) {
+                buckets.add(new GqlHistogramBucket(VersionStorageStatistics.getBucketLabel(i), histogram[i]));
+            }
+            return buckets;
+        }
+
+        @GraphQLField
+        @GraphQLName("largestHistories")
+        @GraphQLDescription("Largest version histories found in the sampled folders")
+        public List<GqlVersionHistorySize> getLargestHistories() {
+            return statistics.getLargestHistories().stream().map(GqlVersionHistorySize::new).collect(Collectors.toList());
+        }
+    }
+
+    @GraphQLName("VersionsCleanerLargestHistories")
+    @GraphQLDescription("Largest version histories found by an execution")
+    public static class GqlLargestHistories {
+
+        private final TopHistories largestHistories;
+
+        public GqlLargestHistories(TopHistories largestHistories) {
+            this.largestHistories = largestHistories;
+        }
+
+        @GraphQLField
+        @GraphQLName("completedAt")
+        @GraphQLDescription("Time at which the scan has completed, in milliseconds since the epoch")
+        public long getCompletedAt() {
+            return largestHistories.getCompletedAt();
+        }
+
+        @GraphQLField
+        @GraphQLName("interrupted")
+        @GraphQLDescription("Whether the scan has been interrupted, only the histories scanned before being ranked")
+        public boolean isInterrupted() {
+            return largestHistories.isInterrupted();
+        }
+
+        @GraphQLField
+        @GraphQLName("bySize")
+        @GraphQLDescription("Whether the histories are ranked by the size of the binaries of their frozen nodes instead of by their number of versions")
+        public boolean isBySize() {
+            return largestHistories.isBySize();
+        }
+
+        @GraphQLField
+        @GraphQLName("histories")
+        @GraphQLDescription("Largest version histories, from the largest to the smallest")
+        public List<GqlVersionHistorySize> getHistories() {
+            return largestHistories.getHistories().stream().map(GqlVersionHistorySize::new).collect(Collectors.toList());
+        }
+    }
+
+    @GraphQLName("VersionsHistogramBucket")
+    @GraphQLDescription("Number of version histories within a range of number of versions")
+    public static class GqlHistogramBucket {
+
+        private final String range;
+        private final long count;
+
+        public GqlHistogramBucket(String range, long count) {
+            this.range = range;
+            this.count = count;
+        }
+
+        @GraphQLField
+        @GraphQLName("range")
+        @GraphQLDescription("Range of number of versions, such as 3-5")
+        public String getRange() {
+            return range;
+        }
+
+        @GraphQLField
+        @GraphQLName("count")
+        @GraphQLDescription("Number of version histories")
+        public long getCount() {
+            return count;
+        }
+    }
+
+    @GraphQLName("VersionHistorySize")
+    @GraphQLDescription("Number of versions of a version history")
+    public static class GqlVersionHistorySize {
+
+        private final TopHistories.Entry entry;
+
+        public GqlVersionHistorySize(TopHistories.Entry entry) {
+            this.entry = entry;
+        }
+
+        @GraphQLField
+        @GraphQLName("path")
+        @GraphQLDescription("Path of the version history")
+        public String getPath() {
+            return entry.getPath();
+        }
+
+        @GraphQLField
+        @GraphQLName("nbVersions")
+        @GraphQLDescription("Number of versions, besides the root version")
+        public long getNbVersions() {
+            return entry.getNbVersions();
+        }
+
+        @GraphQLField
+        @GraphQLName("orphaned")
+        @GraphQLDescription("Whether the version history is orphaned")
+        public boolean isOrphaned() {
+            return entry.isOrphaned();
+        }
+
+        @GraphQLField
+        @GraphQLName("frozenUuid")
+        @GraphQLDescription("UUID of the versioned node, null if the history has no frozen node")
+        public String getFrozenUuid() {
+            return entry.getFrozenUuid();
+        }
+
+        @GraphQLField
+        @GraphQLName("primaryType")
+        @GraphQLDescription("Primary type of the versioned node, null if unknown")
+        public String getPrimaryType() {
+            return entry.getPrimaryType();
+        }
+
+        @GraphQLField
+        @GraphQLName("nodePath")
+        @GraphQLDescription("Path of the versioned node in the edit workspace, or in the live one if it only exists there, null if it doesn't exist")
+        public String getNodePath() {
+            return entry.getNodePath();
+        }
+
+        @GraphQLField
+        @GraphQLName("sizeInBytes")
+        @GraphQLDescription("Size of the binaries of the frozen nodes, null if not measured")
+        public Long getSizeInBytes() {
+            return entry.getSizeInBytes() < 0L ? null : entry.getSizeInBytes();
+        }
+    }
 }
@@ -0,0 +1,42 @@
+package org.jahia.community.versionscleaner.graphql;
+
+import graphql.annotations.annotationTypes.GraphQLDescription;
+import graphql.annotations.annotationTypes.GraphQLField;
+import graphql.annotations.annotationTypes.GraphQLName;
+import graphql.annotations.annotationTypes.GraphQLTypeExtension;
+import io.reactivex.Flowable;
+import org.jahia.community.versionscleaner.CleanerProgress;
+import org.jahia.modules.graphql.provider.dxm.DXGraphQLProvider;
+import org.jahia.modules.graphql.provider.dxm.security.GraphQLRequiresPermission;
+import org.reactivestreams.Publisher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscriptions can't be namespaced like the queries and the mutations: the root field has to return the stream.
+ */
+@GraphQLTypeExtension(DXGraphQLProvider.Subscription.class)
+@GraphQLDescription("Versions Cleaner subscriptions")
+public class VersionsCleanerSubscriptionExtension {
+
+    static final long DEFAULT_INTERVAL_IN_MS = 2000L;
+    static final long MIN_INTERVAL_IN_MS = 500L;
+
+    private VersionsCleanerSubscriptionExtension() {
+    }
+
+    @GraphQLField
+    @GraphQLName("versionsCleanerProgress")
+    @GraphQLDescription("Streams the progress of the versions cleaner. An event is pushed at most once per interval, only if the progress has changed since the previous one")
+    @GraphQLRequiresPermission("versionsCleanerAdmin")
+    public static Publisher<VersionsCleanerQuery.GqlVersionsCleanerProgress> versionsCleanerProgress(
+            @GraphQLName("intervalInMs") @GraphQLDescription("Interval between two events in milliseconds, 2000 by default, 500 at least") Long intervalInMs) {
+        final long interval = Math.max(MIN_INTERVAL_IN_MS, intervalInMs == null ? DEFAULT_INTERVAL_IN_MS : intervalInMs);
+        return Flowable.interval(0L, interval, TimeUnit.MILLISECONDS)
+                // A slow client gets the latest progress, the intermediate ticks are dropped
+                .onBackpressureLatest()
+                .map(tick -> CleanerProgress.getInstance().snapshot())
+                .distinctUntilChanged(CleanerProgress.Snapshot::hasSameState)
+                .map(VersionsCleanerQuery.GqlVersionsCleanerProgress::new);
+    }
+}
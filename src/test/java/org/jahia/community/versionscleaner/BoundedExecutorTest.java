@@ -0,0 +1,94 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link BoundedExecutor}: whether the tasks run on virtual threads or on the platform pool, no more than the
+ * maximum number of them run at once, the virtual threads are only used when requested, and the exit hook is called
+ * by each thread before it stops.
+ */
+public class BoundedExecutorTest {
+
+    private static final int MAX_CONCURRENCY = 3;
+
+    @Test
+    public void runsAtMostTheMaximumNumberOfTasksAtOnce() throws InterruptedException, ExecutionException {
+        // Arrange
+        final BoundedExecutor executor = BoundedExecutor.create(MAX_CONCURRENCY, "versions-cleaner-test", false);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<Future<Integer>> results = new ArrayList<>();
+
+        // Act
+        for (int i = 0; i < 20; i++) {
+            final int task = i;
+            results.add(executor.submit(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(5L);
+                running.decrementAndGet();
+                return task;
+            }));
+        }
+        executor.shutdown();
+
+        // Assert
+        for (int i = 0; i < results.size(); i++) assertThat(results.get(i).get()).isEqualTo(i);
+        assertThat(maxRunning.get()).isBetween(1, MAX_CONCURRENCY);
+    }
+
+    @Test
+    public void platformThreadsUnlessVirtualThreadsAreRequested() {
+        // Act
+        final BoundedExecutor executor = BoundedExecutor.create(1, "versions-cleaner-test", false);
+        executor.shutdown();
+
+        // Assert
+        assertThat(executor.isVirtual()).isFalse();
+    }
+
+    @Test
+    public void virtualThreadsOnlyWhenTheRuntimeSupportsThem() {
+        // Arrange
+        final boolean supported = Runtime.version().feature() >= 21;
+
+        // Act
+        final BoundedExecutor executor = BoundedExecutor.create(1, "versions-cleaner-test", true);
+        executor.shutdown();
+
+        // Assert
+        assertThat(executor.isVirtual()).isEqualTo(supported);
+        assertThat(BoundedExecutor.getVirtualThreadFactory("versions-cleaner-test") != null).isEqualTo(supported);
+    }
+
+    @Test
+    public void exitHookIsCalledByEachThreadBeforeItStops() throws InterruptedException, ExecutionException {
+        // Arrange
+        final Set<String> threadsWithTasks = ConcurrentHashMap.newKeySet();
+        final Set<String> stoppedThreads = ConcurrentHashMap.newKeySet();
+        final BoundedExecutor executor = BoundedExecutor.create(MAX_CONCURRENCY, "versions-cleaner-test", false,
+                () -> stoppedThreads.add(Thread.currentThread().getName()));
+        final List<Future<Boolean>> results = new ArrayList<>();
+
+        // Act
+        for (int i = 0; i < 20; i++) {
+            results.add(executor.submit(() -> threadsWithTasks.add(Thread.currentThread().getName())));
+        }
+        for (Future<Boolean> result : results) result.get();
+        executor.shutdown();
+
+        // Assert — the hook runs right after the threads have been counted as terminated
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (!stoppedThreads.containsAll(threadsWithTasks) && System.currentTimeMillis() < deadline) Thread.sleep(10L);
+        assertThat(stoppedThreads).containsAll(threadsWithTasks);
+    }
+}
@@ -0,0 +1,169 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.jackrabbit.api.XASession;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRStoreProvider;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the removal of the versions by batch of {@link CleanCommand#deleteVersionNodes}: a batch is removed
+ * within a single transaction committed once the whole batch is removed, a failing batch is rolled back and its
+ * versions are removed one by one, and the versions which are still referenced are never part of the transaction.
+ * The failed removals are fed to the adaptive throttling as well as the successful ones.
+ */
+public class CleanCommandBatchRemovalTest {
+
+    private static final int BATCH_SIZE = 3;
+
+    private static VersionHistory mockHistory(String... referencedVersionNames) throws RepositoryException {
+        final VersionHistory vh = mock(VersionHistory.class);
+        final List<String> referenced = Arrays.asList(referencedVersionNames);
+        for (String versionName : new String[]{"1.0", "1.1", "1.2"}) {
+            final Version version = mock(Version.class);
+            final PropertyIterator references = mock(PropertyIterator.class);
+            when(version.getIdentifier()).thenReturn("id-" + versionName);
+            when(version.getReferences()).thenReturn(references);
+            when(references.getSize()).thenReturn(referenced.contains(versionName) ? 1L : 0L);
+            when(vh.getVersion(versionName)).thenReturn(version);
+        }
+        return vh;
+    }
+
+    private static CleanerContext mockContext(XAResource xaResource) throws RepositoryException {
+        final JCRSessionWrapper editSession = mock(JCRSessionWrapper.class);
+        final JCRNodeWrapper rootNode = mock(JCRNodeWrapper.class);
+        final JCRStoreProvider provider = mock(JCRStoreProvider.class);
+        final XASession providerSession = mock(XASession.class);
+        when(editSession.getNode("/")).thenReturn(rootNode);
+        when(rootNode.getProvider()).thenReturn(provider);
+        when(editSession.getProviderSession(provider)).thenReturn(providerSession);
+        when(providerSession.getXAResource()).thenReturn(xaResource);
+        return new CleanerContext()
+                .setVersionRemovalBatchSize(BATCH_SIZE)
+                .setEditSession(editSession);
+    }
+
+    @Test
+    public void wholeBatchIsCommitted() throws RepositoryException, XAException {
+        // Arrange
+        final VersionHistory vh = mockHistory();
+        final XAResource xaResource = mock(XAResource.class);
+        final CleanerContext context = mockContext(xaResource);
+        final List<String> remaining = new ArrayList<>();
+
+        // Act
+        final long deleted = CleanCommand.deleteVersionNodes(vh, Arrays.asList("1.0", "1.1", "1.2"), context, remaining);
+
+        // Assert
+        assertThat(deleted).isEqualTo(3L);
+        assertThat(remaining).isEmpty();
+        final InOrder inOrder = inOrder(xaResource, vh);
+        inOrder.verify(xaResource).start(any(Xid.class), eq(XAResource.TMNOFLAGS));
+        inOrder.verify(vh).removeVersion("1.0");
+        inOrder.verify(vh).removeVersion("1.1");
+        inOrder.verify(vh).removeVersion("1.2");
+        inOrder.verify(xaResource).end(any(Xid.class), eq(XAResource.TMSUCCESS));
+        inOrder.verify(xaResource).commit(any(Xid.class), eq(true));
+        verify(xaResource, never()).rollback(any(Xid.class));
+    }
+
+    @Test
+    public void failingBatchIsRolledBackAndRemovedOneByOne() throws RepositoryException, XAException {
+        // Arrange
+        final VersionHistory vh = mockHistory();
+        doThrow(new RepositoryException("version storage locked")).doNothing().when(vh).removeVersion("1.1");
+        final XAResource xaResource = mock(XAResource.class);
+        final CleanerContext context = mockContext(xaResource);
+        final List<String> remaining = new ArrayList<>();
+
+        // Act
+        final long deleted = CleanCommand.deleteVersionNodes(vh, Arrays.asList("1.0", "1.1", "1.2"), context, remaining);
+
+        // Assert
+        assertThat(deleted).isEqualTo(3L);
+        assertThat(remaining).isEmpty();
+        final InOrder inOrder = inOrder(xaResource, vh);
+        inOrder.verify(xaResource).start(any(Xid.class), eq(XAResource.TMNOFLAGS));
+        inOrder.verify(xaResource).end(any(Xid.class), eq(XAResource.TMFAIL));
+        inOrder.verify(xaResource).rollback(any(Xid.class));
+        // One by one, out of the transaction
+        inOrder.verify(vh).removeVersion("1.0");
+        inOrder.verify(vh).removeVersion("1.1");
+        inOrder.verify(vh).removeVersion("1.2");
+        verify(xaResource, never()).commit(any(Xid.class), anyBoolean());
+        // Once in the transaction and once on its own
+        verify(vh, times(2)).removeVersion("1.0");
+        verify(vh, times(2)).removeVersion("1.1");
+        // Not reached in the transaction
+        verify(vh, times(1)).removeVersion("1.2");
+    }
+
+    @Test
+    public void referencedVersionsAreNeverPartOfTheTransaction() throws RepositoryException, XAException {
+        // Arrange
+        final VersionHistory vh = mockHistory("1.1");
+        doNothing().when(vh).removeVersion(any(String.class));
+        final XAResource xaResource = mock(XAResource.class);
+        final CleanerContext context = mockContext(xaResource);
+        final List<String> remaining = new ArrayList<>();
+
+        // Act
+        final long deleted = CleanCommand.deleteVersionNodes(vh, Arrays.asList("1.0", "1.1", "1.2"), context, remaining);
+
+        // Assert
+        assertThat(deleted).isEqualTo(2L);
+        assertThat(remaining).containsExactly("1.1");
+        verify(vh).removeVersion("1.0");
+        verify(vh).removeVersion("1.2");
+        verify(vh, never()).removeVersion("1.1");
+        verify(xaResource).commit(any(Xid.class), eq(true));
+    }
+
+    @Test
+    public void failedRemovalIsFedToTheThrottling() throws RepositoryException {
+        // Arrange
+        final VersionHistory vh = mockHistory();
+        doThrow(new RepositoryException("lock timeout")).when(vh).removeVersion("1.0");
+        final ThrottleController throttleController = mock(ThrottleController.class);
+        final CleanerContext context = new CleanerContext()
+                .setVersionRemovalBatchSize(1)
+                .setThrottleController(throttleController);
+        final List<String> remaining = new ArrayList<>();
+
+        // Act
+        final long deleted = CleanCommand.deleteVersionNodes(vh, Arrays.asList("1.0", "1.1"), context, remaining);
+
+        // Assert
+        assertThat(deleted).isEqualTo(1L);
+        assertThat(remaining).containsExactly("1.0");
+        // 1.0 fails twice, the second loop retrying it since 1.1 has been removed by the first one
+        verify(throttleController, times(3)).recordLatency(anyLong());
+    }
+}
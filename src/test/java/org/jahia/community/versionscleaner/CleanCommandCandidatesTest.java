@@ -0,0 +1,60 @@
+package org.jahia.community.versionscleaner;
+
+import org.jahia.services.content.JCRNodeIteratorWrapper;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.junit.Test;
+
+import javax.jcr.RepositoryException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link CleanCommand#processCandidates}: a candidate whose processing fails doesn't stop the processing of
+ * the rest of its block, and the whole block is removed from the table.
+ */
+public class CleanCommandCandidatesTest {
+
+    private static final String PARTITION = CleanCommand.VERSIONS_PATH + "/0a/1b";
+    private static final String BROKEN = PARTITION + "/2c/0a1b2c3d-4e5f-6789-abcd-ef0123456789";
+    private static final String FIRST = PARTITION + "/2c/0a1b2c00-1111-4111-8111-111111111111";
+    private static final String LAST = PARTITION + "/2c/0a1b2cff-2222-4222-8222-222222222222";
+
+    private static JCRNodeWrapper mockNode(String path) throws RepositoryException {
+        final JCRNodeWrapper node = mock(JCRNodeWrapper.class);
+        final JCRNodeIteratorWrapper children = mock(JCRNodeIteratorWrapper.class);
+        when(node.getPath()).thenReturn(path);
+        when(node.getNodes()).thenReturn(children);
+        return node;
+    }
+
+    @Test
+    public void failingCandidateDoesNotStopTheRestOfTheBlock() throws SQLException, RepositoryException {
+        // Arrange
+        final List<String> block = Arrays.asList(FIRST, BROKEN, LAST);
+        final PartitionLeases leases = mock(PartitionLeases.class);
+        when(leases.getCandidates(anyInt())).thenReturn(block, Collections.emptyList());
+        final JCRSessionWrapper editSession = mock(JCRSessionWrapper.class);
+        final JCRNodeWrapper first = mockNode(FIRST);
+        final JCRNodeWrapper last = mockNode(LAST);
+        when(editSession.getNode(FIRST)).thenReturn(first);
+        when(editSession.getNode(BROKEN)).thenThrow(new RepositoryException("corrupted bundle"));
+        when(editSession.getNode(LAST)).thenReturn(last);
+        final CleanerContext context = new CleanerContext().setEditSession(editSession);
+
+        // Act
+        CleanCommand.processCandidates(leases, context);
+
+        // Assert
+        verify(first).getNodes();
+        verify(last).getNodes();
+        for (String historyPath : block) verify(leases).removeCandidate(historyPath);
+    }
+}
@@ -0,0 +1,54 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.junit.Test;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RangeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the deletion by windows of {@link CleanCommand#deleteOldestVersions}: the last window is deleted even
+ * when the last children of the history returned by the iterator are not versions to delete.
+ */
+public class CleanCommandDeletionWindowTest {
+
+    private static Node mockChild(String name, boolean isVersion) throws RepositoryException {
+        final Node node = mock(Node.class);
+        when(node.getName()).thenReturn(name);
+        when(node.isNodeType(JcrConstants.NT_VERSION)).thenReturn(isVersion);
+        return node;
+    }
+
+    @Test
+    public void lastWindowIsDeletedWhenTheLastChildIsNotAVersion() throws RepositoryException {
+        // Arrange — the version labels node is returned after the versions.
+        final VersionHistory vh = mock(VersionHistory.class);
+        final Version version = mock(Version.class);
+        final PropertyIterator references = mock(PropertyIterator.class);
+        when(vh.getVersion("1.0")).thenReturn(version);
+        when(version.getReferences()).thenReturn(references);
+        when(references.getSize()).thenReturn(0L);
+        final Node firstVersion = mockChild("1.0", true);
+        final Node versionLabels = mockChild(JcrConstants.JCR_VERSIONLABELS, false);
+        final RangeIterator versionIterator = mock(RangeIterator.class);
+        when(versionIterator.getPosition()).thenReturn(0L);
+        when(versionIterator.hasNext()).thenReturn(true, true, false);
+        when(versionIterator.next()).thenReturn(firstVersion, versionLabels);
+
+        // Act
+        final long deleted = CleanCommand.deleteOldestVersions(vh, versionIterator, Long.MAX_VALUE, new CleanerContext());
+
+        // Assert
+        assertThat(deleted).isEqualTo(1L);
+        verify(vh).removeVersion("1.0");
+    }
+}
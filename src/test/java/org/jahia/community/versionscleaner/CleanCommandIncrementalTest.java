@@ -0,0 +1,31 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link CleanCommand#getVersionHistoryPath}, which maps the identifiers of the removed nodes recorded for
+ * the incremental mode to the hashed folders of the version storage.
+ */
+public class CleanCommandIncrementalTest {
+
+    @Test
+    public void hashesTheIdentifierOnThreeLevels() {
+        // Arrange
+        final String uuid = "0a1b2c3d-4e5f-6789-abcd-ef0123456789";
+
+        // Act
+        final String path = CleanCommand.getVersionHistoryPath(uuid);
+
+        // Assert
+        assertThat(path).isEqualTo("/jcr:system/jcr:versionStorage/0a/1b/2c/" + uuid);
+    }
+
+    @Test
+    public void returnsNullForAnInvalidIdentifier() {
+        // Act + Assert
+        assertThat(CleanCommand.getVersionHistoryPath("not-a-uuid")).isNull();
+        assertThat(CleanCommand.getVersionHistoryPath("")).isNull();
+    }
+}
@@ -1,5 +1,6 @@
 package org.jahia.community.versionscleaner;
 
+import org.jahia.api.Constants;
 import org.junit.Test;
 
 import javax.jcr.ItemNotFoundException;
@@ -13,10 +14,14 @@ import javax.jcr.Value;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -31,7 +36,9 @@ import static org.mockito.Mockito.when;
  * <ul>
  *   <li>the {@code fixIntegrity} flag defaults to {@code false} (report-only);</li>
  *   <li>with {@code fix=false}, a node carrying a dangling REFERENCE is detected but NOT mutated —
- *       the reference property is never nulled and the node is never removed.</li>
+ *       the reference property is never nulled and the node is never removed;</li>
+ *   <li>the targets in the version storage, such as the ones of {@code jcr:baseVersion}, are found by block
+ *       without any session lookup.</li>
  * </ul>
  */
 public class CleanCommandIntegrityFixTest {
@@ -65,7 +72,7 @@ public class CleanCommandIntegrityFixTest {
         // The referenced node cannot be resolved → dangling reference.
         when(session.getNodeByIdentifier(DANGLING_UUID)).thenThrow(new ItemNotFoundException(DANGLING_UUID));
 
-        // isExternalMapping() consults the DB connection; stub the chain to report "no mapping".
+        // The external mappings are looked up with the DB connection; stub the chain to report "no mapping".
         final Connection conn = mock(Connection.class);
         final PreparedStatement ps = mock(PreparedStatement.class);
         final ResultSet rs = mock(ResultSet.class);
@@ -88,4 +95,28 @@ public class CleanCommandIntegrityFixTest {
         verify(property, never()).setValue(any(Value[].class));
         verify(node, never()).remove();
     }
+
+    @Test
+    public void targetsInTheVersionStorageAreLookedUpByBlock() throws Exception {
+        // Arrange — a versionable node: its jcr:baseVersion and jcr:versionHistory point to the version storage.
+        final String baseVersion = "11111111-1111-1111-1111-111111111111";
+        final String versionHistory = "22222222-2222-2222-2222-222222222222";
+        final Session session = mock(Session.class);
+        final Property property = mock(Property.class);
+        final OrphanDetector orphanDetector = mock(OrphanDetector.class);
+        final Set<String> targets = new HashSet<>(Arrays.asList(baseVersion, versionHistory));
+        when(orphanDetector.findExistingIn(eq(Constants.EDIT_WORKSPACE), any())).thenReturn(new HashSet<>());
+        when(orphanDetector.findExistingInVersionStorage(any())).thenReturn(new HashSet<>(targets));
+        final ReferenceTargetCache cache = new ReferenceTargetCache();
+
+        // Act
+        final Set<String> missingTargets = CleanCommand.findMissingTargets(session, Arrays.asList(
+                new CleanCommand.Reference(property, baseVersion),
+                new CleanCommand.Reference(property, versionHistory)), cache, orphanDetector, Constants.EDIT_WORKSPACE);
+
+        // Assert — found without any session lookup, and not cached since each of them is unique to the node.
+        assertThat(missingTargets).isEmpty();
+        verify(session, never()).getNodeByIdentifier(anyString());
+        assertThat(cache.isKnownToExist(baseVersion)).isFalse();
+    }
 }
@@ -26,7 +26,8 @@ import static org.mockito.Mockito.when;
  *   <li>absent in both → orphaned;</li>
  *   <li>a generic {@link RepositoryException} (e.g. a transient JCR error) must <b>propagate</b> and
  *       must NOT be silently interpreted as "orphaned" — otherwise a transient failure could turn
- *       into a false-orphan deletion. This is the key data-loss regression guard.</li>
+ *       into a false-orphan deletion. This is the key data-loss regression guard;</li>
+ *   <li>the check done again right before a purge ignores the status resolved by block.</li>
  * </ul>
  */
 public class CleanCommandOrphanTest {
@@ -95,4 +96,38 @@ public class CleanCommandOrphanTest {
                 .hasMessageContaining("transient JCR failure");
         verify(live, never()).getNodeByIdentifier(UUID);
     }
+
+    @Test
+    public void statusResolvedByBlockIsUsedWithoutQueryingTheSessions() throws RepositoryException {
+        // Arrange — the orphan status of the UUID was already resolved by the bulk DB lookup.
+        final JCRSessionWrapper edit = mock(JCRSessionWrapper.class);
+        final JCRSessionWrapper live = mock(JCRSessionWrapper.class);
+        final CleanerContext context = contextWith(edit, live);
+        context.getResolvedOrphans().put(UUID, Boolean.TRUE);
+
+        // Act
+        final boolean orphaned = CleanCommand.isUuidOrphaned(UUID, context);
+
+        // Assert
+        assertThat(orphaned).isTrue();
+        verify(edit, never()).getNodeByIdentifier(UUID);
+        verify(live, never()).getNodeByIdentifier(UUID);
+    }
+
+    @Test
+    public void statusResolvedByBlockIsIgnoredWhenCheckedAgainBeforeThePurge() throws RepositoryException {
+        // Arrange — resolved as orphaned by block, but the node has been imported since then.
+        final JCRSessionWrapper edit = mock(JCRSessionWrapper.class);
+        final JCRSessionWrapper live = mock(JCRSessionWrapper.class);
+        final CleanerContext context = contextWith(edit, live);
+        context.getResolvedOrphans().put(UUID, Boolean.TRUE);
+        when(edit.getNodeByIdentifier(UUID)).thenReturn(mock(JCRNodeWrapper.class));
+
+        // Act
+        final boolean missing = CleanCommand.isVersionedNodeMissing(UUID, context);
+
+        // Assert
+        assertThat(missing).isFalse();
+        verify(edit).getNodeByIdentifier(UUID);
+    }
 }
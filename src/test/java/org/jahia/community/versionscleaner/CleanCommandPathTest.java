@@ -7,7 +7,8 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * Tests for {@link CleanCommand#normalizeSubtreePath} which guards the destructive scan against
- * escaping the version-storage root via parent/self path segments.
+ * escaping the version-storage root via parent/self path segments, and for {@link CleanCommand#getNextSegment}
+ * which leads a resumed scan to the last position.
  */
 public class CleanCommandPathTest {
 
@@ -39,4 +40,38 @@ public class CleanCommandPathTest {
         assertThatThrownBy(() -> CleanCommand.normalizeSubtreePath("a/./b"))
                 .isInstanceOf(IllegalArgumentException.class);
     }
+
+    @Test
+    public void nextSegmentLeadsToThePosition() {
+        // Arrange
+        final String position = "/jcr:system/jcr:versionStorage/0a/1b/2c";
+
+        // Act
+        final String firstSegment = CleanCommand.getNextSegment("/jcr:system/jcr:versionStorage", position);
+        final String secondSegment = CleanCommand.getNextSegment("/jcr:system/jcr:versionStorage/0a", position);
+        final String lastSegment = CleanCommand.getNextSegment("/jcr:system/jcr:versionStorage/0a/1b", position);
+
+        // Assert
+        assertThat(firstSegment).isEqualTo("0a");
+        assertThat(secondSegment).isEqualTo("1b");
+        assertThat(lastSegment).isEqualTo("2c");
+    }
+
+    @Test
+    public void noNextSegmentOutsideOfThePosition() {
+        // Arrange
+        final String position = "/jcr:system/jcr:versionStorage/0a/1b/2c";
+
+        // Act
+        final String atThePosition = CleanCommand.getNextSegment("/jcr:system/jcr:versionStorage/0a/1b/2c", position);
+        final String siblingPrefix = CleanCommand.getNextSegment("/jcr:system/jcr:versionStorage/0a/1", position);
+        final String sibling = CleanCommand.getNextSegment("/jcr:system/jcr:versionStorage/0b", position);
+        final String noPosition = CleanCommand.getNextSegment("/jcr:system/jcr:versionStorage", null);
+
+        // Assert
+        assertThat(atThePosition).isNull();
+        assertThat(siblingPrefix).isNull();
+        assertThat(sibling).isNull();
+        assertThat(noPosition).isNull();
+    }
 }
@@ -2,89 +2,59 @@ package org.jahia.community.versionscleaner;
 
 import org.junit.Test;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.assertj.core.api.Assertions.assertThatCode;
 
 /**
- * Focused tests for the retention/bounds logic of {@link CleanCommand#retainNewestVersions}.
+ * Focused tests for the retention/bounds logic of {@link CleanCommand#getNbVersionsToDelete}.
  *
- * The list is ordered oldest-first (root already excluded). After the call, the list must contain
- * only the versions that are still candidates for deletion (i.e. the oldest ones), with the newest
- * {@code nbVersionsToKeep} entries removed from the candidate list.
+ * The versions are deleted oldest-first (root excluded), so the result is the number of the oldest versions to
+ * delete, leaving the newest {@code nbVersionsToKeep} ones.
  */
 public class CleanCommandRetentionTest {
 
-    private static List<String> versions(String... names) {
-        return new ArrayList<>(Arrays.asList(names));
-    }
-
     @Test
-    public void keepsNewestEntriesAndLeavesOldestAsDeletionCandidates() {
-        // Arrange
-        final List<String> names = versions("v1", "v2", "v3", "v4", "v5");
-
+    public void keepsNewestEntriesAndDeletesOldest() {
         // Act
-        CleanCommand.retainNewestVersions(names, 2);
+        final long nbVersionsToDelete = CleanCommand.getNbVersionsToDelete(5L, 2L);
 
         // Assert - keep v4,v5 (newest two), delete v1,v2,v3
-        assertThat(names).containsExactly("v1", "v2", "v3");
+        assertThat(nbVersionsToDelete).isEqualTo(3L);
     }
 
     @Test
-    public void keepingZeroLeavesAllAsDeletionCandidates() {
-        final List<String> names = versions("v1", "v2", "v3");
-
-        CleanCommand.retainNewestVersions(names, 0);
-
-        assertThat(names).containsExactly("v1", "v2", "v3");
+    public void keepingZeroDeletesAll() {
+        assertThat(CleanCommand.getNbVersionsToDelete(3L, 0L)).isEqualTo(3L);
     }
 
     @Test
     public void keepingMoreThanAvailableDeletesNothing() {
-        final List<String> names = versions("v1", "v2");
-
-        CleanCommand.retainNewestVersions(names, 5);
-
-        assertThat(names).isEmpty();
+        assertThat(CleanCommand.getNbVersionsToDelete(2L, 5L)).isZero();
     }
 
     @Test
     public void keepingExactlyAvailableDeletesNothing() {
-        final List<String> names = versions("v1", "v2", "v3");
-
-        CleanCommand.retainNewestVersions(names, 3);
-
-        assertThat(names).isEmpty();
+        assertThat(CleanCommand.getNbVersionsToDelete(3L, 3L)).isZero();
     }
 
     @Test
-    public void doesNotThrowWhenKeepCountExceedsSize() {
-        final List<String> names = versions("only");
-
-        assertThatCode(() -> CleanCommand.retainNewestVersions(names, Long.MAX_VALUE))
-                .doesNotThrowAnyException();
-        assertThat(names).isEmpty();
+    public void doesNotOverflowWhenKeepCountExceedsSize() {
+        assertThat(CleanCommand.getNbVersionsToDelete(1L, Long.MAX_VALUE)).isZero();
     }
 
     @Test
-    public void doesNotThrowOnEmptyList() {
-        final List<String> names = versions();
-
-        assertThatCode(() -> CleanCommand.retainNewestVersions(names, 2))
-                .doesNotThrowAnyException();
-        assertThat(names).isEmpty();
+    public void deletesNothingFromAnEmptyOrUnknownSizedHistory() {
+        assertThat(CleanCommand.getNbVersionsToDelete(0L, 2L)).isZero();
+        // RangeIterator.getSize() returns -1 when the size is unknown
+        assertThat(CleanCommand.getNbVersionsToDelete(-1L, 2L)).isZero();
     }
 
     @Test
     public void keepsSingleNewestEntry() {
-        final List<String> names = versions("v1", "v2", "v3", "v4");
-
-        CleanCommand.retainNewestVersions(names, 1);
+        assertThat(CleanCommand.getNbVersionsToDelete(4L, 1L)).isEqualTo(3L);
+    }
 
-        assertThat(names).containsExactly("v1", "v2", "v3");
+    @Test
+    public void negativeKeepCountIsClampedToZero() {
+        assertThat(CleanCommand.getNbVersionsToDelete(4L, -1L)).isEqualTo(4L);
     }
 }
@@ -1,9 +1,20 @@
 package org.jahia.community.versionscleaner;
 
+import org.jahia.api.Constants;
+import org.jahia.services.content.JCRSessionWrapper;
 import org.junit.Test;
+import org.mockito.InOrder;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 /**
  * Tests for {@link CleanerContext} configuration guards and deletion counters.
@@ -46,6 +57,7 @@ public class CleanerContextTest {
         assertThat(new CleanerContext().scanVersionsTree()).isFalse();
         assertThat(new CleanerContext().setDeleteOrphanedVersions(true).scanVersionsTree()).isTrue();
         assertThat(new CleanerContext().setNbVersionsToKeep(2L).scanVersionsTree()).isTrue();
+        assertThat(new CleanerContext().setReportTopN(10).scanVersionsTree()).isTrue();
     }
 
     @Test
@@ -62,4 +74,60 @@ public class CleanerContextTest {
         assertThat(context.getDeletedVersionHistoriesCount()).isEqualTo(1L);
         assertThat(context.getDeletedOrphanVersionHistoriesCount()).isEqualTo(1L);
     }
+
+    @Test
+    public void partitionContextSharesConfigurationAndInterruptionButNotCounters() {
+        final CleanerContext context = new CleanerContext()
+                .setNbVersionsToKeep(3L)
+                .setDeleteOrphanedVersions(true)
+                .setConcurrency(4)
+                .setVersionRemovalBatchSize(50);
+        context.trackDeletedVersions(7L, false);
+
+        final CleanerContext partitionContext = context.newPartitionContext();
+
+        assertThat(partitionContext.getNbVersionsToKeep()).isEqualTo(3L);
+        assertThat(partitionContext.isDeleteOrphanedVersions()).isTrue();
+        assertThat(partitionContext.getConcurrency()).isEqualTo(CleanerContext.DEFAULT_CONCURRENCY);
+        assertThat(partitionContext.getVersionRemovalBatchSize()).isEqualTo(50);
+        assertThat(partitionContext.getInterruptionHandler()).isSameAs(context.getInterruptionHandler());
+        assertThat(partitionContext.getDeletedVersionsCount()).isZero();
+    }
+
+    @Test
+    public void pendingIntegrityFixesAreSavedBeforeTheSessionsAreRefreshed() throws RepositoryException {
+        final JCRSessionWrapper session = mock(JCRSessionWrapper.class);
+        final Node node = mock(Node.class);
+        final Property reference = mock(Property.class);
+        when(node.getIdentifier()).thenReturn("node");
+        when(node.getProperty(Constants.JCR_LASTMODIFIED)).thenThrow(new PathNotFoundException());
+        when(session.getNodeByIdentifier("node")).thenReturn(node);
+        final CleanerContext context = new CleanerContext().setIntegrityFixBatchSize(10).setEditSession(session);
+        context.getIntegrityFixBatch().fix(node, reference, "deadbeef-0000-0000-0000-000000000000");
+        assertThat(context.getIntegrityFixBatch().getNbPendingFixes()).isEqualTo(1);
+
+        context.refreshSessions();
+
+        final InOrder inOrder = inOrder(session);
+        inOrder.verify(session).save();
+        inOrder.verify(session).refresh(false);
+        assertThat(context.getIntegrityFixBatch().getNbSavedFixes()).isEqualTo(1L);
+    }
+
+    @Test
+    public void mergeCountersAddsThePartitionCounters() {
+        final CleanerContext context = new CleanerContext();
+        context.trackDeletedVersions(1L, false);
+        final CleanerContext partitionContext = context.newPartitionContext();
+        partitionContext.trackDeletedVersions(2L, false);
+        partitionContext.trackDeletedVersions(5L, true);
+        partitionContext.trackDeletedVersionHistory(true);
+
+        context.mergeCounters(partitionContext);
+
+        assertThat(context.getDeletedVersionsCount()).isEqualTo(3L);
+        assertThat(context.getDeletedOrphanVersionsCount()).isEqualTo(5L);
+        assertThat(context.getDeletedOrphanVersionHistoriesCount()).isEqualTo(1L);
+        assertThat(context.getDeletedVersionHistoriesCount()).isZero();
+    }
 }
@@ -0,0 +1,70 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Tests for the estimation of the progress: the completed fraction must follow the position within the hashed
+ * folders of the version storage, relatively to the scanned subtree, and the remaining time must only extrapolate
+ * what has been scanned by the current execution.
+ */
+public class CleanerProgressTest {
+
+    private static final String VERSIONS_PATH = "/jcr:system/jcr:versionStorage";
+
+    @Test
+    public void fractionFollowsTheHashedFolders() {
+        // Act & Assert
+        assertThat(CleanCommand.getKeyspaceFraction(VERSIONS_PATH, VERSIONS_PATH + "/00/00/00")).isZero();
+        assertThat(CleanCommand.getKeyspaceFraction(VERSIONS_PATH, VERSIONS_PATH + "/80/00/00")).isEqualTo(0.5d);
+        assertThat(CleanCommand.getKeyspaceFraction(VERSIONS_PATH, VERSIONS_PATH + "/40/80/00")).isCloseTo(0.25d + 0.5d / 256d, within(1e-12));
+        assertThat(CleanCommand.getKeyspaceFraction(VERSIONS_PATH, VERSIONS_PATH + "/ff/ff/ff")).isLessThan(1d);
+    }
+
+    @Test
+    public void fractionIsRelativeToTheScannedSubtree() {
+        // Act & Assert
+        assertThat(CleanCommand.getKeyspaceFraction(VERSIONS_PATH + "/ab", VERSIONS_PATH + "/ab/80/00")).isEqualTo(0.5d);
+        assertThat(CleanCommand.getKeyspaceFraction(VERSIONS_PATH + "/ab/cd", VERSIONS_PATH + "/ab/cd/c0")).isEqualTo(0.75d);
+    }
+
+    @Test
+    public void fractionIsUnknownOutsideOfTheHashedFolders() {
+        // Act & Assert
+        assertThat(CleanCommand.getKeyspaceFraction(VERSIONS_PATH, "/sites/mySite")).isEqualTo(-1d);
+        assertThat(CleanCommand.getKeyspaceFraction(VERSIONS_PATH + "/ab", VERSIONS_PATH + "/cd/00")).isEqualTo(-1d);
+        assertThat(CleanCommand.getKeyspaceFraction(VERSIONS_PATH, VERSIONS_PATH + "/zz/00")).isEqualTo(-1d);
+    }
+
+    @Test
+    public void remainingTimeExtrapolatesTheCurrentExecution() {
+        // Act & Assert: a quarter scanned in 10s, three quarters left
+        assertThat(CleanerProgress.estimateRemainingTimeInMs(0d, 0.25d, 10000L)).isEqualTo(30000L);
+        // Resumed from the middle: a quarter scanned in 10s, a quarter left
+        assertThat(CleanerProgress.estimateRemainingTimeInMs(0.5d, 0.75d, 10000L)).isEqualTo(10000L);
+    }
+
+    @Test
+    public void remainingTimeIsUnknownUntilTheScanMoves() {
+        // Act & Assert
+        assertThat(CleanerProgress.estimateRemainingTimeInMs(0d, -1d, 10000L)).isEqualTo(-1L);
+        assertThat(CleanerProgress.estimateRemainingTimeInMs(0.5d, 0.5d, 10000L)).isEqualTo(-1L);
+        assertThat(CleanerProgress.estimateRemainingTimeInMs(0d, 0.5d, 0L)).isEqualTo(-1L);
+    }
+
+    @Test
+    public void snapshotsDifferingOnlyByTheTimeHaveTheSameState() {
+        // Arrange
+        final CleanerProgress.Snapshot snapshot = new CleanerProgress.Snapshot(true, 10L, 5L, 0L, 2L, 1L, "/a", 1000L, 0.1d, 9000L, false, 0L);
+        final CleanerProgress.Snapshot later = new CleanerProgress.Snapshot(true, 10L, 5L, 0L, 2L, 1L, "/a", 2000L, 0.1d, 18000L, false, 0L);
+        final CleanerProgress.Snapshot moved = new CleanerProgress.Snapshot(true, 11L, 5L, 0L, 2L, 1L, "/b", 2000L, 0.2d, 8000L, false, 0L);
+        final CleanerProgress.Snapshot throttled = new CleanerProgress.Snapshot(true, 10L, 5L, 0L, 2L, 1L, "/a", 2000L, 0.1d, 18000L, true, 20L);
+
+        // Act & Assert
+        assertThat(snapshot.hasSameState(later)).isTrue();
+        assertThat(snapshot.hasSameState(moved)).isFalse();
+        assertThat(snapshot.hasSameState(throttled)).isFalse();
+    }
+}
@@ -0,0 +1,149 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link CleanupPipeline}: only the histories kept by the classification reach the deletion stage, in the
+ * order of the traversal, a partition is completed once all its histories are processed, and an interrupted pipeline
+ * resumes from the oldest history not processed.
+ */
+public class CleanupPipelineTest {
+
+    private static final int QUEUE_CAPACITY = 4;
+
+    private static class RecordingStage implements CleanupPipeline.Stage {
+
+        private final String suffixToPass;
+        private final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> completedPartitions = Collections.synchronizedList(new ArrayList<>());
+
+        private RecordingStage(String suffixToPass) {
+            this.suffixToPass = suffixToPass;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public boolean process(String historyPath) {
+            processed.add(historyPath);
+            return suffixToPass != null && historyPath.endsWith(suffixToPass);
+        }
+
+        @Override
+        public void partitionCompleted(String partition) {
+            completedPartitions.add(partition + ":" + processed.size());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void deletionStageOnlyReceivesTheClassifiedHistories() throws InterruptedException {
+        // Arrange
+        final RecordingStage classification = new RecordingStage("-old");
+        final RecordingStage deletion = new RecordingStage(null);
+        final CleanupPipeline pipeline = new CleanupPipeline(QUEUE_CAPACITY, classification, deletion, () -> false);
+
+        // Act
+        pipeline.start();
+        for (int i = 0; i < 10; i++) {
+            pipeline.submitHistory("/jcr:system/jcr:versionStorage/0a/1b/2c/h" + i + (i % 2 == 0 ? "-old" : ""));
+        }
+        pipeline.finish();
+
+        // Assert
+        assertThat(classification.processed).hasSize(10);
+        assertThat(deletion.processed).containsExactly(
+                "/jcr:system/jcr:versionStorage/0a/1b/2c/h0-old",
+                "/jcr:system/jcr:versionStorage/0a/1b/2c/h2-old",
+                "/jcr:system/jcr:versionStorage/0a/1b/2c/h4-old",
+                "/jcr:system/jcr:versionStorage/0a/1b/2c/h6-old",
+                "/jcr:system/jcr:versionStorage/0a/1b/2c/h8-old");
+        assertThat(pipeline.getPosition()).isNull();
+    }
+
+    @Test
+    public void partitionCompletedOnceItsHistoriesAreProcessed() throws InterruptedException {
+        // Arrange
+        final RecordingStage deletion = new RecordingStage(null);
+        final CleanupPipeline pipeline = new CleanupPipeline(QUEUE_CAPACITY, new RecordingStage(""), deletion, () -> false);
+
+        // Act
+        pipeline.start();
+        for (String partition : new String[]{"/v/0a/1b", "/v/0a/1c"}) {
+            for (int i = 0; i < 3; i++) pipeline.submitHistory(partition + "/2c/h" + i);
+            pipeline.submitPartition(partition);
+        }
+        pipeline.finish();
+
+        // Assert
+        assertThat(deletion.completedPartitions).containsExactly("/v/0a/1b:3", "/v/0a/1c:6");
+    }
+
+    @Test
+    public void concurrentClassificationKeepsTheOrderOfTheTraversal() throws InterruptedException {
+        // Arrange
+        final CleanupPipeline.Stage slowClassification = new RecordingStage("") {
+            @Override
+            public boolean process(String historyPath) {
+                try {
+                    // The first histories take the longest to classify
+                    Thread.sleep(historyPath.endsWith("/h0") ? 50L : 1L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+        };
+        final RecordingStage deletion = new RecordingStage(null);
+        final CleanupPipeline pipeline = new CleanupPipeline(QUEUE_CAPACITY, slowClassification,
+                BoundedExecutor.create(3, "versions-cleaner-test", false), deletion, () -> false);
+
+        // Act
+        pipeline.start();
+        for (int i = 0; i < 5; i++) pipeline.submitHistory("/v/0a/1b/2c/h" + i);
+        pipeline.submitPartition("/v/0a/1b");
+        pipeline.finish();
+
+        // Assert
+        assertThat(deletion.processed).containsExactly("/v/0a/1b/2c/h0", "/v/0a/1b/2c/h1", "/v/0a/1b/2c/h2", "/v/0a/1b/2c/h3", "/v/0a/1b/2c/h4");
+        assertThat(deletion.completedPartitions).containsExactly("/v/0a/1b:5");
+    }
+
+    @Test
+    public void interruptedPipelineResumesFromTheOldestHistoryNotProcessed() throws InterruptedException {
+        // Arrange
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final CleanupPipeline.Stage blockedDeletion = new RecordingStage(null) {
+            @Override
+            public boolean process(String historyPath) {
+                interrupted.set(true);
+                return false;
+            }
+        };
+        final CleanupPipeline pipeline = new CleanupPipeline(QUEUE_CAPACITY, new RecordingStage(""), blockedDeletion, interrupted::get);
+
+        // Act
+        pipeline.start();
+        boolean accepted = true;
+        for (int i = 0; i < 100 && accepted; i++) {
+            accepted = pipeline.submitHistory("/v/0a/1b/f" + i + "/h");
+        }
+        pipeline.finish();
+
+        // Assert
+        assertThat(accepted).isFalse();
+        assertThat(pipeline.getPosition()).isEqualTo("/v/0a/1b/f1");
+    }
+}
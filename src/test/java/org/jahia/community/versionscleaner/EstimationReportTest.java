@@ -0,0 +1,72 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Tests for {@link EstimationReport}: the counters must be extrapolated with the fraction of the folders actually
+ * scanned, and the sample of the versions to measure must stay bounded.
+ */
+public class EstimationReportTest {
+
+    @Test
+    public void everyFolderIsScannedWithoutSampling() {
+        // Arrange
+        final EstimationReport report = new EstimationReport(1d);
+
+        // Act
+        for (int i = 0; i < 100; i++) assertThat(report.samplePartition()).isTrue();
+        report.trackOrphanedHistory(3L);
+
+        // Assert
+        assertThat(report.getExtrapolationFactor()).isEqualTo(1d);
+        assertThat(report.getEstimatedOrphanedHistories()).isEqualTo(1L);
+        assertThat(report.getEstimatedOrphanedVersions()).isEqualTo(3L);
+    }
+
+    @Test
+    public void countersAreExtrapolatedWithTheScannedFraction() {
+        // Arrange
+        final EstimationReport report = new EstimationReport(0.1d, new Random(42L));
+
+        // Act
+        for (int i = 0; i < 10000; i++) report.samplePartition();
+        report.trackHistoryOverRetention(5L);
+        report.trackHistoryOverRetention(15L);
+
+        // Assert
+        final double factor = report.getVisitedPartitions() / (double) report.getScannedPartitions();
+        assertThat(report.getScannedPartitions()).isBetween(800L, 1200L);
+        assertThat(report.getExtrapolationFactor()).isCloseTo(factor, within(1e-9));
+        assertThat(report.getEstimatedHistoriesOverRetention()).isEqualTo(Math.round(2 * factor));
+        assertThat(report.getEstimatedVersionsOverRetention()).isEqualTo(Math.round(20 * factor));
+    }
+
+    @Test
+    public void sampleOfTheVersionsToMeasureIsBounded() {
+        // Arrange
+        final EstimationReport report = new EstimationReport(1d);
+
+        // Act
+        for (int i = 0; i < 10 * EstimationReport.MAX_MEASURED_VERSIONS; i++) report.offerVersion(String.valueOf(i));
+
+        // Assert
+        assertThat(report.getNbSampledVersions()).isEqualTo(EstimationReport.MAX_MEASURED_VERSIONS);
+    }
+
+    @Test
+    public void storageIsNotEstimatedBeforeTheMeasure() {
+        // Arrange
+        final EstimationReport report = new EstimationReport(1d);
+        report.trackOrphanedHistory(10L);
+
+        // Act & Assert
+        assertThat(report.getMeasuredVersions()).isZero();
+        assertThat(report.getEstimatedBundleBytes()).isZero();
+        assertThat(report.getEstimatedBinaryBytes()).isZero();
+    }
+}
@@ -0,0 +1,69 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link ExternalMappingIndex}: the set answers exactly, and the Bloom filter never misses a mapping it has
+ * loaded, with a rate of false positives close to the theoretical one.
+ */
+public class ExternalMappingIndexTest {
+
+    private static final String MAPPED = "11111111-1111-1111-1111-111111111111";
+    private static final String NOT_MAPPED = "22222222-2222-2222-2222-222222222222";
+
+    @Test
+    public void exactIndexAnswersExactly() {
+        // Arrange
+        final UUID uuid = UUID.fromString(MAPPED);
+        final NodeIdSet.Builder builder = new NodeIdSet.Builder(1);
+        builder.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+
+        // Act
+        final ExternalMappingIndex index = ExternalMappingIndex.exact(builder.build());
+
+        // Assert
+        assertThat(index.isExact()).isTrue();
+        assertThat(index.mightBeMapped(MAPPED)).isTrue();
+        assertThat(index.mightBeMapped(NOT_MAPPED)).isFalse();
+        assertThat(index.mightBeMapped("not-a-uuid")).isFalse();
+    }
+
+    @Test
+    public void bloomFilterNeverMissesALoadedMapping() {
+        // Arrange
+        final int nbMappings = 10000;
+        final long nbBits = 10L * nbMappings;
+        final ExternalMappingIndex index = ExternalMappingIndex.bloomFilter(nbBits, ExternalMappingIndex.getNbHashFunctions(nbBits, nbMappings));
+        final List<UUID> mappings = new ArrayList<>(nbMappings);
+        for (int i = 0; i < nbMappings; i++) {
+            final UUID uuid = UUID.randomUUID();
+            mappings.add(uuid);
+            index.addToBloomFilter(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        }
+
+        // Act
+        int nbFalsePositives = 0;
+        for (int i = 0; i < nbMappings; i++) {
+            if (index.mightBeMapped(UUID.randomUUID().toString())) nbFalsePositives++;
+        }
+
+        // Assert
+        assertThat(index.isExact()).isFalse();
+        for (UUID uuid : mappings) assertThat(index.mightBeMapped(uuid.toString())).isTrue();
+        // Around 0.8% with 10 bits per mapping
+        assertThat(nbFalsePositives).isLessThan(nbMappings / 50);
+    }
+
+    @Test
+    public void optimalNumberOfHashFunctions() {
+        assertThat(ExternalMappingIndex.getNbHashFunctions(10L, 1L)).isEqualTo(7);
+        assertThat(ExternalMappingIndex.getNbHashFunctions(1L, 1000L)).isEqualTo(1);
+        assertThat(ExternalMappingIndex.getNbHashFunctions(1000000L, 1L)).isEqualTo(16);
+    }
+}
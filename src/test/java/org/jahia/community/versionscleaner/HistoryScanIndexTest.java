@@ -0,0 +1,108 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link HistoryScanIndex}: the histories recorded within the retention must survive a save/load cycle,
+ * unless they have been invalidated, and the whole index must be discarded when the number of versions to keep
+ * decreases.
+ */
+public class HistoryScanIndexTest {
+
+    private static final String HISTORY_1 = "8a7b6c5d-1234-4def-8abc-0123456789ab";
+    private static final String HISTORY_2 = "0a1b2c3d-4e5f-6789-abcd-ef0123456789";
+    private static final String HISTORY_3 = "fedcba98-7654-4321-8fed-cba987654321";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void missingFileGivesAnEmptyIndex() throws IOException {
+        // Act
+        final HistoryScanIndex index = HistoryScanIndex.load(new File(folder.getRoot(), "missing.bin"), 2L, 1000L);
+
+        // Assert
+        assertThat(index.size()).isZero();
+        assertThat(index.getIndexedAt()).isEqualTo(1000L);
+        assertThat(index.isWithinRetention(HISTORY_1)).isFalse();
+    }
+
+    @Test
+    public void savedHistoriesAreWithinRetentionOnceReloaded() throws IOException {
+        // Arrange
+        final File file = folder.newFile("index.bin");
+        final HistoryScanIndex index = HistoryScanIndex.empty(2L, 1000L);
+        index.add(HISTORY_1);
+        index.add(HISTORY_2);
+        index.setUpdatedAt(2000L);
+
+        // Act
+        index.save(file);
+        final HistoryScanIndex reloaded = HistoryScanIndex.load(file, 2L, 3000L);
+
+        // Assert
+        assertThat(reloaded.size()).isEqualTo(2);
+        assertThat(reloaded.getIndexedAt()).isEqualTo(2000L);
+        assertThat(reloaded.isWithinRetention(HISTORY_1)).isTrue();
+        assertThat(reloaded.isWithinRetention(HISTORY_2)).isTrue();
+        assertThat(reloaded.isWithinRetention(HISTORY_3)).isFalse();
+    }
+
+    @Test
+    public void invalidatedHistoriesAreNotWithinRetentionNorSavedAgain() throws IOException {
+        // Arrange
+        final File file = folder.newFile("index.bin");
+        final HistoryScanIndex index = HistoryScanIndex.empty(2L, 1000L);
+        index.add(HISTORY_1);
+        index.add(HISTORY_2);
+        index.save(file);
+        final HistoryScanIndex reloaded = HistoryScanIndex.load(file, 2L, 2000L);
+
+        // Act
+        reloaded.invalidate(HISTORY_1);
+        reloaded.add(HISTORY_3);
+        reloaded.save(file);
+        final HistoryScanIndex reloadedAgain = HistoryScanIndex.load(file, 2L, 3000L);
+
+        // Assert
+        assertThat(reloaded.isWithinRetention(HISTORY_1)).isFalse();
+        assertThat(reloadedAgain.size()).isEqualTo(2);
+        assertThat(reloadedAgain.isWithinRetention(HISTORY_1)).isFalse();
+        assertThat(reloadedAgain.isWithinRetention(HISTORY_2)).isTrue();
+        assertThat(reloadedAgain.isWithinRetention(HISTORY_3)).isTrue();
+    }
+
+    @Test
+    public void indexIsKeptWhenMoreVersionsAreKeptAndDiscardedWhenFewerAre() throws IOException {
+        // Arrange
+        final File file = folder.newFile("index.bin");
+        final HistoryScanIndex index = HistoryScanIndex.empty(2L, 1000L);
+        index.add(HISTORY_1);
+        index.save(file);
+
+        // Act + Assert
+        assertThat(HistoryScanIndex.load(file, 5L, 2000L).isWithinRetention(HISTORY_1)).isTrue();
+        assertThat(HistoryScanIndex.load(file, 1L, 2000L).size()).isZero();
+    }
+
+    @Test
+    public void invalidIdentifiersAreIgnored() throws IOException {
+        // Arrange
+        final File file = folder.newFile("index.bin");
+        final HistoryScanIndex index = HistoryScanIndex.empty(2L, 1000L);
+
+        // Act
+        index.add("not-a-uuid");
+        index.save(file);
+
+        // Assert
+        assertThat(HistoryScanIndex.load(file, 2L, 2000L).size()).isZero();
+    }
+}
@@ -0,0 +1,102 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the removed nodes recorded by {@link IncrementalJournal}: the nodes recorded while an execution processes
+ * the previous ones are left to the next execution, the ones of an interrupted execution are processed again, and the
+ * journal is dropped once it exceeds its maximum size, so that the next execution does a full scan.
+ */
+public class IncrementalJournalTest {
+
+    private static final String NODE_1 = "8a7b6c5d-1234-4def-8abc-0123456789ab";
+    private static final String NODE_2 = "0a1b2c3d-4e5f-6789-abcd-ef0123456789";
+    private static final String NODE_3 = "fedcba98-7654-4321-8fed-cba987654321";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> readAll(File dir) throws IOException {
+        final List<String> identifiers = new ArrayList<>();
+        try (BufferedReader reader = IncrementalJournal.openRemovedNodes(dir)) {
+            String line;
+            while ((line = reader.readLine()) != null) identifiers.add(line);
+        }
+        return identifiers;
+    }
+
+    @Test
+    public void nodesRecordedDuringAnExecutionAreLeftToTheNextOne() throws IOException {
+        // Arrange
+        final File dir = folder.getRoot();
+        IncrementalJournal.appendRemovedNodes(dir, Arrays.asList(NODE_1, NODE_2), Long.MAX_VALUE);
+
+        // Act
+        final List<String> firstExecution = readAll(dir);
+        IncrementalJournal.appendRemovedNodes(dir, Collections.singletonList(NODE_3), Long.MAX_VALUE);
+        IncrementalJournal.removedNodesProcessed(dir);
+        final List<String> secondExecution = readAll(dir);
+
+        // Assert
+        assertThat(firstExecution).containsExactly(NODE_1, NODE_2);
+        assertThat(secondExecution).containsExactly(NODE_3);
+    }
+
+    @Test
+    public void nodesOfAnInterruptedExecutionAreProcessedAgain() throws IOException {
+        // Arrange
+        final File dir = folder.getRoot();
+        IncrementalJournal.appendRemovedNodes(dir, Collections.singletonList(NODE_1), Long.MAX_VALUE);
+        readAll(dir);
+        IncrementalJournal.appendRemovedNodes(dir, Collections.singletonList(NODE_2), Long.MAX_VALUE);
+
+        // Act — the previous execution has not called removedNodesProcessed()
+        final List<String> identifiers = readAll(dir);
+
+        // Assert
+        assertThat(identifiers).containsExactly(NODE_1, NODE_2);
+    }
+
+    @Test
+    public void journalIsDroppedOnceItExceedsItsMaximumSize() throws IOException {
+        // Arrange
+        final File dir = folder.getRoot();
+        final long maxFileSize = NODE_1.length() + 1L;
+        IncrementalJournal.appendRemovedNodes(dir, Collections.singletonList(NODE_1), maxFileSize);
+
+        // Act
+        IncrementalJournal.appendRemovedNodes(dir, Collections.singletonList(NODE_2), maxFileSize);
+        IncrementalJournal.appendRemovedNodes(dir, Collections.singletonList(NODE_3), maxFileSize);
+
+        // Assert
+        assertThat(IncrementalJournal.isRemovedNodesOverflowed(dir)).isTrue();
+        assertThat(readAll(dir)).isEmpty();
+    }
+
+    @Test
+    public void fullScanResetsTheOverflow() throws IOException {
+        // Arrange
+        final File dir = folder.getRoot();
+        IncrementalJournal.appendRemovedNodes(dir, Collections.singletonList(NODE_1), 0L);
+
+        // Act
+        IncrementalJournal.clearRemovedNodes(dir);
+        IncrementalJournal.appendRemovedNodes(dir, Collections.singletonList(NODE_2), Long.MAX_VALUE);
+
+        // Assert
+        assertThat(IncrementalJournal.isRemovedNodesOverflowed(dir)).isFalse();
+        assertThat(readAll(dir)).containsExactly(NODE_2);
+    }
+}
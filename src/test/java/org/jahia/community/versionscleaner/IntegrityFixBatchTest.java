@@ -0,0 +1,113 @@
+package org.jahia.community.versionscleaner;
+
+import org.jahia.api.Constants;
+import org.junit.Test;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import java.util.Arrays;
+import java.util.Calendar;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link IntegrityFixBatch}: the fixes are saved once per batch, with the last modification dates set back
+ * in memory, the ones updated by the save anyway are restored with a single additional save, and a batch which fails
+ * to be saved is discarded.
+ */
+public class IntegrityFixBatchTest {
+
+    private static final String DANGLING_UUID = "deadbeef-0000-0000-0000-000000000000";
+
+    private static Node mockNode(Session session, String identifier, Calendar... lastModificationDates) throws RepositoryException {
+        final Node node = mock(Node.class);
+        final Property lastModified = mock(Property.class);
+        when(node.getIdentifier()).thenReturn(identifier);
+        when(node.getProperty(Constants.JCR_LASTMODIFIED)).thenReturn(lastModified);
+        when(lastModified.getDate()).thenReturn(lastModificationDates[0],
+                Arrays.copyOfRange(lastModificationDates, 1, lastModificationDates.length));
+        when(session.getNodeByIdentifier(identifier)).thenReturn(node);
+        return node;
+    }
+
+    private static Property mockReference(String path) throws RepositoryException {
+        final Property property = mock(Property.class);
+        when(property.isMultiple()).thenReturn(false);
+        when(property.getPath()).thenReturn(path);
+        return property;
+    }
+
+    @Test
+    public void fixesAreSavedOncePerBatch() throws RepositoryException {
+        // Arrange
+        final Session session = mock(Session.class);
+        final Calendar lastModified = Calendar.getInstance();
+        final IntegrityFixBatch batch = new IntegrityFixBatch(session, 3);
+
+        // Act
+        for (int i = 0; i < 2; i++) {
+            batch.fix(mockNode(session, "node-" + i, lastModified), mockReference("/n" + i + "/ref"), DANGLING_UUID);
+        }
+        final int nbPendingFixes = batch.getNbPendingFixes();
+        batch.fix(mockNode(session, "node-2", lastModified), mockReference("/n2/ref"), DANGLING_UUID);
+
+        // Assert
+        assertThat(nbPendingFixes).isEqualTo(2);
+        assertThat(batch.getNbPendingFixes()).isZero();
+        assertThat(batch.getNbSavedFixes()).isEqualTo(3L);
+        // The last modification dates set back in memory are kept by the save
+        verify(session, times(1)).save();
+    }
+
+    @Test
+    public void lastModificationDatesUpdatedBySaveAreRestored() throws RepositoryException {
+        // Arrange
+        final Session session = mock(Session.class);
+        final Calendar original = Calendar.getInstance();
+        final Calendar updated = (Calendar) original.clone();
+        updated.add(Calendar.HOUR, 1);
+        final Node node = mockNode(session, "node", original, updated);
+        final Property reference = mockReference("/n/ref");
+        final IntegrityFixBatch batch = new IntegrityFixBatch(session, IntegrityFixBatch.DEFAULT_BATCH_SIZE);
+
+        // Act
+        batch.fix(node, reference, DANGLING_UUID);
+        batch.flush();
+
+        // Assert
+        verify(reference).setValue((Value) null);
+        // Set back in memory before the save, then restored after it
+        verify(node, times(2)).setProperty(Constants.JCR_LASTMODIFIED, original);
+        verify(session, times(2)).save();
+    }
+
+    @Test
+    public void failedBatchIsDiscarded() throws RepositoryException {
+        // Arrange
+        final Session session = mock(Session.class);
+        doThrow(new RepositoryException("constraint violated")).when(session).save();
+        final IntegrityFixBatch batch = new IntegrityFixBatch(session, IntegrityFixBatch.DEFAULT_BATCH_SIZE);
+        final Node node = mockNode(session, "node", Calendar.getInstance());
+
+        // Act
+        batch.fix(node, mockReference("/n/ref"), DANGLING_UUID);
+        batch.flush();
+
+        // Assert
+        assertThat(batch.getNbSavedFixes()).isZero();
+        assertThat(batch.getNbFailedFixes()).isEqualTo(1L);
+        verify(session, times(1)).save();
+        verify(session).refresh(false);
+        verify(session, never()).getNodeByIdentifier(any(String.class));
+    }
+}
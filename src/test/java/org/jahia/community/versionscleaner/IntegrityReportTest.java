@@ -0,0 +1,42 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link IntegrityReport}: one JSON object per dangling reference, the strings being escaped.
+ */
+public class IntegrityReportTest {
+
+    @Test
+    public void danglingReferencesAreWrittenOnePerLine() throws IOException {
+        // Arrange
+        final StringWriter writer = new StringWriter();
+        final IntegrityReport report = new IntegrityReport(new File("integrity.jsonl"), writer);
+
+        // Act
+        report.danglingReference("default", "/sites/a/home", "j:node", "uuid-1", false, IntegrityReport.ACTION_CLEARED);
+        report.danglingReference("versions", "/jcr:system/jcr:versionStorage/0a/1b/2c/h/1.0/jcr:frozenNode", "j:node", "uuid-2",
+                true, IntegrityReport.ACTION_NONE);
+        report.close();
+
+        // Assert
+        assertThat(writer.toString().split("\n")).containsExactly(
+                "{\"scope\":\"default\",\"node\":\"/sites/a/home\",\"property\":\"j:node\",\"uuid\":\"uuid-1\",\"external\":false,\"action\":\"cleared\"}",
+                "{\"scope\":\"versions\",\"node\":\"/jcr:system/jcr:versionStorage/0a/1b/2c/h/1.0/jcr:frozenNode\",\"property\":\"j:node\",\"uuid\":\"uuid-2\",\"external\":true,\"action\":\"none\"}");
+    }
+
+    @Test
+    public void stringsAreEscaped() {
+        // Act
+        final String json = IntegrityReport.toJson("live", "/sites/a/\"quoted\"\\name\n", "j:node", null, false, IntegrityReport.ACTION_NONE);
+
+        // Assert
+        assertThat(json).isEqualTo("{\"scope\":\"live\",\"node\":\"/sites/a/\\\"quoted\\\"\\\\name\\n\",\"property\":\"j:node\",\"uuid\":null,\"external\":false,\"action\":\"none\"}");
+    }
+}
@@ -0,0 +1,71 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link IntegrityScanner}: the partitions of a workspace are the subtrees of the nodes two levels below
+ * its root, the nodes above them being checked on their own, and the system nodes are left to the version storage
+ * scope.
+ */
+public class IntegrityScannerTest {
+
+    private static Node mockNode(String path, Node... children) throws RepositoryException {
+        final Node node = mock(Node.class);
+        when(node.getPath()).thenReturn(path);
+        final NodeIterator iterator = mock(NodeIterator.class);
+        // true for each child, then false
+        final Boolean[] hasNext = new Boolean[children.length];
+        Arrays.fill(hasNext, Boolean.TRUE);
+        if (children.length > 0) hasNext[children.length - 1] = Boolean.FALSE;
+        when(iterator.hasNext()).thenReturn(children.length > 0, hasNext);
+        if (children.length > 0) {
+            when(iterator.nextNode()).thenReturn(children[0], Arrays.copyOfRange(children, 1, children.length));
+        }
+        when(node.getNodes()).thenReturn(iterator);
+        return node;
+    }
+
+    private static List<String> describe(List<IntegrityScanner.Partition> partitions) {
+        return partitions.stream()
+                .map(partition -> partition.getPath() + (partition.isRecursive() ? "/**" : ""))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void partitionsAreTheSubtreesTwoLevelsBelowTheRoot() throws RepositoryException {
+        // Arrange
+        final Node root = mockNode("/",
+                mockNode("/jcr:system", mockNode("/jcr:system/jcr:versionStorage")),
+                mockNode("/sites", mockNode("/sites/a"), mockNode("/sites/b")),
+                mockNode("/users"));
+        final List<IntegrityScanner.Partition> partitions = new ArrayList<>();
+
+        // Act
+        IntegrityScanner.collectPartitions(IntegrityScanner.Scope.DEFAULT, root, 0, partitions);
+
+        // Assert
+        assertThat(describe(partitions)).containsExactly("/", "/sites", "/sites/a/**", "/sites/b/**", "/users");
+    }
+
+    @Test
+    public void scopesAreParsedCaseInsensitively() {
+        assertThat(IntegrityScanner.Scope.parse(" Live ")).isEqualTo(IntegrityScanner.Scope.LIVE);
+        assertThat(IntegrityScanCommand.parseScopes("default,versions"))
+                .containsExactly(IntegrityScanner.Scope.DEFAULT, IntegrityScanner.Scope.VERSIONS);
+        assertThat(IntegrityScanCommand.parseScopes(null)).hasSize(3);
+        assertThatThrownBy(() -> IntegrityScanner.Scope.parse("archive")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,72 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Tests for {@link LatencyHistogram}: the percentiles must be approximated by the upper bound of their power-of-2
+ * bucket, and the count, mean and maximum must be exact.
+ */
+public class LatencyHistogramTest {
+
+    private static long millis(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void emptyHistogramReportsZeros() {
+        // Arrange
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        // Act & Assert
+        assertThat(histogram.getCount()).isZero();
+        assertThat(histogram.getMeanInMs()).isZero();
+        assertThat(histogram.getPercentileInMs(99d)).isZero();
+        assertThat(histogram.getMaxInMs()).isZero();
+    }
+
+    @Test
+    public void percentilesAreBoundedByTheirBucket() {
+        // Arrange
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        // Act
+        for (int i = 0; i < 98; i++) histogram.record(millis(1L));
+        histogram.record(millis(100L));
+        histogram.record(millis(1000L));
+
+        // Assert: 1 ms = 1000 µs falls in the bucket up to 1024 µs, 100 ms in the one up to 131072 µs
+        assertThat(histogram.getCount()).isEqualTo(100L);
+        assertThat(histogram.getPercentileInMs(50d)).isEqualTo(1.024d);
+        assertThat(histogram.getPercentileInMs(99d)).isEqualTo(131.072d);
+        assertThat(histogram.getPercentileInMs(100d)).isEqualTo(1048.576d);
+        assertThat(histogram.getMeanInMs()).isCloseTo(11.98d, within(0.001d));
+        assertThat(histogram.getMaxInMs()).isEqualTo(1000d);
+    }
+
+    @Test
+    public void longDurationsGoToTheLastBucket() {
+        // Act & Assert
+        assertThat(LatencyHistogram.getBucket(0L)).isZero();
+        assertThat(LatencyHistogram.getBucket(TimeUnit.DAYS.toNanos(365L))).isEqualTo(LatencyHistogram.NB_BUCKETS - 1);
+    }
+
+    @Test
+    public void resetForgetsTheMeasures() {
+        // Arrange
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(millis(10L));
+
+        // Act
+        histogram.reset();
+
+        // Assert
+        assertThat(histogram.getCount()).isZero();
+        assertThat(histogram.getMaxInMs()).isZero();
+        assertThat(histogram.getPercentileInMs(50d)).isZero();
+    }
+}
@@ -0,0 +1,66 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link NodeIdSet}: every added identifier must be found after the sort, whatever the order and the
+ * duplicates, nothing else must be found, and the builder must refuse identifiers beyond its capacity.
+ */
+public class NodeIdSetTest {
+
+    private static final String UUID = "8a7b6c5d-1234-4def-8abc-0123456789ab";
+
+    @Test
+    public void findsEveryAddedIdentifierAndNothingElse() {
+        // Arrange — random identifiers, with duplicates and shared most significant bits.
+        final Random random = new Random(42L);
+        final int size = 10000;
+        final long[][] ids = new long[size][];
+        final NodeIdSet.Builder builder = new NodeIdSet.Builder(size);
+        for (int i = 0; i < size; i++) {
+            ids[i] = i % 10 == 9 ? ids[i - 1] : new long[]{i % 7 == 0 ? 7L : random.nextLong(), random.nextLong()};
+            builder.add(ids[i][0], ids[i][1]);
+        }
+
+        // Act
+        final NodeIdSet set = builder.build();
+
+        // Assert
+        assertThat(set.size()).isEqualTo(size);
+        for (long[] id : ids) {
+            assertThat(set.contains(id[0], id[1])).isTrue();
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertThat(set.contains(random.nextLong(), random.nextLong())).isFalse();
+        }
+    }
+
+    @Test
+    public void emptySetContainsNothing() {
+        final NodeIdSet set = new NodeIdSet.Builder(0).build();
+
+        assertThat(set.size()).isZero();
+        assertThat(set.contains(0L, 0L)).isFalse();
+        assertThat(set.contains(UUID)).isFalse();
+    }
+
+    @Test
+    public void builderRefusesIdentifiersBeyondItsCapacity() {
+        final NodeIdSet.Builder builder = new NodeIdSet.Builder(1);
+
+        assertThat(builder.add(1L, 1L)).isTrue();
+        assertThat(builder.add(2L, 2L)).isFalse();
+    }
+
+    @Test
+    public void invalidUuidIsNotContained() {
+        final NodeIdSet.Builder builder = new NodeIdSet.Builder(1);
+        builder.add(1L, 1L);
+
+        assertThat(builder.build().contains("not-a-uuid")).isFalse();
+    }
+}
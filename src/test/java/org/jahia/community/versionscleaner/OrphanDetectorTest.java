@@ -0,0 +1,112 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the bulk orphan lookups of {@link OrphanDetector}: a UUID is only reported as orphaned when its bundle
+ * is absent from both the edit and the live tables, and a failed lookup never produces a verdict.
+ */
+public class OrphanDetectorTest {
+
+    private static final String EDIT_TABLE = "jr_default_BUNDLE";
+    private static final String LIVE_TABLE = "jr_live_BUNDLE";
+    private static final String IN_EDIT = "11111111-1111-1111-1111-111111111111";
+    private static final String IN_LIVE = "22222222-2222-2222-2222-222222222222";
+    private static final String ORPHAN = "33333333-3333-3333-3333-333333333333";
+
+    private static PreparedStatement statementReturning(String... uuids) throws SQLException {
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        if (uuids.length == 0) {
+            when(resultSet.next()).thenReturn(false);
+        } else {
+            final Boolean[] next = new Boolean[uuids.length];
+            Arrays.fill(next, Boolean.TRUE);
+            next[uuids.length - 1] = Boolean.FALSE;
+            when(resultSet.next()).thenReturn(true, next);
+            final byte[][] ids = new byte[uuids.length][];
+            for (int i = 0; i < uuids.length; i++) ids[i] = NodeId.valueOf(uuids[i]).getRawBytes();
+            when(resultSet.getBytes(1)).thenReturn(ids[0], Arrays.copyOfRange(ids, 1, ids.length));
+        }
+        return statement;
+    }
+
+    @Test
+    public void buildsAnInListQueryWithOneParameterPerValue() {
+        assertThat(OrphanDetector.buildInListQuery("NODE_ID", EDIT_TABLE, "NODE_ID", 3))
+                .isEqualTo("select NODE_ID from jr_default_BUNDLE where NODE_ID in (?,?,?)");
+    }
+
+    @Test
+    public void orphanedOnlyWhenAbsentFromBothBundleTables() throws SQLException {
+        // Arrange
+        final Connection connection = mock(Connection.class);
+        final PreparedStatement editStatement = statementReturning(IN_EDIT);
+        final PreparedStatement liveStatement = statementReturning(IN_LIVE);
+        when(connection.prepareStatement(contains(EDIT_TABLE))).thenReturn(editStatement);
+        when(connection.prepareStatement(contains(LIVE_TABLE))).thenReturn(liveStatement);
+        final OrphanDetector detector = new OrphanDetector(connection, EDIT_TABLE, LIVE_TABLE);
+
+        // Act
+        final Map<String, Boolean> orphans = detector.resolveOrphans(Arrays.asList(IN_EDIT, IN_LIVE, ORPHAN));
+
+        // Assert
+        assertThat(orphans)
+                .containsEntry(IN_EDIT, false)
+                .containsEntry(IN_LIVE, false)
+                .containsEntry(ORPHAN, true);
+    }
+
+    @Test
+    public void failedLookupReturnsNoVerdict() throws SQLException {
+        // Arrange — a transient DB failure must never be interpreted as "absent".
+        final Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(contains(EDIT_TABLE))).thenThrow(new SQLException("transient DB failure"));
+        final OrphanDetector detector = new OrphanDetector(connection, EDIT_TABLE, LIVE_TABLE);
+
+        // Act + Assert — the caller falls back on the session-based check.
+        assertThat(detector.resolveOrphans(Arrays.asList(IN_EDIT, ORPHAN))).isNull();
+    }
+
+    @Test
+    public void nodeIdsAreStreamedWithinATransaction() throws SQLException {
+        // Arrange — MySQL only streams the rows with a fetch size of Integer.MIN_VALUE, PostgreSQL only out of auto-commit.
+        final Connection connection = mock(Connection.class);
+        final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        when(connection.getMetaData()).thenReturn(metaData);
+        when(metaData.getDatabaseProductName()).thenReturn("MySQL");
+        when(connection.getAutoCommit()).thenReturn(true);
+        final PreparedStatement statement = statementReturning(IN_EDIT, IN_LIVE);
+        when(connection.prepareStatement(contains(EDIT_TABLE))).thenReturn(statement);
+        final NodeIdSet.Builder builder = new NodeIdSet.Builder(16);
+
+        // Act
+        final boolean loaded = OrphanDetector.loadNodeIds(connection, EDIT_TABLE, builder);
+
+        // Assert
+        assertThat(loaded).isTrue();
+        assertThat(builder.build().contains(IN_LIVE)).isTrue();
+        final InOrder inOrder = inOrder(connection, statement);
+        inOrder.verify(connection).setAutoCommit(false);
+        inOrder.verify(statement).setFetchSize(Integer.MIN_VALUE);
+        inOrder.verify(statement).executeQuery();
+        inOrder.verify(connection).setAutoCommit(true);
+    }
+}
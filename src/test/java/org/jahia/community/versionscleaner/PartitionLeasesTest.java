@@ -0,0 +1,85 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the leases of {@link PartitionLeases}: a partition is only won by the member whose conditional update
+ * has changed its row, and the candidates of a partition whose lease has been lost are never recorded.
+ */
+public class PartitionLeasesTest {
+
+    private static final String PARTITION = "/jcr:system/jcr:versionStorage/0a/1b";
+
+    @Test
+    public void acquiredOnlyWhenTheConditionalUpdateChangesTheRow() throws SQLException {
+        // Arrange
+        final Connection connection = mock(Connection.class);
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeUpdate()).thenReturn(1, 0);
+        final PartitionLeases leases = new PartitionLeases(connection, "node1", PartitionLeases.DEFAULT_LEASE_DURATION_IN_MS);
+
+        // Act
+        final boolean first = leases.tryAcquire(PARTITION, System.currentTimeMillis());
+        final boolean second = leases.tryAcquire(PARTITION, System.currentTimeMillis());
+
+        // Assert
+        assertThat(first).isTrue();
+        assertThat(second).isFalse();
+    }
+
+    @Test
+    public void candidatesDiscardedWhenTheLeaseHasBeenLost() throws SQLException {
+        // Arrange
+        final Connection connection = mock(Connection.class);
+        final PreparedStatement update = mock(PreparedStatement.class);
+        final PreparedStatement insert = mock(PreparedStatement.class);
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(connection.prepareStatement(startsWith("update"))).thenReturn(update);
+        when(connection.prepareStatement(startsWith("insert"))).thenReturn(insert);
+        when(update.executeUpdate()).thenReturn(0);
+        final PartitionLeases leases = new PartitionLeases(connection, "node1", PartitionLeases.DEFAULT_LEASE_DURATION_IN_MS);
+
+        // Act
+        final boolean completed = leases.complete(PARTITION, Arrays.asList(PARTITION + "/a", PARTITION + "/b"));
+
+        // Assert
+        assertThat(completed).isFalse();
+        verify(connection).rollback();
+        verify(connection, never()).commit();
+        verify(insert, never()).executeBatch();
+        verify(connection).setAutoCommit(true);
+    }
+
+    @Test
+    public void completedWithoutCandidates() throws SQLException {
+        // Arrange
+        final Connection connection = mock(Connection.class);
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeUpdate()).thenReturn(1);
+        final PartitionLeases leases = new PartitionLeases(connection, "node1", PartitionLeases.DEFAULT_LEASE_DURATION_IN_MS);
+
+        // Act
+        final boolean completed = leases.complete(PARTITION, Collections.emptyList());
+
+        // Assert
+        assertThat(completed).isTrue();
+        verify(connection).commit();
+        verify(statement, never()).executeBatch();
+    }
+}
@@ -0,0 +1,103 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ReferenceTargetCache}: the least recently used targets are evicted beyond the capacity, the
+ * external mappings are looked up by block, and the integrity check doesn't look up a target known to exist.
+ */
+public class ReferenceTargetCacheTest {
+
+    private static final String TARGET = "11111111-1111-1111-1111-111111111111";
+
+    @Test
+    public void evictsTheLeastRecentlyUsedTargets() {
+        // Arrange
+        final ReferenceTargetCache cache = new ReferenceTargetCache(2);
+
+        // Act
+        cache.existing("a");
+        cache.existing("b");
+        cache.isKnownToExist("a");
+        cache.existing("c");
+
+        // Assert
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.isKnownToExist("a")).isTrue();
+        assertThat(cache.isKnownToExist("b")).isFalse();
+        assertThat(cache.isKnownToExist("c")).isTrue();
+    }
+
+    @Test
+    public void looksUpTheExternalMappingsByBlock() throws SQLException {
+        // Arrange
+        final Connection connection = mock(Connection.class);
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, false, false);
+        when(resultSet.getString(1)).thenReturn("uuid-0");
+        final List<String> uuids = new ArrayList<>();
+        for (int i = 0; i < OrphanDetector.MAX_IN_LIST_SIZE + 1; i++) uuids.add("uuid-" + i);
+
+        // Act
+        final Set<String> mapped = ReferenceTargetCache.findExternalMappings(connection, uuids);
+
+        // Assert
+        assertThat(mapped).containsExactly("uuid-0");
+        verify(connection).prepareStatement(OrphanDetector.buildInListQuery("internalUuid", ReferenceTargetCache.EXTERNAL_MAPPING_TABLE, "internalUuid", OrphanDetector.MAX_IN_LIST_SIZE));
+        verify(connection).prepareStatement(OrphanDetector.buildInListQuery("internalUuid", ReferenceTargetCache.EXTERNAL_MAPPING_TABLE, "internalUuid", 1));
+        verify(statement, times(2)).executeQuery();
+    }
+
+    @Test
+    public void integrityCheckSkipsTheTargetsKnownToExist() throws Exception {
+        // Arrange
+        final Session session = mock(Session.class);
+        final Node node = mock(Node.class);
+        final Property property = mock(Property.class);
+        final Value value = mock(Value.class);
+        final PropertyIterator propIt = mock(PropertyIterator.class);
+        when(node.getProperties()).thenReturn(propIt);
+        when(propIt.hasNext()).thenReturn(true, false);
+        when(propIt.nextProperty()).thenReturn(property);
+        when(property.isMultiple()).thenReturn(false);
+        when(property.getValue()).thenReturn(value);
+        when(value.getType()).thenReturn(PropertyType.WEAKREFERENCE);
+        when(value.getString()).thenReturn(TARGET);
+        final ReferenceTargetCache cache = new ReferenceTargetCache();
+        cache.existing(TARGET);
+        final CleanerContext context = new CleanerContext()
+                .setCheckIntegrity(true)
+                .setReferenceTargetCache(cache);
+
+        // Act
+        CleanCommand.checkNodeIntegrity(session, node, false, true, context);
+
+        // Assert
+        verify(session, never()).getNodeByIdentifier(TARGET);
+    }
+}
@@ -0,0 +1,136 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ReferencedVersions}: only the versions absent from the loaded {@code REFS} table are reported as
+ * unreferenced, no verdict at all is given when the snapshot couldn't be loaded, and the previous snapshot is used
+ * while another worker reloads it.
+ */
+public class ReferencedVersionsTest {
+
+    private static final String REFS_TABLE = "jr_v_REFS";
+    private static final String REFERENCED = "11111111-1111-1111-1111-111111111111";
+    private static final String UNREFERENCED = "22222222-2222-2222-2222-222222222222";
+
+    private static Connection connectionWithRefsTable(boolean tableExists) throws SQLException {
+        final Connection connection = mock(Connection.class);
+        final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        final ResultSet tables = mock(ResultSet.class);
+        when(connection.getMetaData()).thenReturn(metaData);
+        when(metaData.getTables(any(), any(), any(), any())).thenReturn(tables);
+        when(tables.next()).thenReturn(tableExists);
+        when(tables.getString("TABLE_NAME")).thenReturn(REFS_TABLE);
+
+        final PreparedStatement countStatement = mock(PreparedStatement.class);
+        final ResultSet count = mock(ResultSet.class);
+        when(connection.prepareStatement(eq("select count(*) from " + REFS_TABLE))).thenReturn(countStatement);
+        when(countStatement.executeQuery()).thenReturn(count);
+        when(count.next()).thenReturn(true);
+        when(count.getLong(1)).thenReturn(1L);
+
+        final PreparedStatement idsStatement = mock(PreparedStatement.class);
+        final ResultSet ids = mock(ResultSet.class);
+        when(connection.prepareStatement(contains("select NODE_ID"))).thenReturn(idsStatement);
+        when(idsStatement.executeQuery()).thenReturn(ids);
+        when(ids.next()).thenReturn(true, false);
+        when(ids.getBytes(1)).thenReturn(NodeId.valueOf(REFERENCED).getRawBytes());
+        return connection;
+    }
+
+    @Test
+    public void onlyVersionsMissingFromTheRefsTableAreUnreferenced() throws SQLException {
+        // Arrange
+        final ReferencedVersions referencedVersions = new ReferencedVersions(1024L * 1024L);
+
+        // Act
+        referencedVersions.refreshIfStale(connectionWithRefsTable(true));
+
+        // Assert
+        assertThat(referencedVersions.isUnreferenced(UNREFERENCED)).isTrue();
+        assertThat(referencedVersions.isReferenced(UNREFERENCED)).isFalse();
+        assertThat(referencedVersions.isUnreferenced(REFERENCED)).isFalse();
+        assertThat(referencedVersions.isReferenced(REFERENCED)).isTrue();
+    }
+
+    @Test
+    public void noVerdictWithoutSnapshot() throws SQLException {
+        // Arrange — the table can't be found, every version has to be checked with the JCR API.
+        final ReferencedVersions referencedVersions = new ReferencedVersions(1024L * 1024L);
+
+        // Act
+        referencedVersions.refreshIfStale(connectionWithRefsTable(false));
+
+        // Assert
+        assertThat(referencedVersions.isUnreferenced(UNREFERENCED)).isFalse();
+        assertThat(referencedVersions.isReferenced(REFERENCED)).isFalse();
+    }
+
+    @Test
+    public void noVerdictWhenTheSnapshotExceedsTheMemoryCap() throws SQLException {
+        // Arrange
+        final ReferencedVersions referencedVersions = new ReferencedVersions(NodeIdSet.BYTES_PER_ID);
+
+        // Act
+        referencedVersions.refreshIfStale(connectionWithRefsTable(true));
+
+        // Assert
+        assertThat(referencedVersions.isUnreferenced(UNREFERENCED)).isFalse();
+        assertThat(referencedVersions.isReferenced(REFERENCED)).isFalse();
+    }
+
+    @Test
+    public void previousSnapshotIsUsedWhileAnotherWorkerReloadsIt() throws Exception {
+        // Arrange — a snapshot always stale, whose second load blocks until released.
+        final ReferencedVersions referencedVersions = new ReferencedVersions(1024L * 1024L, 0L);
+        referencedVersions.refreshIfStale(connectionWithRefsTable(true));
+        final Connection blockingConnection = connectionWithRefsTable(true);
+        final PreparedStatement idsStatement = mock(PreparedStatement.class);
+        final ResultSet ids = mock(ResultSet.class);
+        final CountDownLatch reloadStarted = new CountDownLatch(1);
+        final CountDownLatch reloadReleased = new CountDownLatch(1);
+        when(blockingConnection.prepareStatement(contains("select NODE_ID"))).thenReturn(idsStatement);
+        when(idsStatement.executeQuery()).thenReturn(ids);
+        when(ids.next()).thenAnswer(invocation -> {
+            reloadStarted.countDown();
+            reloadReleased.await(5L, TimeUnit.SECONDS);
+            return false;
+        });
+        final Thread reloadingWorker = new Thread(() -> referencedVersions.refreshIfStale(blockingConnection));
+        reloadingWorker.start();
+        assertThat(reloadStarted.await(5L, TimeUnit.SECONDS)).isTrue();
+        final Connection otherConnection = mock(Connection.class);
+
+        // Act
+        referencedVersions.refreshIfStale(otherConnection);
+        final boolean referencedDuringReload = referencedVersions.isReferenced(REFERENCED);
+        reloadReleased.countDown();
+        reloadingWorker.join(5000L);
+
+        // Assert
+        assertThat(referencedDuringReload).isTrue();
+        verify(otherConnection, never()).prepareStatement(anyString());
+        // The reloaded snapshot is empty
+        assertThat(referencedVersions.isReferenced(REFERENCED)).isFalse();
+        assertThat(referencedVersions.isUnreferenced(REFERENCED)).isTrue();
+    }
+}
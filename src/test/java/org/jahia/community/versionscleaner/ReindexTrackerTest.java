@@ -0,0 +1,144 @@
+package org.jahia.community.versionscleaner;
+
+import org.jahia.services.scheduler.BackgroundJob;
+import org.jahia.services.scheduler.SchedulerService;
+import org.junit.Test;
+import org.quartz.JobDataMap;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ReindexTracker}: the tracking is completed once no job of the search index is in progress, when
+ * the end of one of them is notified, whose final status is taken from the job itself as the store is not yet up to
+ * date, and the listener is then unregistered.
+ */
+public class ReindexTrackerTest {
+
+    private static JobDetail mockJob(String name, String status) {
+        final JobDetail job = mock(JobDetail.class);
+        final JobDataMap jobDataMap = mock(JobDataMap.class);
+        when(job.getName()).thenReturn(name);
+        when(job.getJobDataMap()).thenReturn(jobDataMap);
+        when(jobDataMap.getString(BackgroundJob.JOB_STATUS)).thenReturn(status);
+        return job;
+    }
+
+    private static SchedulerService mockSchedulerService(Scheduler scheduler) {
+        final SchedulerService schedulerService = mock(SchedulerService.class);
+        when(schedulerService.getRAMScheduler()).thenReturn(scheduler);
+        return schedulerService;
+    }
+
+    @Test
+    public void completedWhenNoReindexJobIsInProgress() throws SchedulerException {
+        // Arrange
+        final Scheduler scheduler = mock(Scheduler.class);
+        final SchedulerService schedulerService = mockSchedulerService(scheduler);
+        when(schedulerService.getAllRAMJobs()).thenReturn(Arrays.asList(
+                mockJob(ReindexTracker.REINDEX_JOB_PREFIX + "-default", BackgroundJob.STATUS_SUCCESSFUL),
+                mockJob("OtherJob", BackgroundJob.STATUS_EXECUTING)));
+        final ReindexTracker tracker = ReindexTracker.start(schedulerService);
+
+        // Act
+        final boolean completed = tracker.checkCompletion();
+
+        // Assert
+        assertThat(completed).isTrue();
+        assertThat(tracker.getCompletion()).isCompletedWithValue(Boolean.TRUE);
+        verify(scheduler).addGlobalJobListener(tracker);
+        verify(scheduler).removeGlobalJobListener(tracker.getName());
+    }
+
+    @Test
+    public void notCompletedWhileReindexJobIsInProgress() throws SchedulerException {
+        // Arrange
+        final Scheduler scheduler = mock(Scheduler.class);
+        final SchedulerService schedulerService = mockSchedulerService(scheduler);
+        when(schedulerService.getAllRAMJobs()).thenReturn(Collections.singletonList(
+                mockJob(ReindexTracker.REINDEX_JOB_PREFIX + "-default", BackgroundJob.STATUS_EXECUTING)));
+        final ReindexTracker tracker = ReindexTracker.start(schedulerService);
+
+        // Act
+        final boolean completed = tracker.checkCompletion();
+
+        // Assert
+        assertThat(completed).isFalse();
+        assertThat(tracker.getCompletion()).isNotDone();
+        verify(scheduler, never()).removeGlobalJobListener(tracker.getName());
+    }
+
+    @Test
+    public void endOfLastReindexJobCompletesTracking() throws SchedulerException {
+        // Arrange
+        final Scheduler scheduler = mock(Scheduler.class);
+        final SchedulerService schedulerService = mockSchedulerService(scheduler);
+        final String jobName = ReindexTracker.REINDEX_JOB_PREFIX + "-default";
+        // The listeners are notified before the final status of the job is written back to the store
+        when(schedulerService.getAllRAMJobs()).thenReturn(Collections.singletonList(
+                mockJob(jobName, BackgroundJob.STATUS_EXECUTING)));
+        final JobExecutionContext context = mock(JobExecutionContext.class);
+        final JobDetail endedJob = mockJob(jobName, BackgroundJob.STATUS_SUCCESSFUL);
+        when(context.getJobDetail()).thenReturn(endedJob);
+        final ReindexTracker tracker = ReindexTracker.start(schedulerService);
+
+        // Act
+        tracker.jobWasExecuted(context, null);
+
+        // Assert
+        assertThat(tracker.getCompletion()).isCompletedWithValue(Boolean.TRUE);
+        verify(scheduler).removeGlobalJobListener(tracker.getName());
+    }
+
+    @Test
+    public void failureOfEndedJobIsReported() throws SchedulerException {
+        // Arrange
+        final Scheduler scheduler = mock(Scheduler.class);
+        final SchedulerService schedulerService = mockSchedulerService(scheduler);
+        final String jobName = ReindexTracker.REINDEX_JOB_PREFIX + "-default";
+        when(schedulerService.getAllRAMJobs()).thenReturn(Collections.singletonList(
+                mockJob(jobName, BackgroundJob.STATUS_EXECUTING)));
+        final JobExecutionContext context = mock(JobExecutionContext.class);
+        final JobDetail endedJob = mockJob(jobName, BackgroundJob.STATUS_FAILED);
+        when(context.getJobDetail()).thenReturn(endedJob);
+        final ReindexTracker tracker = ReindexTracker.start(schedulerService);
+
+        // Act
+        tracker.jobWasExecuted(context, null);
+
+        // Assert
+        assertThat(tracker.getCompletion()).isCompletedWithValue(Boolean.FALSE);
+    }
+
+    @Test
+    public void endOfReindexJobDoesNotCompleteTrackingWhileAnotherOneIsInProgress() throws SchedulerException {
+        // Arrange
+        final Scheduler scheduler = mock(Scheduler.class);
+        final SchedulerService schedulerService = mockSchedulerService(scheduler);
+        final String jobName = ReindexTracker.REINDEX_JOB_PREFIX + "-default";
+        when(schedulerService.getAllRAMJobs()).thenReturn(Arrays.asList(
+                mockJob(jobName, BackgroundJob.STATUS_EXECUTING),
+                mockJob(ReindexTracker.REINDEX_JOB_PREFIX + "-other", BackgroundJob.STATUS_EXECUTING)));
+        final JobExecutionContext context = mock(JobExecutionContext.class);
+        final JobDetail endedJob = mockJob(jobName, BackgroundJob.STATUS_SUCCESSFUL);
+        when(context.getJobDetail()).thenReturn(endedJob);
+        final ReindexTracker tracker = ReindexTracker.start(schedulerService);
+
+        // Act
+        tracker.jobWasExecuted(context, null);
+
+        // Assert
+        assertThat(tracker.getCompletion()).isNotDone();
+        verify(scheduler, never()).removeGlobalJobListener(tracker.getName());
+    }
+}
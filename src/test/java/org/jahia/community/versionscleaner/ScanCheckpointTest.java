@@ -0,0 +1,104 @@
+package org.jahia.community.versionscleaner;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link ScanCheckpoint}: the position and the completed partitions must survive a save/load cycle, the
+ * file must be replaced without leaving the temporary one behind, and the position saved by the previous versions
+ * must still be read.
+ */
+public class ScanCheckpointTest {
+
+    private static final String PARTITION_1 = "/jcr:system/jcr:versionStorage/0a/1b";
+    private static final String PARTITION_2 = "/jcr:system/jcr:versionStorage/0a/2c";
+    private static final String POSITION = "/jcr:system/jcr:versionStorage/0a/3d/4e";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void missingFileGivesAnEmptyCheckpoint() {
+        // Act
+        final ScanCheckpoint checkpoint = ScanCheckpoint.load(folder.getRoot());
+
+        // Assert
+        assertThat(checkpoint.getPosition()).isNull();
+        assertThat(checkpoint.getNbCompletedPartitions()).isZero();
+    }
+
+    @Test
+    public void positionAndCompletedPartitionsAreReloaded() {
+        // Arrange
+        final ScanCheckpoint checkpoint = ScanCheckpoint.load(folder.getRoot());
+        checkpoint.partitionCompleted(PARTITION_1);
+        checkpoint.partitionCompleted(PARTITION_2);
+        checkpoint.setPosition(POSITION);
+
+        // Act
+        checkpoint.save();
+        final ScanCheckpoint reloaded = ScanCheckpoint.load(folder.getRoot());
+
+        // Assert
+        assertThat(reloaded.getPosition()).isEqualTo(POSITION);
+        assertThat(reloaded.getNbCompletedPartitions()).isEqualTo(2);
+        assertThat(reloaded.isPartitionCompleted(PARTITION_1)).isTrue();
+        assertThat(reloaded.isPartitionCompleted(PARTITION_2)).isTrue();
+        assertThat(new File(folder.getRoot(), ScanCheckpoint.CHECKPOINT_FILE + ".tmp")).doesNotExist();
+    }
+
+    @Test
+    public void completedPartitionsAreReloadedWithoutPosition() {
+        // Arrange: the parallel mode only records the completed partitions
+        final ScanCheckpoint checkpoint = ScanCheckpoint.load(folder.getRoot());
+        checkpoint.partitionCompleted(PARTITION_1);
+
+        // Act
+        checkpoint.save();
+        final ScanCheckpoint reloaded = ScanCheckpoint.load(folder.getRoot());
+
+        // Assert
+        assertThat(reloaded.getPosition()).isNull();
+        assertThat(reloaded.isPartitionCompleted(PARTITION_1)).isTrue();
+    }
+
+    @Test
+    public void emptyCheckpointDeletesTheFile() {
+        // Arrange
+        final ScanCheckpoint checkpoint = ScanCheckpoint.load(folder.getRoot());
+        checkpoint.setPosition(POSITION);
+        checkpoint.save();
+
+        // Act
+        checkpoint.reset();
+        checkpoint.save();
+
+        // Assert
+        assertThat(new File(folder.getRoot(), ScanCheckpoint.CHECKPOINT_FILE)).doesNotExist();
+        assertThat(ScanCheckpoint.load(folder.getRoot()).getPosition()).isNull();
+    }
+
+    @Test
+    public void legacyPositionIsReadAndSuperseded() throws IOException {
+        // Arrange
+        final File legacyFile = new File(folder.getRoot(), ScanCheckpoint.LEGACY_POSITION_FILE);
+        FileUtils.writeStringToFile(legacyFile, POSITION + System.lineSeparator(), StandardCharsets.UTF_8);
+
+        // Act
+        final ScanCheckpoint checkpoint = ScanCheckpoint.load(folder.getRoot());
+        checkpoint.save();
+
+        // Assert
+        assertThat(checkpoint.getPosition()).isEqualTo(POSITION);
+        assertThat(legacyFile).doesNotExist();
+        assertThat(ScanCheckpoint.load(folder.getRoot()).getPosition()).isEqualTo(POSITION);
+    }
+}
@@ -0,0 +1,89 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link ThrottleController}: the pause must grow while the deletions or the wait for a DB connection
+ * exceed the target latency, stay capped, and shrink back to the configured minimum once they are under it.
+ */
+public class ThrottleControllerTest {
+
+    private static final long TARGET_IN_MS = 100L;
+    // Never probes the DB pool
+    private static final long NO_PROBE = Long.MAX_VALUE;
+
+    private static long millis(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void backsOffWhileTheDeletionsAreSlowerThanTheTarget() {
+        // Arrange
+        final ThrottleController controller = new ThrottleController(TARGET_IN_MS, 0L, NO_PROBE, () -> 0L);
+
+        // Act
+        controller.recordLatency(millis(500L));
+        final long firstPause = controller.getPauseInMs();
+        controller.recordLatency(millis(500L));
+        final long secondPause = controller.getPauseInMs();
+
+        // Assert
+        assertThat(firstPause).isEqualTo(ThrottleController.INITIAL_BACKOFF_IN_MS);
+        assertThat(secondPause).isEqualTo(2L * ThrottleController.INITIAL_BACKOFF_IN_MS);
+    }
+
+    @Test
+    public void pauseIsCapped() {
+        // Arrange
+        final ThrottleController controller = new ThrottleController(TARGET_IN_MS, 0L, NO_PROBE, () -> 0L);
+
+        // Act
+        for (int i = 0; i < 100; i++) controller.recordLatency(millis(10000L));
+
+        // Assert
+        assertThat(controller.getPauseInMs()).isEqualTo(ThrottleController.MAX_PAUSE_IN_MS);
+    }
+
+    @Test
+    public void speedsUpBackToTheMinimumPauseOnceUnderTheTarget() {
+        // Arrange
+        final long minPause = 5L;
+        final ThrottleController controller = new ThrottleController(TARGET_IN_MS, minPause, NO_PROBE, () -> 0L);
+        for (int i = 0; i < 5; i++) controller.recordLatency(millis(1000L));
+        final long slowPause = controller.getPauseInMs();
+
+        // Act
+        for (int i = 0; i < 1000; i++) controller.recordLatency(millis(1L));
+
+        // Assert
+        assertThat(slowPause).isGreaterThan(minPause);
+        assertThat(controller.getPauseInMs()).isEqualTo(minPause);
+    }
+
+    @Test
+    public void backsOffWhenTheDbPoolIsSaturated() {
+        // Arrange — fast deletions, but a long wait for a DB connection.
+        final ThrottleController controller = new ThrottleController(TARGET_IN_MS, 0L, 0L, () -> 2000L);
+        controller.recordLatency(millis(1L));
+
+        // Act
+        final long pause = controller.getPauseInMs();
+
+        // Assert
+        assertThat(pause).isGreaterThan(0L);
+    }
+
+    @Test
+    public void failedProbesAreIgnored() {
+        // Arrange
+        final ThrottleController controller = new ThrottleController(TARGET_IN_MS, 0L, 0L, () -> -1L);
+        controller.recordLatency(millis(1L));
+
+        // Act + Assert
+        assertThat(controller.getPauseInMs()).isZero();
+    }
+}
@@ -0,0 +1,63 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link TopHistories}: only the N largest histories must be kept, whatever the number of histories
+ * offered, ranked by number of versions or by size.
+ */
+public class TopHistoriesTest {
+
+    private static TopHistories.Entry history(String path, long nbVersions, long sizeInBytes) {
+        return new TopHistories.Entry(path, nbVersions, false, null, null, null, sizeInBytes);
+    }
+
+    @Test
+    public void keepsTheLargestHistoriesByNumberOfVersions() {
+        // Arrange
+        final TopHistories largestHistories = new TopHistories(3);
+
+        // Act
+        for (int i = 0; i < 1000; i++) {
+            largestHistories.offer(history("/h" + i, i % 100, -1L));
+        }
+        largestHistories.offer(history("/largest", 5000L, -1L));
+
+        // Assert
+        assertThat(largestHistories.getHistories()).extracting(TopHistories.Entry::getNbVersions).containsExactly(5000L, 99L, 99L);
+        assertThat(largestHistories.getHistories().get(0).getPath()).isEqualTo("/largest");
+        assertThat(largestHistories.accepts(99L)).isFalse();
+        assertThat(largestHistories.accepts(100L)).isTrue();
+    }
+
+    @Test
+    public void keepsTheLargestHistoriesBySize() {
+        // Arrange
+        final TopHistories largestHistories = new TopHistories(2, true);
+
+        // Act
+        largestHistories.offer(history("/many-small-versions", 1000L, 10L));
+        largestHistories.offer(history("/few-large-versions", 2L, 50000L));
+        largestHistories.offer(history("/medium", 10L, 2000L));
+
+        // Assert
+        assertThat(largestHistories.getHistories()).extracting(TopHistories.Entry::getPath).containsExactly("/few-large-versions", "/medium");
+        assertThat(largestHistories.accepts(1000L)).isFalse();
+        assertThat(largestHistories.accepts(3000L)).isTrue();
+    }
+
+    @Test
+    public void acceptsNothingWhenDisabled() {
+        // Arrange
+        final TopHistories largestHistories = new TopHistories(0);
+
+        // Act
+        largestHistories.offer(history("/h", 10L, -1L));
+
+        // Assert
+        assertThat(largestHistories.accepts(Long.MAX_VALUE)).isFalse();
+        assertThat(largestHistories.getHistories()).isEmpty();
+    }
+}
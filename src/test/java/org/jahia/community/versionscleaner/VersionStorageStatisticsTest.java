@@ -0,0 +1,93 @@
+package org.jahia.community.versionscleaner;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Tests for {@link VersionStorageStatistics}: the totals must be extrapolated from the sampled folders, with a
+ * margin of error vanishing when every folder is sampled, and the histories must land in the right buckets.
+ */
+public class VersionStorageStatisticsTest {
+
+    private static VersionStorageStatistics sample(long nbPartitions, long[][] partitions) {
+        final VersionStorageStatistics statistics = new VersionStorageStatistics(nbPartitions, 3);
+        int index = 0;
+        for (long[] partition : partitions) {
+            // {histories, orphans, versions per history}
+            for (int i = 0; i < partition[0]; i++) {
+                statistics.trackHistory("/h" + index++, partition[2], i < partition[1]);
+            }
+            statistics.partitionScanned();
+        }
+        return statistics;
+    }
+
+    @Test
+    public void totalsAreExtrapolatedToEveryFolder() {
+        // Arrange
+        final VersionStorageStatistics statistics = sample(100L, new long[][]{{2, 1, 3}, {4, 0, 3}});
+
+        // Act & Assert: 3 histories and 9 versions per folder on average
+        assertThat(statistics.getNbSampledHistories()).isEqualTo(6L);
+        assertThat(statistics.getEstimatedHistories()).isEqualTo(300d);
+        assertThat(statistics.getEstimatedVersions()).isEqualTo(900d);
+        assertThat(statistics.getMeanVersionsPerHistory()).isEqualTo(3d);
+        assertThat(statistics.getOrphanRatio()).isCloseTo(1d / 6d, within(1e-9));
+        assertThat(statistics.getEstimatedHistoriesMargin()).isGreaterThan(0d);
+        assertThat(statistics.getOrphanRatioMargin()).isGreaterThan(0d);
+    }
+
+    @Test
+    public void noMarginWhenEveryFolderIsSampled() {
+        // Arrange
+        final VersionStorageStatistics statistics = sample(2L, new long[][]{{2, 1, 3}, {4, 0, 3}});
+
+        // Act & Assert
+        assertThat(statistics.getEstimatedHistories()).isEqualTo(6d);
+        assertThat(statistics.getEstimatedHistoriesMargin()).isZero();
+        assertThat(statistics.getOrphanRatioMargin()).isZero();
+    }
+
+    @Test
+    public void noMarginWithASingleFolder() {
+        // Arrange
+        final VersionStorageStatistics statistics = sample(100L, new long[][]{{2, 1, 3}});
+
+        // Act & Assert
+        assertThat(statistics.getEstimatedHistoriesMargin()).isEqualTo(-1d);
+        assertThat(statistics.getOrphanRatioMargin()).isEqualTo(-1d);
+    }
+
+    @Test
+    public void historiesAreCountedInTheirBucket() {
+        // Act & Assert
+        assertThat(VersionStorageStatistics.getBucket(0L)).isZero();
+        assertThat(VersionStorageStatistics.getBucket(1L)).isZero();
+        assertThat(VersionStorageStatistics.getBucket(2L)).isEqualTo(1);
+        assertThat(VersionStorageStatistics.getBucket(3L)).isEqualTo(2);
+        assertThat(VersionStorageStatistics.getBucket(1_000_000L)).isEqualTo(VersionStorageStatistics.HISTOGRAM_BOUNDS.length);
+        assertThat(VersionStorageStatistics.getBucketLabel(0)).isEqualTo("0-1");
+        assertThat(VersionStorageStatistics.getBucketLabel(1)).isEqualTo("2");
+        assertThat(VersionStorageStatistics.getBucketLabel(2)).isEqualTo("3-5");
+        assertThat(VersionStorageStatistics.getBucketLabel(VersionStorageStatistics.HISTOGRAM_BOUNDS.length)).isEqualTo(">10000");
+    }
+
+    @Test
+    public void largestHistoriesAreKept() {
+        // Arrange
+        final VersionStorageStatistics statistics = new VersionStorageStatistics(1L, 2);
+
+        // Act
+        statistics.trackHistory("/a", 5L, false);
+        statistics.trackHistory("/b", 50L, true);
+        statistics.trackHistory("/c", 1L, false);
+        statistics.trackHistory("/d", 20L, false);
+        statistics.partitionScanned();
+
+        // Assert
+        assertThat(statistics.getLargestHistories()).extracting(TopHistories.Entry::getPath).containsExactly("/b", "/d");
+        assertThat(statistics.getLargestHistories().get(0).isOrphaned()).isTrue();
+    }
+}